@@ -0,0 +1,145 @@
+package de.blau.android.presets;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import de.blau.android.osm.Tags;
+import de.blau.android.prefs.AdvancedPrefDatabase;
+import de.blau.android.presets.Preset.PresetItem;
+import de.blau.android.util.collections.MultiHashMap;
+
+/**
+ * Check that a preset loaded from its compiled form is the same as the one parsed from the XML
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PresetCacheTest {
+
+    private static final String DEBUG_TAG = PresetCacheTest.class.getSimpleName();
+
+    private Context context;
+    private File    directory;
+
+    /**
+     * Before test setup, start with an empty directory for the default preset
+     */
+    @Before
+    public void setup() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        directory = new File(new File(context.getCacheDir(), DEBUG_TAG), AdvancedPrefDatabase.ID_DEFAULT);
+        directory.mkdirs(); // NOSONAR
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete(); // NOSONAR
+            }
+        }
+    }
+
+    /**
+     * Parse the bundled preset, then load it again from the compiled form and compare
+     */
+    @Test
+    public void roundTrip() {
+        try {
+            long start = System.currentTimeMillis();
+            Preset parsed = Preset.load(context, directory, null, true);
+            long parseTime = System.currentTimeMillis() - start;
+            Assert.assertTrue(new File(directory, Preset.CACHEFILE).exists());
+
+            start = System.currentTimeMillis();
+            Preset cached = Preset.load(context, directory, null, true);
+            long cachedTime = System.currentTimeMillis() - start;
+            Log.i(DEBUG_TAG, "Parsing " + parseTime + " ms, loading compiled " + cachedTime + " ms");
+            Assert.assertNotSame(parsed, cached);
+
+            Map<String, PresetItem> parsedItems = parsed.getItemsForType(null);
+            Map<String, PresetItem> cachedItems = cached.getItemsForType(null);
+            Assert.assertFalse(parsedItems.isEmpty());
+            Assert.assertEquals(parsedItems.keySet(), cachedItems.keySet());
+            for (Entry<String, PresetItem> entry : parsedItems.entrySet()) {
+                Assert.assertEquals(entry.getValue().getTranslatedName(), cachedItems.get(entry.getKey()).getTranslatedName());
+            }
+
+            Preset[] parsedPresets = new Preset[] { parsed };
+            Preset[] cachedPresets = new Preset[] { cached };
+            assertSameIndex(Preset.getSearchIndex(parsedPresets), Preset.getSearchIndex(cachedPresets));
+            assertSameIndex(Preset.getTranslatedSearchIndex(parsedPresets), Preset.getTranslatedSearchIndex(cachedPresets));
+
+            // match the fixed tags of every item
+            int matched = 0;
+            for (PresetItem item : parsedItems.values()) {
+                Map<String, String> tags = new HashMap<>();
+                for (Entry<String, PresetFixedField> entry : item.getFixedTags().entrySet()) {
+                    tags.put(entry.getKey(), entry.getValue().getValue().getValue());
+                }
+                if (!tags.isEmpty()) {
+                    Assert.assertEquals(tags.toString(), name(Preset.findBestMatch(parsedPresets, tags)),
+                            name(Preset.findBestMatch(cachedPresets, tags)));
+                    matched++;
+                }
+            }
+            Assert.assertTrue(matched > 0);
+            Map<String, String> address = new HashMap<>();
+            address.put(Tags.KEY_ADDR_HOUSENUMBER, "1");
+            Assert.assertEquals(name(Preset.findBestMatch(parsedPresets, address, true)), name(Preset.findBestMatch(cachedPresets, address, true)));
+        } catch (Exception e) {
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Check that two search indices have the same keys and items
+     * 
+     * @param expected the expected index
+     * @param actual the actual index
+     */
+    private void assertSameIndex(@NonNull MultiHashMap<String, PresetItem> expected, @NonNull MultiHashMap<String, PresetItem> actual) {
+        Assert.assertEquals(expected.getKeys(), actual.getKeys());
+        for (String key : expected.getKeys()) {
+            Assert.assertEquals(key, names(expected.get(key)), names(actual.get(key)));
+        }
+    }
+
+    /**
+     * Get the names of some PresetItems
+     * 
+     * @param items the PresetItems
+     * @return a sorted Set of the names
+     */
+    @NonNull
+    private Set<String> names(@NonNull Set<PresetItem> items) {
+        Set<String> result = new TreeSet<>();
+        for (PresetItem item : items) {
+            result.add(name(item));
+        }
+        return result;
+    }
+
+    /**
+     * Get the name of a PresetItem
+     * 
+     * @param item the PresetItem or null
+     * @return the name or null
+     */
+    @Nullable
+    private String name(@Nullable PresetItem item) {
+        return item != null ? item.getName() : null;
+    }
+}
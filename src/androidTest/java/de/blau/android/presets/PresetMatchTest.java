@@ -0,0 +1,226 @@
+package de.blau.android.presets;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import de.blau.android.osm.Tags;
+import de.blau.android.prefs.AdvancedPrefDatabase;
+import de.blau.android.presets.Preset.PresetItem;
+
+/**
+ * Check that matching with the compiled index returns the same results as the original linear candidate search
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PresetMatchTest {
+
+    private static final String DEBUG_TAG = PresetMatchTest.class.getSimpleName();
+
+    private static final String PLAYGROUND = "playground";
+
+    private Preset   preset;
+    private Preset[] presets;
+
+    /**
+     * Before test setup, load a private copy of the bundled preset so that it can be modified
+     */
+    @Before
+    public void setup() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        File directory = new File(new File(context.getCacheDir(), DEBUG_TAG), AdvancedPrefDatabase.ID_DEFAULT);
+        directory.mkdirs(); // NOSONAR
+        try {
+            preset = Preset.load(context, directory, null, false);
+        } catch (Exception e) {
+            Assert.fail(e.getMessage());
+        }
+        presets = new Preset[] { preset };
+    }
+
+    /**
+     * Match tags derived from every item in the preset, alone and combined with the next item and address tags
+     */
+    @Test
+    public void allItems() {
+        List<PresetItem> items = new ArrayList<>(preset.getItemsForType(null).values());
+        Assert.assertFalse(items.isEmpty());
+        for (int i = 0; i < items.size(); i++) {
+            Map<String, String> fixed = fixedTags(items.get(i));
+            assertSameMatch(fixed);
+
+            Map<String, String> all = new HashMap<>(fixed);
+            for (String key : items.get(i).getFields().keySet()) {
+                if (!all.containsKey(key)) {
+                    all.put(key, "yes");
+                }
+            }
+            assertSameMatch(all);
+
+            Map<String, String> combined = new HashMap<>(fixedTags(items.get((i + 1) % items.size())));
+            combined.putAll(fixed);
+            assertSameMatch(combined);
+
+            Map<String, String> address = new HashMap<>(fixed);
+            address.put(Tags.KEY_ADDR_HOUSENUMBER, "1");
+            assertSameMatch(address);
+        }
+    }
+
+    /**
+     * Tags that only contain address keys only match if address keys are used
+     */
+    @Test
+    public void addressKeys() {
+        Map<String, String> tags = new HashMap<>();
+        tags.put(Tags.KEY_ADDR_HOUSENUMBER, "1");
+        tags.put(Tags.KEY_ADDR_STREET, "Main Street");
+        assertSameMatch(tags);
+        Assert.assertNull(Preset.findBestMatch(presets, tags, false));
+        Assert.assertEquals("Address", Preset.findBestMatch(presets, tags, true).getName());
+        // address keys are not used if something else matches
+        tags.put(Tags.KEY_BUILDING, "yes");
+        assertSameMatch(tags);
+        Assert.assertEquals(Preset.findBestMatch(presets, tags, false), Preset.findBestMatch(presets, tags, true));
+    }
+
+    /**
+     * Changes to the object keys and to the tag to item index invalidate the compiled index and the cached results
+     */
+    @Test
+    public void invalidation() {
+        Map<String, String> tags = new HashMap<>();
+        tags.put(PLAYGROUND, "swing");
+        PresetItem swing = Preset.findBestMatch(presets, tags);
+        Assert.assertNotNull(swing);
+        Assert.assertEquals("Swing", swing.getName());
+        assertSameMatch(tags);
+
+        // without the object key nothing matches
+        Assert.assertTrue(preset.getObjectKeys().remove(PLAYGROUND));
+        Assert.assertNull(Preset.findBestMatch(presets, tags));
+        assertSameMatch(tags);
+
+        preset.addObjectKeys(Arrays.asList(PLAYGROUND));
+        Assert.assertSame(swing, Preset.findBestMatch(presets, tags));
+        assertSameMatch(tags);
+
+        // removing the item removes it from tagItems
+        swing.delete();
+        Assert.assertNotSame(swing, Preset.findBestMatch(presets, tags));
+        assertSameMatch(tags);
+    }
+
+    /**
+     * Assert that the current and the original implementation return the same item, with and without address keys
+     *
+     * @param tags the tags to match
+     */
+    private void assertSameMatch(@NonNull Map<String, String> tags) {
+        for (boolean useAddressKeys : new boolean[] { false, true }) {
+            PresetItem expected = oldFindBestMatch(presets, tags, useAddressKeys);
+            Assert.assertSame(tags.toString(), expected, Preset.findBestMatch(presets, tags, useAddressKeys));
+            // again from the cache
+            Assert.assertSame(tags.toString(), expected, Preset.findBestMatch(presets, tags, useAddressKeys));
+        }
+    }
+
+    /**
+     * Get the fixed tags of a PresetItem
+     *
+     * @param item the PresetItem
+     * @return a Map of the fixed tags
+     */
+    @NonNull
+    private static Map<String, String> fixedTags(@NonNull PresetItem item) {
+        Map<String, String> tags = new HashMap<>();
+        for (Entry<String, PresetFixedField> entry : item.getFixedTags().entrySet()) {
+            tags.put(entry.getKey(), entry.getValue().getValue().getValue());
+        }
+        return tags;
+    }
+
+    /**
+     * The original implementation of Preset.findBestMatch
+     *
+     * @param presets presets presets to match against
+     * @param tags tags to check against
+     * @param useAddressKeys use addr: keys if true
+     * @return a preset or null if none found
+     */
+    @Nullable
+    private static PresetItem oldFindBestMatch(@NonNull Preset[] presets, @NonNull Map<String, String> tags, boolean useAddressKeys) {
+        int bestMatchStrength = 0;
+        PresetItem bestMatch = null;
+
+        // Build candidate list
+        Set<PresetItem> possibleMatches = buildPossibleMatches(presets, tags, false);
+        // if we only have address keys retry
+        if (useAddressKeys && possibleMatches.isEmpty()) {
+            possibleMatches = buildPossibleMatches(presets, tags, true);
+        }
+        // Find best
+        final int FIXED_WEIGHT = 100; // always prioritize presets with fixed keys
+        for (PresetItem possibleMatch : possibleMatches) {
+            int fixedTagCount = possibleMatch.getFixedTagCount() * FIXED_WEIGHT;
+            int recommendedTagCount = possibleMatch.getRecommendedKeyCount();
+            if (fixedTagCount + recommendedTagCount < bestMatchStrength) {
+                continue; // isn't going to help
+            }
+            int matches = 0;
+            if (fixedTagCount > 0 && possibleMatch.matches(tags)) { // has required tags
+                matches = fixedTagCount;
+            }
+            if (recommendedTagCount > 0) {
+                matches = matches + possibleMatch.matchesRecommended(tags);
+            }
+            if (matches > bestMatchStrength) {
+                bestMatch = possibleMatch;
+                bestMatchStrength = matches;
+            }
+        }
+        return bestMatch;
+    }
+
+    /**
+     * The original candidate search
+     *
+     * @param presets current presets
+     * @param tags the tags
+     * @param useAddressKeys use address keys
+     * @return set of presets
+     */
+    @NonNull
+    private static Set<PresetItem> buildPossibleMatches(@NonNull Preset[] presets, @NonNull Map<String, String> tags, boolean useAddressKeys) {
+        Set<PresetItem> possibleMatches = new LinkedHashSet<>();
+        for (Preset p : presets) {
+            if (p != null) {
+                for (Entry<String, String> tag : tags.entrySet()) {
+                    String key = tag.getKey();
+                    if (Tags.IMPORTANT_TAGS.contains(key) || p.isObjectKey(key) || (key.startsWith(Tags.KEY_ADDR_BASE) && useAddressKeys)) {
+                        possibleMatches.addAll(p.getItemByTag(key + "\t")); // for stuff that doesn't have fixed values
+                        possibleMatches.addAll(p.getItemByTag(key + "\t" + tag.getValue()));
+                    }
+                }
+            }
+        }
+        return possibleMatches;
+    }
+}
@@ -0,0 +1,192 @@
+package de.blau.android.resources;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import de.blau.android.resources.DataStyle.FeatureStyle;
+
+/**
+ * Check that the compiled StyleMatcher returns the same styles as the original recursive linear search
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class StyleMatcherTest {
+
+    private static final String DEFAULT_STYLE = "Color Round Nodes";
+
+    private DataStyle style;
+
+    /**
+     * Before test setup
+     */
+    @Before
+    public void setup() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        DataStyle.getStylesFromFiles(context);
+        style = DataStyle.getStyle(DEFAULT_STYLE);
+        Assert.assertNotNull(style);
+    }
+
+    /**
+     * Match tags derived from every way and relation style of the default style, for open and closed ways
+     */
+    @Test
+    public void defaultStyle() {
+        assertSameMatches(style.getWayStyles());
+        assertSameMatches(style.getRelationStyles());
+    }
+
+    /**
+     * Styles that are entered in the same table entry or are reached via different tags of the element resolve to the
+     * first match in the original order
+     */
+    @Test
+    public void firstMatchWins() {
+        FeatureStyle root = style.new FeatureStyle("");
+        FeatureStyle bridge = style.new FeatureStyle("bridge=yes");
+        root.addStyle(bridge);
+        FeatureStyle primaryLanes = style.new FeatureStyle("highway=primary|lanes=2");
+        root.addStyle(primaryLanes);
+        FeatureStyle primary = style.new FeatureStyle("highway=primary");
+        root.addStyle(primary);
+        FeatureStyle gravel = style.new FeatureStyle("surface=gravel");
+        primary.addStyle(gravel);
+        FeatureStyle pedestrianArea = style.new FeatureStyle("highway=pedestrian|area=yes");
+        pedestrianArea.setClosed(true);
+        root.addStyle(pedestrianArea);
+        FeatureStyle highway = style.new FeatureStyle("highway");
+        root.addStyle(highway);
+        FeatureStyle lanes = style.new FeatureStyle("lanes");
+        root.addStyle(lanes);
+
+        StyleMatcher matcher = new StyleMatcher(root);
+        assertMatch(matcher, root, primaryLanes, false, "highway=primary", "lanes=2");
+        assertMatch(matcher, root, primary, false, "highway=primary", "lanes=3");
+        assertMatch(matcher, root, gravel, false, "highway=primary", "surface=gravel");
+        assertMatch(matcher, root, bridge, false, "highway=primary", "lanes=2", "bridge=yes");
+        assertMatch(matcher, root, pedestrianArea, true, "highway=pedestrian", "area=yes");
+        assertMatch(matcher, root, highway, false, "highway=pedestrian", "area=yes");
+        assertMatch(matcher, root, highway, false, "highway=residential", "lanes=2");
+        assertMatch(matcher, root, lanes, false, "lanes=2");
+        assertMatch(matcher, root, root, false, "building=yes");
+    }
+
+    /**
+     * Assert that a set of tags matches a style with both the StyleMatcher and the original implementation
+     *
+     * @param matcher the StyleMatcher
+     * @param root the top level FeatureStyle
+     * @param expected the expected FeatureStyle
+     * @param closed true if the element is a closed way
+     * @param tags the tags in k=v notation
+     */
+    private static void assertMatch(@NonNull StyleMatcher matcher, @NonNull FeatureStyle root, @NonNull FeatureStyle expected, boolean closed,
+            @NonNull String... tags) {
+        SortedMap<String, String> map = new TreeMap<>();
+        for (String tag : tags) {
+            String[] kv = tag.split("=");
+            map.put(kv[0], kv[1]);
+        }
+        Assert.assertSame(map.toString(), expected, matchRecursive(root, map, closed));
+        Assert.assertSame(map.toString(), expected, matcher.match(map, closed));
+        // again from the cache
+        Assert.assertSame(map.toString(), expected, matcher.match(map, closed));
+    }
+
+    /**
+     * Compare the results for tags derived from all styles in a tree, alone and combined with the tags of the next
+     * style, and for every single tag
+     *
+     * @param root the top level FeatureStyle
+     */
+    private static void assertSameMatches(@NonNull FeatureStyle root) {
+        List<SortedMap<String, String>> tagSets = new ArrayList<>();
+        collectTags(root, new TreeMap<>(), tagSets);
+        Assert.assertFalse(tagSets.isEmpty());
+        StyleMatcher matcher = new StyleMatcher(root);
+        for (int i = 0; i < tagSets.size(); i++) {
+            SortedMap<String, String> tags = tagSets.get(i);
+            assertSameMatch(matcher, root, tags);
+            SortedMap<String, String> combined = new TreeMap<>(tagSets.get((i + 1) % tagSets.size()));
+            combined.putAll(tags);
+            assertSameMatch(matcher, root, combined);
+            for (Entry<String, String> tag : tags.entrySet()) {
+                SortedMap<String, String> single = new TreeMap<>();
+                single.put(tag.getKey(), tag.getValue());
+                assertSameMatch(matcher, root, single);
+            }
+        }
+    }
+
+    /**
+     * Collect the tags that lead to every style in a tree, wildcard values are replaced by a concrete value
+     *
+     * @param style the current FeatureStyle
+     * @param parentTags the tags leading to the parent style
+     * @param result the List the tag sets are added to
+     */
+    private static void collectTags(@NonNull FeatureStyle style, @NonNull SortedMap<String, String> parentTags,
+            @NonNull List<SortedMap<String, String>> result) {
+        SortedMap<String, String> tags = new TreeMap<>(parentTags);
+        for (Entry<String, String> tag : style.tags.entrySet()) {
+            if (!"".equals(tag.getKey())) {
+                tags.put(tag.getKey(), "*".equals(tag.getValue()) ? "yes" : tag.getValue());
+            }
+        }
+        if (!tags.isEmpty()) {
+            result.add(tags);
+        }
+        if (style.cascadedStyles != null) {
+            for (FeatureStyle s : style.cascadedStyles) {
+                collectTags(s, tags, result);
+            }
+        }
+    }
+
+    /**
+     * Assert that the StyleMatcher and the original implementation return the same style for open and closed ways
+     *
+     * @param matcher the StyleMatcher
+     * @param root the top level FeatureStyle
+     * @param tags the tags to match
+     */
+    private static void assertSameMatch(@NonNull StyleMatcher matcher, @NonNull FeatureStyle root, @NonNull SortedMap<String, String> tags) {
+        for (boolean closed : new boolean[] { false, true }) {
+            Assert.assertSame(tags.toString() + " closed " + closed, matchRecursive(root, tags, closed), matcher.match(tags, closed));
+        }
+    }
+
+    /**
+     * The original implementation: recursively traverse the styles and try to find a match
+     *
+     * @param style the style
+     * @param tags tags from the element we are trying to match
+     * @param closed true if the element is a way and closed
+     * @return the best matching style
+     */
+    @NonNull
+    private static FeatureStyle matchRecursive(@NonNull FeatureStyle style, @NonNull SortedMap<String, String> tags, boolean closed) {
+        FeatureStyle result = style;
+        if (style.cascadedStyles != null) {
+            for (FeatureStyle s : style.cascadedStyles) {
+                if ((s.closed == null || s.closed == closed) && s.match(tags)) {
+                    return matchRecursive(s, tags, closed);
+                }
+            }
+        }
+        return result;
+    }
+}
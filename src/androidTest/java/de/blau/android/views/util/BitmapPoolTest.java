@@ -0,0 +1,131 @@
+package de.blau.android.views.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class BitmapPoolTest {
+
+    /**
+     * Create a mutable Bitmap
+     *
+     * @param width the width
+     * @param height the height
+     * @param config the Bitmap.Config
+     * @return a Bitmap
+     */
+    private static Bitmap bitmap(int width, int height, Bitmap.Config config) {
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Only Bitmaps with matching width, height and config are returned
+     */
+    @Test
+    public void match() {
+        BitmapPool pool = new BitmapPool(10);
+        Bitmap b = bitmap(256, 256, Bitmap.Config.ARGB_8888);
+        assertTrue(pool.put(b));
+        assertNull(pool.get(256, 256, Bitmap.Config.RGB_565));
+        assertNull(pool.get(512, 256, Bitmap.Config.ARGB_8888));
+        assertNull(pool.get(256, 512, Bitmap.Config.ARGB_8888));
+        assertEquals(1, pool.size());
+        assertSame(b, pool.get(256, 256, Bitmap.Config.ARGB_8888));
+        assertEquals(0, pool.size());
+        assertNull(pool.get(256, 256, Bitmap.Config.ARGB_8888));
+    }
+
+    /**
+     * Immutable and recycled Bitmaps are rejected
+     */
+    @Test
+    public void reject() {
+        BitmapPool pool = new BitmapPool(10);
+        Bitmap immutable = bitmap(256, 256, Bitmap.Config.ARGB_8888).copy(Bitmap.Config.ARGB_8888, false);
+        assertFalse(pool.put(immutable));
+        assertFalse(pool.putEvicted(immutable));
+        Bitmap recycled = bitmap(256, 256, Bitmap.Config.ARGB_8888);
+        recycled.recycle();
+        assertFalse(pool.put(recycled));
+        assertFalse(pool.putEvicted(recycled));
+        assertEquals(0, pool.size());
+    }
+
+    /**
+     * The pool doesn't grow beyond its maximum size, including evicted Bitmaps that are not available yet
+     */
+    @Test
+    public void sizeLimit() {
+        BitmapPool pool = new BitmapPool(3);
+        assertTrue(pool.put(bitmap(256, 256, Bitmap.Config.ARGB_8888)));
+        assertTrue(pool.putEvicted(bitmap(256, 256, Bitmap.Config.ARGB_8888)));
+        assertTrue(pool.put(bitmap(256, 256, Bitmap.Config.ARGB_8888)));
+        assertFalse(pool.put(bitmap(256, 256, Bitmap.Config.ARGB_8888)));
+        assertFalse(pool.putEvicted(bitmap(256, 256, Bitmap.Config.ARGB_8888)));
+        assertEquals(2, pool.size());
+        pool.get(256, 256, Bitmap.Config.ARGB_8888);
+        assertTrue(pool.put(bitmap(256, 256, Bitmap.Config.ARGB_8888)));
+        pool.clear();
+        assertEquals(0, pool.size());
+        assertTrue(pool.put(bitmap(256, 256, Bitmap.Config.ARGB_8888)));
+    }
+
+    /**
+     * Evicted Bitmaps are only available after the draw pass following their eviction has finished
+     */
+    @Test
+    public void evicted() {
+        BitmapPool pool = new BitmapPool(10);
+        Bitmap b = bitmap(256, 256, Bitmap.Config.ARGB_8888);
+        assertTrue(pool.putEvicted(b));
+        assertEquals(0, pool.size());
+        assertNull(pool.get(256, 256, Bitmap.Config.ARGB_8888));
+        pool.onDrawFinished(); // the draw pass during which b was evicted
+        assertEquals(0, pool.size());
+        pool.onDrawFinished(); // a draw pass that didn't use b
+        assertEquals(1, pool.size());
+        assertSame(b, pool.get(256, 256, Bitmap.Config.ARGB_8888));
+        // clear doesn't recycle Bitmaps that may still be drawn
+        Bitmap b2 = bitmap(256, 256, Bitmap.Config.ARGB_8888);
+        assertTrue(pool.putEvicted(b2));
+        pool.clear();
+        assertFalse(b2.isRecycled());
+        pool.onDrawFinished();
+        pool.onDrawFinished();
+        assertEquals(0, pool.size());
+    }
+
+    /**
+     * Decoding options are set up to use a matching pooled Bitmap
+     */
+    @Test
+    public void inBitmap() {
+        BitmapPool pool = new BitmapPool(10);
+        Bitmap b = bitmap(256, 256, Bitmap.Config.RGB_565);
+        pool.put(b);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inJustDecodeBounds = true;
+        options.outWidth = 256;
+        options.outHeight = 256;
+        pool.setInBitmap(options);
+        assertFalse(options.inJustDecodeBounds);
+        assertTrue(options.inMutable);
+        assertNull(options.inBitmap);
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        pool.setInBitmap(options);
+        assertSame(b, options.inBitmap);
+    }
+}
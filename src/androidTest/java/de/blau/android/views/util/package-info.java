@@ -0,0 +1,4 @@
+/**
+ * View utilities related tests
+ */
+package de.blau.android.views.util;
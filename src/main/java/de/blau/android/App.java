@@ -18,9 +18,11 @@ import android.content.Context;
 import android.content.IntentFilter;
 import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import de.blau.android.filter.PresetFilter;
+import de.blau.android.names.NamePresetIndex;
 import de.blau.android.names.Names;
 import de.blau.android.names.Names.NameAndTags;
 import de.blau.android.net.OkHttpTlsCompat;
@@ -34,6 +36,7 @@ import de.blau.android.presets.Preset;
 import de.blau.android.presets.Preset.PresetItem;
 import de.blau.android.presets.Synonyms;
 import de.blau.android.tasks.TaskStorage;
+import de.blau.android.util.FuzzySearchIndex;
 import de.blau.android.util.GeoContext;
 import de.blau.android.util.NotificationCache;
 import de.blau.android.util.TagClipboard;
@@ -73,8 +76,10 @@ public class App extends android.app.Application {
     private static Preset                           currentRootPreset;
     private static final Object                     currentPresetsLock              = new Object();
     private static MultiHashMap<String, PresetItem> presetSearchIndex               = null;
+    private static FuzzySearchIndex                 presetFuzzyIndex                = null;
     private static final Object                     presetSearchIndexLock           = new Object();
     private static MultiHashMap<String, PresetItem> translatedPresetSearchIndex     = null;
+    private static FuzzySearchIndex                 translatedPresetFuzzyIndex      = null;
     private static final Object                     translatedPresetSearchIndexLock = new Object();
 
     private static MRUTags mruTags = null;
@@ -88,10 +93,13 @@ public class App extends android.app.Application {
     /**
      * name index related stuff
      */
-    private static Names                             names                = null;
-    private static final Object                      namesLock            = new Object();
-    private static MultiHashMap<String, NameAndTags> namesSearchIndex     = null;
-    private static final Object                      namesSearchIndexLock = new Object();
+    private static Names                             names                   = null;
+    private static final Object                      namesLock               = new Object();
+    private static MultiHashMap<String, NameAndTags> namesSearchIndex        = null;
+    private static FuzzySearchIndex                  namesFuzzyIndex         = null;
+    private static final Object                      namesSearchIndexLock    = new Object();
+    private static NamePresetIndex                   namePresetIndex         = null;
+    private static boolean                           namePresetIndexBuilding = false;
 
     /**
      * Geo index to on device photos
@@ -305,7 +313,10 @@ public class App extends android.app.Application {
             currentPresets = null;
             currentRootPreset = null;
             presetSearchIndex = null;
+            presetFuzzyIndex = null;
             translatedPresetSearchIndex = null;
+            translatedPresetFuzzyIndex = null;
+            namePresetIndex = null;
         }
     }
 
@@ -340,6 +351,22 @@ public class App extends android.app.Application {
         }
     }
 
+    /**
+     * Get the fuzzy index for the keys of the preset search index
+     * 
+     * @param ctx an Android Context
+     * @return a FuzzySearchIndex
+     */
+    @NonNull
+    public static FuzzySearchIndex getPresetFuzzyIndex(@NonNull Context ctx) {
+        synchronized (presetSearchIndexLock) {
+            if (presetFuzzyIndex == null) {
+                presetFuzzyIndex = new FuzzySearchIndex(getPresetSearchIndex(ctx).getKeys());
+            }
+            return presetFuzzyIndex;
+        }
+    }
+
     /**
      * Get the translated preset search index
      * 
@@ -356,6 +383,22 @@ public class App extends android.app.Application {
         }
     }
 
+    /**
+     * Get the fuzzy index for the keys of the translated preset search index
+     * 
+     * @param ctx an Android Context
+     * @return a FuzzySearchIndex
+     */
+    @NonNull
+    public static FuzzySearchIndex getTranslatedPresetFuzzyIndex(@NonNull Context ctx) {
+        synchronized (translatedPresetSearchIndexLock) {
+            if (translatedPresetFuzzyIndex == null) {
+                translatedPresetFuzzyIndex = new FuzzySearchIndex(getTranslatedPresetSearchIndex(ctx).getKeys());
+            }
+            return translatedPresetFuzzyIndex;
+        }
+    }
+
     /**
      * Return a object containing the current (Locale specific) list of preset synonyms
      * 
@@ -391,6 +434,69 @@ public class App extends android.app.Application {
         }
     }
 
+    /**
+     * Get the fuzzy index for the keys of the name search index
+     * 
+     * @param ctx Android Context
+     * @return a FuzzySearchIndex
+     */
+    @NonNull
+    public static FuzzySearchIndex getNameFuzzyIndex(@NonNull Context ctx) {
+        MultiHashMap<String, NameAndTags> index = getNameSearchIndex(ctx);
+        synchronized (namesSearchIndexLock) {
+            if (namesFuzzyIndex == null) {
+                namesFuzzyIndex = new FuzzySearchIndex(index.getKeys());
+            }
+            return namesFuzzyIndex;
+        }
+    }
+
+    /**
+     * Get the best matching PresetItems for the name suggestion index entries
+     * 
+     * The index is built in the background on first use and is discarded when the presets are reset
+     * 
+     * @param ctx Android Context
+     * @return a NamePresetIndex or null if it isn't available yet
+     */
+    @Nullable
+    public static NamePresetIndex getNamePresetIndex(@NonNull Context ctx) {
+        synchronized (currentPresetsLock) {
+            if (namePresetIndex == null && !namePresetIndexBuilding) {
+                namePresetIndexBuilding = true;
+                final Context appCtx = ctx.getApplicationContext();
+                Thread t = new Thread(null, () -> buildNamePresetIndex(appCtx), "NamePresetIndex");
+                t.setPriority(Thread.MIN_PRIORITY);
+                t.start();
+            }
+            return namePresetIndex;
+        }
+    }
+
+    /**
+     * Build the NamePresetIndex for the current presets, the result is dropped if the presets have been reset in the
+     * meantime
+     * 
+     * @param ctx Android Context
+     */
+    private static void buildNamePresetIndex(@NonNull Context ctx) {
+        NamePresetIndex index = null;
+        Preset[] presets = null;
+        try {
+            presets = getCurrentPresets(ctx);
+            index = new NamePresetIndex(presets, getNameSearchIndex(ctx));
+        } catch (Exception e) {
+            Log.e(DEBUG_TAG, "Building name preset index failed " + e.getMessage());
+        } finally {
+            synchronized (currentPresetsLock) {
+                if (index != null && presets == currentPresets) {
+                    namePresetIndex = index;
+                }
+                namePresetIndexBuilding = false;
+            }
+        }
+    }
+
     /**
      * Return the object containing the canonical name data
      * 
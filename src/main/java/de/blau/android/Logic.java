@@ -69,6 +69,7 @@ import de.blau.android.osm.BoundingBox;
 import de.blau.android.osm.DiscardedTags;
 import de.blau.android.osm.GeoPoint;
 import de.blau.android.osm.MapSplitSource;
+import de.blau.android.osm.MergePipeline;
 import de.blau.android.osm.Node;
 import de.blau.android.osm.OsmChangeParser;
 import de.blau.android.osm.OsmElement;
@@ -361,10 +362,10 @@ public class Logic {
     }
 
     /**
-     * @return locked status
+     * @return locked status, the data is always locked while only a preview of it has been loaded
      */
     public boolean isLocked() {
-        return locked;
+        return locked || getDelegator().isPreview();
     }
 
     /**
@@ -2816,8 +2817,12 @@ public class Logic {
             }
 
             Storage input = null;
+            boolean merged = true;
             if (server.hasMapSplitSource()) {
                 input = MapSplitSource.readBox(ctx, server.getMapSplitSource(), mapBox);
+            } else if (merge && getDelegator().getApiElementCount() == 0) {
+                // merged batches are visible immediately, with local modifications merge everything or nothing
+                merged = streamAndMerge(ctx, server, mapBox, postMerge);
             } else {
                 try (InputStream in = server.getStreamForBox(ctx, mapBox)) {
                     final OsmParser osmParser = new OsmParser();
@@ -2827,7 +2832,7 @@ public class Logic {
             }
 
             if (merge) { // incremental load
-                if (!getDelegator().mergeData(input, postMerge)) {
+                if (!merged || (input != null && !getDelegator().mergeData(input, postMerge))) {
                     result = new ReadAsyncResult(ErrorCodes.DATA_CONFLICT);
                 } else {
                     if (mapBox != null) {
@@ -2904,6 +2909,40 @@ public class Logic {
         return result;
     }
 
+    /**
+     * Download the data for a BoundingBox and merge it in batches while it is being parsed
+     * 
+     * If the download fails or there is a conflict, batches that have already been merged are kept, but the
+     * BoundingBox isn't added. This should only be used when there are no local modifications.
+     * 
+     * @param ctx an Android Context
+     * @param server the API Server configuration
+     * @param mapBox the BoundingBox
+     * @param postMerge handler to call after merging
+     * @return true if the data was merged, false if there was a conflict
+     * @throws SAXException if parsing failed
+     * @throws IOException if downloading failed
+     * @throws ParserConfigurationException if the parser couldn't be configured
+     */
+    private boolean streamAndMerge(@NonNull final Context ctx, @NonNull Server server, @NonNull final BoundingBox mapBox,
+            @Nullable final PostMergeHandler postMerge) throws SAXException, IOException, ParserConfigurationException {
+        MergePipeline pipeline = new MergePipeline(getDelegator(), postMerge);
+        try (InputStream in = server.getStreamForBox(ctx, mapBox)) {
+            final OsmParser osmParser = new OsmParser();
+            osmParser.setBatchHandler(MergePipeline.BATCH_SIZE, pipeline);
+            osmParser.start(in);
+        } catch (SAXException e) {
+            if (!pipeline.finish(true)) {
+                return false; // parsing was aborted because of the conflict
+            }
+            throw e;
+        } catch (IOException | ParserConfigurationException | RuntimeException e) {
+            pipeline.finish(true);
+            throw e;
+        }
+        return pipeline.finish(false);
+    }
+
     /**
      * Re-downloads the same areas that we already have
      * 
@@ -3591,6 +3630,7 @@ public class Logic {
      */
     synchronized void save(@NonNull final Activity activity) {
         try {
+            getDelegator().setPreviewBox(viewBox);
             getDelegator().writeToFile(activity);
             App.getTaskStorage().writeToFile(activity);
             if (map != null) {
@@ -3651,6 +3691,9 @@ public class Logic {
     /**
      * Loads data from a file in the background.
      * 
+     * If the file contains a preview of the last view, this is displayed as soon as it has been read and the progress
+     * dialog removed, the data stays locked until loading has completed.
+     * 
      * @param activity the calling FragmentActivity
      * @param postLoad a callback to call after loading
      * 
@@ -3663,10 +3706,12 @@ public class Logic {
 
         final Map mainMap = activity instanceof Main ? ((Main) activity).getMap() : null;
 
-        AsyncTask<Void, Void, Integer> loader = new AsyncTask<Void, Void, Integer>() {
+        AsyncTask<Void, BoundingBox, Integer> loader = new AsyncTask<Void, BoundingBox, Integer>() {
 
             final AlertDialog progress = ProgressDialog.get(activity, Progress.PROGRESS_LOADING);
 
+            boolean preview = false;
+
             @Override
             protected void onPreExecute() {
                 progress.show();
@@ -3675,8 +3720,11 @@ public class Logic {
 
             @Override
             protected Integer doInBackground(Void... v) {
-                if (getDelegator().readFromFile(activity)) {
-                    if (mainMap != null) {
+                if (getDelegator().readFromFile(activity, StorageDelegator.FILENAME, box -> {
+                    preview = true;
+                    publishProgress(box);
+                })) {
+                    if (mainMap != null && !preview) {
                         viewBox.setBorders(mainMap, getDelegator().getLastBox());
                     }
                     return READ_OK;
@@ -3691,25 +3739,54 @@ public class Logic {
             }
 
             @Override
-            protected void onPostExecute(Integer result) {
-                Log.d(DEBUG_TAG, "loadFromFile onPostExecute");
+            protected void onProgressUpdate(BoundingBox... boxes) {
+                Log.d(DEBUG_TAG, "loadFromFile showing preview");
+                dismissProgress();
+                if (mainMap != null) {
+                    viewBox.setBorders(mainMap, boxes[0]);
+                    setRatio();
+                    invalidateMap();
+                }
+                activity.invalidateOptionsMenu();
+            }
+
+            /**
+             * Set the ratio of the view box to that of the map
+             */
+            private void setRatio() {
+                try {
+                    viewBox.setRatio(mainMap, (float) mainMap.getWidth() / (float) mainMap.getHeight());
+                } catch (Exception e) {
+                    // invalid dimensions or similar error
+                    viewBox.setBorders(mainMap, new BoundingBox(-GeoMath.MAX_LON, -GeoMath.MAX_COMPAT_LAT, GeoMath.MAX_LON, GeoMath.MAX_COMPAT_LAT));
+                }
+                DataStyle.updateStrokes(STROKE_FACTOR / viewBox.getWidth()); // safety measure if not done in
+                                                                             // loadEiditngState
+            }
+
+            /**
+             * Dismiss the progress dialog
+             */
+            private void dismissProgress() {
                 try {
                     progress.dismiss();
                 } catch (Exception ex) {
                     Log.e(DEBUG_TAG, "loadFromFile dismiss dialog failed with " + ex);
                 }
+            }
+
+            @Override
+            protected void onPostExecute(Integer result) {
+                Log.d(DEBUG_TAG, "loadFromFile onPostExecute");
+                dismissProgress();
                 if (result != READ_FAILED) {
                     Log.d(DEBUG_TAG, "loadfromFile: File read correctly");
                     if (mainMap != null) {
-                        try {
-                            viewBox.setRatio(mainMap, (float) mainMap.getWidth() / (float) mainMap.getHeight());
-                        } catch (Exception e) {
-                            // invalid dimensions or similar error
-                            viewBox.setBorders(mainMap, new BoundingBox(-GeoMath.MAX_LON, -GeoMath.MAX_COMPAT_LAT, GeoMath.MAX_LON, GeoMath.MAX_COMPAT_LAT));
+                        // if a preview was shown the user may have already moved the map
+                        if (!preview) {
+                            setRatio();
                         }
-                        DataStyle.updateStrokes(STROKE_FACTOR / viewBox.getWidth()); // safety measure if not done in
-                                                                                     // loadEiditngState
-                        loadEditingState((Main) activity, true);
+                        loadEditingState((Main) activity, !preview);
                     } else {
                         Log.e(DEBUG_TAG, "loadFromFile map is null");
                     }
@@ -1711,8 +1711,9 @@ public class Main extends FullScreenAppCompatActivity
 
         menu.findItem(R.id.menu_gps_goto_last_edit).setEnabled(undoStorage.canUndo());
 
-        LayerDrawable transfer = (LayerDrawable) menu.findItem(R.id.menu_transfer).getIcon();
         final StorageDelegator delegator = App.getDelegator();
+        MenuItem transferItem = menu.findItem(R.id.menu_transfer).setEnabled(!delegator.isPreview());
+        LayerDrawable transfer = (LayerDrawable) transferItem.getIcon();
         BadgeDrawable.setBadgeWithCount(this, transfer, delegator.getApiElementCount(), prefs.getUploadOkLimit(), prefs.getUploadWarnLimit());
 
         menu.findItem(R.id.menu_transfer_close_changeset).setVisible(server.hasOpenChangeset());
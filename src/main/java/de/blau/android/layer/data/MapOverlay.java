@@ -4,6 +4,7 @@ import static de.blau.android.util.Winding.CLOCKWISE;
 import static de.blau.android.util.Winding.COUNTERCLOCKWISE;
 import static de.blau.android.util.Winding.winding;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -39,6 +40,7 @@ import de.blau.android.Map;
 import de.blau.android.Mode;
 import de.blau.android.R;
 import de.blau.android.dialogs.LayerInfo;
+import de.blau.android.exception.OsmException;
 import de.blau.android.filter.Filter;
 import de.blau.android.layer.ConfigureInterface;
 import de.blau.android.layer.ExtentInterface;
@@ -47,11 +49,14 @@ import de.blau.android.layer.LayerType;
 import de.blau.android.layer.MapViewLayer;
 import de.blau.android.layer.PruneableInterface;
 import de.blau.android.osm.BoundingBox;
+import de.blau.android.osm.MapSplitSource;
 import de.blau.android.osm.Node;
 import de.blau.android.osm.OsmElement;
 import de.blau.android.osm.PostMergeHandler;
 import de.blau.android.osm.Relation;
 import de.blau.android.osm.RelationMember;
+import de.blau.android.osm.Server;
+import de.blau.android.osm.Storage;
 import de.blau.android.osm.StorageDelegator;
 import de.blau.android.osm.Tags;
 import de.blau.android.osm.ViewBox;
@@ -62,6 +67,7 @@ import de.blau.android.presets.Preset;
 import de.blau.android.presets.Preset.PresetItem;
 import de.blau.android.resources.DataStyle;
 import de.blau.android.resources.DataStyle.FeatureStyle;
+import de.blau.android.services.util.MBTileProviderDataBase;
 import de.blau.android.util.Coordinates;
 import de.blau.android.util.Density;
 import de.blau.android.util.GeoMath;
@@ -90,6 +96,16 @@ public class MapOverlay extends MapViewLayer implements ExtentInterface, Configu
 
     private static final int HOUSE_NUMBER_RADIUS = 10;
 
+    /**
+     * Minimum speed in m/s for the GPS bearing to be used for predicting where we are going
+     */
+    private static final float MIN_PREFETCH_SPEED = 1f;
+
+    /**
+     * Factor the view is enlarged by when determining the elements to render
+     */
+    private static final float RENDER_LIST_MARGIN = 1.1f;
+
     private static final int ICON_SELECTED_BORDER = 2;
 
     /**
@@ -143,6 +159,13 @@ public class MapOverlay extends MapViewLayer implements ExtentInterface, Configu
      */
     private int minDownloadSize = 50;
 
+    /**
+     * Center of the last auto-download box, used to determine the pan direction
+     */
+    private int     lastDownloadLon       = 0;
+    private int     lastDownloadLat       = 0;
+    private boolean lastDownloadCenterSet = false;
+
     /**
      * Stores icons that apply to a certain "thing". This can be e.g. a node or a SortedMap of tags.
      */
@@ -261,6 +284,15 @@ public class MapOverlay extends MapViewLayer implements ExtentInterface, Configu
     private List<Node>         nodesResult = new ArrayList<>(1000);
     private List<Way>          waysResult  = new ArrayList<>(1000);
 
+    /**
+     * State of the cached lists of elements to render, nodesResult, waysResult and paintRelations
+     */
+    private Storage renderStorage           = null;
+    private int     renderModificationCount = 0;
+    private int     renderZoomLevel         = 0;
+    private int     renderNodeCount         = 0;
+    private ViewBox queryBox                = null;
+
     /**
      * Stuff for multipolygon support Instantiate these objects just once
      */
@@ -354,6 +386,7 @@ public class MapOverlay extends MapViewLayer implements ExtentInterface, Configu
                     }, true, true);
                 });
             }
+            prefetch(box, map.getLocation());
             if (delegator.getCurrentStorage().getNodeCount() > autoPruneNodeLimit
                     && (System.currentTimeMillis() - lastAutoPrune) > AUTOPRUNE_MIN_INTERVALL * 1000) {
                 mThreadPool.execute(MapOverlay.this::prune);
@@ -362,6 +395,58 @@ public class MapOverlay extends MapViewLayer implements ExtentInterface, Configu
         }
     };
 
+    /**
+     * Pre-fetch MapSplit tiles adjacent to the download box in the direction we are moving in
+     * 
+     * The direction is taken from the GPS bearing if we are moving fast enough, otherwise from the change of the
+     * download box since the last call. The decoded tiles are only merged when the area is actually downloaded.
+     * 
+     * @param box the current download box
+     * @param location the current location or null
+     */
+    private void prefetch(@NonNull ViewBox box, @Nullable Location location) {
+        final Server server = prefs.getServer();
+        if (!server.hasMapSplitSource()) {
+            lastDownloadCenterSet = false;
+            return;
+        }
+        int centerLon = (int) (((long) box.getLeft() + box.getRight()) / 2);
+        int centerLat = (int) (((long) box.getBottom() + box.getTop()) / 2);
+        double dLon = (double) centerLon - lastDownloadLon;
+        double dLat = (double) centerLat - lastDownloadLat;
+        boolean moved = lastDownloadCenterSet && (dLon != 0 || dLat != 0);
+        lastDownloadLon = centerLon;
+        lastDownloadLat = centerLat;
+        lastDownloadCenterSet = true;
+        if (location != null && location.hasBearing() && location.getSpeed() >= MIN_PREFETCH_SPEED) {
+            double bearing = Math.toRadians(location.getBearing());
+            dLon = Math.sin(bearing);
+            dLat = Math.cos(bearing);
+        } else if (!moved) {
+            return;
+        }
+        // move a full box width and/or height in the dominant direction
+        double max = Math.max(Math.abs(dLon), Math.abs(dLat));
+        final ViewBox ahead = new ViewBox(box);
+        try {
+            ahead.translate(null, (int) Math.round(box.getWidth() * dLon / max), (int) Math.round(box.getHeight() * dLat / max));
+        } catch (OsmException e) {
+            return;
+        }
+        if (BoundingBox.newBoxes(new ArrayList<>(delegator.getBoundingBoxes()), ahead).isEmpty()) {
+            return; // already loaded
+        }
+        final MBTileProviderDataBase mapSplitSource = server.getMapSplitSource();
+        mThreadPool.execute(() -> {
+            try {
+                MapSplitSource.prefetch(context, mapSplitSource, ahead);
+            } catch (IOException | RuntimeException e) {
+                // the source may for example be closed while we are reading from it
+                Log.e(DEBUG_TAG, "prefetch failed " + e.getMessage());
+            }
+        });
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -386,7 +471,8 @@ public class MapOverlay extends MapViewLayer implements ExtentInterface, Configu
         inNodeIconZoomRange = zoomLevel > DataStyle.getCurrent().getIconZoomLimit();
 
         Location location = map.getLocation();
-        if (zoomLevel >= panAndZoomLimit && panAndZoomDownLoad && (location == null || location.getSpeed() < maxDownloadSpeed)) {
+        if (zoomLevel >= panAndZoomLimit && panAndZoomDownLoad && !delegator.isPreview()
+                && (location == null || location.getSpeed() < maxDownloadSpeed)) {
             map.getRootView().removeCallbacks(download);
             map.getRootView().postDelayed(download, 100);
         }
@@ -404,11 +490,29 @@ public class MapOverlay extends MapViewLayer implements ExtentInterface, Configu
         int screenHeight = map.getHeight();
         ViewBox viewBox = map.getViewBox();
 
-        paintRelations.clear();
+        boolean filterMode = tmpFilter != null; // we have an active filter
 
-        // first find all nodes that we need to display
-        nodesResult.clear();
-        List<Node> paintNodes = delegator.getCurrentStorage().getNodes(viewBox, nodesResult);
+        final Storage storage = delegator.getCurrentStorage();
+        boolean reuse = !filterMode && renderListValid(storage, viewBox);
+        // read before collecting the elements, changes made while we are doing so will cause a rebuild next time
+        final int modificationCount = storage.getModificationCount();
+        if (!reuse) {
+            renderStorage = null;
+            paintRelations.clear();
+            // query a slightly larger area so that small pans don't require a rebuild
+            queryBox = new ViewBox(viewBox);
+            if (!filterMode) {
+                queryBox.scale(RENDER_LIST_MARGIN);
+            }
+            // first find all nodes that we need to display
+            nodesResult.clear();
+            storage.getNodes(queryBox, nodesResult);
+            renderNodeCount = nodesResult.size();
+        } else {
+            // remove any selected nodes added in the previous pass
+            nodesResult.subList(renderNodeCount, nodesResult.size()).clear();
+        }
+        List<Node> paintNodes = nodesResult;
 
         // the following should guarantee that if the selected node is off screen but the handle not, the handle gets
         // drawn, this isn't perfect because touch areas of other nodes just outside the screen still won't get drawn
@@ -420,8 +524,6 @@ public class MapOverlay extends MapViewLayer implements ExtentInterface, Configu
             }
         }
 
-        boolean filterMode = tmpFilter != null; // we have an active filter
-
         //
         tmpDrawingInEditRange = App.getLogic().isInEditZoomRange();
 
@@ -430,8 +532,11 @@ public class MapOverlay extends MapViewLayer implements ExtentInterface, Configu
                 && !tmpLocked && (showTolerance || tmpDrawingEditMode.elementsSelectable());
 
         // Paint all ways
-        waysResult.clear();
-        List<Way> ways = delegator.getCurrentStorage().getWays(viewBox, waysResult);
+        if (!reuse) {
+            waysResult.clear();
+            storage.getWays(queryBox, waysResult);
+        }
+        List<Way> ways = waysResult;
 
         List<Way> waysToDraw = ways;
         if (filterMode) {
@@ -459,12 +564,20 @@ public class MapOverlay extends MapViewLayer implements ExtentInterface, Configu
             waysToDraw = tmpStyledWays;
         }
 
-        // get relations for all nodes and ways
-        for (Node n : paintNodes) {
-            addRelations(filterMode, n.getParentRelations(), paintRelations);
-        }
-        for (Way w : ways) {
-            addRelations(filterMode, w.getParentRelations(), paintRelations);
+        if (!reuse) {
+            // get relations for all nodes and ways
+            for (Node n : paintNodes) {
+                addRelations(filterMode, n.getParentRelations(), paintRelations);
+            }
+            for (Way w : ways) {
+                addRelations(filterMode, w.getParentRelations(), paintRelations);
+            }
+            Collections.sort(waysToDraw, layerComparator);
+            if (!filterMode) {
+                renderStorage = storage;
+                renderModificationCount = modificationCount;
+                renderZoomLevel = zoomLevel;
+            }
         }
 
         // draw MPs first
@@ -477,7 +590,6 @@ public class MapOverlay extends MapViewLayer implements ExtentInterface, Configu
 
         boolean displayHandles = tmpDrawingSelectedNodes == null && tmpDrawingSelectedRelationWays == null && tmpDrawingSelectedRelationNodes == null
                 && tmpDrawingEditMode.elementsGeomEditiable();
-        Collections.sort(waysToDraw, layerComparator);
 
         // ways now
         for (Way w : waysToDraw) {
@@ -536,6 +648,21 @@ public class MapOverlay extends MapViewLayer implements ExtentInterface, Configu
         paintHandles(canvas);
     }
 
+    /**
+     * Check if the cached lists of elements to render can be used for the current view
+     * 
+     * The lists are valid as long as the data hasn't changed, we are on the same zoom level and the current view is
+     * inside the area they were created for.
+     * 
+     * @param storage the current Storage
+     * @param viewBox the current ViewBox
+     * @return true if the cached lists can be used
+     */
+    private boolean renderListValid(@NonNull Storage storage, @NonNull ViewBox viewBox) {
+        return renderStorage == storage && renderModificationCount == storage.getModificationCount() && renderZoomLevel == zoomLevel
+                && queryBox.contains(viewBox);
+    }
+
     /**
      * Add relations to list of relations to paint
      * 
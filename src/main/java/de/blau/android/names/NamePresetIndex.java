@@ -0,0 +1,141 @@
+package de.blau.android.names;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.names.Names.NameAndTags;
+import de.blau.android.names.Names.TagMap;
+import de.blau.android.presets.Preset;
+import de.blau.android.presets.Preset.PresetItem;
+import de.blau.android.presets.PresetField;
+import de.blau.android.presets.PresetKeyType;
+import de.blau.android.util.collections.MultiHashMap;
+
+/**
+ * Precomputed best matching PresetItems for the entries of the name suggestion index
+ *
+ * Entries that have the same best match and the same tag keys share one Template, so the table is much smaller than
+ * the number of entries.
+ */
+public class NamePresetIndex {
+    private static final String DEBUG_TAG = NamePresetIndex.class.getSimpleName();
+
+    private final Map<NameAndTags, Template> table = new HashMap<>();
+
+    /**
+     * The best matching PresetItem for a set of tags and the fields of it that are not set by the tags
+     */
+    public static final class Template {
+        private final PresetItem        match;
+        private final List<PresetField> fields;
+
+        /**
+         * Construct a new Template
+         *
+         * @param match the best matching PresetItem or null if none
+         * @param tags the tags of the name suggestion entry
+         */
+        private Template(@Nullable PresetItem match, @NonNull TagMap tags) {
+            this.match = match;
+            List<PresetField> temp = new ArrayList<>();
+            if (match != null) {
+                for (Entry<String, PresetField> entry : match.getFields().entrySet()) {
+                    if (!tags.containsKey(entry.getKey())) {
+                        temp.add(entry.getValue());
+                    }
+                }
+            }
+            fields = Collections.unmodifiableList(temp);
+        }
+
+        /**
+         * Get the best matching PresetItem
+         *
+         * @return the PresetItem or null if none
+         */
+        @Nullable
+        public PresetItem getMatch() {
+            return match;
+        }
+
+        /**
+         * Create a PresetItem for a name suggestion entry
+         *
+         * @param preset the Preset the new item should belong to
+         * @param nat the name suggestion entry
+         * @return a new PresetItem with the tags of the entry and the remaining fields of the best match
+         */
+        @NonNull
+        public PresetItem createItem(@NonNull Preset preset, @NonNull NameAndTags nat) {
+            PresetItem namePi = preset.new PresetItem(null, nat.getName(), match == null ? null : match.getIconpath(), null);
+            for (Entry<String, String> entry : nat.getTags().entrySet()) {
+                namePi.addTag(entry.getKey(), PresetKeyType.TEXT, entry.getValue(), null);
+            }
+            for (PresetField field : fields) {
+                namePi.addField(field);
+            }
+            return namePi;
+        }
+    }
+
+    /**
+     * Construct a new index
+     *
+     * @param presets the current Presets
+     * @param names the name search index
+     */
+    public NamePresetIndex(@NonNull Preset[] presets, @NonNull MultiHashMap<String, NameAndTags> names) {
+        long start = System.currentTimeMillis();
+        Map<PresetItem, Map<Set<String>, Template>> templates = new HashMap<>();
+        for (String key : names.getKeys()) {
+            for (NameAndTags nat : names.get(key)) {
+                TagMap tags = nat.getTags();
+                PresetItem match = Preset.findBestMatch(presets, tags, false);
+                Map<Set<String>, Template> byKeys = templates.get(match);
+                if (byKeys == null) {
+                    byKeys = new HashMap<>();
+                    templates.put(match, byKeys);
+                }
+                Template template = byKeys.get(tags.keySet());
+                if (template == null) {
+                    template = new Template(match, tags);
+                    byKeys.put(tags.keySet(), template);
+                }
+                table.put(nat, template);
+            }
+        }
+        Log.d(DEBUG_TAG, "Indexed " + table.size() + " entries in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Get the Template for a name suggestion entry
+     *
+     * @param nat the name suggestion entry
+     * @return the Template or null if the entry isn't indexed
+     */
+    @Nullable
+    public Template get(@NonNull NameAndTags nat) {
+        return table.get(nat);
+    }
+
+    /**
+     * Create a Template without using the index
+     *
+     * @param presets the current Presets
+     * @param nat the name suggestion entry
+     * @return a new Template
+     */
+    @NonNull
+    public static Template match(@NonNull Preset[] presets, @NonNull NameAndTags nat) {
+        TagMap tags = nat.getTags();
+        return new Template(Preset.findBestMatch(presets, tags, false), tags);
+    }
+}
@@ -1,5 +1,6 @@
 package de.blau.android.osm;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -152,4 +153,44 @@ public class ClipboardStorage implements Serializable {
     boolean contains(@NonNull OsmElement e) {
         return storage.contains(e);
     }
+
+    /**
+     * Register the contents with a StateFileWriter
+     * 
+     * @param writer the StateFileWriter
+     */
+    void addElements(@NonNull StateFileWriter writer) {
+        writer.addStorage(storage);
+    }
+
+    /**
+     * Write the clipboard to a state file
+     * 
+     * @param writer the StateFileWriter, the elements need to have been written
+     * @throws IOException if writing fails
+     */
+    void write(@NonNull StateFileWriter writer) throws IOException {
+        writer.writeInt(mode == null ? 0 : mode.ordinal() + 1);
+        writer.writeSignedInt(selectionLat);
+        writer.writeSignedInt(selectionLon);
+        writer.writeStorage(storage);
+    }
+
+    /**
+     * Read the clipboard from a state file
+     * 
+     * @param reader the StateFileReader, the elements need to have been read
+     * @throws IOException if reading fails
+     */
+    void read(@NonNull StateFileReader reader) throws IOException {
+        int m = reader.readInt();
+        if (m > Mode.values().length) {
+            throw new IOException("Unknown clipboard mode " + m);
+        }
+        mode = m == 0 ? null : Mode.values()[m - 1];
+        selectionLat = reader.readSignedInt();
+        selectionLon = reader.readSignedInt();
+        storage = new Storage();
+        reader.readStorage(storage);
+    }
 }
@@ -0,0 +1,277 @@
+package de.blau.android.osm;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.util.collections.LongHashMap;
+
+/**
+ * Reader for edit journal records, see {@link JournalWriter} for a description of the format
+ */
+public class JournalReader extends StateFileReader {
+
+    /**
+     * Maximum size of a single record we are prepared to read
+     */
+    private static final int MAX_RECORD_SIZE = 256 * 1024 * 1024;
+
+    /**
+     * Index of all elements known at the current point of replaying a journal
+     */
+    public static class ElementIndex {
+        private final LongHashMap<OsmElement> nodes     = new LongHashMap<>();
+        private final LongHashMap<OsmElement> ways      = new LongHashMap<>();
+        private final LongHashMap<OsmElement> relations = new LongHashMap<>();
+
+        /**
+         * Construct a new index
+         *
+         * @param elements the elements of the state file the journal belongs to
+         */
+        public ElementIndex(@NonNull OsmElement[] elements) {
+            for (OsmElement e : elements) {
+                put(e);
+            }
+        }
+
+        /**
+         * Get the map for a type
+         *
+         * @param type the type code
+         * @return the map or null if the type is unknown
+         */
+        @Nullable
+        private LongHashMap<OsmElement> map(int type) {
+            switch (type) {
+            case StateFileWriter.NODE:
+                return nodes;
+            case StateFileWriter.WAY:
+                return ways;
+            case StateFileWriter.RELATION:
+                return relations;
+            default:
+                return null;
+            }
+        }
+
+        /**
+         * Add an element to the index
+         *
+         * @param e the OsmElement
+         */
+        void put(@NonNull OsmElement e) {
+            map(StateFileWriter.typeCode(e)).put(e.getOsmId(), e); // NOSONAR typeCode always returns a valid type
+        }
+
+        /**
+         * Get an element from the index
+         *
+         * @param type the type code
+         * @param id the id of the element
+         * @return the OsmElement or null
+         * @throws IOException if the type is unknown
+         */
+        @Nullable
+        OsmElement get(int type, long id) throws IOException {
+            LongHashMap<OsmElement> map = map(type);
+            if (map == null) {
+                throw new IOException("Unknown element type " + type);
+            }
+            return map.get(id);
+        }
+    }
+
+    private final ElementIndex index;
+
+    /**
+     * Construct a new reader for a single record
+     *
+     * @param inputStream the InputStream to read from
+     * @param index the ElementIndex used to resolve references, elements from this record will be added to it
+     * @throws IOException if reading fails
+     */
+    public JournalReader(@NonNull InputStream inputStream, @NonNull ElementIndex index) throws IOException {
+        super(inputStream, JournalWriter.MAGIC, JournalWriter.VERSION);
+        this.index = index;
+    }
+
+    @Override
+    public void readElements() throws IOException {
+        throw new UnsupportedOperationException("Journal records don't have an element table");
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    @Nullable
+    public <T extends OsmElement> T readElement() throws IOException {
+        int type = readInt();
+        return type == 0 ? null : (T) resolve(type - 1, readSignedLong());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    @Nullable
+    public <T extends OsmElement> ArrayList<T> readElementList() throws IOException {
+        int size = readInt();
+        if (size == 0) {
+            return null;
+        }
+        size--;
+        ArrayList<T> result = new ArrayList<>(size);
+        long id = 0;
+        for (int i = 0; i < size; i++) {
+            int type = readInt();
+            id += readSignedLong();
+            result.add((T) resolve(type, id));
+        }
+        return result;
+    }
+
+    /**
+     * Get a referenced element
+     *
+     * @param type the type code
+     * @param id the element id
+     * @return the OsmElement
+     * @throws IOException if the element is not known
+     */
+    @NonNull
+    private OsmElement resolve(int type, long id) throws IOException {
+        OsmElement e = index.get(type, id);
+        if (e == null) {
+            throw new IOException("Unknown element " + type + " " + id);
+        }
+        return e;
+    }
+
+    /**
+     * Read changed elements and apply them
+     *
+     * Existing elements are updated in place, new ones created, and the storages updated to reflect if an element is
+     * present or not.
+     *
+     * @param currentStorage the current Storage
+     * @param apiStorage the api Storage
+     * @return a List of the changed elements
+     * @throws IOException if reading fails
+     */
+    @NonNull
+    public List<OsmElement> readChanged(@NonNull Storage currentStorage, @NonNull Storage apiStorage) throws IOException {
+        int count = readInt();
+        List<OsmElement> changed = new ArrayList<>(count);
+        boolean[] inCurrent = new boolean[count];
+        boolean[] inApi = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            int type = readInt();
+            long id = readSignedLong();
+            long version = readLong();
+            byte state = readByte();
+            long timestamp = readSignedLong();
+            TreeMap<String, String> tags = readTags();
+            inCurrent[i] = readBoolean();
+            inApi[i] = readBoolean();
+            OsmElement e = index.get(type, id);
+            if (e == null) {
+                switch (type) {
+                case StateFileWriter.NODE:
+                    e = OsmElementFactory.createNode(id, version, timestamp, state, 0, 0);
+                    break;
+                case StateFileWriter.WAY:
+                    e = OsmElementFactory.createWay(id, version, timestamp, state);
+                    break;
+                default:
+                    e = OsmElementFactory.createRelation(id, version, timestamp, state);
+                }
+                index.put(e);
+            }
+            e.osmVersion = version;
+            e.state = state;
+            e.setTimestamp(timestamp);
+            e.tags = tags;
+            if (e instanceof Node) {
+                ((Node) e).lat = readSignedInt();
+                ((Node) e).lon = readSignedInt();
+            }
+            changed.add(e);
+        }
+        for (OsmElement e : changed) {
+            if (e instanceof Way) {
+                List<Node> nodes = ((Way) e).getNodes();
+                nodes.clear();
+                List<Node> newNodes = readElementList();
+                if (newNodes != null) {
+                    nodes.addAll(newNodes);
+                }
+                ((Way) e).invalidateBoundingBox();
+            } else if (e instanceof Relation) {
+                List<RelationMember> members = ((Relation) e).members;
+                members.clear();
+                members.addAll(readMembers());
+            }
+            e.parentRelations = readElementList();
+        }
+        for (int i = 0; i < count; i++) {
+            OsmElement e = changed.get(i);
+            update(currentStorage, e, inCurrent[i]);
+            update(apiStorage, e, inApi[i]);
+        }
+        return changed;
+    }
+
+    /**
+     * Add or remove an element from a Storage
+     *
+     * @param storage the Storage
+     * @param e the OsmElement
+     * @param present if true the element should be present
+     */
+    private static void update(@NonNull Storage storage, @NonNull OsmElement e, boolean present) {
+        OsmElement stored = storage.getOsmElement(e.getName(), e.getOsmId());
+        if (present) {
+            if (stored != e) {
+                storage.insertElementUnsafe(e);
+            } else if (e instanceof Way) {
+                storage.addWayNodeRefs((Way) e);
+            }
+        } else if (stored == e) {
+            storage.removeElement(e);
+        }
+    }
+
+    /**
+     * Read the next record from a journal
+     *
+     * @param in the InputStream of the journal file
+     * @return the record or null if the end of the journal has been reached
+     * @throws IOException if the record is incomplete or corrupted
+     */
+    @Nullable
+    public static byte[] readRecord(@NonNull DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_RECORD_SIZE) {
+            throw new IOException("Invalid journal record length " + length);
+        }
+        int expectedCrc = in.readInt();
+        byte[] record = new byte[length];
+        in.readFully(record);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IOException("Journal record CRC mismatch");
+        }
+        return record;
+    }
+}
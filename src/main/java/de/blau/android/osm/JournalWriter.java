@@ -0,0 +1,131 @@
+package de.blau.android.osm;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.zip.CRC32;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Writer for edit journal records
+ *
+ * A journal record uses the same encoding as the state file, see {@link StateFileWriter}, however there is no element
+ * table, elements are referenced by type and id instead. References are resolved against the elements of the state file
+ * the journal belongs to and the elements contained in preceding records.
+ *
+ * The record contains the current values of all elements that have changed since the last record was written, the
+ * changes to the undo checkpoints and the remaining, small, parts of the state. Records are appended to the journal
+ * file with {@link #appendRecord(OutputStream, byte[])}.
+ */
+public class JournalWriter extends StateFileWriter {
+
+    static final byte[] MAGIC   = { 'V', 'E', 'S', 'P', 'J', 'R', 'N', 'L' };
+    static final int    VERSION = 1;
+
+    /**
+     * Construct a new writer
+     *
+     * @param outputStream the OutputStream to write to
+     * @throws IOException if writing fails
+     */
+    public JournalWriter(@NonNull OutputStream outputStream) throws IOException {
+        super(outputStream, MAGIC, VERSION);
+    }
+
+    /**
+     * Elements are written by reference, so this does nothing
+     */
+    @Override
+    public void add(@Nullable OsmElement e) {
+        // nothing to register
+    }
+
+    @Override
+    public void writeElements() throws IOException {
+        throw new UnsupportedOperationException("Journal records don't have an element table");
+    }
+
+    @Override
+    public void writeElement(@Nullable OsmElement e) throws IOException {
+        if (e == null) {
+            writeInt(0);
+            return;
+        }
+        writeInt(typeCode(e) + 1);
+        writeSignedLong(e.getOsmId());
+    }
+
+    @Override
+    public void writeElementList(@Nullable Collection<? extends OsmElement> elements) throws IOException {
+        if (elements == null) {
+            writeInt(0);
+            return;
+        }
+        writeInt(elements.size() + 1);
+        long prevId = 0;
+        for (OsmElement e : elements) {
+            writeInt(typeCode(e));
+            writeSignedLong(e.getOsmId() - prevId);
+            prevId = e.getOsmId();
+        }
+    }
+
+    /**
+     * Write the current values of changed elements
+     *
+     * The attributes of all elements are written first so that references between the elements can be resolved when
+     * reading.
+     *
+     * @param elements the changed elements
+     * @param currentStorage the current Storage
+     * @param apiStorage the api Storage
+     * @throws IOException if writing fails
+     */
+    public void writeChanged(@NonNull Collection<OsmElement> elements, @NonNull Storage currentStorage, @NonNull Storage apiStorage) throws IOException {
+        writeInt(elements.size());
+        for (OsmElement e : elements) {
+            writeInt(typeCode(e));
+            writeSignedLong(e.osmId);
+            writeLong(e.osmVersion);
+            writeByte(e.state);
+            writeSignedLong(e.getTimestamp());
+            writeTags(e.tags);
+            writeBoolean(currentStorage.getOsmElement(e.getName(), e.osmId) == e);
+            writeBoolean(apiStorage.getOsmElement(e.getName(), e.osmId) == e);
+            if (e instanceof Node) {
+                writeSignedInt(((Node) e).lat);
+                writeSignedInt(((Node) e).lon);
+            }
+        }
+        for (OsmElement e : elements) {
+            if (e instanceof Way) {
+                writeElementList(((Way) e).getNodes());
+            } else if (e instanceof Relation) {
+                writeMembers(((Relation) e).members);
+            }
+            writeElementList(e.parentRelations);
+        }
+    }
+
+    /**
+     * Append a complete record to a journal
+     *
+     * The record is prefixed by its length and a CRC32 so that a partially written record can be detected and ignored.
+     *
+     * @param out the OutputStream of the journal file
+     * @param record the record
+     * @throws IOException if writing fails
+     */
+    public static void appendRecord(@NonNull OutputStream out, @NonNull byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(record.length);
+        dos.writeInt((int) crc.getValue());
+        dos.write(record);
+        dos.flush();
+    }
+}
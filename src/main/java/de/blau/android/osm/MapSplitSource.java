@@ -1,12 +1,24 @@
 package de.blau.android.osm;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.openstreetmap.osmosis.osmbinary.file.BlockInputStream;
 
 import android.content.Context;
+import android.util.Log;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import de.blau.android.R;
 import de.blau.android.exception.UnsupportedFormatException;
 import de.blau.android.services.util.MBTileProviderDataBase;
@@ -15,9 +27,39 @@ import de.blau.android.util.collections.UnsignedSparseBitSet;
 
 public final class MapSplitSource {
 
+    private static final String DEBUG_TAG = MapSplitSource.class.getSimpleName();
+
     public static final String LATEST_DATE = "latest_date";
     public static final String ATTRIBUTION = "attribution";
 
+    /**
+     * Maximum number of threads used for decoding tiles
+     */
+    private static final int MAX_THREADS = 8;
+
+    /**
+     * Maximum number of pre-fetched tiles that are kept
+     */
+    private static final int PREFETCH_CACHE_SIZE = 8;
+
+    private static ExecutorService threadPool;
+
+    private static MBTileProviderDataBase prefetchSource = null;
+
+    /**
+     * Number of readBox calls in progress, pre-fetching stops while this is not zero
+     */
+    private static final AtomicInteger foregroundReads = new AtomicInteger();
+
+    private static final LinkedHashMap<String, Storage> prefetchCache = new LinkedHashMap<String, Storage>(PREFETCH_CACHE_SIZE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Storage> eldest) {
+            return size() > PREFETCH_CACHE_SIZE;
+        }
+    };
+
     /**
      * Private constructor
      */
@@ -25,6 +67,25 @@ public final class MapSplitSource {
         // avoid instantiation
     }
 
+    /**
+     * A tile and its undecoded contents
+     */
+    private static final class TileData {
+        final MapTile tile;
+        final byte[]  data;
+
+        /**
+         * Construct a new instance
+         * 
+         * @param tile the tile
+         * @param data the contents of the tile or null if it has been pre-fetched
+         */
+        TileData(@NonNull MapTile tile, @Nullable byte[] data) {
+            this.tile = tile;
+            this.data = data;
+        }
+    }
+
     /**
      * Read data for the specified BoundingBox from a tiled OSM datasource
      * 
@@ -35,6 +96,98 @@ public final class MapSplitSource {
      * @throws IOException if reading the data caused issues
      */
     public static Storage readBox(@NonNull Context context, @NonNull MBTileProviderDataBase mbTiles, @NonNull BoundingBox box) throws IOException {
+        Storage storage = new Storage();
+        foregroundReads.incrementAndGet();
+        try {
+            List<TileData> tiles = getTiles(context, mbTiles, box, false);
+            if (tiles.size() == 1) {
+                merge(storage, readTile(context, mbTiles, tiles.get(0), box));
+            } else if (!tiles.isEmpty()) {
+                readTiles(context, mbTiles, tiles, box, storage);
+            }
+        } finally {
+            foregroundReads.decrementAndGet();
+        }
+        fixupReferences(storage, box);
+        if (box != null) {
+            // remove all unreferenced nodes that are not in the bounding box
+            storage.removeUnreferencedNodes(box);
+        }
+        return storage;
+    }
+
+    /**
+     * Decode the tiles covering a BoundingBox in to the pre-fetch cache
+     * 
+     * The tiles are not added to any Storage, they will be used by a later call of
+     * {@link #readBox(Context, MBTileProviderDataBase, BoundingBox)} for an area they cover. As the tiles are decoded
+     * without knowing the area that will actually be read, their complete contents are retained. Only a limited number
+     * of tiles is kept, the least recently used ones are discarded first.
+     * 
+     * The database is shared with {@link #readBox(Context, MBTileProviderDataBase, BoundingBox)}, tiles are read one at
+     * a time and pre-fetching stops as soon as a foreground read starts so that it doesn't delay it by more than one
+     * tile.
+     * 
+     * This should be called on a background thread.
+     * 
+     * @param context an Android Context
+     * @param mbTiles a MBTileProviderDataBase instance
+     * @param box the BoundingBox
+     * @throws IOException if reading the data caused issues
+     */
+    public static void prefetch(@NonNull Context context, @NonNull MBTileProviderDataBase mbTiles, @NonNull BoundingBox box) throws IOException {
+        if (!intersects(mbTiles, box)) {
+            return;
+        }
+        synchronized (prefetchCache) {
+            if (prefetchSource != mbTiles) {
+                prefetchCache.clear();
+                prefetchSource = mbTiles;
+            }
+        }
+        for (TileData tileData : getTiles(context, mbTiles, box, true)) {
+            if (foregroundReads.get() > 0) {
+                return;
+            }
+            if (tileData.data == null) {
+                continue; // already pre-fetched
+            }
+            Storage fragment = decodeTile(context, tileData.tile, tileData.data, null);
+            synchronized (prefetchCache) {
+                if (prefetchSource == mbTiles) {
+                    prefetchCache.put(tileData.tile.toId(), fragment);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all pre-fetched tiles
+     */
+    public static void clearPrefetched() {
+        synchronized (prefetchCache) {
+            prefetchCache.clear();
+            prefetchSource = null;
+        }
+    }
+
+    /**
+     * Determine the tiles that need to be read to cover a BoundingBox
+     * 
+     * If a tile at the maximum zoom level isn't present, tiles at lower zoom levels are used instead. The contents of
+     * the tiles are read while checking if they are present, unless they are already in the pre-fetch cache.
+     * 
+     * @param context an Android Context
+     * @param mbTiles a MBTileProviderDataBase instance
+     * @param box the BoundingBox
+     * @param prefetch if true return at most {@value #PREFETCH_CACHE_SIZE} tiles and stop early if a foreground read is
+     *            in progress
+     * @return a List of the tiles in the order they should be read
+     * @throws IOException if reading the data caused issues
+     */
+    @NonNull
+    private static List<TileData> getTiles(@NonNull Context context, @NonNull MBTileProviderDataBase mbTiles, @NonNull BoundingBox box, boolean prefetch)
+            throws IOException {
 
         final double lonLeft = box.getLeft() / 1E7d;
         final double lonRight = box.getRight() / 1E7d;
@@ -59,21 +212,20 @@ public final class MapSplitSource {
         final int tileNeededTop = Math.min(yTileTop, yTileBottom);
         final int tileNeededBottom = Math.max(yTileTop, yTileBottom);
         UnsignedSparseBitSet seen = new UnsignedSparseBitSet(); // track tiles that we have seen
-        Storage storage = new Storage();
+        List<TileData> tiles = new ArrayList<>();
         MapTile mapTile = new MapTile(null, maxZoom, 0, 0);
         for (int x = tileNeededLeft; x <= tileNeededRight; x++) {
             for (int y = tileNeededBottom; y >= tileNeededTop; y--) {
+                if (prefetch && (tiles.size() >= PREFETCH_CACHE_SIZE || foregroundReads.get() > 0)) {
+                    return tiles;
+                }
                 if (seen.get(x << maxZoom | y)) {
                     continue;
                 }
                 mapTile.zoomLevel = maxZoom;
                 mapTile.x = x;
                 mapTile.y = y;
-                InputStream is = mbTiles.getTileStream(mapTile);
-                if (is != null) {
-                    OsmPbfParser parser = new OsmPbfParser(context, storage, box);
-                    new BlockInputStream(is, parser).process();
-                } else {
+                if (!addTile(mbTiles, mapTile, tiles)) {
                     // tile doesn't exist try ones further out
                     // assumption there will only always be one tile that
                     // covers an area
@@ -82,10 +234,7 @@ public final class MapSplitSource {
                         mapTile.x >>= 1;
                         mapTile.y >>= 1;
                         --mapTile.zoomLevel;
-                        is = mbTiles.getTileStream(mapTile);
-                        if (is != null) {
-                            OsmPbfParser parser = new OsmPbfParser(context, storage, box);
-                            new BlockInputStream(is, parser).process();
+                        if (addTile(mbTiles, mapTile, tiles)) {
                             // mark smaller tiles as seen
                             int zoomDiff = maxZoom - mapTile.zoomLevel;
                             int originX = mapTile.x << zoomDiff;
@@ -102,11 +251,257 @@ public final class MapSplitSource {
                 }
             }
         }
-        if (box != null) {
-            // remove all unreferenced nodes that are not in the bounding box
-            storage.removeUnreferencedNodes(box);
+        return tiles;
+    }
+
+    /**
+     * Add a tile to a list if it is present
+     * 
+     * @param mbTiles a MBTileProviderDataBase instance
+     * @param mapTile the tile, this is copied
+     * @param tiles the list to add the tile to
+     * @return true if the tile is present
+     * @throws IOException if reading the data caused issues
+     */
+    private static boolean addTile(@NonNull MBTileProviderDataBase mbTiles, @NonNull MapTile mapTile, @NonNull List<TileData> tiles) throws IOException {
+        MapTile tile = new MapTile(mapTile);
+        synchronized (prefetchCache) {
+            if (prefetchSource == mbTiles && prefetchCache.containsKey(tile.toId())) {
+                tiles.add(new TileData(tile, null));
+                return true;
+            }
+        }
+        byte[] data = readBlob(mbTiles, tile);
+        if (data != null) {
+            tiles.add(new TileData(tile, data));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Read the contents of a tile from the database
+     * 
+     * Tiles are read one at a time, the database for MapSplit data is opened with a single prepared statement
+     * 
+     * @param mbTiles a MBTileProviderDataBase instance
+     * @param tile the tile
+     * @return the contents of the tile or null if it isn't present
+     * @throws IOException if reading the data caused issues
+     */
+    @Nullable
+    private static byte[] readBlob(@NonNull MBTileProviderDataBase mbTiles, @NonNull MapTile tile) throws IOException {
+        synchronized (mbTiles) {
+            return mbTiles.getTile(tile);
+        }
+    }
+
+    /**
+     * Get the thread pool for decoding tiles, creating it if necessary
+     * 
+     * @return an ExecutorService
+     */
+    @NonNull
+    private static synchronized ExecutorService getThreadPool() {
+        if (threadPool == null) {
+            int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS));
+            threadPool = Executors.newFixedThreadPool(threads);
+        }
+        return threadPool;
+    }
+
+    /**
+     * Decode tiles in parallel and merge them in to a Storage
+     * 
+     * The tiles are merged in the order they are listed, independent of the order decoding completes in, so the result
+     * is the same as when decoding sequentially. Only decoding is done in parallel, tiles that need to be read from
+     * the database are read on the calling thread.
+     * 
+     * @param context an Android Context
+     * @param mbTiles a MBTileProviderDataBase instance
+     * @param tiles the tiles to read
+     * @param box the BoundingBox
+     * @param storage the target Storage
+     * @throws IOException if reading the data caused issues
+     */
+    private static void readTiles(@NonNull final Context context, @NonNull final MBTileProviderDataBase mbTiles, @NonNull List<TileData> tiles,
+            @NonNull final BoundingBox box, @NonNull Storage storage) throws IOException {
+        ExecutorService pool = getThreadPool();
+        List<Future<Storage>> fragments = new ArrayList<>();
+        try {
+            for (TileData tileData : tiles) {
+                final MapTile tile = tileData.tile;
+                final Storage prefetched = tileData.data == null ? takePrefetched(mbTiles, tile) : null;
+                if (prefetched != null) {
+                    fragments.add(pool.submit(() -> prefetched));
+                    continue;
+                }
+                final byte[] data = tileData.data != null ? tileData.data : readBlob(mbTiles, tile);
+                if (data == null) {
+                    throw new IOException("Tile " + tile + " vanished");
+                }
+                fragments.add(pool.submit(() -> decodeTile(context, tile, data, box)));
+            }
+            for (Future<Storage> fragment : fragments) {
+                merge(storage, fragment.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Reading tiles interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            for (Future<Storage> fragment : fragments) {
+                fragment.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Get the contents of a single tile, either from the pre-fetch cache or by decoding it
+     * 
+     * @param context an Android Context
+     * @param mbTiles a MBTileProviderDataBase instance
+     * @param tileData the tile and its contents
+     * @param box the BoundingBox
+     * @return a Storage with the contents of the tile
+     * @throws IOException if reading the data caused issues
+     */
+    @NonNull
+    private static Storage readTile(@NonNull Context context, @NonNull MBTileProviderDataBase mbTiles, @NonNull TileData tileData, @NonNull BoundingBox box)
+            throws IOException {
+        byte[] data = tileData.data;
+        if (data == null) {
+            Storage fragment = takePrefetched(mbTiles, tileData.tile);
+            if (fragment != null) {
+                return fragment;
+            }
+            // evicted from the cache in the meantime
+            data = readBlob(mbTiles, tileData.tile);
+            if (data == null) {
+                throw new IOException("Tile " + tileData.tile + " vanished");
+            }
+        }
+        return decodeTile(context, tileData.tile, data, box);
+    }
+
+    /**
+     * Remove a tile from the pre-fetch cache
+     * 
+     * @param mbTiles a MBTileProviderDataBase instance
+     * @param tile the tile
+     * @return the pre-fetched contents of the tile or null if not in the cache
+     */
+    @Nullable
+    private static Storage takePrefetched(@NonNull MBTileProviderDataBase mbTiles, @NonNull MapTile tile) {
+        synchronized (prefetchCache) {
+            return prefetchSource == mbTiles ? prefetchCache.remove(tile.toId()) : null;
+        }
+    }
+
+    /**
+     * Decode a single tile
+     * 
+     * Way nodes that are not in the tile are replaced by placeholders that are resolved against the merged contents of
+     * all tiles by {@link #fixupReferences(Storage, BoundingBox)}.
+     * 
+     * @param context an Android Context
+     * @param tile the tile
+     * @param data the contents of the tile
+     * @param box if not null the BoundingBox to trim the contents to
+     * @return a Storage with the contents of the tile
+     * @throws IOException if reading the data caused issues
+     */
+    @NonNull
+    private static Storage decodeTile(@NonNull Context context, @NonNull MapTile tile, @NonNull byte[] data, @Nullable BoundingBox box) throws IOException {
+        Storage fragment = new Storage();
+        OsmPbfParser parser = new OsmPbfParser(context, fragment, box);
+        parser.setPlaceholderWayNodes(); // nodes may be in a neighbouring tile
+        new BlockInputStream(new ByteArrayInputStream(data), parser).process();
+        return fragment;
+    }
+
+    /**
+     * Add the contents of a decoded tile to a Storage
+     * 
+     * Elements that are already present, typically nodes and ways on tile boundaries, are skipped. References from the
+     * added elements still point to the instances in the fragment and need to be fixed up with
+     * {@link #fixupReferences(Storage, BoundingBox)} once all tiles have been merged.
+     * 
+     * @param storage the target Storage
+     * @param fragment the Storage with the contents of the tile
+     */
+    static void merge(@NonNull Storage storage, @NonNull Storage fragment) {
+        for (BoundingBox bounds : fragment.getBoundingBoxes()) {
+            if (storage.isEmpty()) {
+                storage.setBoundingBox(bounds);
+            } else {
+                storage.addBoundingBox(bounds);
+            }
+        }
+        for (Node n : fragment.getNodes()) {
+            storage.insertElementSafe(n);
+        }
+        for (Way w : fragment.getWays()) {
+            storage.insertElementSafe(w);
+        }
+        for (Relation r : fragment.getRelations()) {
+            storage.insertElementSafe(r);
+        }
+    }
+
+    /**
+     * Make all references between elements point to the elements in the Storage
+     * 
+     * Way nodes, relation members and parent relations are replaced by the instances with the same id that are in
+     * storage, way nodes and members that could not be resolved in their own tile are resolved against the complete
+     * data.
+     * 
+     * @param storage the Storage
+     * @param box if not null the BoundingBox used for trimming, nodes of all ways will be flagged as referenced
+     * @throws UnsupportedFormatException if a way node is not present in any of the tiles
+     */
+    static void fixupReferences(@NonNull Storage storage, @Nullable BoundingBox box) {
+        for (Way w : storage.getWays()) {
+            List<Node> wayNodes = w.getNodes();
+            for (int i = 0; i < wayNodes.size(); i++) {
+                Node n = wayNodes.get(i);
+                Node stored = storage.getNode(n.getOsmId());
+                if (stored == null) {
+                    // input is referentially broken, complain rather than fixing it up
+                    Log.e(DEBUG_TAG, "Way node " + n.getOsmId() + " missing, not adding way " + w.getOsmId());
+                    throw new UnsupportedFormatException("Way node " + n.getOsmId() + " missing, not adding way " + w.getOsmId());
+                }
+                if (stored != n) {
+                    wayNodes.set(i, stored);
+                }
+                if (box != null) {
+                    storage.addNodeRef(n.getOsmId());
+                }
+            }
+            w.parentRelations = null;
+        }
+        for (Node n : storage.getNodes()) {
+            n.parentRelations = null;
+        }
+        for (Relation r : storage.getRelations()) {
+            r.parentRelations = null;
+        }
+        for (Relation r : storage.getRelations()) {
+            for (RelationMember rm : r.getMembers()) {
+                OsmElement e = storage.getOsmElement(rm.getType(), rm.getRef());
+                rm.setElement(e);
+                if (e != null && !e.hasParentRelation(r)) {
+                    e.addParentRelation(r);
+                }
+            }
         }
-        return storage;
     }
 
     /**
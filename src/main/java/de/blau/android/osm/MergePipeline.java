@@ -0,0 +1,147 @@
+package de.blau.android.osm;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.xml.sax.SAXException;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Merge batches of parsed elements on a separate thread while parsing continues
+ *
+ * Each batch is merged with {@link StorageDelegator#mergeData(Storage, PostMergeHandler)}, which resolves references
+ * to elements from earlier batches against the current data. Only a small number of batches are queued, if merging
+ * falls behind the parser blocks, so memory use is bounded by the batch size and not by the size of the download.
+ *
+ * Merged batches are visible immediately, so this should only be used if there are no local modifications that
+ * incoming elements could conflict with. If a batch can't be merged, or the download doesn't complete, the batches
+ * that have already been merged are kept: they only contain complete elements, ways only refer to nodes that are in
+ * storage, and they may already have been displayed or edited.
+ */
+public class MergePipeline implements OsmParser.BatchHandler {
+
+    private static final String DEBUG_TAG = MergePipeline.class.getSimpleName();
+
+    /**
+     * Number of elements in a batch
+     */
+    public static final int BATCH_SIZE = 10000;
+
+    /**
+     * Maximum number of batches waiting to be merged
+     */
+    private static final int QUEUE_SIZE = 2;
+
+    private static final Storage END = new Storage();
+
+    private final StorageDelegator       delegator;
+    private final PostMergeHandler       postMerge;
+    private final BlockingQueue<Storage> queue    = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread                 merger;
+    private volatile boolean             conflict = false;
+    private volatile boolean             aborted  = false;
+    private volatile RuntimeException    error    = null;
+
+    /**
+     * Construct a new pipeline and start the merge thread
+     *
+     * @param delegator the StorageDelegator to merge in to
+     * @param postMerge handler to run on the merged elements
+     */
+    public MergePipeline(@NonNull StorageDelegator delegator, @Nullable PostMergeHandler postMerge) {
+        this.delegator = delegator;
+        this.postMerge = postMerge;
+        merger = new Thread(null, this::merge, DEBUG_TAG);
+        merger.start();
+    }
+
+    @Override
+    public void onBatch(@NonNull Storage batch) throws SAXException {
+        if (failed()) {
+            throw new SAXException("Merging failed, aborting");
+        }
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SAXException(e);
+        }
+    }
+
+    /**
+     * Merge batches until the end marker is received, after a failure remaining batches are discarded
+     */
+    private void merge() {
+        try {
+            for (Storage batch = queue.take(); batch != END; batch = queue.take()) {
+                if (failed()) {
+                    continue;
+                }
+                try {
+                    if (!delegator.mergeData(batch, postMerge)) {
+                        Log.e(DEBUG_TAG, "Conflict merging batch");
+                        conflict = true;
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(DEBUG_TAG, "Merging batch failed " + e.getMessage());
+                    error = e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Check if merging a batch has failed
+     *
+     * @return true if a batch couldn't be merged
+     */
+    private boolean failed() {
+        return aborted || conflict || error != null;
+    }
+
+    /**
+     * Wait for all queued batches to be merged and stop the merge thread
+     *
+     * Batches that have already been merged are kept in any case.
+     *
+     * @param abort if true the download didn't complete, batches that are still queued are discarded
+     * @return true if there was no conflict
+     * @throws InterruptedIOException if we were interrupted while waiting
+     */
+    public boolean finish(boolean abort) throws InterruptedIOException {
+        aborted = abort;
+        try {
+            queue.put(END);
+            merger.join();
+        } catch (InterruptedException e) {
+            aborted = true;
+            merger.interrupt();
+            joinMerger();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while merging");
+        }
+        if (error != null) {
+            throw error;
+        }
+        return !conflict;
+    }
+
+    /**
+     * Wait for the merge thread to stop after it has been interrupted, this only takes as long as the current batch
+     */
+    private void joinMerger() {
+        while (merger.isAlive()) {
+            try {
+                merger.join();
+            } catch (InterruptedException e) { // NOSONAR
+                // keep waiting, we need to be sure that nothing is being merged any more
+            }
+        }
+    }
+}
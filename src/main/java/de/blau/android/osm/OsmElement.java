@@ -56,6 +56,11 @@ public abstract class OsmElement implements Serializable, XmlSerializable, JosmX
 
     ArrayList<Relation> parentRelations;
 
+    /**
+     * Initial capacity of the parent relation list, most elements are only member of a single or very few relations
+     */
+    private static final int PARENT_RELATIONS_CAPACITY = 1;
+
     // seconds since EPOCH, negative == not set
     private int timestamp = -1;
 
@@ -375,7 +380,7 @@ public abstract class OsmElement implements Serializable, XmlSerializable, JosmX
      */
     public void addParentRelation(@NonNull Relation relation) {
         if (parentRelations == null) {
-            parentRelations = new ArrayList<>();
+            parentRelations = new ArrayList<>(PARENT_RELATIONS_CAPACITY);
         }
         parentRelations.add(relation);
     }
@@ -415,7 +420,7 @@ public abstract class OsmElement implements Serializable, XmlSerializable, JosmX
      */
     public void addParentRelations(@NonNull List<Relation> relations) {
         if (parentRelations == null) {
-            parentRelations = new ArrayList<>();
+            parentRelations = new ArrayList<>(relations.size());
         }
         // dedup
         for (Relation r : relations) {
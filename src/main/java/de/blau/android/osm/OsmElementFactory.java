@@ -1,5 +1,6 @@
 package de.blau.android.osm;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 import androidx.annotation.NonNull;
@@ -106,4 +107,28 @@ public class OsmElementFactory implements Serializable {
         wayId = w < wayId ? w : wayId;
         relationId = r < relationId ? r : relationId;
     }
+
+    /**
+     * Write the id sequences to a state file
+     * 
+     * @param writer the StateFileWriter
+     * @throws IOException if writing fails
+     */
+    synchronized void write(@NonNull StateFileWriter writer) throws IOException {
+        writer.writeSignedLong(nodeId);
+        writer.writeSignedLong(wayId);
+        writer.writeSignedLong(relationId);
+    }
+
+    /**
+     * Read the id sequences from a state file
+     * 
+     * @param reader the StateFileReader
+     * @throws IOException if reading fails
+     */
+    synchronized void read(@NonNull StateFileReader reader) throws IOException {
+        nodeId = reader.readSignedLong();
+        wayId = reader.readSignedLong();
+        relationId = reader.readSignedLong();
+    }
 }
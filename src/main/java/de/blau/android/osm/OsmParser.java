@@ -21,6 +21,7 @@ import androidx.annotation.NonNull;
 import de.blau.android.exception.OsmParseException;
 import de.blau.android.exception.StorageException;
 import de.blau.android.util.DateFormatter;
+import de.blau.android.util.collections.LongHashSet;
 import de.blau.android.util.collections.LongOsmElementMap;
 
 /**
@@ -50,7 +51,7 @@ public class OsmParser extends DefaultHandler {
     protected static final String OVERPASS_META = "meta";
 
     /** The storage, where the data will be stored (e.g. as JavaStorage or SqliteStorage). */
-    private final Storage storage;
+    private Storage storage;
 
     /**
      * Current node (node of OsmElement), where the parser is actually in. Will be used when children of this element
@@ -92,6 +93,28 @@ public class OsmParser extends DefaultHandler {
     protected LongOsmElementMap<Node> nodeIndex = null;
     private LongOsmElementMap<Way>    wayIndex  = null;
 
+    /**
+     * Receiver for parsed elements in batches
+     */
+    public interface BatchHandler {
+
+        /**
+         * Called with a batch of parsed elements, the parser will not change the Storage after this call
+         * 
+         * Ways and relations in a batch can refer to elements from earlier batches, these references need to be resolved
+         * by the receiver. Way nodes from earlier batches are placeholders that only contain the id of the node.
+         * 
+         * @param batch a Storage containing the elements
+         * @throws SAXException to abort parsing
+         */
+        void onBatch(@NonNull Storage batch) throws SAXException;
+    }
+
+    private BatchHandler batchHandler  = null;
+    private int          batchSize     = 0;
+    private int          batchElements = 0;
+    private LongHashSet  previousNodes = null;
+
     /**
      * Construct a new instance of the parser
      */
@@ -111,6 +134,21 @@ public class OsmParser extends DefaultHandler {
         missingRelations.clear();
     }
 
+    /**
+     * Hand parsed elements to a BatchHandler every time batchSize elements have been parsed instead of keeping them
+     * 
+     * This needs to be called before parsing starts. The ids of the nodes that have been handed off are retained so
+     * that ways can refer to them.
+     * 
+     * @param batchSize the number of elements in a batch
+     * @param handler the BatchHandler
+     */
+    public void setBatchHandler(int batchSize, @NonNull BatchHandler handler) {
+        this.batchSize = batchSize;
+        batchHandler = handler;
+        previousNodes = new LongHashSet();
+    }
+
     /**
      * Get the Storage instane associated with the parser
      * 
@@ -139,8 +177,19 @@ public class OsmParser extends DefaultHandler {
      * needed for post processing of relations
      */
     @Override
-    public void endDocument() {
+    public void endDocument() throws SAXException {
         Log.d(DEBUG_TAG, "Post processing relations.");
+        resolveMissingRelations();
+        if (batchHandler != null && batchElements > 0) {
+            flushBatch();
+        }
+        Log.d(DEBUG_TAG, "Finished parsing input.");
+    }
+
+    /**
+     * Set relation members that refer to relations that were parsed after the parent
+     */
+    private void resolveMissingRelations() {
         for (MissingRelation mr : missingRelations) {
             RelationMember rm = mr.member;
             Relation r = storage.getRelation(rm.ref);
@@ -150,7 +199,36 @@ public class OsmParser extends DefaultHandler {
                 Log.d(DEBUG_TAG, "Added relation " + rm.ref);
             }
         }
-        Log.d(DEBUG_TAG, "Finished parsing input.");
+        missingRelations.clear();
+    }
+
+    /**
+     * Count a parsed element and hand the current batch off if it is complete
+     * 
+     * @throws SAXException if the BatchHandler aborts parsing
+     */
+    private void elementAdded() throws SAXException {
+        if (batchHandler != null && ++batchElements >= batchSize) {
+            resolveMissingRelations();
+            flushBatch();
+        }
+    }
+
+    /**
+     * Hand the current batch to the BatchHandler and start a new one
+     * 
+     * @throws SAXException if the BatchHandler aborts parsing
+     */
+    private void flushBatch() throws SAXException {
+        for (Node n : storage.getNodes()) {
+            previousNodes.put(n.getOsmId());
+        }
+        Storage batch = storage;
+        storage = new Storage();
+        nodeIndex = null;
+        wayIndex = null;
+        batchElements = 0;
+        batchHandler.onBatch(batch);
     }
 
     /**
@@ -213,6 +291,7 @@ public class OsmParser extends DefaultHandler {
                     addTags(currentNode);
                     storage.insertNodeUnsafe(currentNode);
                     currentNode = null;
+                    elementAdded();
                 } else {
                     throw new SAXException("State error, null Node");
                 }
@@ -221,7 +300,9 @@ public class OsmParser extends DefaultHandler {
                 if (currentWay != null) {
                     addTags(currentWay);
                     if (currentWay.getNodes() != null && !currentWay.getNodes().isEmpty()) {
+                        currentWay.trimToSize(); // the way isn't visible to anybody else yet
                         storage.insertWayUnsafe(currentWay);
+                        elementAdded();
                     } else {
                         Log.e(DEBUG_TAG, "Way " + currentWay.getOsmId() + " has no nodes! Ignored.");
                     }
@@ -235,6 +316,7 @@ public class OsmParser extends DefaultHandler {
                     addTags(currentRelation);
                     storage.insertRelationUnsafe(currentRelation);
                     currentRelation = null;
+                    elementAdded();
                 } else {
                     throw new SAXException("State error, null Relation");
                 }
@@ -336,8 +418,8 @@ public class OsmParser extends DefaultHandler {
         if (currentTags == null) {
             currentTags = new TreeMap<>();
         }
-        String k = atts.getValue("k");
-        String v = atts.getValue("v");
+        String k = TagDictionary.intern(atts.getValue("k"));
+        String v = TagDictionary.intern(atts.getValue("v"));
         currentTags.put(k, v);
     }
 
@@ -374,6 +456,10 @@ public class OsmParser extends DefaultHandler {
             } else {
                 long nodeOsmId = Long.parseLong(atts.getValue("ref"));
                 Node node = nodeIndex.get(nodeOsmId);
+                if (node == null && previousNodes != null && previousNodes.contains(nodeOsmId)) {
+                    // handed off in an earlier batch
+                    node = OsmElementFactory.createNode(nodeOsmId, 0, -1L, OsmElement.STATE_UNCHANGED, 0, 0);
+                }
                 if (node == null) {
                     throw new OsmParseException("parseWayNode node " + nodeOsmId + " not in storage");
                 } else {
@@ -398,7 +484,7 @@ public class OsmParser extends DefaultHandler {
             } else {
                 long ref = Long.parseLong(atts.getValue("ref"));
                 String type = atts.getValue("type");
-                String role = atts.getValue("role");
+                String role = TagDictionary.intern(atts.getValue("role"));
                 RelationMember member = null;
                 switch (type) {
                 case Node.NAME:
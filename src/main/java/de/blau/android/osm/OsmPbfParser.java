@@ -27,6 +27,8 @@ public class OsmPbfParser extends BinaryParser {
     final Storage     storage;
     final BoundingBox box;
 
+    private boolean placeholderWayNodes = false;
+
     /**
      * Construct a new parser
      * 
@@ -55,6 +57,17 @@ public class OsmPbfParser extends BinaryParser {
         this.box = box;
     }
 
+    /**
+     * Create placeholders for way nodes that are not present instead of failing
+     * 
+     * This is for data that is split in to parts that are parsed independently, a way can then refer to nodes from
+     * another part. The placeholders only contain the id of the node and need to be replaced by the actual nodes once
+     * all parts have been parsed. Ways with placeholder nodes are not trimmed to the bounding box.
+     */
+    void setPlaceholderWayNodes() {
+        placeholderWayNodes = true;
+    }
+
     @Override
     protected void parseRelations(List<Osmformat.Relation> relations) {
 
@@ -86,7 +99,7 @@ public class OsmPbfParser extends BinaryParser {
             int mcount = r.getMemidsCount();
             for (int i = 0; i < mcount; i++) {
                 ref += r.getMemids(i);
-                String role = getStringById(r.getRolesSid(i));
+                String role = getTagString(r.getRolesSid(i));
                 String type = null;
                 switch (r.getTypes(i)) {
                 case NODE:
@@ -117,7 +130,7 @@ public class OsmPbfParser extends BinaryParser {
             if (tagCount > 0) {
                 Map<String, String> tags = new HashMap<>();
                 for (int i = 0; i < tagCount; i++) {
-                    tags.put(getStringById(r.getKeys(i)), (getStringById(r.getVals(i))));
+                    tags.put(getTagString(r.getKeys(i)), getTagString(r.getVals(i)));
                 }
                 if (tags != null && !tags.isEmpty()) {
                     relation.setTags(tags);
@@ -135,6 +148,17 @@ public class OsmPbfParser extends BinaryParser {
         }
     }
 
+    /**
+     * Get a string from the string table of the current block for use in tags or roles
+     * 
+     * @param id the index in to the string table
+     * @return the shared instance of the string from the TagDictionary
+     */
+    @Nullable
+    private String getTagString(int id) {
+        return TagDictionary.intern(getStringById(id));
+    }
+
     /**
      * Throw a message pointing out that we require version attributes
      */
@@ -169,8 +193,8 @@ public class OsmPbfParser extends BinaryParser {
             Map<String, String> tags = null;
             if (nodes.getKeysValsCount() > 0) {
                 while (nodes.getKeysVals(tagPointer) != 0) {
-                    String key = getStringById(nodes.getKeysVals(tagPointer++));
-                    String value = getStringById(nodes.getKeysVals(tagPointer++));
+                    String key = getTagString(nodes.getKeysVals(tagPointer++));
+                    String value = getTagString(nodes.getKeysVals(tagPointer++));
                     if (key != null) {
                         if (tags == null) {
                             tags = new HashMap<>();
@@ -200,7 +224,7 @@ public class OsmPbfParser extends BinaryParser {
             if (tagCount > 0) {
                 Map<String, String> tags = new HashMap<>();
                 for (int i = 0; i < tagCount; i++) {
-                    tags.put(getStringById(n.getKeys(i)), (getStringById(n.getVals(i))));
+                    tags.put(getTagString(n.getKeys(i)), getTagString(n.getVals(i)));
                 }
                 if (!tags.isEmpty()) {
                     node.setTags(tags);
@@ -220,10 +244,14 @@ public class OsmPbfParser extends BinaryParser {
             Way way = OsmElementFactory.createWay(w.getId(), (long) w.getInfo().getVersion(), w.getInfo().getTimestamp() / timeStampToSeconds,
                     OsmElement.STATE_UNCHANGED);
             long lastRef = 0;
+            boolean incomplete = false;
             for (long ref : w.getRefsList()) {
                 lastRef += ref;
                 Node nd = storage.getNode(lastRef);
-                if (nd == null) {
+                if (nd == null && placeholderWayNodes) {
+                    nd = OsmElementFactory.createNode(lastRef, 0, -1L, OsmElement.STATE_UNCHANGED, 0, 0);
+                    incomplete = true;
+                } else if (nd == null) {
                     // input is referentially broken, complain rather than fixing it up
                     Log.e(DEBUG_TAG, "Way node " + lastRef + " missing, not adding way " + w.getId());
                     throw new UnsupportedFormatException("Way node " + lastRef + " missing, not adding way " + w.getId());
@@ -234,7 +262,7 @@ public class OsmPbfParser extends BinaryParser {
                 if (storage.contains(way)) {
                     continue; // no point in doing anything
                 }
-                if (!way.getBounds().intersects(box)) {
+                if (!incomplete && !way.getBounds().intersects(box)) {
                     continue; // trim before we add tags
                 }
                 // flag the Node as referenced for the ways we keep
@@ -248,12 +276,13 @@ public class OsmPbfParser extends BinaryParser {
             if (tagCount > 0) {
                 Map<String, String> tags = new HashMap<>();
                 for (int i = 0; i < tagCount; i++) {
-                    tags.put(getStringById(w.getKeys(i)), (getStringById(w.getVals(i))));
+                    tags.put(getTagString(w.getKeys(i)), getTagString(w.getVals(i)));
                 }
                 if (tags != null && !tags.isEmpty()) {
                     way.setTags(tags);
                 }
             }
+            way.trimToSize(); // the way isn't visible to anybody else yet
             storage.insertElementSafe(way);
         }
     }
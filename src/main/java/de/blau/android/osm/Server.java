@@ -2061,6 +2061,7 @@ public class Server {
      */
     public void closeMapSplitSource() {
         if (mapSplitSource != null) {
+            MapSplitSource.clearPrefetched();
             mapSplitSource.close();
         }
     }
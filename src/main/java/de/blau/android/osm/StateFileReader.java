@@ -0,0 +1,599 @@
+package de.blau.android.osm;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.exception.UnsupportedFormatException;
+
+/**
+ * Reader for the binary state file format, see {@link StateFileWriter} for a description of the format
+ */
+public class StateFileReader {
+
+    private static final int HEADER_LENGTH = 4 + StateFileWriter.MAGIC.length;
+
+    private final ChunkedInputStream in;
+    private final int                version;
+
+    private OsmElement[]       elements;
+    private final List<String> strings = new ArrayList<>();
+
+    private int         nodeCount        = 0;
+    private int         wayCount         = 0;
+    private int         previewNodeCount = 0;
+    private int         previewWayCount  = 0;
+    private BoundingBox previewBox       = null;
+
+    // running values for the delta encoded parts of the element table
+    private long nodeId = 0;
+    private long wayId  = 0;
+    private int  lat    = 0;
+    private int  lon    = 0;
+
+    /**
+     * Check if the stream contains a state file, the stream is reset to its original position
+     *
+     * @param inputStream the InputStream, needs to support mark
+     * @return true if the contents start with the expected header
+     * @throws IOException if reading fails
+     */
+    public static boolean isStateFile(@NonNull InputStream inputStream) throws IOException {
+        inputStream.mark(HEADER_LENGTH);
+        try {
+            byte[] header = new byte[HEADER_LENGTH];
+            int read = 0;
+            while (read < HEADER_LENGTH) {
+                int count = inputStream.read(header, read, HEADER_LENGTH - read);
+                if (count < 0) {
+                    return false;
+                }
+                read += count;
+            }
+            return Arrays.equals(StateFileWriter.MAGIC, Arrays.copyOfRange(header, 4, HEADER_LENGTH));
+        } finally {
+            inputStream.reset();
+        }
+    }
+
+    /**
+     * Construct a new reader
+     *
+     * @param inputStream the InputStream to read from, this should be buffered
+     * @throws IOException if reading fails
+     */
+    public StateFileReader(@NonNull InputStream inputStream) throws IOException {
+        this(inputStream, StateFileWriter.MAGIC, StateFileWriter.VERSION);
+    }
+
+    /**
+     * Construct a new reader for a format using the same encoding
+     *
+     * @param inputStream the InputStream to read from, this should be buffered
+     * @param expectedMagic the magic bytes identifying the format
+     * @param maxVersion the highest supported format version
+     * @throws IOException if reading fails
+     */
+    protected StateFileReader(@NonNull InputStream inputStream, @NonNull byte[] expectedMagic, int maxVersion) throws IOException {
+        in = new ChunkedInputStream(inputStream);
+        byte[] magic = new byte[expectedMagic.length];
+        in.readFully(magic);
+        if (!Arrays.equals(expectedMagic, magic)) {
+            throw new UnsupportedFormatException("Not a state file");
+        }
+        version = readInt();
+        if (version < 1 || version > maxVersion) {
+            throw new UnsupportedFormatException("Unsupported state file version " + version);
+        }
+    }
+
+    /**
+     * Get the format version of the file being read
+     *
+     * @return the version
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the element table
+     *
+     * @return an array containing all elements that have been read, or null if {@link #readElements()} hasn't been
+     *         called
+     */
+    @Nullable
+    OsmElement[] getElements() {
+        return elements;
+    }
+
+    /**
+     * Read the start of the element table up to and including the elements in the preview area
+     *
+     * Elements that are in the preview area are complete apart from their parent relations after this has been called.
+     * Files written by older versions don't have a preview area.
+     *
+     * @throws IOException if reading fails
+     */
+    public void readPreview() throws IOException {
+        nodeCount = readInt();
+        wayCount = readInt();
+        int relationCount = readInt();
+        if (version >= 3) {
+            previewNodeCount = readInt();
+            previewWayCount = readInt();
+            if (previewNodeCount > nodeCount || previewWayCount > wayCount) {
+                throw new IOException("Invalid preview size");
+            }
+            if (readBoolean()) {
+                previewBox = new BoundingBox(readSignedInt(), readSignedInt(), readSignedInt(), readSignedInt());
+            }
+        }
+        elements = new OsmElement[nodeCount + wayCount + relationCount];
+        readNodes(0, previewNodeCount);
+        readWays(nodeCount, nodeCount + previewWayCount);
+    }
+
+    /**
+     * Get the preview area
+     *
+     * @return the area or null if the file doesn't contain one or {@link #readPreview()} hasn't been called
+     */
+    @Nullable
+    public BoundingBox getPreviewBox() {
+        return previewBox;
+    }
+
+    /**
+     * Get a Storage containing copies of the elements in the preview area
+     *
+     * Copies are returned as the original elements will be modified when the rest of the state is read. The elements
+     * don't have any parent relations.
+     *
+     * @return a Storage holding the elements
+     */
+    @NonNull
+    public Storage getPreviewStorage() {
+        Storage storage = new Storage();
+        Map<Node, Node> copies = new IdentityHashMap<>();
+        for (int i = 0; i < previewNodeCount; i++) {
+            Node original = (Node) elements[i];
+            Node n = OsmElementFactory.createNode(original.osmId, original.osmVersion, original.getTimestamp(), original.state, original.lat,
+                    original.lon);
+            n.tags = original.tags;
+            copies.put(original, n);
+            storage.insertElementUnsafe(n);
+        }
+        for (int i = nodeCount; i < nodeCount + previewWayCount; i++) {
+            Way original = (Way) elements[i];
+            Way w = OsmElementFactory.createWay(original.osmId, original.osmVersion, original.getTimestamp(), original.state);
+            w.tags = original.tags;
+            List<Node> wayNodes = w.getNodes();
+            for (Node n : original.getNodes()) {
+                // preview ways only reference preview nodes, see StateFileWriter
+                wayNodes.add(copies.get(n));
+            }
+            storage.insertElementUnsafe(w);
+        }
+        return storage;
+    }
+
+    /**
+     * Read the element table
+     *
+     * If {@link #readPreview()} has been called only the remaining elements are read.
+     *
+     * @throws IOException if reading fails
+     */
+    public void readElements() throws IOException {
+        if (elements == null) {
+            readPreview();
+        }
+        readNodes(previewNodeCount, nodeCount);
+        readWays(nodeCount + previewWayCount, nodeCount + wayCount);
+        long id = 0;
+        final int total = elements.length;
+        for (int i = nodeCount + wayCount; i < total; i++) {
+            id += readSignedLong();
+            Relation r = OsmElementFactory.createRelation(id, readLong(), 0, readByte());
+            r.setTimestamp(readSignedLong());
+            r.tags = readTags();
+            elements[i] = r;
+        }
+        for (int i = nodeCount + wayCount; i < total; i++) {
+            ((Relation) elements[i]).members.addAll(readMembers());
+        }
+        for (OsmElement e : elements) {
+            e.parentRelations = readElementList();
+        }
+    }
+
+    /**
+     * Read a range of nodes from the element table
+     *
+     * @param start the handle of the first node
+     * @param end the handle following the last node
+     * @throws IOException if reading fails
+     */
+    private void readNodes(int start, int end) throws IOException {
+        for (int i = start; i < end; i++) {
+            nodeId += readSignedLong();
+            long version = readLong();
+            byte state = readByte();
+            long timestamp = readSignedLong();
+            TreeMap<String, String> tags = readTags();
+            lat += readSignedInt();
+            lon += readSignedInt();
+            Node n = OsmElementFactory.createNode(nodeId, version, timestamp, state, lat, lon);
+            n.tags = tags;
+            elements[i] = n;
+        }
+    }
+
+    /**
+     * Read a range of ways from the element table
+     *
+     * @param start the handle of the first way
+     * @param end the handle following the last way
+     * @throws IOException if reading fails
+     */
+    private void readWays(int start, int end) throws IOException {
+        for (int i = start; i < end; i++) {
+            wayId += readSignedLong();
+            Way w = OsmElementFactory.createWay(wayId, readLong(), 0, readByte());
+            w.setTimestamp(readSignedLong());
+            w.tags = readTags();
+            List<Node> nodes = readElementList();
+            if (nodes != null) {
+                w.getNodes().addAll(nodes);
+                w.trimToSize();
+            }
+            elements[i] = w;
+        }
+    }
+
+    /**
+     * Read a reference to an element
+     *
+     * @param <T> the element type
+     * @return the OsmElement or null
+     * @throws IOException if reading fails
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public <T extends OsmElement> T readElement() throws IOException {
+        int handle = readInt();
+        return handle == 0 ? null : (T) element(handle - 1);
+    }
+
+    /**
+     * Get an element by handle
+     *
+     * @param handle the handle
+     * @return the OsmElement
+     * @throws IOException if the handle is invalid
+     */
+    @NonNull
+    private OsmElement element(int handle) throws IOException {
+        if (elements == null || handle < 0 || handle >= elements.length || elements[handle] == null) {
+            throw new IOException("Invalid element handle " + handle);
+        }
+        return elements[handle];
+    }
+
+    /**
+     * Read a List of elements
+     *
+     * @param <T> the element type
+     * @return an ArrayList of the elements or null
+     * @throws IOException if reading fails
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public <T extends OsmElement> ArrayList<T> readElementList() throws IOException {
+        int size = readInt();
+        if (size == 0) {
+            return null;
+        }
+        size--;
+        ArrayList<T> result = new ArrayList<>(size);
+        int handle = 0;
+        for (int i = 0; i < size; i++) {
+            handle += readSignedInt();
+            result.add((T) element(handle));
+        }
+        return result;
+    }
+
+    /**
+     * Read the contents of a Storage object
+     *
+     * @param storage the Storage to add the contents to
+     * @throws IOException if reading fails
+     */
+    public void readStorage(@NonNull Storage storage) throws IOException {
+        int boxCount = readInt();
+        for (int i = 0; i < boxCount; i++) {
+            int left = readSignedInt();
+            int bottom = readSignedInt();
+            int right = readSignedInt();
+            int top = readSignedInt();
+            BoundingBox box = new BoundingBox();
+            box.set(left, bottom, right, top);
+            storage.addBoundingBox(box);
+        }
+        for (int i = 0; i < 3; i++) {
+            List<OsmElement> list = readElementList();
+            if (list != null) {
+                for (OsmElement e : list) {
+                    storage.insertElementUnsafe(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a List of RelationMembers
+     *
+     * @return a List of RelationMember
+     * @throws IOException if reading fails
+     */
+    @NonNull
+    public List<RelationMember> readMembers() throws IOException {
+        int size = readInt();
+        List<RelationMember> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            String type = readString();
+            long ref = readSignedLong();
+            String role = readString();
+            if (type == null) {
+                throw new IOException("Missing member type");
+            }
+            RelationMember rm = new RelationMember(type, ref, role);
+            rm.setElement(readElement());
+            result.add(rm);
+        }
+        return result;
+    }
+
+    /**
+     * Read a tag Map
+     *
+     * @return a TreeMap containing the tags or null
+     * @throws IOException if reading fails
+     */
+    @Nullable
+    public TreeMap<String, String> readTags() throws IOException {
+        int size = readInt();
+        if (size == 0) {
+            return null;
+        }
+        TreeMap<String, String> tags = new TreeMap<>();
+        for (int i = 1; i < size; i++) {
+            tags.put(readString(), readString());
+        }
+        return tags;
+    }
+
+    /**
+     * Read a String
+     *
+     * @return the String or null
+     * @throws IOException if reading fails
+     */
+    @Nullable
+    public String readString() throws IOException {
+        int ref = readInt();
+        if (ref == StateFileWriter.STRING_NULL) {
+            return null;
+        }
+        if (ref == StateFileWriter.STRING_NEW) {
+            byte[] bytes = new byte[readInt()];
+            in.readFully(bytes);
+            String s = TagDictionary.intern(new String(bytes, StateFileWriter.UTF8));
+            strings.add(s);
+            return s;
+        }
+        int index = ref - StateFileWriter.STRING_BASE;
+        if (index >= strings.size()) {
+            throw new IOException("Invalid string reference " + index);
+        }
+        return strings.get(index);
+    }
+
+    /**
+     * Read a boolean
+     *
+     * @return the value
+     * @throws IOException if reading fails
+     */
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    /**
+     * Read a single byte
+     *
+     * @return the value
+     * @throws IOException if reading fails
+     */
+    public byte readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return (byte) b;
+    }
+
+    /**
+     * Read a non-negative variable length int
+     *
+     * @return the value
+     * @throws IOException if reading fails
+     */
+    public int readInt() throws IOException {
+        return (int) readLong();
+    }
+
+    /**
+     * Read a zig-zag encoded variable length int
+     *
+     * @return the value
+     * @throws IOException if reading fails
+     */
+    public int readSignedInt() throws IOException {
+        int value = (int) readLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Read a zig-zag encoded variable length long
+     *
+     * @return the value
+     * @throws IOException if reading fails
+     */
+    public long readSignedLong() throws IOException {
+        long value = readLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Read an unsigned variable length long
+     *
+     * @return the value
+     * @throws IOException if reading fails
+     */
+    public long readLong() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed variable length value");
+    }
+
+    /**
+     * Check that we have read all the data and close the underlying stream
+     *
+     * @throws IOException if there is unread data or the terminating chunk is missing
+     */
+    public void close() throws IOException {
+        try {
+            if (in.read() >= 0) {
+                throw new IOException("Unexpected data at end of state file");
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * InputStream that reads CRC protected chunks
+     */
+    private static class ChunkedInputStream extends InputStream {
+        private final DataInputStream in;
+        private final byte[]          buffer = new byte[StateFileWriter.CHUNK_SIZE];
+        private int                   pos    = 0;
+        private int                   length = 0;
+        private boolean               end    = false;
+        private final CRC32           crc    = new CRC32();
+
+        /**
+         * Construct a new stream
+         *
+         * @param in the underlying InputStream
+         */
+        ChunkedInputStream(@NonNull InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        /**
+         * Read the next chunk
+         *
+         * @return false if the terminating chunk was read
+         * @throws IOException if reading fails or the chunk is corrupted
+         */
+        private boolean readChunk() throws IOException {
+            if (end) {
+                return false;
+            }
+            int size = in.readInt();
+            if (size == 0) {
+                end = true;
+                return false;
+            }
+            if (size < 0 || size > StateFileWriter.CHUNK_SIZE) {
+                throw new IOException("Invalid chunk size " + size);
+            }
+            in.readFully(buffer, 0, size);
+            crc.reset();
+            crc.update(buffer, 0, size);
+            if ((int) crc.getValue() != in.readInt()) {
+                throw new IOException("Chunk CRC mismatch");
+            }
+            pos = 0;
+            length = size;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == length && !readChunk()) {
+                return -1;
+            }
+            return buffer[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos == length && !readChunk()) {
+                return -1;
+            }
+            int count = Math.min(len, length - pos);
+            System.arraycopy(buffer, pos, b, off, count);
+            pos += count;
+            return count;
+        }
+
+        /**
+         * Read exactly b.length bytes
+         *
+         * @param b the target array
+         * @throws IOException if reading fails or not enough data is available
+         */
+        void readFully(@NonNull byte[] b) throws IOException {
+            int read = 0;
+            while (read < b.length) {
+                int count = read(b, read, b.length - read);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                read += count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
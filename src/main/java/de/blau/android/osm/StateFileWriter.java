@@ -0,0 +1,634 @@
+package de.blau.android.osm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Writer for the binary state file format
+ *
+ * The file is a sequence of chunks, each consisting of a 4 byte length, the payload and a 4 byte CRC32 of the payload,
+ * terminated by a chunk with length 0. Chunks are written as soon as they are full, so the whole state never needs to
+ * be held in memory in serialized form, and truncated or corrupted files are reliably detected on reading.
+ *
+ * The payload starts with the magic and version, followed by a table of all OsmElements that are referenced from
+ * anywhere in the state, nodes first, then ways and finally relations. Each element is assigned a handle, its position
+ * in the table, which is used for all further references to the element. This retains the object identity of elements
+ * and avoids any kind of recursion when writing and reading. Numbers are written as variable length integers, ids,
+ * coordinates and handles are delta encoded and all strings are interned, that is, only written the first time they
+ * occur.
+ *
+ * Within the table nodes and ways are ordered spatially. If a preview area has been set with
+ * {@link #setPreview(Storage, BoundingBox)} the nodes and ways in it are written first, preceded by their number and
+ * the area, this allows a reader to display them before the rest of the file has been read, see
+ * {@link StateFileReader#readPreview()}.
+ *
+ * Usage: register all elements with {@link #add(OsmElement)}, optionally set the preview area, call
+ * {@link #writeElements()} and then write the remaining state with the other methods, finally call {@link #close()}.
+ */
+public class StateFileWriter {
+
+    static final byte[] MAGIC   = { 'V', 'E', 'S', 'P', 'S', 'T', 'A', 'T' };
+    static final int    VERSION = 3;
+
+    static final int CHUNK_SIZE = 65536;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // element type codes
+    static final int NODE     = 0;
+    static final int WAY      = 1;
+    static final int RELATION = 2;
+
+    // string references
+    static final int STRING_NULL = 0;
+    static final int STRING_NEW  = 1;
+    static final int STRING_BASE = 2;
+
+    private static final Comparator<Node> NODE_ORDER = (n1, n2) -> Long.compare(zOrder(n1), zOrder(n2));
+    private static final Comparator<Way>  WAY_ORDER  = (w1, w2) -> Long.compare(zOrder(w1), zOrder(w2));
+
+    private final ChunkedOutputStream out;
+
+    private final IdentityHashMap<OsmElement, Integer> indices   = new IdentityHashMap<>();
+    private final List<Node>                           nodes     = new ArrayList<>();
+    private final List<Way>                            ways      = new ArrayList<>();
+    private final List<Relation>                       relations = new ArrayList<>();
+    private final ArrayDeque<OsmElement>               toProcess = new ArrayDeque<>();
+    private final Map<String, Integer>                 strings   = new HashMap<>();
+
+    private boolean elementsWritten = false;
+
+    private Storage     previewStorage = null;
+    private BoundingBox previewBox     = null;
+
+    /**
+     * Construct a new writer
+     *
+     * @param outputStream the OutputStream to write to, this should be buffered
+     * @throws IOException if writing fails
+     */
+    public StateFileWriter(@NonNull OutputStream outputStream) throws IOException {
+        this(outputStream, MAGIC, VERSION);
+    }
+
+    /**
+     * Construct a new writer for a format using the same encoding
+     *
+     * @param outputStream the OutputStream to write to, this should be buffered
+     * @param magic the magic bytes identifying the format
+     * @param version the format version
+     * @throws IOException if writing fails
+     */
+    protected StateFileWriter(@NonNull OutputStream outputStream, @NonNull byte[] magic, int version) throws IOException {
+        out = new ChunkedOutputStream(outputStream);
+        out.write(magic);
+        writeInt(version);
+    }
+
+    /**
+     * Get the type code for an element
+     *
+     * @param e the OsmElement
+     * @return one of NODE, WAY or RELATION
+     */
+    static int typeCode(@NonNull OsmElement e) {
+        if (e instanceof Node) {
+            return NODE;
+        }
+        return e instanceof Way ? WAY : RELATION;
+    }
+
+    /**
+     * Register an element and all elements it refers to
+     *
+     * @param e the OsmElement
+     */
+    public void add(@Nullable OsmElement e) {
+        if (elementsWritten) {
+            throw new IllegalStateException("Elements already written");
+        }
+        register(e);
+        while (!toProcess.isEmpty()) {
+            OsmElement current = toProcess.poll();
+            if (current instanceof Way) {
+                for (Node n : ((Way) current).getNodes()) {
+                    register(n);
+                }
+            } else if (current instanceof Relation) {
+                for (RelationMember rm : ((Relation) current).members) {
+                    register(rm.getElement());
+                }
+            }
+            if (current.parentRelations != null) {
+                for (Relation r : current.parentRelations) {
+                    register(r);
+                }
+            }
+        }
+    }
+
+    /**
+     * Register elements and all elements they refer to
+     *
+     * @param elements a Collection of OsmElement, can be null
+     */
+    public void addAll(@Nullable Collection<? extends OsmElement> elements) {
+        if (elements != null) {
+            for (OsmElement e : elements) {
+                add(e);
+            }
+        }
+    }
+
+    /**
+     * Register all elements in a Storage object
+     *
+     * @param storage the Storage
+     */
+    public void addStorage(@NonNull Storage storage) {
+        addAll(storage.getNodeIndex().values());
+        addAll(storage.getWayIndex().values());
+        addAll(storage.getRelationIndex().values());
+    }
+
+    /**
+     * Register an element without processing what it refers to
+     *
+     * @param e the OsmElement
+     */
+    private void register(@Nullable OsmElement e) {
+        if (e == null || indices.containsKey(e)) {
+            return;
+        }
+        if (e instanceof Node) {
+            indices.put(e, nodes.size());
+            nodes.add((Node) e);
+        } else if (e instanceof Way) {
+            indices.put(e, ways.size());
+            ways.add((Way) e);
+        } else if (e instanceof Relation) {
+            indices.put(e, relations.size());
+            relations.add((Relation) e);
+        } else {
+            throw new IllegalArgumentException("Unsupported element type " + e.getClass().getName());
+        }
+        toProcess.add(e);
+    }
+
+    /**
+     * Set the area whose elements should be written first
+     *
+     * @param storage the Storage containing the elements that should be displayed
+     * @param box the area, typically the current view
+     */
+    public void setPreview(@NonNull Storage storage, @NonNull BoundingBox box) {
+        previewStorage = storage;
+        previewBox = new BoundingBox(box);
+    }
+
+    /**
+     * Write the element table
+     *
+     * @throws IOException if writing fails
+     */
+    public void writeElements() throws IOException {
+        elementsWritten = true;
+        int[] previewCounts = order();
+        writeInt(nodes.size());
+        writeInt(ways.size());
+        writeInt(relations.size());
+        writeInt(previewCounts[0]);
+        writeInt(previewCounts[1]);
+        writeBoolean(previewBox != null);
+        if (previewBox != null) {
+            writeSignedInt(previewBox.getLeft());
+            writeSignedInt(previewBox.getBottom());
+            writeSignedInt(previewBox.getRight());
+            writeSignedInt(previewBox.getTop());
+        }
+        long prevId = 0;
+        int prevLat = 0;
+        int prevLon = 0;
+        for (Node n : nodes) {
+            prevId = writeCommon(n, prevId);
+            writeSignedInt(n.lat - prevLat);
+            writeSignedInt(n.lon - prevLon);
+            prevLat = n.lat;
+            prevLon = n.lon;
+        }
+        prevId = 0;
+        for (Way w : ways) {
+            prevId = writeCommon(w, prevId);
+            writeElementList(w.getNodes());
+        }
+        prevId = 0;
+        for (Relation r : relations) {
+            prevId = writeCommon(r, prevId);
+        }
+        // members and parent relations can refer to any element so they need to be written after the elements
+        for (Relation r : relations) {
+            writeMembers(r.members);
+        }
+        for (Node n : nodes) {
+            writeElementList(n.parentRelations);
+        }
+        for (Way w : ways) {
+            writeElementList(w.parentRelations);
+        }
+        for (Relation r : relations) {
+            writeElementList(r.parentRelations);
+        }
+    }
+
+    /**
+     * Order nodes and ways so that the ones in the preview area come first, and spatially within the two groups
+     *
+     * Ways in the preview area are only written with their nodes, so all nodes of these ways are included in the first
+     * group even if they are outside of the area.
+     *
+     * @return an array containing the number of nodes and the number of ways in the first group
+     */
+    @NonNull
+    private int[] order() {
+        List<Node> previewNodes = new ArrayList<>();
+        List<Way> previewWays = new ArrayList<>();
+        if (previewBox != null) {
+            Set<OsmElement> preview = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Way w : previewStorage.getWays(previewBox)) {
+                if (indices.containsKey(w) && preview.add(w)) {
+                    previewWays.add(w);
+                    for (Node n : w.getNodes()) {
+                        if (preview.add(n)) {
+                            previewNodes.add(n);
+                        }
+                    }
+                }
+            }
+            for (Node n : previewStorage.getNodes(previewBox)) {
+                if (indices.containsKey(n) && preview.add(n)) {
+                    previewNodes.add(n);
+                }
+            }
+            nodes.removeAll(preview);
+            ways.removeAll(preview);
+        }
+        Collections.sort(previewNodes, NODE_ORDER);
+        Collections.sort(nodes, NODE_ORDER);
+        nodes.addAll(0, previewNodes);
+        Collections.sort(previewWays, WAY_ORDER);
+        Collections.sort(ways, WAY_ORDER);
+        ways.addAll(0, previewWays);
+        for (int i = 0; i < nodes.size(); i++) {
+            indices.put(nodes.get(i), i);
+        }
+        for (int i = 0; i < ways.size(); i++) {
+            indices.put(ways.get(i), i);
+        }
+        return new int[] { previewNodes.size(), previewWays.size() };
+    }
+
+    /**
+     * Get the position of a node on the Z-order curve
+     *
+     * @param n the Node
+     * @return the position
+     */
+    private static long zOrder(@NonNull Node n) {
+        return interleave(n.lon) | (interleave(n.lat) << 1);
+    }
+
+    /**
+     * Get the position of the first node of a way on the Z-order curve, 0 for ways without nodes
+     *
+     * @param w the Way
+     * @return the position
+     */
+    private static long zOrder(@NonNull Way w) {
+        return w.getNodes().isEmpty() ? 0 : zOrder(w.getFirstNode());
+    }
+
+    /**
+     * Spread the top 31 bits of a coordinate so that they occupy the even bits of a long
+     *
+     * @param coordinate the coordinate in WGS84*1E7 format
+     * @return the spread bits
+     */
+    private static long interleave(int coordinate) {
+        long x = (coordinate - (long) Integer.MIN_VALUE) >>> 1;
+        x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x << 2)) & 0x3333333333333333L;
+        return (x | (x << 1)) & 0x5555555555555555L;
+    }
+
+    /**
+     * Write the attributes common to all element types
+     *
+     * @param e the OsmElement
+     * @param prevId the id of the previously written element of the same type
+     * @return the id of e
+     * @throws IOException if writing fails
+     */
+    private long writeCommon(@NonNull OsmElement e, long prevId) throws IOException {
+        writeSignedLong(e.osmId - prevId);
+        writeLong(e.osmVersion);
+        writeByte(e.state);
+        writeSignedLong(e.getTimestamp());
+        writeTags(e.tags);
+        return e.osmId;
+    }
+
+    /**
+     * Get the handle for an element
+     *
+     * @param e the OsmElement
+     * @return the handle
+     */
+    private int handle(@NonNull OsmElement e) {
+        Integer index = indices.get(e);
+        if (index == null) {
+            throw new IllegalStateException(e.getDescription() + " not registered");
+        }
+        if (e instanceof Node) {
+            return index;
+        } else if (e instanceof Way) {
+            return nodes.size() + index;
+        }
+        return nodes.size() + ways.size() + index;
+    }
+
+    /**
+     * Write a reference to an element
+     *
+     * @param e the OsmElement, can be null
+     * @throws IOException if writing fails
+     */
+    public void writeElement(@Nullable OsmElement e) throws IOException {
+        writeInt(e == null ? 0 : handle(e) + 1);
+    }
+
+    /**
+     * Write a List of elements
+     *
+     * @param elements the List of OsmElements, can be null
+     * @throws IOException if writing fails
+     */
+    public void writeElementList(@Nullable Collection<? extends OsmElement> elements) throws IOException {
+        if (elements == null) {
+            writeInt(0);
+            return;
+        }
+        writeInt(elements.size() + 1);
+        int prev = 0;
+        for (OsmElement e : elements) {
+            int h = handle(e);
+            writeSignedInt(h - prev);
+            prev = h;
+        }
+    }
+
+    /**
+     * Write the contents of a Storage object
+     *
+     * @param storage the Storage
+     * @throws IOException if writing fails
+     */
+    public void writeStorage(@NonNull Storage storage) throws IOException {
+        List<BoundingBox> boxes = storage.getBoundingBoxes();
+        writeInt(boxes.size());
+        for (BoundingBox box : boxes) {
+            writeSignedInt(box.getLeft());
+            writeSignedInt(box.getBottom());
+            writeSignedInt(box.getRight());
+            writeSignedInt(box.getTop());
+        }
+        writeElementList(storage.getNodeIndex().values());
+        writeElementList(storage.getWayIndex().values());
+        writeElementList(storage.getRelationIndex().values());
+    }
+
+    /**
+     * Write a List of RelationMembers
+     *
+     * @param members the List of RelationMember
+     * @throws IOException if writing fails
+     */
+    public void writeMembers(@NonNull List<RelationMember> members) throws IOException {
+        writeInt(members.size());
+        for (RelationMember rm : members) {
+            writeString(rm.getType());
+            writeSignedLong(rm.getRef());
+            writeString(rm.getRole());
+            writeElement(rm.getElement());
+        }
+    }
+
+    /**
+     * Write a tag Map
+     *
+     * @param tags the Map, can be null
+     * @throws IOException if writing fails
+     */
+    public void writeTags(@Nullable Map<String, String> tags) throws IOException {
+        if (tags == null) {
+            writeInt(0);
+            return;
+        }
+        writeInt(tags.size() + 1);
+        for (Entry<String, String> tag : tags.entrySet()) {
+            writeString(tag.getKey());
+            writeString(tag.getValue());
+        }
+    }
+
+    /**
+     * Write a String, Strings are only written in full once
+     *
+     * @param s the String, can be null
+     * @throws IOException if writing fails
+     */
+    public void writeString(@Nullable String s) throws IOException {
+        if (s == null) {
+            writeInt(STRING_NULL);
+            return;
+        }
+        Integer index = strings.get(s);
+        if (index != null) {
+            writeInt(index + STRING_BASE);
+            return;
+        }
+        strings.put(s, strings.size());
+        writeInt(STRING_NEW);
+        byte[] bytes = s.getBytes(UTF8);
+        writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Write a single byte
+     *
+     * @param b the value
+     * @throws IOException if writing fails
+     */
+    public void writeByte(byte b) throws IOException {
+        out.write(b);
+    }
+
+    /**
+     * Write a boolean
+     *
+     * @param b the value
+     * @throws IOException if writing fails
+     */
+    public void writeBoolean(boolean b) throws IOException {
+        out.write(b ? 1 : 0);
+    }
+
+    /**
+     * Write a non-negative int as a variable length value
+     *
+     * @param value the value
+     * @throws IOException if writing fails
+     */
+    public void writeInt(int value) throws IOException {
+        writeLong(value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Write an int as a zig-zag encoded variable length value
+     *
+     * @param value the value
+     * @throws IOException if writing fails
+     */
+    public void writeSignedInt(int value) throws IOException {
+        writeLong(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Write a long as a zig-zag encoded variable length value
+     *
+     * @param value the value
+     * @throws IOException if writing fails
+     */
+    public void writeSignedLong(long value) throws IOException {
+        writeLong((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Write a long as a variable length value, the value is treated as unsigned
+     *
+     * @param value the value
+     * @throws IOException if writing fails
+     */
+    public void writeLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Write the terminating chunk and close the underlying stream
+     *
+     * @throws IOException if writing fails
+     */
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * OutputStream that writes its contents in CRC protected chunks
+     */
+    private static class ChunkedOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[]       buffer = new byte[CHUNK_SIZE];
+        private int                pos    = 0;
+        private final CRC32        crc    = new CRC32();
+
+        /**
+         * Construct a new stream
+         *
+         * @param out the underlying OutputStream
+         */
+        ChunkedOutputStream(@NonNull OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (pos == buffer.length) {
+                writeChunk();
+            }
+            buffer[pos++] = (byte) b;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (pos == buffer.length) {
+                    writeChunk();
+                }
+                int count = Math.min(len, buffer.length - pos);
+                System.arraycopy(b, off, buffer, pos, count);
+                pos += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        /**
+         * Write the current buffer contents as a chunk
+         *
+         * @throws IOException if writing fails
+         */
+        private void writeChunk() throws IOException {
+            writeRawInt(pos);
+            out.write(buffer, 0, pos);
+            crc.reset();
+            crc.update(buffer, 0, pos);
+            writeRawInt((int) crc.getValue());
+            pos = 0;
+        }
+
+        /**
+         * Write a 4 byte int
+         *
+         * @param v the value
+         * @throws IOException if writing fails
+         */
+        private void writeRawInt(int v) throws IOException {
+            out.write((v >>> 24) & 0xFF);
+            out.write((v >>> 16) & 0xFF);
+            out.write((v >>> 8) & 0xFF);
+            out.write(v & 0xFF);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (pos > 0) {
+                writeChunk();
+            }
+            writeRawInt(0);
+            out.flush();
+            out.close();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package de.blau.android.osm;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
@@ -11,7 +12,9 @@ import androidx.annotation.Nullable;
 import de.blau.android.exception.OsmException;
 import de.blau.android.exception.StorageException;
 import de.blau.android.util.collections.LongHashSet;
+import de.blau.android.util.collections.LongMultiHashMap;
 import de.blau.android.util.collections.LongOsmElementMap;
+import de.blau.android.util.collections.OsmElementGrid;
 
 /**
  * Container for OSM data
@@ -24,16 +27,26 @@ public class Storage implements Serializable {
 
     private static final long serialVersionUID = 3838107046050083566L;
 
-    private final LongOsmElementMap<Node> nodes;
+    private volatile LongOsmElementMap<Node> nodes;
 
-    private final LongOsmElementMap<Way> ways;
+    private volatile LongOsmElementMap<Way> ways;
 
-    private final LongOsmElementMap<Relation> relations;
+    private volatile LongOsmElementMap<Relation> relations;
 
     private final List<BoundingBox> bboxes;
 
     private transient LongHashSet nodeIsRef;
 
+    private transient OsmElementGrid<Node> nodeGrid;
+
+    private transient OsmElementGrid<Way> wayGrid;
+
+    private transient LongMultiHashMap<Way> nodeWays;
+
+    private transient LongMultiHashMap<Relation> memberRelations;
+
+    private transient volatile int modificationCount = 0;
+
     /**
      * Default constructor
      * <p>
@@ -123,9 +136,6 @@ public class Storage implements Serializable {
     /**
      * Return all nodes in a bounding box
      * 
-     * Notes: - currently this does a sequential scan of all nodes - using a for loop instead of for each is twice as
-     * fast
-     * 
      * @param box bounding box to search in
      * @return a list of all nodes in box
      */
@@ -137,8 +147,7 @@ public class Storage implements Serializable {
     /**
      * Return all nodes in a bounding box
      * 
-     * Notes: - currently this does a sequential scan of all nodes - using a for loop instead of for each is twice as
-     * fast
+     * Uses a spatial index that is built on first use
      * 
      * @param box bounding box to search in
      * @param result List of Node to hold the result
@@ -146,15 +155,28 @@ public class Storage implements Serializable {
      */
     @NonNull
     public List<Node> getNodes(@NonNull BoundingBox box, @NonNull List<Node> result) {
-        List<Node> list = nodes.values();
-        int listSize = list.size();
-        for (int i = 0; i < listSize; i++) {
-            Node n = list.get(i);
-            if (box.isIn(n.getLon(), n.getLat())) {
-                result.add(n);
+        getNodeGrid().query(box, result);
+        return result;
+    }
+
+    /**
+     * Get the spatial index for Nodes, creating it if necessary
+     * 
+     * Elements are inserted and removed holding the same lock, so that none are lost or indexed twice while the index
+     * is being built
+     * 
+     * @return the OsmElementGrid for Nodes
+     */
+    @NonNull
+    private synchronized OsmElementGrid<Node> getNodeGrid() {
+        if (nodeGrid == null) {
+            OsmElementGrid<Node> grid = new OsmElementGrid<>();
+            for (Node n : nodes) {
+                grid.put(n);
             }
+            nodeGrid = grid;
         }
-        return result;
+        return nodeGrid;
     }
 
     /**
@@ -177,8 +199,6 @@ public class Storage implements Serializable {
 
     /**
      * Return all ways covered or possibly intersecting a bounding box
-     * <p>
-     * Note: currently this does a sequential scan of all ways
      * 
      * @param box bounding box to search in
      * @return a list of all ways in box
@@ -191,7 +211,8 @@ public class Storage implements Serializable {
     /**
      * Return all ways covered or possibly intersecting a bounding box
      * <p>
-     * Note: currently this does a sequential scan of all ways
+     * Uses a spatial index that is built on first use, ways whose geometry changes need to be marked with
+     * {@link #invalidateSpatialIndex(OsmElement)}
      * 
      * @param box bounding box to search in
      * @param result List of Way to hold the result
@@ -199,17 +220,71 @@ public class Storage implements Serializable {
      */
     @NonNull
     public List<Way> getWays(@NonNull BoundingBox box, @NonNull List<Way> result) {
-        BoundingBox newBox = new BoundingBox(); // avoid creating new instances
-        List<Way> list = ways.values();
-        int listSize = list.size();
-        for (int i = 0; i < listSize; i++) {
-            Way w = list.get(i);
-            BoundingBox wayBox = w.getBounds(newBox);
-            if (wayBox.intersects(box)) {
-                result.add(w);
+        getWayGrid().query(box, result);
+        return result;
+    }
+
+    /**
+     * Get the spatial index for Ways, creating it if necessary
+     * 
+     * @return the OsmElementGrid for Ways
+     */
+    @NonNull
+    private synchronized OsmElementGrid<Way> getWayGrid() {
+        if (wayGrid == null) {
+            OsmElementGrid<Way> grid = new OsmElementGrid<>();
+            for (Way w : ways) {
+                grid.put(w);
             }
+            wayGrid = grid;
         }
-        return result;
+        return wayGrid;
+    }
+
+    /**
+     * Indicate that the geometry of an element has changed or is going to change
+     * 
+     * The element will be re-indexed on the next spatial query, elements that are not present in storage are ignored
+     * 
+     * @param element the OsmElement
+     */
+    public synchronized void invalidateSpatialIndex(@Nullable OsmElement element) {
+        modificationCount++;
+        if (element instanceof Node) {
+            if (nodeGrid != null) {
+                nodeGrid.invalidate((Node) element);
+            }
+        } else if (element instanceof Way && wayGrid != null) {
+            wayGrid.invalidate((Way) element);
+        }
+    }
+
+    /**
+     * Discard the spatial index for Ways, it will be rebuilt on next use
+     */
+    public synchronized void invalidateWaySpatialIndex() {
+        wayGrid = null;
+        modificationCount++;
+    }
+
+    /**
+     * Get a counter that changes every time elements are added to or removed from storage, their geometry changes or
+     * an element in storage is otherwise modified
+     * 
+     * This can be used to determine if values derived from the contents, for example the list of elements to render,
+     * need to be recalculated. The value itself has no meaning.
+     * 
+     * @return the current modification count
+     */
+    public int getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * Indicate that an element in storage has been or is going to be modified
+     */
+    synchronized void markModified() {
+        modificationCount++;
     }
 
     /**
@@ -275,9 +350,13 @@ public class Storage implements Serializable {
      * 
      * @param node node to insert
      */
-    void insertNodeUnsafe(@NonNull final Node node) {
+    synchronized void insertNodeUnsafe(@NonNull final Node node) {
         try {
             nodes.put(node.getOsmId(), node);
+            if (nodeGrid != null) {
+                nodeGrid.put(node);
+            }
+            markModified();
         } catch (OutOfMemoryError err) {
             throw new StorageException(StorageException.OOM);
         }
@@ -289,9 +368,14 @@ public class Storage implements Serializable {
      * 
      * @param way way to insert
      */
-    void insertWayUnsafe(@NonNull final Way way) {
+    synchronized void insertWayUnsafe(@NonNull final Way way) {
         try {
             ways.put(way.getOsmId(), way);
+            if (wayGrid != null) {
+                wayGrid.put(way);
+            }
+            addWayNodeRefs(way);
+            markModified();
         } catch (OutOfMemoryError err) {
             throw new StorageException(StorageException.OOM);
         }
@@ -302,9 +386,11 @@ public class Storage implements Serializable {
      * 
      * @param relation relation to insert
      */
-    void insertRelationUnsafe(@NonNull final Relation relation) {
+    synchronized void insertRelationUnsafe(@NonNull final Relation relation) {
         try {
             relations.put(relation.getOsmId(), relation);
+            addRelationMemberRefs(relation);
+            markModified();
         } catch (OutOfMemoryError err) {
             throw new StorageException(StorageException.OOM);
         }
@@ -344,7 +430,11 @@ public class Storage implements Serializable {
      * @param node node to remove
      * @return true if the node was in storage
      */
-    boolean removeNode(@NonNull final Node node) {
+    synchronized boolean removeNode(@NonNull final Node node) {
+        if (nodeGrid != null) {
+            nodeGrid.remove(node.getOsmId());
+        }
+        markModified();
         return nodes.remove(node.getOsmId()) != null;
     }
 
@@ -354,7 +444,12 @@ public class Storage implements Serializable {
      * @param way way to remove
      * @return true if the way was in storage
      */
-    boolean removeWay(@NonNull final Way way) {
+    synchronized boolean removeWay(@NonNull final Way way) {
+        if (wayGrid != null) {
+            wayGrid.remove(way.getOsmId());
+        }
+        removeWayNodeRefs(way);
+        markModified();
         return ways.remove(way.getOsmId()) != null;
     }
 
@@ -364,7 +459,8 @@ public class Storage implements Serializable {
      * @param relation relation to remove
      * @return true if the relation was in storage
      */
-    boolean removeRelation(@NonNull final Relation relation) {
+    synchronized boolean removeRelation(@NonNull final Relation relation) {
+        markModified();
         return relations.remove(relation.getOsmId()) != null;
     }
 
@@ -376,15 +472,98 @@ public class Storage implements Serializable {
      */
     boolean removeElement(@Nullable final OsmElement element) {
         if (element instanceof Way) {
-            return ways.remove(element.getOsmId()) != null;
+            return removeWay((Way) element);
         } else if (element instanceof Node) {
-            return nodes.remove(element.getOsmId()) != null;
+            return removeNode((Node) element);
         } else if (element instanceof Relation) {
-            return relations.remove(element.getOsmId()) != null;
+            return removeRelation((Relation) element);
         }
         return false;
     }
 
+    /**
+     * Remove and add multiple elements in one step
+     * 
+     * The maps of the affected element types are copied, changed and then replace the current ones, code that reads
+     * from storage without holding the lock sees either none or all of the changes. Elements are removed before the
+     * new ones are added, elements that are added replace any present with the same id. If we run out of memory
+     * nothing is changed.
+     * 
+     * @param remove elements to remove
+     * @param add elements to add
+     */
+    synchronized void replaceElements(@NonNull Collection<? extends OsmElement> remove, @NonNull Collection<? extends OsmElement> add) {
+        LongOsmElementMap<Node> newNodes = nodes;
+        LongOsmElementMap<Way> newWays = ways;
+        LongOsmElementMap<Relation> newRelations = relations;
+        try {
+            for (OsmElement e : remove) {
+                if (e instanceof Node) {
+                    newNodes = newNodes == nodes ? new LongOsmElementMap<>(nodes) : newNodes;
+                    newNodes.remove(e.getOsmId());
+                } else if (e instanceof Way) {
+                    newWays = newWays == ways ? new LongOsmElementMap<>(ways) : newWays;
+                    newWays.remove(e.getOsmId());
+                } else if (e instanceof Relation) {
+                    newRelations = newRelations == relations ? new LongOsmElementMap<>(relations) : newRelations;
+                    newRelations.remove(e.getOsmId());
+                }
+            }
+            for (OsmElement e : add) {
+                if (e instanceof Node) {
+                    newNodes = newNodes == nodes ? new LongOsmElementMap<>(nodes) : newNodes;
+                    newNodes.put(e.getOsmId(), (Node) e);
+                } else if (e instanceof Way) {
+                    newWays = newWays == ways ? new LongOsmElementMap<>(ways) : newWays;
+                    newWays.put(e.getOsmId(), (Way) e);
+                } else if (e instanceof Relation) {
+                    newRelations = newRelations == relations ? new LongOsmElementMap<>(relations) : newRelations;
+                    newRelations.put(e.getOsmId(), (Relation) e);
+                }
+            }
+        } catch (OutOfMemoryError err) {
+            throw new StorageException(StorageException.OOM);
+        }
+        nodes = newNodes;
+        ways = newWays;
+        relations = newRelations;
+        try {
+            for (OsmElement e : remove) {
+                if (e instanceof Node) {
+                    if (nodeGrid != null) {
+                        nodeGrid.remove(e.getOsmId());
+                    }
+                } else if (e instanceof Way) {
+                    if (wayGrid != null) {
+                        wayGrid.remove(e.getOsmId());
+                    }
+                    removeWayNodeRefs((Way) e);
+                }
+            }
+            for (OsmElement e : add) {
+                if (e instanceof Node) {
+                    if (nodeGrid != null) {
+                        nodeGrid.put((Node) e);
+                    }
+                } else if (e instanceof Way) {
+                    if (wayGrid != null) {
+                        wayGrid.put((Way) e);
+                    }
+                    addWayNodeRefs((Way) e);
+                } else if (e instanceof Relation) {
+                    addRelationMemberRefs((Relation) e);
+                }
+            }
+        } catch (OutOfMemoryError err) {
+            // the elements have been changed, the indices will be rebuilt on next use
+            nodeGrid = null;
+            wayGrid = null;
+            nodeWays = null;
+            memberRelations = null;
+        }
+        markModified();
+    }
+
     /**
      * Get an unmodifiable List of all bounding boxes of downloaded data
      * 
@@ -459,8 +638,7 @@ public class Storage implements Serializable {
     /**
      * Get all ways that node is a vertex of
      * 
-     * This method currently does a sequential scan of all ways in storage and should be avoided, note checking against
-     * the ways bounding boxes is slower than this
+     * This uses an index from node ids to ways that is built on first use
      * 
      * @param node node to search for
      * @return list containing all ways containing node
@@ -468,14 +646,131 @@ public class Storage implements Serializable {
     @NonNull
     public List<Way> getWays(@NonNull final Node node) {
         List<Way> mWays = new ArrayList<>();
-        for (Way way : ways) {
-            if (way.hasNode(node)) {
-                mWays.add(way);
+        synchronized (this) {
+            final long nodeId = node.getOsmId();
+            final LongMultiHashMap<Way> index = getNodeWays();
+            index.get(nodeId, mWays);
+            // entries are only removed lazily, check that they are still valid
+            for (int i = mWays.size() - 1; i >= 0; i--) {
+                Way way = mWays.get(i);
+                if (ways.get(way.getOsmId()) != way || !way.hasNode(node)) {
+                    index.remove(nodeId, way);
+                    mWays.remove(i);
+                }
             }
         }
         return mWays;
     }
 
+    /**
+     * Get the node id to way index, creating it if necessary
+     * 
+     * @return a LongMultiHashMap mapping node ids to ways
+     */
+    @NonNull
+    private synchronized LongMultiHashMap<Way> getNodeWays() {
+        if (nodeWays == null) {
+            nodeWays = new LongMultiHashMap<>(nodes.size());
+            for (Way way : ways) {
+                addWayNodeRefs(way);
+            }
+        }
+        return nodeWays;
+    }
+
+    /**
+     * Add the nodes of a way to the node id to way index
+     * 
+     * This needs to be called when nodes have been added to a way that is already in storage, references to nodes that
+     * have been removed from the way are cleaned up lazily.
+     * 
+     * @param way the Way
+     */
+    public synchronized void addWayNodeRefs(@NonNull Way way) {
+        if (nodeWays != null) {
+            for (Node n : way.getNodes()) {
+                nodeWays.add(n.getOsmId(), way);
+            }
+        }
+    }
+
+    /**
+     * Remove the nodes of a way from the node id to way index
+     * 
+     * @param way the Way
+     */
+    private synchronized void removeWayNodeRefs(@NonNull Way way) {
+        if (nodeWays != null) {
+            for (Node n : way.getNodes()) {
+                nodeWays.remove(n.getOsmId(), way);
+            }
+        }
+    }
+
+    /**
+     * Get all relations that have a member with a specific type and id
+     * 
+     * This uses an index from member ids to relations that is built on first use, members are found regardless of if
+     * the element they refer to is downloaded or not.
+     * 
+     * @param type the type of the member
+     * @param ref the id of the member
+     * @return list containing all relations with such a member
+     */
+    @NonNull
+    public List<Relation> getRelationsWithMember(@NonNull String type, long ref) {
+        List<Relation> mRelations = new ArrayList<>();
+        synchronized (this) {
+            final LongMultiHashMap<Relation> index = getMemberRelations();
+            index.get(ref, mRelations);
+            // entries are only removed lazily, check that they are still valid, ids of different types can be the same
+            for (int i = mRelations.size() - 1; i >= 0; i--) {
+                Relation relation = mRelations.get(i);
+                if (relations.get(relation.getOsmId()) != relation) {
+                    index.remove(ref, relation);
+                    mRelations.remove(i);
+                } else if (relation.getMember(type, ref) == null) {
+                    mRelations.remove(i);
+                }
+            }
+        }
+        return mRelations;
+    }
+
+    /**
+     * Get the member id to relation index, creating it if necessary
+     * 
+     * @return a LongMultiHashMap mapping member ids to relations
+     */
+    @NonNull
+    private synchronized LongMultiHashMap<Relation> getMemberRelations() {
+        if (memberRelations == null) {
+            memberRelations = new LongMultiHashMap<>(relations.size());
+            for (Relation relation : relations) {
+                addRelationMemberRefs(relation);
+            }
+        }
+        return memberRelations;
+    }
+
+    /**
+     * Add the members of a relation to the member id to relation index
+     * 
+     * This needs to be called when members that are not downloaded have been added to a relation that is already in
+     * storage, or when members of such a relation have lost the reference to their element. References to members that
+     * have been removed from the relation are cleaned up lazily.
+     * 
+     * @param relation the Relation
+     */
+    public synchronized void addRelationMemberRefs(@NonNull Relation relation) {
+        final List<RelationMember> members = relation.getMembers();
+        if (memberRelations != null && members != null) {
+            for (RelationMember rm : members) {
+                memberRelations.add(rm.getRef(), relation);
+            }
+        }
+    }
+
     /**
      * Get all nodes that are vertexes in a way
      * <p>
@@ -494,14 +789,15 @@ public class Storage implements Serializable {
 
     /**
      * Tests if node is first or last node of any way in storage
-     * <p>
-     * This method currently does a sequential scan of all ways in storage and should be avoided
      * 
      * @param node node to check
      * @return true if node is the first or last node of at least one way
      */
     public boolean isEndNode(@Nullable final Node node) {
-        for (Way way : ways) {
+        if (node == null) {
+            return false;
+        }
+        for (Way way : getWays(node)) {
             if (way.isEndNode(node)) {
                 return true;
             }
@@ -566,12 +862,19 @@ public class Storage implements Serializable {
     /**
      * Rehash the maps used for storing elements.
      * <p>
-     * This is required since elements will change their id when being saved to the OSM database the first time.
+     * This is required since elements will change their id when being saved to the OSM database the first time. The
+     * spatial indices and the node to way index are keyed on the ids too and are simply discarded.
      */
     public void rehash() {
         nodes.rehash();
         ways.rehash();
         relations.rehash();
+        synchronized (this) {
+            nodeGrid = null;
+            wayGrid = null;
+            nodeWays = null;
+            memberRelations = null;
+        }
     }
 
     /**
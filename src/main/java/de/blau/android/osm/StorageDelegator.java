@@ -1,14 +1,25 @@
 package de.blau.android.osm;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.ProtocolException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -23,6 +34,7 @@ import java.util.concurrent.locks.ReentrantLock;
 import android.app.Activity;
 import android.content.Context;
 import android.content.res.Resources;
+import android.os.AsyncTask;
 import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -32,6 +44,7 @@ import de.blau.android.R;
 import de.blau.android.exception.OsmException;
 import de.blau.android.exception.OsmIllegalOperationException;
 import de.blau.android.exception.StorageException;
+import de.blau.android.exception.UnsupportedFormatException;
 import de.blau.android.filter.Filter;
 import de.blau.android.prefs.Preferences;
 import de.blau.android.util.ACRAHelper;
@@ -83,6 +96,55 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
 
     public static final String FILENAME = "lastActivity.res";
 
+    public static final String JOURNAL_SUFFIX = ".journal";
+
+    /**
+     * Size of the journal in bytes at which it is merged in to the state file
+     */
+    private static final long JOURNAL_COMPACT_SIZE = 1024L * 1024L;
+
+    /**
+     * Id of the last state file written or read, journal records refer to this
+     */
+    private transient long stateId = 0;
+
+    /**
+     * If true changes have been made that are not tracked by the undo storage and the next save has to write the
+     * complete state instead of appending to the journal
+     */
+    private transient boolean snapshotRequired = true;
+
+    /**
+     * Current size of the journal file
+     */
+    private transient long journalSize = 0;
+
+    /**
+     * Area whose elements are written first to the state file so that they can be displayed early on loading
+     */
+    private transient BoundingBox previewBox = null;
+
+    /**
+     * If true the current storage only contains a preview of the state that is being read
+     */
+    private transient volatile boolean preview = false;
+
+    /**
+     * Callback for displaying data while the rest of the state is being read
+     */
+    public interface PreviewHandler {
+
+        /**
+         * Called when the elements in the preview area are available in the current storage
+         * 
+         * The elements are copies without parent relations and must not be edited, they will be replaced when loading
+         * is complete.
+         * 
+         * @param box the preview area
+         */
+        void onPreview(@NonNull BoundingBox box);
+    }
+
     private transient SavingHelper<StorageDelegator> savingHelper = new SavingHelper<>();
 
     /**
@@ -110,9 +172,11 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      */
     public void reset(boolean dirty) {
         this.dirty = dirty;
+        snapshotRequired = true;
         apiStorage = new Storage();
         currentStorage = new Storage();
         undo = new UndoStorage(currentStorage, apiStorage);
+        TagDictionary.clear();
         factory = new OsmElementFactory();
         imagery = new ArrayList<>();
     }
@@ -123,6 +187,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      * @param currentStorage the new Storage object to set
      */
     public synchronized void setCurrentStorage(@NonNull final Storage currentStorage) {
+        snapshotRequired = true;
         dirty = true;
         apiStorage = new Storage();
         this.currentStorage = currentStorage;
@@ -159,6 +224,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      * Clears the undo storage.
      */
     public synchronized void clearUndo() {
+        snapshotRequired = true;
         undo = new UndoStorage(currentStorage, apiStorage);
     }
 
@@ -253,8 +319,12 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
                 e.resetHasProblem();
                 if (Way.NAME.equals(e.getName())) {
                     ((Way) e).invalidateBoundingBox();
+                    invalidateSpatialIndex(e);
+                    currentStorage.addWayNodeRefs((Way) e);
+                    apiStorage.addWayNodeRefs((Way) e);
                 } else if (Node.NAME.equals(e.getName())) {
                     nodeChanged = true;
+                    invalidateSpatialIndex(e);
                     if (changed == null) {
                         changed = e.getBounds();
                     } else {
@@ -265,6 +335,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
             if (nodeChanged) {
                 for (Way w : currentStorage.getWays(changed)) {
                     w.invalidateBoundingBox();
+                    invalidateSpatialIndex(w);
                     w.resetHasProblem();
                 }
             }
@@ -345,12 +416,24 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      */
     private void invalidateWay(@NonNull Way w) {
         w.invalidateBoundingBox();
+        invalidateSpatialIndex(w);
         if (w.hasTagKey(Tags.KEY_HIGHWAY)) {
             // we only validate way connections for highways currently
             w.resetHasProblem();
         }
     }
 
+    /**
+     * Indicate that the geometry of an element has changed or is going to change to the spatial indices of both
+     * storages
+     * 
+     * @param e the changed OsmElement
+     */
+    private void invalidateSpatialIndex(@NonNull OsmElement e) {
+        currentStorage.invalidateSpatialIndex(e);
+        apiStorage.invalidateSpatialIndex(e);
+    }
+
     /**
      * Way geometry has to be invalidated -before- nodes are moved
      * 
@@ -413,6 +496,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      * apiStorage is empty. As a side effect it updates the id sequences for the creation of new elements.
      */
     public synchronized void fixupApiStorage() {
+        snapshotRequired = true;
         try {
             long minNodeId = 0;
             long minWayId = 0;
@@ -646,6 +730,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
         apiStorage.insertElementSafe(node);
         node.setLat(latE7);
         node.setLon(lonE7);
+        invalidateSpatialIndex(node);
         node.updateState(OsmElement.STATE_MODIFIED);
     }
 
@@ -2506,6 +2591,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      * @param lon longitude where it was located
      */
     public void copyToClipboard(@NonNull List<OsmElement> elements, int lat, int lon) {
+        snapshotRequired = true;
         dirty = true; // otherwise clipboard will not get saved without other changes
         List<OsmElement> toCopy = new ArrayList<>();
         Map<Long, Node> processedNodes = new HashMap<>();
@@ -2543,6 +2629,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      * @param lon longitude where it was located
      */
     public void cutToClipboard(@NonNull List<OsmElement> elements, int lat, int lon) {
+        snapshotRequired = true;
         dirty = true; // otherwise clipboard will not get saved without other changes
         List<OsmElement> toCut = new ArrayList<>();
         Map<Long, Node> replacedNodes = new HashMap<>();
@@ -2610,6 +2697,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      */
     @Nullable
     public List<OsmElement> pasteFromClipboard(int lat, int lon) {
+        snapshotRequired = true;
         List<OsmElement> elements = clipboard.pasteFrom();
         if (elements.isEmpty()) {
             return null;
@@ -2672,6 +2760,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
                             nd.setLon(nd.getLon() + deltaLon);
                             nd.updateState(nd.getOsmId() < 0 ? OsmElement.STATE_CREATED : OsmElement.STATE_MODIFIED);
                             insertElementSafe(nd);
+                            invalidateSpatialIndex(nd);
                             newNodes.put(nd, null);
                         }
                     }
@@ -2707,6 +2796,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      * Clear the clipboard and set the dirty flag
      */
     public void clearClipboard() {
+        snapshotRequired = true;
         clipboard.reset();
         dirty();
     }
@@ -2743,12 +2833,14 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      * @param box the initial BoundingBox
      */
     public synchronized void setOriginalBox(@NonNull final BoundingBox box) {
+        snapshotRequired = true;
         dirty = true;
         currentStorage.setBoundingBox(box);
     }
 
     @Override
     public synchronized void addBoundingBox(@NonNull BoundingBox box) {
+        snapshotRequired = true;
         dirty = true;
         currentStorage.addBoundingBox(box);
     }
@@ -2759,6 +2851,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      * @param box the BoundingBox to delete
      */
     public synchronized void deleteBoundingBox(@NonNull BoundingBox box) {
+        snapshotRequired = true;
         dirty = true;
         currentStorage.deleteBoundingBox(box);
     }
@@ -2855,7 +2948,8 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
 
         if (readingLock.tryLock()) {
             // TODO this doesn't really help with error conditions need to throw exception
-            if (savingHelper.save(ctx, FILENAME, this, true)) {
+            boolean saved = !snapshotRequired && appendJournal(ctx);
+            if (saved || saveState(ctx, FILENAME)) {
                 dirty = false;
             } else {
                 // this is essentially catastrophic and can only happen if something went really wrong
@@ -2873,6 +2967,9 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
                 Log.d(DEBUG_TAG, "save of state file failed, written emergency change file");
             }
             readingLock.unlock();
+            if (saved && journalSize >= JOURNAL_COMPACT_SIZE) {
+                compactJournal(ctx);
+            }
         } else {
             Log.i(DEBUG_TAG, "storage delegator state being read, skipping save");
         }
@@ -2890,43 +2987,425 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
         return readFromFile(context, FILENAME);
     }
 
+    /**
+     * Write the state to a file in the binary state file format
+     * 
+     * The file is written to a temporary file first, the previous file is retained as a backup
+     * 
+     * @param ctx Android Context
+     * @param filename the name of the file
+     * @return true if successful
+     */
+    private boolean saveState(@NonNull Context ctx, @NonNull String filename) {
+        long previousStateId = stateId;
+        stateId = System.currentTimeMillis();
+        String tempFilename = filename + "." + stateId;
+        Log.i(DEBUG_TAG, "saving " + filename);
+        snapshotRequired = false;
+        try (OutputStream out = new BufferedOutputStream(ctx.openFileOutput(tempFilename, Context.MODE_PRIVATE))) {
+            writeState(out);
+        } catch (Exception e) {
+            Log.e(DEBUG_TAG, "failed to save " + filename, e);
+            ACRAHelper.nocrashReport(e, e.getMessage());
+            saveFailed(ctx, tempFilename, previousStateId);
+            return false;
+        } catch (Error e) { // NOSONAR crashing is not an option
+            Log.e(DEBUG_TAG, "failed to save " + filename, e);
+            ACRAHelper.nocrashReport(e, "failed to save " + filename + " " + e.getMessage());
+            saveFailed(ctx, tempFilename, previousStateId);
+            return false;
+        }
+        SavingHelper.rename(ctx, filename, filename + ".backup"); // don't overwrite last saved state
+        SavingHelper.rename(ctx, tempFilename, filename);
+        // a left over journal will be ignored as it refers to the previous state id
+        ctx.deleteFile(filename + JOURNAL_SUFFIX);
+        journalSize = 0;
+        Log.i(DEBUG_TAG, "saved " + filename + " successfully");
+        return true;
+    }
+
+    /**
+     * Clean up after a failed save
+     * 
+     * @param ctx Android Context
+     * @param tempFilename the name of the temporary file
+     * @param previousStateId the id of the state file on disk
+     */
+    private void saveFailed(@NonNull Context ctx, @NonNull String tempFilename, long previousStateId) {
+        ctx.deleteFile(tempFilename);
+        stateId = previousStateId;
+        snapshotRequired = true;
+    }
+
+    /**
+     * Append the changes since the last save to the journal
+     * 
+     * @param ctx Android Context
+     * @return true if successful
+     */
+    private boolean appendJournal(@NonNull Context ctx) {
+        String journalFilename = FILENAME + JOURNAL_SUFFIX;
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            writeJournal(record);
+            byte[] data = record.toByteArray();
+            try (FileOutputStream out = ctx.openFileOutput(journalFilename, Context.MODE_APPEND)) {
+                JournalWriter.appendRecord(out, data);
+                out.getFD().sync();
+            }
+            journalSize = ctx.getFileStreamPath(journalFilename).length();
+            Log.i(DEBUG_TAG, "appended " + data.length + " bytes to " + journalFilename);
+            return true;
+        } catch (Exception e) {
+            Log.e(DEBUG_TAG, "failed to append to " + journalFilename, e);
+            // the journal may have been damaged
+            snapshotRequired = true;
+            return false;
+        }
+    }
+
+    /**
+     * Write the complete state in the background, merging the journal in to the state file
+     * 
+     * @param ctx Android Context
+     */
+    private void compactJournal(@NonNull Context ctx) {
+        final Context appContext = ctx.getApplicationContext();
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                synchronized (StorageDelegator.this) {
+                    if (journalSize > 0 && readingLock.tryLock()) {
+                        try {
+                            if (saveState(appContext, FILENAME)) {
+                                dirty = false;
+                            }
+                        } finally {
+                            readingLock.unlock();
+                        }
+                    }
+                }
+                return null;
+            }
+        }.execute();
+    }
+
+    /**
+     * Write the complete state in the binary state file format
+     * 
+     * Subsequent journal records will only contain changes made after this call
+     * 
+     * @param out the OutputStream to write to, will be closed
+     * @throws IOException if writing fails
+     */
+    synchronized void writeState(@NonNull OutputStream out) throws IOException {
+        undo.markJournal();
+        StateFileWriter writer = new StateFileWriter(out);
+        writer.addStorage(currentStorage);
+        writer.addStorage(apiStorage);
+        clipboard.addElements(writer);
+        undo.addElements(writer);
+        if (previewBox != null) {
+            writer.setPreview(currentStorage, previewBox);
+        }
+        writer.writeElements();
+        writer.writeStorage(currentStorage);
+        writer.writeStorage(apiStorage);
+        clipboard.write(writer);
+        undo.write(writer);
+        writeImagery(writer);
+        factory.write(writer);
+        writer.writeLong(stateId);
+        writer.close();
+    }
+
+    /**
+     * Write the changes since the last state file or journal record was written as a journal record
+     * 
+     * @param out the OutputStream to write to, will be closed
+     * @throws IOException if writing fails
+     */
+    synchronized void writeJournal(@NonNull OutputStream out) throws IOException {
+        JournalWriter writer = new JournalWriter(out);
+        writer.writeLong(stateId);
+        writer.writeChanged(undo.getJournalElements(), currentStorage, apiStorage);
+        undo.writeJournal(writer);
+        writeImagery(writer);
+        factory.write(writer);
+        writer.close();
+        undo.markJournal();
+    }
+
+    /**
+     * Write the list of used imagery
+     * 
+     * @param writer the StateFileWriter
+     * @throws IOException if writing fails
+     */
+    private void writeImagery(@NonNull StateFileWriter writer) throws IOException {
+        writer.writeInt(imagery.size());
+        for (String i : imagery) {
+            writer.writeString(i);
+        }
+    }
+
+    /**
+     * Read a list of used imagery
+     * 
+     * @param reader the StateFileReader
+     * @return a List of imagery ids
+     * @throws IOException if reading fails
+     */
+    @NonNull
+    private static ArrayList<String> readImagery(@NonNull StateFileReader reader) throws IOException {
+        int imageryCount = reader.readInt();
+        ArrayList<String> result = new ArrayList<>();
+        for (int i = 0; i < imageryCount; i++) {
+            result.add(reader.readString());
+        }
+        return result;
+    }
+
+    /**
+     * Read the complete state in the binary state file format and replay the journal
+     * 
+     * The current state is only replaced if reading was successful, a damaged record at the end of the journal and any
+     * records following it are ignored.
+     * 
+     * @param in the InputStream to read from, will be closed
+     * @param journal optional InputStream for the journal
+     * @throws IOException if reading fails
+     */
+    void readState(@NonNull InputStream in, @Nullable InputStream journal) throws IOException {
+        readState(in, journal, null);
+    }
+
+    /**
+     * Read the complete state in the binary state file format and replay the journal
+     * 
+     * The current state is only replaced if reading was successful, a damaged record at the end of the journal and any
+     * records following it are ignored. If a PreviewHandler is supplied and the file contains a preview area, the
+     * current storage is temporarily replaced by one holding copies of the elements in the area, as soon as these have
+     * been read. The copies reflect the state file without the changes from the journal.
+     * 
+     * @param in the InputStream to read from, will be closed
+     * @param journal optional InputStream for the journal
+     * @param previewHandler optional handler called when the preview is available
+     * @throws IOException if reading fails
+     */
+    void readState(@NonNull InputStream in, @Nullable InputStream journal, @Nullable PreviewHandler previewHandler) throws IOException {
+        StateFileReader reader = new StateFileReader(in);
+        reader.readPreview();
+        Storage previousStorage = null;
+        BoundingBox box = reader.getPreviewBox();
+        if (previewHandler != null && box != null) {
+            Storage previewStorage = reader.getPreviewStorage();
+            previewStorage.addBoundingBox(box);
+            synchronized (this) {
+                previousStorage = currentStorage;
+                currentStorage = previewStorage;
+                preview = true;
+            }
+            previewHandler.onPreview(box);
+        }
+        try {
+            readState(reader, journal);
+            previousStorage = null;
+        } finally {
+            synchronized (this) {
+                if (previousStorage != null) {
+                    currentStorage = previousStorage;
+                }
+                preview = false;
+            }
+        }
+    }
+
+    /**
+     * Read the rest of the state and replay the journal
+     * 
+     * @param reader the StateFileReader positioned after the preview
+     * @param journal optional InputStream for the journal
+     * @throws IOException if reading fails
+     */
+    private void readState(@NonNull StateFileReader reader, @Nullable InputStream journal) throws IOException {
+        reader.readElements();
+        Storage newCurrentStorage = new Storage();
+        reader.readStorage(newCurrentStorage);
+        Storage newApiStorage = new Storage();
+        reader.readStorage(newApiStorage);
+        ClipboardStorage newClipboard = new ClipboardStorage();
+        newClipboard.read(reader);
+        UndoStorage newUndo = new UndoStorage(newCurrentStorage, newApiStorage);
+        newUndo.read(reader);
+        ArrayList<String> newImagery = readImagery(reader);
+        OsmElementFactory newFactory = new OsmElementFactory();
+        newFactory.read(reader);
+        long newStateId = reader.getVersion() >= 2 ? reader.readLong() : 0;
+        reader.close();
+        boolean journalComplete = true;
+        int records = 0;
+        if (journal != null) {
+            DataInputStream journalIn = new DataInputStream(journal);
+            JournalReader.ElementIndex index = null;
+            while (true) {
+                byte[] record;
+                try {
+                    record = JournalReader.readRecord(journalIn);
+                } catch (IOException e) {
+                    Log.e(DEBUG_TAG, "damaged journal record " + e.getMessage());
+                    journalComplete = false;
+                    break;
+                }
+                if (record == null) {
+                    break;
+                }
+                if (index == null) {
+                    index = new JournalReader.ElementIndex(reader.getElements());
+                }
+                JournalReader journalReader = new JournalReader(new ByteArrayInputStream(record), index);
+                if (journalReader.readLong() != newStateId) {
+                    Log.w(DEBUG_TAG, "ignoring journal record for different state");
+                    journalComplete = false;
+                    continue;
+                }
+                journalReader.readChanged(newCurrentStorage, newApiStorage);
+                newUndo.readJournal(journalReader);
+                newImagery = readImagery(journalReader);
+                newFactory.read(journalReader);
+                journalReader.close();
+                records++;
+            }
+        }
+        synchronized (this) {
+            currentStorage = newCurrentStorage;
+            apiStorage = newApiStorage;
+            clipboard = newClipboard;
+            undo = newUndo;
+            imagery = newImagery;
+            factory = newFactory;
+            stateId = newStateId;
+            undo.markJournal();
+            // if the journal contains unusable records it needs to be removed by writing the full state
+            snapshotRequired = !journalComplete;
+            if (records > 0) {
+                Log.i(DEBUG_TAG, "replayed " + records + " journal records");
+                fixupBacklinks();
+            }
+        }
+    }
+
+    /**
+     * Check if a file is in the binary state file format
+     * 
+     * @param context Android context
+     * @param filename the file to check
+     * @return true if the file exists and is a state file
+     */
+    private static boolean isStateFile(@NonNull Context context, @NonNull String filename) {
+        try (InputStream in = new BufferedInputStream(context.openFileInput(filename))) {
+            return StateFileReader.isStateFile(in);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     /**
      * Read save data from file
      * 
+     * Reads both the binary state file format and legacy serialized files
+     * 
      * @param context Android context
      * @param filename the file to read
      * @return true if the state was read successfully
      */
     public boolean readFromFile(Context context, String filename) {
+        return readFromFile(context, filename, null);
+    }
+
+    /**
+     * Read save data from file
+     * 
+     * Reads both the binary state file format and legacy serialized files, if a PreviewHandler is supplied the data
+     * in the preview area is made available before the rest of the file has been read, see
+     * {@link #readState(InputStream, InputStream, PreviewHandler)}
+     * 
+     * @param context Android context
+     * @param filename the file to read
+     * @param previewHandler optional handler called when the preview is available
+     * @return true if the state was read successfully
+     */
+    public boolean readFromFile(@NonNull Context context, @NonNull String filename, @Nullable PreviewHandler previewHandler) {
         try {
             lock();
-            StorageDelegator newDelegator = savingHelper.load(context, filename, true);
-
-            if (newDelegator != null) {
-                Log.d(DEBUG_TAG, "read saved state");
-                currentStorage = newDelegator.currentStorage;
-                if (currentStorage.getBoundingBoxes().isEmpty()) { // can happen if data was added before load
-                    try {
-                        currentStorage.setBoundingBox(currentStorage.calcBoundingBoxFromData());
-                    } catch (OsmException e) {
-                        Log.e(DEBUG_TAG, "readFromFile got " + e.getMessage());
+            if (isStateFile(context, filename)) {
+                // the journal always belongs to the main state file
+                boolean withJournal = FILENAME.equals(filename) && context.getFileStreamPath(filename + JOURNAL_SUFFIX).exists();
+                if (!readStateFile(context, filename, withJournal, previewHandler)) {
+                    if (!withJournal || !readStateFile(context, filename, false, null)) {
+                        return false;
                     }
+                    Log.e(DEBUG_TAG, "replaying journal failed, using state file only");
+                    snapshotRequired = true;
+                }
+                journalSize = withJournal ? context.getFileStreamPath(filename + JOURNAL_SUFFIX).length() : 0;
+                if (!FILENAME.equals(filename)) {
+                    snapshotRequired = true;
+                }
+            } else {
+                StorageDelegator newDelegator = savingHelper.load(context, filename, true);
+                if (newDelegator == null) {
+                    Log.d(DEBUG_TAG, "saved state null");
+                    return false;
                 }
+                currentStorage = newDelegator.currentStorage;
                 apiStorage = newDelegator.apiStorage;
                 undo = newDelegator.undo;
                 clipboard = newDelegator.clipboard;
                 factory = newDelegator.factory;
-                dirty = false; // data was just read, i.e. memory and file are in sync
-                return true;
-            } else {
-                Log.d(DEBUG_TAG, "saved state null");
-                return false;
+                snapshotRequired = true;
             }
+            Log.d(DEBUG_TAG, "read saved state");
+            if (currentStorage.getBoundingBoxes().isEmpty()) { // can happen if data was added before load
+                try {
+                    currentStorage.setBoundingBox(currentStorage.calcBoundingBoxFromData());
+                } catch (OsmException e) {
+                    Log.e(DEBUG_TAG, "readFromFile got " + e.getMessage());
+                }
+            }
+            // data was just read, i.e. memory and file are in sync, unless we need to rewrite the state file
+            dirty = snapshotRequired;
+            return true;
         } finally {
             unlock();
         }
     }
 
+    /**
+     * Read a state file in the binary format
+     * 
+     * @param context Android context
+     * @param filename the file to read
+     * @param withJournal if true replay the journal
+     * @param previewHandler optional handler called when the preview is available
+     * @return true if the state was read successfully
+     */
+    private boolean readStateFile(@NonNull Context context, @NonNull String filename, boolean withJournal, @Nullable PreviewHandler previewHandler) {
+        try (InputStream in = new BufferedInputStream(context.openFileInput(filename));
+                InputStream journal = withJournal ? new BufferedInputStream(context.openFileInput(filename + JOURNAL_SUFFIX)) : null) {
+            readState(in, journal, previewHandler);
+            return true;
+        } catch (FileNotFoundException e) {
+            Log.e(DEBUG_TAG, "file not found " + filename);
+        } catch (IOException | UnsupportedFormatException e) {
+            Log.e(DEBUG_TAG, "failed to load " + filename, e);
+        } catch (Error e) { // NOSONAR crashing is not an option
+            Log.e(DEBUG_TAG, "failed to load " + filename, e);
+            ACRAHelper.nocrashReport(e, e.getMessage());
+        }
+        return false;
+    }
+
     /**
      * Return a localized list of strings describing the changes we would upload on {@link #uploadToServer(Server)}.
      * 
@@ -3007,6 +3486,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
             boolean closeChangeset, @Nullable Map<String, String> extraTags, @Nullable List<OsmElement> elements) throws IOException {
 
         dirty = true; // storages will get modified as data is uploaded, these changes need to be saved to file
+        snapshotRequired = true;
         removeUnchanged();
         // upload methods set dirty flag too, in case the file is saved during an upload
         boolean fullUpload = elements == null;
@@ -3075,13 +3555,22 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
     }
 
     /**
-     * Merge additional data with existing, copy to a new storage because this may fail
+     * Merge additional data with existing
+     * 
+     * The merge is done in two phases: first the incoming elements are checked against the existing data and the ones
+     * that need to be added are determined, if there is a conflict the merge is aborted before anything has been
+     * changed. Then the selected elements are added to the current storage in one step, code reading from it without
+     * holding a lock sees either none or all of them, and the references between new and existing elements are
+     * updated, existing relations with members that have become available are found via an index. If we run out of
+     * memory while doing so, the changes made are undone. Apart from building the index on first use and copying the
+     * element maps, which is a plain array copy, the cost only depends on the size of the incoming data.
      * 
      * @param storage storage containing data to merge
      * @param postMerge handler to run after merging
      * @return true if the merge was successful
      */
     public boolean mergeData(@NonNull Storage storage, @Nullable PostMergeHandler postMerge) {
+        snapshotRequired = true;
         Log.d(DEBUG_TAG, "mergeData called");
 
         if (storage.isEmpty()) { // no point in doing anything
@@ -3091,196 +3580,181 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
         List<OsmElement> newElements = new ArrayList<>(); // elements that we need to run postMerg on
 
         synchronized (this) {
-
-            // make temp copy of current storage (we may have to abort
-            Storage temp = new Storage(currentStorage);
-
-            // retrieve the maps
-            LongOsmElementMap<Node> nodeIndex = temp.getNodeIndex();
-            LongOsmElementMap<Way> wayIndex = temp.getWayIndex();
-            LongOsmElementMap<Relation> relationIndex = temp.getRelationIndex();
-
-            Log.d(DEBUG_TAG, "mergeData finished init");
-
-            try {
-                // add nodes
-                for (Node n : storage.getNodes()) {
-                    Node apiNode = apiStorage.getNode(n.getOsmId()); // can contain deleted elements
-                    if (!nodeIndex.containsKey(n.getOsmId()) && apiNode == null) { // new node no problem
-                        temp.insertNodeUnsafe(n);
-                        newElements.add(n);
+            // incoming elements that will be added
+            LongOsmElementMap<Node> mergeNodes = new LongOsmElementMap<>();
+            LongOsmElementMap<Way> mergeWays = new LongOsmElementMap<>();
+            LongOsmElementMap<Relation> mergeRelations = new LongOsmElementMap<>();
+            // deleted nodes that need to be reinstated, and the corresponding downloaded nodes
+            LongOsmElementMap<Node> undeleteNodes = new LongOsmElementMap<>();
+            List<Node> undeleteWayNodes = new ArrayList<>();
+
+            // phase 1: check for conflicts, nothing is changed here
+            if (!selectForMerge(storage.getNodes(), currentStorage.getNodeIndex(), apiStorage.getNodeIndex(), mergeNodes)
+                    || !selectForMerge(storage.getWays(), currentStorage.getWayIndex(), apiStorage.getWayIndex(), mergeWays)
+                    || !selectForMerge(storage.getRelations(), currentStorage.getRelationIndex(), apiStorage.getRelationIndex(), mergeRelations)) {
+                return false; // can't resolve conflicts, upload first
+            }
+            Log.d(DEBUG_TAG, "mergeData selected " + mergeNodes.size() + " nodes " + mergeWays.size() + " ways " + mergeRelations.size() + " relations");
+
+            // every way node has to resolve to a node that will be in storage, this replaces any placeholders
+            for (Way w : mergeWays) {
+                for (Node wayNode : w.getNodes()) {
+                    long wayNodeId = wayNode.getOsmId();
+                    if (resolveNode(wayNodeId, mergeNodes, undeleteNodes) != null) {
+                        continue;
+                    }
+                    // node might have been deleted, aka somebody deleted nodes outside of the down loaded data
+                    // bounding box that belonged to a not downloaded way
+                    Node apiNode = apiStorage.getNode(wayNodeId);
+                    if (apiNode != null && apiNode.getState() == OsmElement.STATE_DELETED) {
+                        undeleteNodes.put(wayNodeId, apiNode);
+                        undeleteWayNodes.add(wayNode);
                     } else {
-                        if (apiNode != null && apiNode.getState() == OsmElement.STATE_DELETED) {
-                            if (apiNode.getOsmVersion() >= n.getOsmVersion()) {
-                                continue; // can use node we already have
-                            } else {
-                                return false; // can't resolve conflicts, upload first
-                            }
-                        }
-                        Node existingNode = nodeIndex.get(n.getOsmId());
-                        if (existingNode != null) {
-                            if (existingNode.getOsmVersion() >= n.getOsmVersion()) { // larger just to be on the safe
-                                                                                     // side
-                                continue; // can use node we already have
-                            } else {
-                                if (existingNode.isUnchanged()) {
-                                    temp.insertNodeUnsafe(n);
-                                    newElements.add(n);
-                                } else {
-                                    return false; // can't resolve conflicts, upload first
-                                }
-                            }
-                        } else {
-                            // this shouldn't be able to happen
-                            String debugString = "mergeData null existing node " + n.getOsmId() + " containsKey is " + nodeIndex.containsKey(n.getOsmId())
-                                    + " apiNode is " + apiNode;
-                            Log.e(DEBUG_TAG, debugString);
-                            ACRAHelper.nocrashReport(null, debugString);
-                            return false;
-                        }
+                        String debugString = "mergeData null way node for way " + w.getOsmId() + " v" + w.getOsmVersion() + " node " + wayNodeId
+                                + (apiNode != null ? " state in api " + apiNode.getState() : "");
+                        Log.e(DEBUG_TAG, debugString);
+                        ACRAHelper.nocrashReport(null, debugString);
+                        return false;
                     }
                 }
+            }
 
-                Log.d(DEBUG_TAG, "mergeData added nodes");
-
-                // add ways
-                for (Way w : storage.getWays()) {
-                    Way apiWay = apiStorage.getWay(w.getOsmId()); // can contain deleted elements
-                    if (!wayIndex.containsKey(w.getOsmId()) && apiWay == null) { // new way no problem
-                        temp.insertWayUnsafe(w);
-                        newElements.add(w);
-                    } else {
-                        if (apiWay != null && apiWay.getState() == OsmElement.STATE_DELETED) {
-                            if (apiWay.getOsmVersion() >= w.getOsmVersion()) {
-                                continue; // can use way we already have
-                            } else {
-                                return false; // can't resolve conflicts, upload first
-                            }
-                        }
-                        Way existingWay = wayIndex.get(w.getOsmId());
-                        if (existingWay != null) {
-                            if (existingWay.getOsmVersion() >= w.getOsmVersion()) {// larger just to be on the safe side
-                                continue; // can use way we already have
-                            } else {
-                                if (existingWay.isUnchanged()) {
-                                    temp.insertWayUnsafe(w);
-                                    newElements.add(w);
-                                } else {
-                                    return false; // can't resolve conflicts, upload first
-                                }
-                            }
-                        } else {
-                            // this shouldn't be able to happen
-                            String debugString = "mergeData null existing way " + w.getOsmId() + " containsKey is " + wayIndex.containsKey(w.getOsmId())
-                                    + " apiWay is " + apiWay;
-                            Log.e(DEBUG_TAG, debugString);
-                            ACRAHelper.nocrashReport(null, debugString);
-                            return false;
-                        }
+            for (Relation r : mergeRelations) {
+                for (RelationMember rm : r.getMembers()) {
+                    if (resolveMember(rm, mergeNodes, mergeWays, mergeRelations, undeleteNodes) == null && memberDeletedInApi(r, rm)) {
+                        return false; // can't resolve conflicts, upload first
                     }
                 }
+            }
 
-                Log.d(DEBUG_TAG, "mergeData added ways");
+            Log.d(DEBUG_TAG, "mergeData checked references");
 
-                // fix up way nodes
-                // all nodes should be in storage now, however new ways will have references to copies not in storage
-                for (Way w : wayIndex) {
-                    List<Node> nodes = w.getNodes();
-                    for (int i = 0; i < nodes.size(); i++) {
-                        Node wayNode = nodes.get(i);
-                        long wayNodeId = wayNode.getOsmId();
-                        Node n = nodeIndex.get(wayNodeId);
-                        if (n != null) {
-                            nodes.set(i, n);
-                        } else {
-                            // node might have been deleted, aka somebody deleted nodes outside of the down loaded data
-                            // bounding box
-                            // that belonged to a not downloaded way
-                            Node apiNode = apiStorage.getNode(wayNodeId);
-                            if (apiNode != null && apiNode.getState() == OsmElement.STATE_DELETED) {
-                                // attempt to fix this up, reinstate the original node so that any existing references
-                                // remain
-                                // FIXME undoing the original delete will likely cause havoc
-                                Log.e(DEBUG_TAG, "mergeData null undeleting node " + wayNodeId);
-                                if (apiNode.getOsmVersion() == wayNode.getOsmVersion() && (apiNode.isTagged() && apiNode.getTags().equals(wayNode.getTags()))
-                                        && apiNode.getLat() == wayNode.getLat() && apiNode.getLon() == wayNode.getLon()) {
-                                    apiNode.setState(OsmElement.STATE_UNCHANGED);
-                                    apiStorage.removeNode(apiNode);
-                                } else {
-                                    apiNode.setState(OsmElement.STATE_MODIFIED);
-                                }
-                                temp.insertNodeUnsafe(apiNode);
-                                nodes.set(i, apiNode);
-                            } else {
-                                String debugString = "mergeData null way node for way " + w.getOsmId() + " v" + w.getOsmVersion() + " node " + wayNodeId
-                                        + (apiNode != null ? " state in api " + apiNode.getState() : "");
-                                Log.e(DEBUG_TAG, debugString);
-                                ACRAHelper.nocrashReport(null, debugString);
-                                return false;
+            // phase 2: apply, the new elements are added to storage in one step, changes to existing data are logged so
+            // that they can be undone if we run out of memory
+            final Storage target = currentStorage;
+            final MergeRollback rollback = new MergeRollback();
+            try {
+                // existing ways that refer to nodes that are going to be replaced, and existing relations that
+                // reference elements that are going to be replaced or added
+                Set<Way> changedWays = new HashSet<>();
+                for (Node n : mergeNodes) {
+                    Node existingNode = target.getNode(n.getOsmId());
+                    if (existingNode != null) {
+                        for (Way w : target.getWays(existingNode)) {
+                            if (mergeWays.get(w.getOsmId()) == null) {
+                                changedWays.add(w);
                             }
                         }
                     }
                 }
+                Set<Relation> changedRelations = new HashSet<>();
+                addRelationsWithMembers(Node.NAME, mergeNodes, changedRelations);
+                addRelationsWithMembers(Node.NAME, undeleteNodes, changedRelations);
+                addRelationsWithMembers(Way.NAME, mergeWays, changedRelations);
+                addRelationsWithMembers(Relation.NAME, mergeRelations, changedRelations);
+
+                // the incoming elements aren't visible yet and don't need to be logged
+                clearParentRelations(mergeNodes);
+                clearParentRelations(mergeWays);
+                clearParentRelations(mergeRelations);
+                for (Way w : mergeWays) {
+                    replaceWayNodes(w, mergeNodes, undeleteNodes);
+                }
 
-                Log.d(DEBUG_TAG, "mergeData fixuped way nodes nodes");
-
-                // add relations
-                for (Relation r : storage.getRelations()) {
-                    Relation apiRelation = apiStorage.getRelation(r.getOsmId()); // can contain deleted elements
-                    if (!relationIndex.containsKey(r.getOsmId()) && apiRelation == null) { // new relation no problem
-                        temp.insertRelationUnsafe(r);
-                        newElements.add(r);
+                // reinstate deleted nodes so that any existing references remain
+                final List<OsmElement> added = new ArrayList<>();
+                final List<OsmElement> replaced = new ArrayList<>();
+                LongOsmElementMap<Node> reinstated = new LongOsmElementMap<>();
+                for (Node wayNode : undeleteWayNodes) {
+                    final Node apiNode = undeleteNodes.get(wayNode.getOsmId());
+                    if (reinstated.get(apiNode.getOsmId()) != null) {
+                        continue; // referenced more than once
+                    }
+                    reinstated.put(apiNode.getOsmId(), apiNode);
+                    final byte state = apiNode.getState();
+                    rollback.add(() -> {
+                        apiNode.setState(state);
+                        apiStorage.insertElementSafe(apiNode);
+                    });
+                    // FIXME undoing the original delete will likely cause havoc
+                    Log.e(DEBUG_TAG, "mergeData null undeleting node " + apiNode.getOsmId());
+                    // way nodes that are not in the incoming data are id only placeholders for nodes from earlier
+                    // batches and can't be compared, the placeholder itself is never added
+                    if (storage.getNode(wayNode.getOsmId()) == wayNode && apiNode.getOsmVersion() == wayNode.getOsmVersion()
+                            && (apiNode.isTagged() && apiNode.getTags().equals(wayNode.getTags())) && apiNode.getLat() == wayNode.getLat()
+                            && apiNode.getLon() == wayNode.getLon()) {
+                        apiNode.setState(OsmElement.STATE_UNCHANGED);
+                        apiStorage.removeNode(apiNode);
                     } else {
-                        if (apiRelation != null && apiRelation.getState() == OsmElement.STATE_DELETED) {
-                            if (apiRelation.getOsmVersion() >= r.getOsmVersion()) {
-                                continue; // can use relation we already have
-                            } else {
-                                return false; // can't resolve conflicts, upload first
+                        apiNode.setState(OsmElement.STATE_MODIFIED);
+                    }
+                    added.add(apiNode);
+                }
+                addMerged(mergeNodes, target.getNodeIndex(), added, replaced);
+                addMerged(mergeWays, target.getWayIndex(), added, replaced);
+                addMerged(mergeRelations, target.getRelationIndex(), added, replaced);
+                target.replaceElements(Collections.<OsmElement>emptyList(), added);
+                rollback.add(() -> target.replaceElements(added, replaced));
+                newElements.addAll(added.subList(reinstated.size(), added.size()));
+
+                // the existing elements are changed after the new ones have become visible
+                for (OsmElement existing : replaced) {
+                    if (existing instanceof Relation) {
+                        for (RelationMember rm : ((Relation) existing).getMembers()) {
+                            OsmElement e = rm.getElement();
+                            if (e != null) {
+                                rollback.saveParentRelations(e);
+                                e.removeParentRelation((Relation) existing);
                             }
                         }
-                        Relation existingRelation = relationIndex.get(r.getOsmId());
-                        if (existingRelation != null) {
-                            if (existingRelation.getOsmVersion() >= r.getOsmVersion()) { // larger just to be on the
-                                                                                         // safe side
-                                continue; // can use relation we already have
-                            } else {
-                                if (existingRelation.isUnchanged()) {
-                                    temp.insertRelationUnsafe(r);
-                                    newElements.add(r);
-                                } else {
-                                    return false; // can't resolve conflicts, upload first
-                                }
-                            }
-                        } else {
-                            // this shouldn't be able to happen
-                            String debugString = "mergeData null existing relation " + r.getOsmId() + " containsKey is "
-                                    + relationIndex.containsKey(r.getOsmId()) + " apiRelation is " + apiRelation;
-                            Log.e(DEBUG_TAG, debugString);
-                            ACRAHelper.nocrashReport(null, debugString);
-                            return false;
+                    }
+                }
+                for (Relation r : changedRelations) {
+                    if (mergeRelations.get(r.getOsmId()) != null) {
+                        continue; // has been replaced
+                    }
+                    for (final RelationMember rm : r.getMembers()) {
+                        final OsmElement e = rm.getElement();
+                        OsmElement member = resolveMember(rm, mergeNodes, mergeWays, mergeRelations, undeleteNodes);
+                        if (member != null && member != e) {
+                            rollback.saveParentRelations(member);
+                            rollback.add(() -> rm.setElement(e));
+                            rm.setElement(member);
+                            member.addParentRelation(r);
                         }
                     }
                 }
-
-                Log.d(DEBUG_TAG, "mergeData added relations");
-
-                // fixup relation back links and memberships
-
-                if (!redoBacklinks(temp, nodeIndex, wayIndex, relationIndex)) {
-                    Log.e(DEBUG_TAG, "mergeData redoBacklinks failed");
-                    return false;
+                for (final Way w : changedWays) {
+                    final List<Node> oldNodes = new ArrayList<>(w.getNodes());
+                    rollback.add(() -> {
+                        w.getNodes().clear();
+                        w.getNodes().addAll(oldNodes);
+                        w.invalidateBoundingBox();
+                        target.invalidateSpatialIndex(w);
+                    });
+                    replaceWayNodes(w, mergeNodes, undeleteNodes);
+                    w.invalidateBoundingBox();
+                    target.invalidateSpatialIndex(w);
+                }
+                // all elements are in storage now, resolve the members of the new relations
+                for (Relation r : mergeRelations) {
+                    for (RelationMember rm : r.getMembers()) {
+                        OsmElement e = target.getOsmElement(rm.getType(), rm.getRef());
+                        rm.setElement(e);
+                        if (e != null) {
+                            rollback.saveParentRelations(e);
+                            e.addParentRelation(r);
+                        }
+                    }
                 }
 
-                Log.d(DEBUG_TAG, "mergeData fixuped relations");
-
+                Log.d(DEBUG_TAG, "mergeData added elements");
             } catch (StorageException sex) {
-                // ran of memory
+                // ran of memory, put back what we have changed so far
                 Log.e(DEBUG_TAG, "mergeData exception " + sex.getMessage());
+                rollbackMerge(rollback);
                 return false;
             }
-
-            currentStorage = temp;
-            undo.setCurrentStorage(temp);
         }
         // no need to do this in the synchronized block
         if (postMerge != null) {
@@ -3291,6 +3765,221 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
         return true; // Success
     }
 
+    /**
+     * Add the existing relations that have members referring to specific elements to a Set
+     * 
+     * @param type the type of the elements
+     * @param elements the elements
+     * @param result the Set to add the relations to
+     */
+    private void addRelationsWithMembers(@NonNull String type, @NonNull Iterable<? extends OsmElement> elements, @NonNull Set<Relation> result) {
+        for (OsmElement e : elements) {
+            result.addAll(currentStorage.getRelationsWithMember(type, e.getOsmId()));
+        }
+    }
+
+    /**
+     * Add the incoming elements of one type to the List of elements to add, and the existing elements they replace to
+     * a second List
+     * 
+     * @param <T> the element type
+     * @param incoming the incoming elements
+     * @param existing index of the elements of the same type in the current storage
+     * @param added the List the incoming elements are added to
+     * @param replaced the List the replaced elements are added to
+     */
+    private static <T extends OsmElement> void addMerged(@NonNull LongOsmElementMap<T> incoming, @NonNull LongOsmElementMap<T> existing,
+            @NonNull List<OsmElement> added, @NonNull List<OsmElement> replaced) {
+        for (T e : incoming) {
+            added.add(e);
+            T existingElement = existing.get(e.getOsmId());
+            if (existingElement != null) {
+                replaced.add(existingElement);
+            }
+        }
+    }
+
+    /**
+     * Undo the changes made by a merge
+     * 
+     * @param rollback the log of the changes
+     */
+    private void rollbackMerge(@NonNull MergeRollback rollback) {
+        synchronized (this) {
+            try {
+                rollback.undo();
+            } catch (StorageException sex) {
+                Log.e(DEBUG_TAG, "rollbackMerge exception " + sex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Log of the changes to existing data made while merging
+     * 
+     * Actions are undone in the reverse order they were added in.
+     */
+    private static final class MergeRollback {
+        private final Deque<Runnable>             actions      = new ArrayDeque<>();
+        private final Map<OsmElement, OsmElement> savedParents = new IdentityHashMap<>();
+
+        /**
+         * Add an action that undoes a change, this should be called before the change is made
+         * 
+         * @param action the action
+         */
+        void add(@NonNull Runnable action) {
+            actions.push(action);
+        }
+
+        /**
+         * Save the parent relations of an element the first time they are changed
+         * 
+         * @param e the OsmElement
+         */
+        void saveParentRelations(@NonNull final OsmElement e) {
+            if (savedParents.put(e, e) == null) {
+                List<Relation> current = e.getParentRelations();
+                final List<Relation> parents = current != null ? new ArrayList<>(current) : null;
+                add(() -> {
+                    e.clearParentRelations();
+                    if (parents != null) {
+                        e.addParentRelations(parents);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Undo all logged changes
+         */
+        void undo() {
+            while (!actions.isEmpty()) {
+                actions.pop().run();
+            }
+        }
+    }
+
+    /**
+     * Determine which incoming elements need to be added to the current storage
+     * 
+     * @param <T> the element type
+     * @param incoming the incoming elements
+     * @param existing index of the elements of the same type in the current storage
+     * @param api index of the elements of the same type in the api storage
+     * @param selected index the elements that need to be added will be added to
+     * @return false if there is a conflict that we can't resolve
+     */
+    private static <T extends OsmElement> boolean selectForMerge(@NonNull List<T> incoming, @NonNull LongOsmElementMap<T> existing,
+            @NonNull LongOsmElementMap<T> api, @NonNull LongOsmElementMap<T> selected) {
+        for (T e : incoming) {
+            final long id = e.getOsmId();
+            T apiElement = api.get(id); // can contain deleted elements
+            T existingElement = existing.get(id);
+            if (existingElement == null && apiElement == null) { // new element no problem
+                selected.put(id, e);
+                continue;
+            }
+            if (apiElement != null && apiElement.getState() == OsmElement.STATE_DELETED) {
+                if (apiElement.getOsmVersion() >= e.getOsmVersion()) {
+                    continue; // can use element we already have
+                }
+                return false; // can't resolve conflicts, upload first
+            }
+            if (existingElement == null) {
+                // this shouldn't be able to happen
+                String debugString = "mergeData null existing " + e.getName() + " " + id + " api element is " + apiElement;
+                Log.e(DEBUG_TAG, debugString);
+                ACRAHelper.nocrashReport(null, debugString);
+                return false;
+            }
+            if (existingElement.getOsmVersion() >= e.getOsmVersion()) { // larger just to be on the safe side
+                continue; // can use element we already have
+            }
+            if (!existingElement.isUnchanged()) {
+                return false; // can't resolve conflicts, upload first
+            }
+            selected.put(id, e);
+        }
+        return true;
+    }
+
+    /**
+     * Get the node a way node reference should point to after merging
+     * 
+     * @param id the id of the node
+     * @param mergeNodes the incoming nodes that will be added
+     * @param undeleteNodes deleted nodes that will be reinstated
+     * @return the Node or null if it can't be found
+     */
+    @Nullable
+    private Node resolveNode(long id, @NonNull LongOsmElementMap<Node> mergeNodes, @NonNull LongOsmElementMap<Node> undeleteNodes) {
+        Node n = mergeNodes.get(id);
+        if (n == null) {
+            n = undeleteNodes.get(id);
+            if (n == null) {
+                n = currentStorage.getNode(id);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Get the element a relation member should point to after merging
+     * 
+     * @param rm the RelationMember
+     * @param mergeNodes the incoming nodes that will be added
+     * @param mergeWays the incoming ways that will be added
+     * @param mergeRelations the incoming relations that will be added
+     * @param undeleteNodes deleted nodes that will be reinstated
+     * @return the OsmElement or null if it can't be found
+     */
+    @Nullable
+    private OsmElement resolveMember(@NonNull RelationMember rm, @NonNull LongOsmElementMap<Node> mergeNodes, @NonNull LongOsmElementMap<Way> mergeWays,
+            @NonNull LongOsmElementMap<Relation> mergeRelations, @NonNull LongOsmElementMap<Node> undeleteNodes) {
+        final long ref = rm.getRef();
+        switch (rm.getType()) {
+        case Node.NAME:
+            return resolveNode(ref, mergeNodes, undeleteNodes);
+        case Way.NAME:
+            Way w = mergeWays.get(ref);
+            return w != null ? w : currentStorage.getWay(ref);
+        case Relation.NAME:
+            Relation r = mergeRelations.get(ref);
+            return r != null ? r : currentStorage.getRelation(ref);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Point the nodes of a way to the nodes that are in storage after merging
+     * 
+     * @param w the Way
+     * @param mergeNodes the incoming nodes that will be added
+     * @param undeleteNodes deleted nodes that will be reinstated
+     */
+    private void replaceWayNodes(@NonNull Way w, @NonNull LongOsmElementMap<Node> mergeNodes, @NonNull LongOsmElementMap<Node> undeleteNodes) {
+        List<Node> nodes = w.getNodes();
+        for (int i = 0; i < nodes.size(); i++) {
+            Node n = resolveNode(nodes.get(i).getOsmId(), mergeNodes, undeleteNodes);
+            if (n != null) {
+                nodes.set(i, n);
+            }
+        }
+    }
+
+    /**
+     * Remove all parent relation references from elements
+     * 
+     * @param elements the elements
+     */
+    private static void clearParentRelations(@NonNull Iterable<? extends OsmElement> elements) {
+        for (OsmElement e : elements) {
+            e.clearParentRelations();
+        }
+    }
+
     /**
      * Redo all backlinks
      * 
@@ -3436,6 +4125,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      */
     @Override
     public synchronized void prune(@NonNull BoundingBox box) {
+        snapshotRequired = true;
         prune(App.getLogic(), box);
     }
 
@@ -3498,6 +4188,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
                 for (RelationMember member : members) {
                     member.setElement(null);
                 }
+                currentStorage.addRelationMemberRefs(parent);
             }
             if (logic != null) {
                 logic.removeSelectedRelationElement(e);
@@ -3511,6 +4202,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      * Note this doesn't handle selected elements and should only be called when nothing is selected
      */
     public synchronized void pruneAll() {
+        snapshotRequired = true;
         LongHashSet keepNodes = new LongHashSet();
         LongHashSet keepRelations = new LongHashSet();
 
@@ -3578,6 +4270,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      * @return true if the operation was successful
      */
     public synchronized boolean applyOsc(@NonNull Storage osc, @Nullable PostMergeHandler postMerge) {
+        snapshotRequired = true;
         Log.d(DEBUG_TAG, "applyOsc called");
         final String ABORTMESSAGE = "applyOsc aborting %s is unchanged/created";
 
@@ -3794,13 +4487,27 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      * @return true if deleted
      */
     private boolean memberIsDeleted(Relation r, RelationMember rm) {
+        if (memberDeletedInApi(r, rm)) {
+            fixupBacklinks(); // nexessary as we've removed the original ones from the elements
+            return true; // can't resolve conflicts, upload first
+        }
+        return false;
+    }
+
+    /**
+     * Check if a referenced relation member is deleted without making any changes
+     * 
+     * @param r the Relation
+     * @param rm the RelationMember
+     * @return true if deleted
+     */
+    private boolean memberDeletedInApi(@NonNull Relation r, @NonNull RelationMember rm) {
         OsmElement apiElement = apiStorage.getOsmElement(rm.getType(), rm.getRef());
         if (apiElement != null && apiElement.getState() == OsmElement.STATE_DELETED) {
             String debugString = "mergeData/applyOsc deleted " + rm.getType() + " in downloaded relation " + r.getOsmId();
             Log.e(DEBUG_TAG, debugString);
             ACRAHelper.nocrashReport(null, debugString);
-            fixupBacklinks(); // nexessary as we've removed the original ones from the elements
-            return true; // can't resolve conflicts, upload first
+            return true;
         }
         return false;
     }
@@ -3811,6 +4518,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      * @param element the OsmElement
      */
     public void removeFromUpload(OsmElement element) {
+        snapshotRequired = true;
         apiStorage.removeElement(element);
         element.setState(OsmElement.STATE_UNCHANGED);
     }
@@ -3822,6 +4530,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      * @param version the new version
      */
     public void setOsmVersion(OsmElement element, long version) {
+        snapshotRequired = true;
         element.setOsmVersion(version);
         element.setState(OsmElement.STATE_MODIFIED);
         insertElementSafe(element);
@@ -3853,6 +4562,24 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
         return currentStorage.getLastBox();
     }
 
+    /**
+     * Check if the current storage only contains a preview of the state that is being read
+     * 
+     * @return true if the data must not be modified
+     */
+    public boolean isPreview() {
+        return preview;
+    }
+
+    /**
+     * Set the area whose elements should be written first to the state file
+     * 
+     * @param box the area, typically the current view, or null
+     */
+    public void setPreviewBox(@Nullable BoundingBox box) {
+        previewBox = box != null ? new BoundingBox(box) : null;
+    }
+
     /**
      * for debugging only
      */
@@ -0,0 +1,66 @@
+package de.blau.android.osm;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Global dictionary of tag keys, values and roles
+ *
+ * The same keys and values occur on a large number of elements, without de-duplication every occurrence is a separate
+ * String object. Strings returned by {@link #intern(String)} are shared between all users, which not only saves memory,
+ * but allows String.equals to return immediately when comparing strings that both came from the dictionary, for
+ * example when matching element tags against styles and presets.
+ *
+ * To bound its size long strings, which rarely repeat, are not added and once the maximum size has been reached
+ * strings that are not already present are returned as is. The dictionary is cleared when storage is reset so that
+ * strings of data that is no longer loaded are not retained.
+ *
+ * This class is thread safe.
+ */
+public final class TagDictionary {
+
+    static final int MAX_ENTRIES = 50000;
+    static final int MAX_LENGTH  = 32;
+
+    private static final ConcurrentHashMap<String, String> strings = new ConcurrentHashMap<>();
+
+    /**
+     * Private constructor to stop instantiation
+     */
+    private TagDictionary() {
+        // private
+    }
+
+    /**
+     * Get the shared instance of a String
+     *
+     * @param s the String
+     * @return the shared instance or s if it isn't in the dictionary and can't be added
+     */
+    @Nullable
+    public static String intern(@Nullable String s) {
+        if (s == null) {
+            return null;
+        }
+        String shared = strings.get(s);
+        if (shared != null) {
+            return shared;
+        }
+        if (s.length() > MAX_LENGTH || strings.size() >= MAX_ENTRIES) {
+            return s;
+        }
+        shared = strings.putIfAbsent(s, s);
+        return shared != null ? shared : s;
+    }
+
+    /**
+     * Remove all entries
+     *
+     * Strings that were returned previously remain valid, they are just no longer shared with strings interned after
+     * this call
+     */
+    public static void clear() {
+        strings.clear();
+    }
+}
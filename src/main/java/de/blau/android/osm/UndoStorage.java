@@ -1,13 +1,18 @@
 package de.blau.android.osm;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 import android.content.Context;
@@ -53,6 +58,11 @@ public class UndoStorage implements Serializable {
     private final LinkedList<Checkpoint> undoCheckpoints = new LinkedList<>();
     private final LinkedList<Checkpoint> redoCheckpoints = new LinkedList<>();
 
+    // state at the time the last journal record or state file was written
+    private transient Set<OsmElement> journalElements;
+    private transient List<JournalMark> journalUndo;
+    private transient List<JournalMark> journalRedo;
+
     static final Comparator<UndoElement> elementOrder = (ue1, ue2) -> {
         OsmElement e1 = ue1.element;
         OsmElement e2 = ue2.element;
@@ -187,6 +197,8 @@ public class UndoStorage implements Serializable {
                 Log.e(DEBUG_TAG, "Attempted to save without valid checkpoint - forgot to call createCheckpoint()");
                 return;
             }
+            getJournalElements().add(element);
+            currentStorage.markModified();
             undoCheckpoints.getLast().add(element);
         } catch (Exception ex) {
             ACRAHelper.nocrashReport(ex, ex.getMessage());
@@ -208,12 +220,235 @@ public class UndoStorage implements Serializable {
                 Log.e(DEBUG_TAG, "Attempted to save without valid checkpoint - forgot to call createCheckpoint()");
                 return;
             }
+            getJournalElements().add(element);
+            currentStorage.markModified();
             undoCheckpoints.getLast().add(element, inCurrentStorage, inApiStorage);
         } catch (Exception ex) {
             ACRAHelper.nocrashReport(ex, ex.getMessage());
         }
     }
 
+    /**
+     * Register all elements referenced by the checkpoints with a StateFileWriter
+     * 
+     * @param writer the StateFileWriter
+     */
+    void addElements(@NonNull StateFileWriter writer) {
+        for (List<Checkpoint> checkpoints : Arrays.asList(undoCheckpoints, redoCheckpoints)) {
+            for (Checkpoint checkpoint : checkpoints) {
+                for (UndoElement ue : checkpoint.elements.values()) {
+                    ue.addElements(writer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the checkpoints to a state file
+     * 
+     * @param writer the StateFileWriter, the elements need to have been written
+     * @throws IOException if writing fails
+     */
+    void write(@NonNull StateFileWriter writer) throws IOException {
+        for (List<Checkpoint> checkpoints : Arrays.asList(undoCheckpoints, redoCheckpoints)) {
+            writer.writeInt(checkpoints.size());
+            for (Checkpoint checkpoint : checkpoints) {
+                writeCheckpoint(writer, checkpoint);
+            }
+        }
+    }
+
+    /**
+     * Write a single checkpoint
+     * 
+     * @param writer the StateFileWriter
+     * @param checkpoint the Checkpoint
+     * @throws IOException if writing fails
+     */
+    private void writeCheckpoint(@NonNull StateFileWriter writer, @NonNull Checkpoint checkpoint) throws IOException {
+        writer.writeString(checkpoint.getName());
+        writer.writeInt(checkpoint.elements.size());
+        for (UndoElement ue : checkpoint.elements.values()) {
+            ue.write(writer);
+        }
+    }
+
+    /**
+     * Read checkpoints from a state file, replacing any existing ones
+     * 
+     * @param reader the StateFileReader, the elements need to have been read
+     * @throws IOException if reading fails
+     */
+    void read(@NonNull StateFileReader reader) throws IOException {
+        for (List<Checkpoint> checkpoints : Arrays.asList(undoCheckpoints, redoCheckpoints)) {
+            checkpoints.clear();
+            int count = reader.readInt();
+            for (int i = 0; i < count; i++) {
+                checkpoints.add(readCheckpoint(reader));
+            }
+        }
+    }
+
+    /**
+     * Read a single checkpoint
+     * 
+     * @param reader the StateFileReader
+     * @return a Checkpoint
+     * @throws IOException if reading fails
+     */
+    @NonNull
+    private Checkpoint readCheckpoint(@NonNull StateFileReader reader) throws IOException {
+        String name = reader.readString();
+        Checkpoint checkpoint = new Checkpoint(name != null ? name : "");
+        int elementCount = reader.readInt();
+        for (int j = 0; j < elementCount; j++) {
+            UndoElement ue = readUndoElement(reader);
+            checkpoint.elements.put(ue.element, ue);
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Get the elements that have been changed since {@link #markJournal()} was last called
+     * 
+     * @return a Set of OsmElement
+     */
+    @NonNull
+    Set<OsmElement> getJournalElements() {
+        if (journalElements == null) {
+            journalElements = Collections.newSetFromMap(new IdentityHashMap<>());
+        }
+        return journalElements;
+    }
+
+    /**
+     * Remember the current state of the checkpoints and clear the changed elements
+     * 
+     * Call this after a state file or journal record has been written or read
+     */
+    void markJournal() {
+        getJournalElements().clear();
+        journalUndo = mark(undoCheckpoints);
+        journalRedo = mark(redoCheckpoints);
+    }
+
+    /**
+     * Create JournalMarks for a List of Checkpoints
+     * 
+     * @param checkpoints the Checkpoints
+     * @return a List of JournalMark
+     */
+    @NonNull
+    private List<JournalMark> mark(@NonNull List<Checkpoint> checkpoints) {
+        List<JournalMark> marks = new ArrayList<>(checkpoints.size());
+        for (Checkpoint checkpoint : checkpoints) {
+            marks.add(new JournalMark(checkpoint));
+        }
+        return marks;
+    }
+
+    /**
+     * Write the changes to the checkpoints since {@link #markJournal()} was last called to a journal record
+     * 
+     * Checkpoints are only added and removed at the end of the lists or modified at the end of the undo list, so for
+     * both lists we write the number of unchanged checkpoints at the start of the list followed by all checkpoints
+     * after that
+     * 
+     * @param writer the JournalWriter
+     * @throws IOException if writing fails
+     */
+    void writeJournal(@NonNull JournalWriter writer) throws IOException {
+        writeJournal(writer, undoCheckpoints, journalUndo);
+        writeJournal(writer, redoCheckpoints, journalRedo);
+    }
+
+    /**
+     * Write the changes to a List of Checkpoints
+     * 
+     * @param writer the JournalWriter
+     * @param checkpoints the Checkpoints
+     * @param marks the JournalMarks for the List, if null the complete List is written
+     * @throws IOException if writing fails
+     */
+    private void writeJournal(@NonNull JournalWriter writer, @NonNull List<Checkpoint> checkpoints, @Nullable List<JournalMark> marks)
+            throws IOException {
+        int unchanged = 0;
+        if (marks != null) {
+            Iterator<JournalMark> markIterator = marks.iterator();
+            for (Checkpoint checkpoint : checkpoints) {
+                if (!markIterator.hasNext() || !markIterator.next().matches(checkpoint)) {
+                    break;
+                }
+                unchanged++;
+            }
+        }
+        writer.writeInt(unchanged);
+        writer.writeInt(checkpoints.size() - unchanged);
+        Iterator<Checkpoint> iterator = checkpoints.listIterator(unchanged);
+        while (iterator.hasNext()) {
+            writeCheckpoint(writer, iterator.next());
+        }
+    }
+
+    /**
+     * Apply the changes to the checkpoints from a journal record
+     * 
+     * @param reader the JournalReader
+     * @throws IOException if reading fails
+     */
+    void readJournal(@NonNull JournalReader reader) throws IOException {
+        for (LinkedList<Checkpoint> checkpoints : Arrays.asList(undoCheckpoints, redoCheckpoints)) {
+            int unchanged = reader.readInt();
+            if (unchanged > checkpoints.size()) {
+                throw new IOException("Journal doesn't match checkpoints");
+            }
+            while (checkpoints.size() > unchanged) {
+                checkpoints.removeLast();
+            }
+            int count = reader.readInt();
+            for (int i = 0; i < count; i++) {
+                checkpoints.add(readCheckpoint(reader));
+            }
+        }
+    }
+
+    /**
+     * Read an UndoElement from a state file
+     * 
+     * @param reader the StateFileReader
+     * @return an UndoElement
+     * @throws IOException if reading fails
+     */
+    @NonNull
+    private UndoElement readUndoElement(@NonNull StateFileReader reader) throws IOException {
+        int type = reader.readInt();
+        OsmElement element = reader.readElement();
+        if (element == null) {
+            throw new IOException("Missing undo element");
+        }
+        long osmId = reader.readSignedLong();
+        long osmVersion = reader.readLong();
+        byte state = reader.readByte();
+        TreeMap<String, String> tags = reader.readTags();
+        boolean inCurrentStorage = reader.readBoolean();
+        boolean inApiStorage = reader.readBoolean();
+        List<Relation> parentRelations = reader.readElementList();
+        switch (type) {
+        case StateFileWriter.NODE:
+            return new UndoNode((Node) element, osmId, osmVersion, state, tags, inCurrentStorage, inApiStorage, parentRelations, reader.readSignedInt(),
+                    reader.readSignedInt());
+        case StateFileWriter.WAY:
+            List<Node> nodes = reader.readElementList();
+            return new UndoWay((Way) element, osmId, osmVersion, state, tags, inCurrentStorage, inApiStorage, parentRelations,
+                    nodes != null ? nodes : new ArrayList<>());
+        case StateFileWriter.RELATION:
+            return new UndoRelation((Relation) element, osmId, osmVersion, state, tags, inCurrentStorage, inApiStorage, parentRelations,
+                    reader.readMembers());
+        default:
+            throw new IOException("Unknown undo element type " + type);
+        }
+    }
+
     /**
      * Remove the saved state of this element from the last checkpoint
      * 
@@ -408,6 +643,7 @@ public class UndoStorage implements Serializable {
 
         private final Map<OsmElement, UndoElement> elements = new HashMap<>();
         private String                             name;
+        private transient int                      modCount = 0;
 
         /**
          * Construct a new checkpoint
@@ -450,6 +686,7 @@ public class UndoStorage implements Serializable {
             if (elements.containsKey(element)) {
                 return;
             }
+            modCount++;
             if (element instanceof Node) {
                 elements.put(element, new UndoNode((Node) element, inCurrentStorage, inApiStorage));
             } else if (element instanceof Way) {
@@ -470,6 +707,7 @@ public class UndoStorage implements Serializable {
             if (!elements.containsKey(element)) {
                 return;
             }
+            modCount++;
             elements.remove(element);
         }
 
@@ -498,6 +736,7 @@ public class UndoStorage implements Serializable {
                 }
                 ok = (ue.restore() != null) && ok;
             }
+            currentStorage.markModified();
             if (restoredNode) {
                 // zap the bounding box of all ways as their geometry may have changed
                 //
@@ -505,6 +744,8 @@ public class UndoStorage implements Serializable {
                 for (Way way : currentStorage.getWays()) {
                     way.invalidateBoundingBox();
                 }
+                currentStorage.invalidateWaySpatialIndex();
+                apiStorage.invalidateWaySpatialIndex();
             }
             App.getDelegator().fixupBacklinks();
             return ok;
@@ -533,6 +774,7 @@ public class UndoStorage implements Serializable {
          */
         public void setName(@NonNull String name) {
             this.name = name;
+            modCount++;
         }
 
         /**
@@ -544,6 +786,34 @@ public class UndoStorage implements Serializable {
         }
     }
 
+    /**
+     * The state of a Checkpoint at the time the last journal record was written
+     */
+    private final class JournalMark {
+        private final Checkpoint checkpoint;
+        private final int        modCount;
+
+        /**
+         * Construct a new mark
+         * 
+         * @param checkpoint the Checkpoint
+         */
+        JournalMark(@NonNull Checkpoint checkpoint) {
+            this.checkpoint = checkpoint;
+            modCount = checkpoint.modCount;
+        }
+
+        /**
+         * Check if a Checkpoint is the same and unchanged
+         * 
+         * @param checkpoint the Checkpoint to check
+         * @return true if checkpoint is unchanged
+         */
+        boolean matches(@NonNull Checkpoint checkpoint) {
+            return this.checkpoint == checkpoint && modCount == checkpoint.modCount;
+        }
+    }
+
     /**
      * This class contains a past state of a {@link OsmElement}. It is stored in {@link Checkpoint}s and used to restore
      * the state of the element on undo. The constructor saves the state, {@link #restore()} restores it.
@@ -586,6 +856,58 @@ public class UndoStorage implements Serializable {
             parentRelations = element.getParentRelations() != null ? new ArrayList<>(element.getParentRelations()) : null;
         }
 
+        /**
+         * Create a new undo object from saved values
+         * 
+         * @param element the OsmElement this refers to
+         * @param osmId the saved id
+         * @param osmVersion the saved version
+         * @param state the saved state
+         * @param tags the saved tags or null
+         * @param inCurrentStorage true if the element is in the current storage
+         * @param inApiStorage true if the element is in the api storage
+         * @param parentRelations the saved parent relations or null
+         */
+        protected UndoElement(@NonNull OsmElement element, long osmId, long osmVersion, byte state, @Nullable TreeMap<String, String> tags,
+                boolean inCurrentStorage, boolean inApiStorage, @Nullable List<Relation> parentRelations) {
+            this.element = element;
+            this.osmId = osmId;
+            this.osmVersion = osmVersion;
+            this.state = state;
+            this.tags = tags == null ? new TreeMap<>() : tags;
+            this.inCurrentStorage = inCurrentStorage;
+            this.inApiStorage = inApiStorage;
+            this.parentRelations = parentRelations;
+        }
+
+        /**
+         * Register the elements referenced by this with a StateFileWriter
+         * 
+         * @param writer the StateFileWriter
+         */
+        void addElements(@NonNull StateFileWriter writer) {
+            writer.add(element);
+            writer.addAll(parentRelations);
+        }
+
+        /**
+         * Write this to a state file
+         * 
+         * @param writer the StateFileWriter
+         * @throws IOException if writing fails
+         */
+        void write(@NonNull StateFileWriter writer) throws IOException {
+            writer.writeInt(StateFileWriter.typeCode(element));
+            writer.writeElement(element);
+            writer.writeSignedLong(osmId);
+            writer.writeLong(osmVersion);
+            writer.writeByte(state);
+            writer.writeTags(tags);
+            writer.writeBoolean(inCurrentStorage);
+            writer.writeBoolean(inApiStorage);
+            writer.writeElementList(parentRelations);
+        }
+
         /**
          * Restores the saved state of the element
          * 
@@ -595,6 +917,7 @@ public class UndoStorage implements Serializable {
             // Restore element existence
             Log.e(DEBUG_TAG, "restoring " + element.getDescription() + " state " + state + " current " + inCurrentStorage + " api " + inApiStorage);
             OsmElement restored = getUptodateElement(element);
+            getJournalElements().add(restored);
             try {
                 if (inCurrentStorage) {
                     currentStorage.insertElementSafe(restored);
@@ -747,12 +1070,42 @@ public class UndoStorage implements Serializable {
             lon = originalNode.lon;
         }
 
+        /**
+         * Create a new undo object from saved values
+         * 
+         * @param node the Node this refers to
+         * @param osmId the saved id
+         * @param osmVersion the saved version
+         * @param state the saved state
+         * @param tags the saved tags or null
+         * @param inCurrentStorage true if the element is in the current storage
+         * @param inApiStorage true if the element is in the api storage
+         * @param parentRelations the saved parent relations or null
+         * @param lat the saved latitude in WGS84*1E7
+         * @param lon the saved longitude in WGS84*1E7
+         */
+        UndoNode(@NonNull Node node, long osmId, long osmVersion, byte state, @Nullable TreeMap<String, String> tags, boolean inCurrentStorage,
+                boolean inApiStorage, @Nullable List<Relation> parentRelations, int lat, int lon) {
+            super(node, osmId, osmVersion, state, tags, inCurrentStorage, inApiStorage, parentRelations);
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        @Override
+        void write(@NonNull StateFileWriter writer) throws IOException {
+            super.write(writer);
+            writer.writeSignedInt(lat);
+            writer.writeSignedInt(lon);
+        }
+
         @Override
         public OsmElement restore() {
             OsmElement restored = super.restore();
 
             ((Node) restored).lat = lat;
             ((Node) restored).lon = lon;
+            currentStorage.invalidateSpatialIndex(restored);
+            apiStorage.invalidateSpatialIndex(restored);
             return restored;
         }
 
@@ -797,6 +1150,37 @@ public class UndoStorage implements Serializable {
             nodes = new ArrayList<>(originalWay.getNodes());
         }
 
+        /**
+         * Create a new undo object from saved values
+         * 
+         * @param way the Way this refers to
+         * @param osmId the saved id
+         * @param osmVersion the saved version
+         * @param state the saved state
+         * @param tags the saved tags or null
+         * @param inCurrentStorage true if the element is in the current storage
+         * @param inApiStorage true if the element is in the api storage
+         * @param parentRelations the saved parent relations or null
+         * @param nodes the saved way nodes
+         */
+        UndoWay(@NonNull Way way, long osmId, long osmVersion, byte state, @Nullable TreeMap<String, String> tags, boolean inCurrentStorage,
+                boolean inApiStorage, @Nullable List<Relation> parentRelations, @NonNull List<Node> nodes) {
+            super(way, osmId, osmVersion, state, tags, inCurrentStorage, inApiStorage, parentRelations);
+            this.nodes = nodes;
+        }
+
+        @Override
+        void addElements(@NonNull StateFileWriter writer) {
+            super.addElements(writer);
+            writer.addAll(nodes);
+        }
+
+        @Override
+        void write(@NonNull StateFileWriter writer) throws IOException {
+            super.write(writer);
+            writer.writeElementList(nodes);
+        }
+
         @Override
         public OsmElement restore() {
             OsmElement restored = super.restore();
@@ -839,6 +1223,10 @@ public class UndoStorage implements Serializable {
                 // reset the style
                 ((Way) restored).setStyle(null);
                 ((Way) restored).invalidateBoundingBox();
+                currentStorage.invalidateSpatialIndex(restored);
+                apiStorage.invalidateSpatialIndex(restored);
+                currentStorage.addWayNodeRefs((Way) restored);
+                apiStorage.addWayNodeRefs((Way) restored);
             }
             return restored;
         }
@@ -908,6 +1296,39 @@ public class UndoStorage implements Serializable {
             }
         }
 
+        /**
+         * Create a new undo object from saved values
+         * 
+         * @param relation the Relation this refers to
+         * @param osmId the saved id
+         * @param osmVersion the saved version
+         * @param state the saved state
+         * @param tags the saved tags or null
+         * @param inCurrentStorage true if the element is in the current storage
+         * @param inApiStorage true if the element is in the api storage
+         * @param parentRelations the saved parent relations or null
+         * @param members the saved members
+         */
+        UndoRelation(@NonNull Relation relation, long osmId, long osmVersion, byte state, @Nullable TreeMap<String, String> tags,
+                boolean inCurrentStorage, boolean inApiStorage, @Nullable List<Relation> parentRelations, @NonNull List<RelationMember> members) {
+            super(relation, osmId, osmVersion, state, tags, inCurrentStorage, inApiStorage, parentRelations);
+            this.members = members;
+        }
+
+        @Override
+        void addElements(@NonNull StateFileWriter writer) {
+            super.addElements(writer);
+            for (RelationMember rm : members) {
+                writer.add(rm.getElement());
+            }
+        }
+
+        @Override
+        void write(@NonNull StateFileWriter writer) throws IOException {
+            super.write(writer);
+            writer.writeMembers(members);
+        }
+
         @Override
         public OsmElement restore() {
             OsmElement restored = super.restore();
@@ -931,6 +1352,7 @@ public class UndoStorage implements Serializable {
                         }
                     }
                 }
+                currentStorage.addRelationMemberRefs((Relation) restored);
             }
             return restored;
         }
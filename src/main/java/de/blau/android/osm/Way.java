@@ -83,6 +83,19 @@ public class Way extends OsmElement implements BoundedObject, StyleableFeature {
         return nodes;
     }
 
+    /**
+     * Release any unused capacity of the node list
+     * 
+     * Node lists are built incrementally when parsing and otherwise retain unused slots. This changes the modification
+     * count of the list, so it must only be called once after loading, before the way is added to a Storage that may be
+     * in use.
+     */
+    void trimToSize() {
+        if (nodes instanceof ArrayList) {
+            ((ArrayList<Node>) nodes).trimToSize();
+        }
+    }
+
     /**
      * Be careful to leave at least 2 nodes!
      * 
@@ -1,7 +1,9 @@
 package de.blau.android.presets;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -14,7 +16,6 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.PrintStream;
 import java.io.Serializable;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayDeque;
@@ -64,6 +65,7 @@ import androidx.core.content.ContextCompat;
 import ch.poole.osm.josmfilterparser.JosmFilterParser;
 import ch.poole.poparser.Po;
 import de.blau.android.App;
+import de.blau.android.BuildConfig;
 import de.blau.android.R;
 import de.blau.android.contract.FileExtensions;
 import de.blau.android.contract.Urls;
@@ -199,11 +201,13 @@ public class Preset implements Serializable {
     /**
      * 
      */
-    private static final long   serialVersionUID           = 7L;
+    private static final long   serialVersionUID           = 8L;
     /** name of the preset XML file in a preset directory */
     public static final String  PRESETXML                  = "preset.xml";
     /** name of the MRU serialization file in a preset directory */
     private static final String MRUFILE                    = "mru.dat";
+    /** name of the compiled preset file in a preset directory */
+    static final String         CACHEFILE                  = "preset.ser";
     public static final String  APKPRESET_URLPREFIX        = "apk:";
 
     // hardwired layout stuff
@@ -222,6 +226,12 @@ public class Preset implements Serializable {
      */
     private final MultiHashMap<String, PresetItem> tagItems = new MultiHashMap<>();
 
+    /** Compiled form of tagItems for findBestMatch, rebuilt when tagItems or the object keys change */
+    private transient volatile PresetMatchIndex matchIndex;
+
+    /** Results of findBestMatch for recently seen tag sets */
+    private static final PresetMatchCache matchCache = new PresetMatchCache();
+
     /** The root group of the preset, containing all top-level groups and items */
     private PresetGroup rootGroup;
 
@@ -255,7 +265,7 @@ public class Preset implements Serializable {
     private final MultiHashMap<String, PresetItem> searchIndex           = new MultiHashMap<>();
     private final MultiHashMap<String, PresetItem> translatedSearchIndex = new MultiHashMap<>();
 
-    private Po po = null;
+    private transient Po po = null;
 
     /**
      * Serializable class for storing Most Recently Used information. Hash is used to check compatibility.
@@ -295,8 +305,8 @@ public class Preset implements Serializable {
         }
     }
 
-    private final PresetMRUInfo mru;
-    private String              externalPackage;
+    private transient PresetMRUInfo mru;
+    private String                  externalPackage;
 
     private static class PresetFileFilter implements FilenameFilter {
         @Override
@@ -340,53 +350,194 @@ public class Preset implements Serializable {
      */
     public Preset(@NonNull Context ctx, @NonNull File directory, @Nullable String externalPackage, boolean useTranslations)
             throws ParserConfigurationException, SAXException, IOException, NoSuchAlgorithmException {
+        this(directory, externalPackage, new PresetSource(ctx, directory, externalPackage, useTranslations));
+    }
+
+    /**
+     * Creates a preset object from the already read XML and translations
+     * 
+     * @param directory directory to load/store preset data (XML, icons, MRUs)
+     * @param externalPackage name of external package containing preset assets for APK presets, null for other presets
+     * @param source the contents of the preset
+     * @throws IOException
+     * @throws SAXException
+     * @throws ParserConfigurationException
+     */
+    private Preset(@NonNull File directory, @Nullable String externalPackage, @NonNull PresetSource source)
+            throws ParserConfigurationException, SAXException, IOException {
         this.directory = directory;
         this.externalPackage = externalPackage;
+        iconManager = source.iconManager;
+        po = source.parsePo();
         rootGroup = new PresetGroup(null, "", null);
         rootGroup.setItemSort(false);
 
-        // noinspection ResultOfMethodCallIgnored
-        directory.mkdir();
+        parseXML(new ByteArrayInputStream(source.xml));
 
-        InputStream fileStream = null;
-        try {
-            if (directory.getName().equals(AdvancedPrefDatabase.ID_DEFAULT)) {
-                Log.i(DEBUG_TAG, "Loading default preset");
-                iconManager = new PresetIconManager(ctx, null, null);
-                fileStream = iconManager.openAsset(PRESETXML, true);
-                if (useTranslations) {
-                    // get translations
-                    InputStream poFileStream = null;
-                    try {
+        // remove chunks - this messes up the index disabled for now
+        // for (PresetItem c:new ArrayList<PresetItem>(allItems)) {
+        // if (c.isChunk()) {
+        // allItems.remove(c);
+        // }
+        // }
+
+        if (po != null) {
+            // keep the translated names so that the compiled form can be used without the translations
+            for (PresetElement element : allGroups) {
+                element.translatedName = element.getTranslatedName();
+            }
+            for (PresetElement element : allItems) {
+                element.translatedName = element.getTranslatedName();
+            }
+        }
+
+        mru = initMRU(directory, source.xmlHash);
+
+        Log.d(DEBUG_TAG, "search index length: " + searchIndex.getKeys().size());
+    }
+
+    /**
+     * Load a preset, re-using the compiled form saved by a previous load if the XML and translations haven't changed
+     * 
+     * The compiled form contains the already translated names and fields, the translations themselves are only hashed
+     * and not parsed when it is used
+     * 
+     * @param ctx context (used for preset loading)
+     * @param directory directory to load/store preset data (XML, icons, MRUs)
+     * @param externalPackage name of external package containing preset assets for APK presets, null for other presets
+     * @param useTranslations if true use included translations
+     * @return a Preset
+     * @throws IOException
+     * @throws SAXException
+     * @throws ParserConfigurationException
+     * @throws NoSuchAlgorithmException
+     */
+    @NonNull
+    public static Preset load(@NonNull Context ctx, @NonNull File directory, @Nullable String externalPackage, boolean useTranslations)
+            throws ParserConfigurationException, SAXException, IOException, NoSuchAlgorithmException {
+        PresetSource source = new PresetSource(ctx, directory, externalPackage, useTranslations);
+        String key = source.getCacheKey();
+        File cacheFile = new File(directory, CACHEFILE);
+        Preset preset = readCache(cacheFile, key);
+        if (preset != null) {
+            Log.i(DEBUG_TAG, "Using compiled preset " + cacheFile);
+            preset.directory = directory;
+            preset.externalPackage = externalPackage;
+            preset.iconManager = source.iconManager;
+            preset.mru = preset.initMRU(directory, source.xmlHash);
+            return preset;
+        }
+        preset = new Preset(directory, externalPackage, source);
+        preset.writeCache(cacheFile, key);
+        return preset;
+    }
+
+    /**
+     * Read a compiled preset
+     * 
+     * @param cacheFile the file containing the compiled preset
+     * @param key the key identifying the preset contents
+     * @return the Preset or null if the file doesn't exist, can't be read or was made from different contents
+     */
+    @Nullable
+    private static Preset readCache(@NonNull File cacheFile, @NonNull String key) {
+        if (!cacheFile.exists()) {
+            return null;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if (key.equals(in.readUTF())) {
+                return (Preset) in.readObject();
+            }
+            Log.i(DEBUG_TAG, "Compiled preset " + cacheFile + " is out of date");
+        } catch (Exception | StackOverflowError e) {
+            // Deserialization failed for whatever reason (wrong version, truncated file, too deeply nested, ...) - parse
+            // the XML, the file will be replaced
+            Log.e(DEBUG_TAG, "Reading compiled preset " + cacheFile + " failed " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Save this preset in compiled form so that the XML doesn't have to be parsed on the next load
+     * 
+     * @param cacheFile the file to write to
+     * @param key the key identifying the preset contents
+     */
+    private void writeCache(@NonNull File cacheFile, @NonNull String key) {
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeUTF(key);
+            out.writeObject(this);
+        } catch (Exception | StackOverflowError e) {
+            Log.e(DEBUG_TAG, "Writing compiled preset " + cacheFile + " failed " + e.getMessage());
+            tempFile.delete(); // NOSONAR
+            return;
+        }
+        if (!tempFile.renameTo(cacheFile)) {
+            Log.e(DEBUG_TAG, "Renaming " + tempFile + " failed");
+            tempFile.delete(); // NOSONAR
+        }
+    }
+
+    /**
+     * The XML and translations of a preset, read in to memory so that they can be hashed before deciding if they need
+     * to be parsed
+     */
+    private static class PresetSource {
+        final PresetIconManager iconManager;
+        final byte[]            xml;
+        final String            xmlHash;
+        final byte[]            poData;
+        final String            poHash;
+
+        /**
+         * Read the XML and translations for a preset
+         * 
+         * @param ctx context (used for preset loading)
+         * @param directory directory to load/store preset data (XML, icons, MRUs)
+         * @param externalPackage name of external package containing preset assets for APK presets, null for other
+         *            presets
+         * @param useTranslations if true use included translations
+         * @throws IOException if reading fails
+         * @throws NoSuchAlgorithmException if SHA-256 isn't available
+         */
+        PresetSource(@NonNull Context ctx, @NonNull File directory, @Nullable String externalPackage, boolean useTranslations)
+                throws IOException, NoSuchAlgorithmException {
+            // noinspection ResultOfMethodCallIgnored
+            directory.mkdir();
+
+            InputStream fileStream = null;
+            InputStream poFileStream = null;
+            try {
+                if (directory.getName().equals(AdvancedPrefDatabase.ID_DEFAULT)) {
+                    Log.i(DEBUG_TAG, "Loading default preset");
+                    iconManager = new PresetIconManager(ctx, null, null);
+                    fileStream = iconManager.openAsset(PRESETXML, true);
+                    if (useTranslations) {
+                        // get translations
                         Locale locale = Locale.getDefault();
                         String language = locale.getLanguage();
                         poFileStream = iconManager.openAsset(DEFAULT_PRESET_TRANSLATION + locale + "." + FileExtensions.PO, true);
                         if (poFileStream == null) {
                             poFileStream = iconManager.openAsset(DEFAULT_PRESET_TRANSLATION + language + "." + FileExtensions.PO, true);
                         }
-                        po = de.blau.android.util.Util.parsePoFile(poFileStream);
-                    } finally {
-                        SavingHelper.close(poFileStream);
                     }
-                }
-            } else if (externalPackage != null) {
-                Log.i(DEBUG_TAG, "Loading APK preset, package=" + externalPackage + ", directory=" + directory.toString());
-                iconManager = new PresetIconManager(ctx, directory.toString(), externalPackage);
-                fileStream = iconManager.openAsset(PRESETXML, false);
-            } else {
-                Log.i(DEBUG_TAG, "Loading downloaded preset, directory=" + directory.toString());
-                iconManager = new PresetIconManager(ctx, directory.toString(), null);
-                File indir = new File(directory.toString());
-                File[] list = indir.listFiles(new PresetFileFilter());
-                if (list != null && list.length > 0) { // simply use the first XML file found
-                    String presetFilename = list[0].getName();
-                    Log.i(DEBUG_TAG, "Preset file name " + presetFilename);
-                    fileStream = new FileInputStream(new File(directory, presetFilename));
-                    if (useTranslations) {
-                        // get translations
-                        presetFilename = presetFilename.substring(0, presetFilename.length() - 4);
-                        InputStream poFileStream = null;
-                        try {
+                } else if (externalPackage != null) {
+                    Log.i(DEBUG_TAG, "Loading APK preset, package=" + externalPackage + ", directory=" + directory.toString());
+                    iconManager = new PresetIconManager(ctx, directory.toString(), externalPackage);
+                    fileStream = iconManager.openAsset(PRESETXML, false);
+                } else {
+                    Log.i(DEBUG_TAG, "Loading downloaded preset, directory=" + directory.toString());
+                    iconManager = new PresetIconManager(ctx, directory.toString(), null);
+                    File indir = new File(directory.toString());
+                    File[] list = indir.listFiles(new PresetFileFilter());
+                    if (list != null && list.length > 0) { // simply use the first XML file found
+                        String presetFilename = list[0].getName();
+                        Log.i(DEBUG_TAG, "Preset file name " + presetFilename);
+                        fileStream = new FileInputStream(new File(directory, presetFilename));
+                        if (useTranslations) {
+                            // get translations
+                            presetFilename = presetFilename.substring(0, presetFilename.length() - 4);
                             // try to open .po files either with the same name as the preset file or the standard name
                             try {
                                 poFileStream = getPoInputStream(directory, presetFilename + "_", Locale.getDefault());
@@ -397,39 +548,66 @@ public class Preset implements Serializable {
                                     // no translations
                                 }
                             }
-                            po = de.blau.android.util.Util.parsePoFile(poFileStream);
-                        } finally {
-                            SavingHelper.close(poFileStream);
                         }
+                    } else {
+                        Log.e(DEBUG_TAG, "Can't find preset file");
                     }
+                }
+                if (fileStream == null) {
+                    throw new FileNotFoundException("No preset XML in " + directory);
+                }
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                xml = readFully(fileStream);
+                xmlHash = Hash.toHex(digest.digest(xml));
+                if (poFileStream != null) {
+                    poData = readFully(poFileStream);
+                    poHash = Hash.toHex(digest.digest(poData));
                 } else {
-                    Log.e(DEBUG_TAG, "Can't find preset file");
+                    poHash = "";
+                    poData = null;
                 }
+            } finally {
+                SavingHelper.close(fileStream);
+                SavingHelper.close(poFileStream);
             }
+        }
 
-            DigestInputStream hashStream = new DigestInputStream(fileStream, MessageDigest.getInstance("SHA-256"));
-
-            parseXML(hashStream);
-
-            // Finish hash
-            String hashValue = Hash.toHex(hashStream.getMessageDigest().digest());
-            // in theory, it could be possible that the stream parser does not read the entire file
-            // and maybe even randomly stops at a different place each time.
-            // in practice, it does read the full file, which means this gives the actual sha256 of the file,
-            // - even if you add a 1 MB comment after the document-closing tag.
-
-            // remove chunks - this messes up the index disabled for now
-            // for (PresetItem c:new ArrayList<PresetItem>(allItems)) {
-            // if (c.isChunk()) {
-            // allItems.remove(c);
-            // }
-            // }
+        /**
+         * Parse the translations
+         * 
+         * @return a Po object or null if there are no translations
+         */
+        @Nullable
+        Po parsePo() {
+            return poData != null ? de.blau.android.util.Util.parsePoFile(new ByteArrayInputStream(poData)) : null;
+        }
 
-            mru = initMRU(directory, hashValue);
+        /**
+         * Get a key that changes if the preset, the translations or the app change
+         * 
+         * @return a String
+         */
+        @NonNull
+        String getCacheKey() {
+            return BuildConfig.VERSION_CODE + ":" + xmlHash + ":" + poHash;
+        }
 
-            Log.d(DEBUG_TAG, "search index length: " + searchIndex.getKeys().size());
-        } finally {
-            SavingHelper.close(fileStream);
+        /**
+         * Read the remaining contents of a stream
+         * 
+         * @param in the InputStream
+         * @return the contents
+         * @throws IOException if reading fails
+         */
+        @NonNull
+        private static byte[] readFully(@NonNull InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
         }
     }
 
@@ -443,7 +621,7 @@ public class Preset implements Serializable {
      * @throws FileNotFoundException if the file does not exist
      */
     @NonNull
-    private FileInputStream getPoInputStream(@NonNull File directory, @NonNull String presetFilename, @NonNull Locale locale) throws FileNotFoundException {
+    private static FileInputStream getPoInputStream(@NonNull File directory, @NonNull String presetFilename, @NonNull Locale locale) throws FileNotFoundException {
         try {
             return new FileInputStream(new File(directory, presetFilename + locale.toString() + "." + FileExtensions.PO));
         } catch (FileNotFoundException fnfe) {
@@ -1103,6 +1281,8 @@ public class Preset implements Serializable {
     /**
      * Translate a string
      * 
+     * Note that the translations are not available for a preset loaded from its compiled form
+     * 
      * @param text the text to translate
      * @param context the translation context of null
      * @return the potentially translated text as a String
@@ -1584,6 +1764,8 @@ public class Preset implements Serializable {
      * If multiple items match, the most specific one (i.e. having most tags) wins. If there is a draw, no guarantees
      * are made.
      * 
+     * The presets are matched with their compiled PresetMatchIndex and the results are cached per tag set.
+     * 
      * @param presets presets presets to match against
      * @param tags tags to check against (i.e. tags of a map element)
      * @param useAddressKeys use addr: keys if true
@@ -1591,43 +1773,37 @@ public class Preset implements Serializable {
      */
     @Nullable
     public static PresetItem findBestMatch(@Nullable Preset[] presets, @Nullable Map<String, String> tags, boolean useAddressKeys) {
-        int bestMatchStrength = 0;
-        PresetItem bestMatch = null;
-
         if (tags == null || presets == null) {
             Log.e(DEBUG_TAG, "findBestMatch " + (tags == null ? "tags null" : "presets null"));
             return null;
         }
-
-        // Build candidate list
-        Set<PresetItem> possibleMatches = buildPossibleMatches(presets, tags, false);
-        // if we only have address keys retry
-        if (useAddressKeys && possibleMatches.isEmpty()) {
-            possibleMatches = buildPossibleMatches(presets, tags, true);
-        }
-        // Find best
-        final int FIXED_WEIGHT = 100; // always prioritize presets with fixed keys
-        for (PresetItem possibleMatch : possibleMatches) {
-            int fixedTagCount = possibleMatch.getFixedTagCount() * FIXED_WEIGHT;
-            int recommendedTagCount = possibleMatch.getRecommendedKeyCount();
-            if (fixedTagCount + recommendedTagCount < bestMatchStrength) {
-                continue; // isn't going to help
+        PresetMatchIndex[] indices = new PresetMatchIndex[presets.length];
+        for (int i = 0; i < presets.length; i++) {
+            if (presets[i] != null) {
+                indices[i] = presets[i].getMatchIndex();
             }
-            int matches = 0;
-            if (fixedTagCount > 0) { // has required tags
-                if (possibleMatch.matches(tags)) {
-                    matches = fixedTagCount;
+        }
+        return matchCache.get(indices, tags, useAddressKeys);
+    }
+
+    /**
+     * Get the compiled form of the tag to PresetItem index, compiling it if necessary
+     * 
+     * @return a PresetMatchIndex
+     */
+    @NonNull
+    private PresetMatchIndex getMatchIndex() {
+        PresetMatchIndex index = matchIndex;
+        if (index == null || !index.isCurrent(tagItems, objectKeys)) {
+            synchronized (tagItems) {
+                index = matchIndex;
+                if (index == null || !index.isCurrent(tagItems, objectKeys)) {
+                    index = new PresetMatchIndex(tagItems, objectKeys);
+                    matchIndex = index;
                 }
             }
-            if (recommendedTagCount > 0) {
-                matches = matches + possibleMatch.matchesRecommended(tags);
-            }
-            if (matches > bestMatchStrength) {
-                bestMatch = possibleMatch;
-                bestMatchStrength = matches;
-            }
         }
-        return bestMatch;
+        return index;
     }
 
     /**
@@ -1671,14 +1847,26 @@ public class Preset implements Serializable {
     @NonNull
     private static Set<PresetItem> buildPossibleMatches(@NonNull Preset[] presets, @NonNull Map<String, String> tags, boolean useAddressKeys) {
         Set<PresetItem> possibleMatches = new LinkedHashSet<>();
+        // the lookup strings are the same for all presets, create them only once
+        final int size = tags.size();
+        String[] keys = new String[size];
+        String[] keyStrings = new String[size];
+        String[] tagStrings = new String[size];
+        int i = 0;
+        for (Entry<String, String> tag : tags.entrySet()) {
+            String key = tag.getKey();
+            keys[i] = key;
+            keyStrings[i] = key + "\t";
+            tagStrings[i] = keyStrings[i] + tag.getValue();
+            i++;
+        }
         for (Preset p : presets) {
             if (p != null) {
-                for (Entry<String, String> tag : tags.entrySet()) {
-                    String key = tag.getKey();
+                for (i = 0; i < size; i++) {
+                    String key = keys[i];
                     if (Tags.IMPORTANT_TAGS.contains(key) || p.isObjectKey(key) || (key.startsWith(Tags.KEY_ADDR_BASE) && useAddressKeys)) {
-                        String tagString = key + "\t";
-                        possibleMatches.addAll(p.tagItems.get(tagString)); // for stuff that doesn't have fixed values
-                        possibleMatches.addAll(p.tagItems.get(tagString + tag.getValue()));
+                        possibleMatches.addAll(p.tagItems.get(keyStrings[i])); // for stuff that doesn't have fixed values
+                        possibleMatches.addAll(p.tagItems.get(tagStrings[i]));
                     }
                 }
             }
@@ -1744,6 +1932,7 @@ public class Preset implements Serializable {
         private static final long        serialVersionUID = 6L;
         String                           name;
         String                           nameContext      = null;
+        String                           translatedName   = null;
         private String                   iconpath;
         private transient Drawable       icon;
         private transient BitmapDrawable mapIcon;
@@ -1828,6 +2017,9 @@ public class Preset implements Serializable {
          */
         @NonNull
         public String getTranslatedName() {
+            if (translatedName != null) {
+                return translatedName;
+            }
             if (nameContext != null) {
                 return po != null ? po.t(nameContext, getName()) : getName();
             }
@@ -2520,7 +2712,7 @@ public class Preset implements Serializable {
     /** Represents a preset item (e.g. "footpath", "grocery store") */
     public class PresetItem extends PresetElement {
 
-        private static final long serialVersionUID = 17L;
+        private static final long serialVersionUID = 18L;
 
         private static final String HTTP = "http";
 
@@ -2564,7 +2756,7 @@ public class Preset implements Serializable {
 
         private final int itemIndex;
 
-        private transient int recommendedKeyCount = -1;
+        private int recommendedKeyCount = -1;
 
         /**
          * Construct a new PresetItem
@@ -3498,7 +3690,7 @@ public class Preset implements Serializable {
          * 
          * @return the number of "recommended" keys
          */
-        private int getRecommendedKeyCount() {
+        int getRecommendedKeyCount() {
             if (recommendedKeyCount >= 0) {
                 return recommendedKeyCount;
             }
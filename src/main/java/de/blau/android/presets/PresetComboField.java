@@ -10,6 +10,8 @@ import ch.poole.poparser.Po;
 import de.blau.android.util.StringWithDescription;
 
 public class PresetComboField extends PresetField implements PresetFieldJavaScript {
+    private static final long serialVersionUID = 1L;
+
 
     StringWithDescription[] values;
 
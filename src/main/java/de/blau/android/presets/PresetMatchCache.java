@@ -0,0 +1,77 @@
+package de.blau.android.presets;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.presets.Preset.PresetItem;
+
+/**
+ * Cache for the results of Preset.findBestMatch keyed by the tags
+ *
+ * The results are only valid for a specific set of compiled PresetMatchIndex objects, if a different set is used the
+ * cache is cleared.
+ */
+final class PresetMatchCache {
+
+    private static final int MAX_ENTRIES = 1000;
+
+    private PresetMatchIndex[]                         indices     = null;
+    private final Map<Map<String, String>, PresetItem> matches     = new LruMap();
+    private final Map<Map<String, String>, PresetItem> addrMatches = new LruMap();
+
+    /**
+     * Access ordered map that drops the least recently used entry when full
+     */
+    private static class LruMap extends LinkedHashMap<Map<String, String>, PresetItem> {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Construct a new map
+         */
+        LruMap() {
+            super(MAX_ENTRIES, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Map<String, String>, PresetItem> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    }
+
+    /**
+     * Get the best match for the tags, matching and caching the result if it isn't cached yet
+     *
+     * @param indices the compiled indices of the Presets to match against
+     * @param tags tags to check against
+     * @param useAddressKeys use addr: keys if nothing else matches
+     * @return a preset or null if none found
+     */
+    @Nullable
+    PresetItem get(@NonNull PresetMatchIndex[] indices, @NonNull Map<String, String> tags, boolean useAddressKeys) {
+        synchronized (this) {
+            if (!Arrays.equals(indices, this.indices)) {
+                this.indices = indices;
+                matches.clear();
+                addrMatches.clear();
+            } else {
+                Map<Map<String, String>, PresetItem> cache = useAddressKeys ? addrMatches : matches;
+                PresetItem result = cache.get(tags);
+                if (result != null || cache.containsKey(tags)) {
+                    return result;
+                }
+            }
+        }
+        // match outside of the lock so that other threads are not blocked
+        PresetItem result = PresetMatchIndex.findBestMatch(indices, tags, useAddressKeys);
+        synchronized (this) {
+            if (Arrays.equals(indices, this.indices)) {
+                (useAddressKeys ? addrMatches : matches).put(new HashMap<>(tags), result);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,184 @@
+package de.blau.android.presets;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.osm.Tags;
+import de.blau.android.presets.Preset.PresetItem;
+import de.blau.android.util.collections.MultiHashMap;
+
+/**
+ * Compiled form of the tag to PresetItem index of a Preset used for finding the best match for a set of tags
+ *
+ * The "key\tvalue" strings of the index are split once in to a two level map from key to value to items, only keys
+ * that can select candidates are retained. Candidates are returned in the same order as by the string based lookup.
+ */
+final class PresetMatchIndex {
+
+    private static final PresetItem[] EMPTY = new PresetItem[0];
+
+    private static final int FIXED_WEIGHT = 100; // always prioritize presets with fixed keys
+
+    /**
+     * The items for one key
+     */
+    private static final class KeyNode {
+        final boolean                   objectKey;
+        PresetItem[]                    anyValue = EMPTY;
+        final Map<String, PresetItem[]> values   = new HashMap<>();
+
+        /**
+         * Construct a new node
+         *
+         * @param objectKey true if the key is an object key, if false it is only used for address matching
+         */
+        KeyNode(boolean objectKey) {
+            this.objectKey = objectKey;
+        }
+    }
+
+    private final Map<String, KeyNode> keys = new HashMap<>();
+    private final int                  modCount;
+    private final int                  objectKeyCount;
+
+    /**
+     * Compile the index
+     *
+     * @param tagItems the tag to PresetItem index of the Preset
+     * @param objectKeys the object keys of the Preset
+     */
+    PresetMatchIndex(@NonNull MultiHashMap<String, PresetItem> tagItems, @NonNull List<String> objectKeys) {
+        modCount = tagItems.getModCount();
+        objectKeyCount = objectKeys.size();
+        for (String tag : tagItems.getKeys()) {
+            int tab = tag.indexOf('\t');
+            if (tab < 0) {
+                continue;
+            }
+            String key = tag.substring(0, tab);
+            boolean objectKey = Tags.IMPORTANT_TAGS.contains(key) || objectKeys.contains(key);
+            if (!objectKey && !key.startsWith(Tags.KEY_ADDR_BASE)) {
+                continue; // never used for matching
+            }
+            KeyNode node = keys.get(key);
+            if (node == null) {
+                node = new KeyNode(objectKey);
+                keys.put(key, node);
+            }
+            Set<PresetItem> items = tagItems.get(tag);
+            PresetItem[] itemArray = items.toArray(new PresetItem[items.size()]);
+            if (tab == tag.length() - 1) {
+                node.anyValue = itemArray;
+            } else {
+                node.values.put(tag.substring(tab + 1), itemArray);
+            }
+        }
+    }
+
+    /**
+     * Check if the index still reflects the Preset
+     *
+     * @param tagItems the tag to PresetItem index of the Preset
+     * @param objectKeys the object keys of the Preset
+     * @return true if nothing has been changed since the index was compiled
+     */
+    boolean isCurrent(@NonNull MultiHashMap<String, PresetItem> tagItems, @NonNull List<String> objectKeys) {
+        return modCount == tagItems.getModCount() && objectKeyCount == objectKeys.size();
+    }
+
+    /**
+     * Finds the preset item best matching a certain tag set
+     *
+     * @param indices the compiled indices of the Presets to match against, may contain nulls
+     * @param tags tags to check against
+     * @param useAddressKeys use addr: keys if nothing else matches
+     * @return a preset or null if none found
+     */
+    @Nullable
+    static PresetItem findBestMatch(@NonNull PresetMatchIndex[] indices, @NonNull Map<String, String> tags, boolean useAddressKeys) {
+        BestMatch best = new BestMatch(tags);
+        best.search(indices, false);
+        // if we only have address keys retry
+        if (useAddressKeys && !best.found) {
+            best.search(indices, true);
+        }
+        return best.item;
+    }
+
+    /**
+     * State of a search for the best match
+     */
+    private static final class BestMatch {
+        final Map<String, String> tags;
+        PresetItem                item     = null;
+        int                       strength = 0;
+        boolean                   found    = false;
+
+        /**
+         * Construct a new instance
+         *
+         * @param tags the tags to match
+         */
+        BestMatch(@NonNull Map<String, String> tags) {
+            this.tags = tags;
+        }
+
+        /**
+         * Check all candidates for the tags
+         *
+         * @param indices the compiled indices of the Presets
+         * @param useAddressKeys use addr: keys
+         */
+        void search(@NonNull PresetMatchIndex[] indices, boolean useAddressKeys) {
+            for (PresetMatchIndex index : indices) {
+                if (index != null) {
+                    for (Entry<String, String> tag : tags.entrySet()) {
+                        KeyNode node = index.keys.get(tag.getKey());
+                        if (node != null && (node.objectKey || useAddressKeys)) {
+                            check(node.anyValue); // for stuff that doesn't have fixed values
+                            check(node.values.get(tag.getValue()));
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Check if any of the candidates is better than the current best match
+         *
+         * Candidates can be checked more than once, as only a strictly better match replaces the current one this
+         * doesn't change the result
+         *
+         * @param candidates the candidates or null
+         */
+        void check(@Nullable PresetItem[] candidates) {
+            if (candidates == null || candidates.length == 0) {
+                return;
+            }
+            found = true;
+            for (PresetItem candidate : candidates) {
+                int fixedTagCount = candidate.getFixedTagCount() * FIXED_WEIGHT;
+                int recommendedTagCount = candidate.getRecommendedKeyCount();
+                if (fixedTagCount + recommendedTagCount < strength) {
+                    continue; // isn't going to help
+                }
+                int matches = 0;
+                if (fixedTagCount > 0 && candidate.matches(tags)) { // has required tags
+                    matches = fixedTagCount;
+                }
+                if (recommendedTagCount > 0) {
+                    matches = matches + candidate.matchesRecommended(tags);
+                }
+                if (matches > strength) {
+                    item = candidate;
+                    strength = matches;
+                }
+            }
+        }
+    }
+}
@@ -7,6 +7,8 @@ import org.xmlpull.v1.XmlSerializer;
 import androidx.annotation.NonNull;
 
 public class PresetTextField extends PresetField implements PresetFieldJavaScript {
+    private static final long serialVersionUID = 1L;
+
     /**
      * Script for pre-filling text fields
      */
@@ -56,6 +56,7 @@ import de.blau.android.osm.OsmElement;
 import de.blau.android.osm.OsmXml;
 import de.blau.android.osm.Relation;
 import de.blau.android.osm.StyleableFeature;
+import de.blau.android.osm.TagDictionary;
 import de.blau.android.osm.Way;
 import de.blau.android.util.Density;
 import de.blau.android.util.SavingHelper;
@@ -171,7 +172,7 @@ public final class DataStyle extends DefaultHandler {
         private FeatureStyle      arrowStyle     = null;
         private FeatureStyle      casingStyle    = null;
         private boolean           oneway         = false;
-        private Boolean           closed         = null;
+        Boolean                   closed         = null;
 
         List<FeatureStyle> cascadedStyles = null;
 
@@ -191,10 +192,11 @@ public final class DataStyle extends DefaultHandler {
             String[] tagsList = tagString.split("\\|");
             for (String t : tagsList) {
                 String[] kv = t.split("=");
+                // use the shared instances so that comparisons with element tags are fast
                 if (kv.length == 2) {
-                    tags.put(kv[0], kv[1]);
+                    tags.put(TagDictionary.intern(kv[0]), TagDictionary.intern(kv[1]));
                 } else if (kv.length == 1) {
-                    tags.put(kv[0], "*");
+                    tags.put(TagDictionary.intern(kv[0]), "*");
                 }
             }
             setArea(false);
@@ -590,6 +592,8 @@ public final class DataStyle extends DefaultHandler {
     private Map<Integer, FeatureStyle> validationStyles;
     private FeatureStyle               wayStyles;
     private FeatureStyle               relationStyles;
+    private StyleMatcher               wayMatcher;
+    private StyleMatcher               relationMatcher;
 
     private static DataStyle                  currentStyle;
     private static HashMap<String, DataStyle> availableStyles = new HashMap<>();
@@ -1760,10 +1764,11 @@ public final class DataStyle extends DefaultHandler {
     public static <T extends OsmElement & StyleableFeature> FeatureStyle matchStyle(@NonNull final T element) {
         FeatureStyle style = element.getStyle();
         if (style == null) {
+            DataStyle current = currentStyle;
             if (element instanceof Way) {
-                style = matchRecursive(currentStyle.wayStyles, element.getTags(), ((Way) element).isClosed());
+                style = current.getWayMatcher().match(element.getTags(), ((Way) element).isClosed());
             } else {
-                style = matchRecursive(currentStyle.relationStyles, element.getTags(), false);
+                style = current.getRelationMatcher().match(element.getTags(), false);
             }
             element.setStyle(style);
         }
@@ -1771,23 +1776,52 @@ public final class DataStyle extends DefaultHandler {
     }
 
     /**
-     * Recursively traverse the styles and try to find a match
+     * Get the top level way style
      * 
-     * @param style the style
-     * @param tags tags from the element we are trying to match
-     * @param closed true if the element is a way and closed
-     * @return the best matching style
+     * This is only useful for testing
+     * 
+     * @return the FeatureStyle at the root of the way styles
      */
     @NonNull
-    private static FeatureStyle matchRecursive(@NonNull FeatureStyle style, @NonNull SortedMap<String, String> tags, boolean closed) {
-        FeatureStyle result = style;
-        if (style.cascadedStyles != null) {
-            for (FeatureStyle s : style.cascadedStyles) {
-                if ((s.closed == null || s.closed == closed) && s.match(tags)) {
-                    return matchRecursive(s, tags, closed);
-                }
-            }
+    FeatureStyle getWayStyles() {
+        return wayStyles;
+    }
+
+    /**
+     * Get the top level relation style
+     * 
+     * This is only useful for testing
+     * 
+     * @return the FeatureStyle at the root of the relation styles
+     */
+    @NonNull
+    FeatureStyle getRelationStyles() {
+        return relationStyles;
+    }
+
+    /**
+     * Get the compiled way styles, compiling them if necessary
+     * 
+     * @return a StyleMatcher for the way styles
+     */
+    @NonNull
+    private synchronized StyleMatcher getWayMatcher() {
+        if (wayMatcher == null) {
+            wayMatcher = new StyleMatcher(wayStyles);
+        }
+        return wayMatcher;
+    }
+
+    /**
+     * Get the compiled relation styles, compiling them if necessary
+     * 
+     * @return a StyleMatcher for the relation styles
+     */
+    @NonNull
+    private synchronized StyleMatcher getRelationMatcher() {
+        if (relationMatcher == null) {
+            relationMatcher = new StyleMatcher(relationStyles);
         }
-        return result;
+        return relationMatcher;
     }
 }
@@ -0,0 +1,206 @@
+package de.blau.android.resources;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.resources.DataStyle.FeatureStyle;
+
+/**
+ * Compiled form of a tree of cascaded FeatureStyles
+ *
+ * For every style with cascaded styles a table from the tags of the cascaded styles to their position is built, each
+ * cascaded style is entered with one of its tags. To find the style for a set of tags only the cascaded styles that
+ * are found via the tags need to be checked instead of all of them, the first one in the original order that matches
+ * is used, as with a linear search. Results are cached keyed by the tags and closed status so that identical features
+ * share one lookup.
+ */
+final class StyleMatcher {
+
+    private static final int   MAX_ENTRIES = 1000;
+    private static final int[] NONE        = new int[0];
+
+    private static final String WILDCARD = "*";
+
+    /**
+     * A FeatureStyle and the table for its cascaded styles
+     */
+    private static final class Node {
+        final FeatureStyle                    style;
+        final Node[]                          children;
+        final Map<String, Map<String, int[]>> byValue = new HashMap<>();
+        final Map<String, int[]>              byKey   = new HashMap<>();
+        final int[]                           always;
+
+        /**
+         * Compile a FeatureStyle and its cascaded styles
+         *
+         * @param style the FeatureStyle
+         */
+        Node(@NonNull FeatureStyle style) {
+            this.style = style;
+            List<FeatureStyle> cascaded = style.cascadedStyles;
+            int count = cascaded != null ? cascaded.size() : 0;
+            children = new Node[count];
+            List<Integer> temp = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                FeatureStyle child = cascaded.get(i);
+                children[i] = new Node(child);
+                Entry<String, String> indexTag = null;
+                for (Entry<String, String> tag : child.tags.entrySet()) {
+                    if (indexTag == null || WILDCARD.equals(indexTag.getValue())) {
+                        indexTag = tag; // prefer a tag with a value as that is more selective
+                    }
+                }
+                if (indexTag == null) {
+                    temp.add(i);
+                } else if (WILDCARD.equals(indexTag.getValue())) {
+                    byKey.put(indexTag.getKey(), append(byKey.get(indexTag.getKey()), i));
+                } else {
+                    Map<String, int[]> values = byValue.get(indexTag.getKey());
+                    if (values == null) {
+                        values = new HashMap<>();
+                        byValue.put(indexTag.getKey(), values);
+                    }
+                    values.put(indexTag.getValue(), append(values.get(indexTag.getValue()), i));
+                }
+            }
+            always = new int[temp.size()];
+            for (int i = 0; i < always.length; i++) {
+                always[i] = temp.get(i);
+            }
+        }
+
+        /**
+         * Find the first cascaded style in a list of candidates that matches
+         *
+         * @param candidates the positions of the candidates in ascending order or null
+         * @param tags tags from the element we are trying to match
+         * @param closed true if the element is a way and closed
+         * @param best the position of the best match found so far
+         * @return the position of the new best match or best
+         */
+        int firstMatch(@Nullable int[] candidates, @NonNull SortedMap<String, String> tags, boolean closed, int best) {
+            if (candidates != null) {
+                for (int i : candidates) {
+                    if (i >= best) {
+                        break;
+                    }
+                    FeatureStyle s = children[i].style;
+                    if ((s.closed == null || s.closed == closed) && s.match(tags)) {
+                        return i;
+                    }
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Access ordered map that drops the least recently used entry when full
+     */
+    private static class LruMap extends LinkedHashMap<SortedMap<String, String>, FeatureStyle> {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Construct a new map
+         */
+        LruMap() {
+            super(MAX_ENTRIES, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SortedMap<String, String>, FeatureStyle> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    }
+
+    private final Node                                          root;
+    private final Map<SortedMap<String, String>, FeatureStyle> open   = new LruMap();
+    private final Map<SortedMap<String, String>, FeatureStyle> closed = new LruMap();
+
+    /**
+     * Compile a tree of FeatureStyles
+     *
+     * @param root the top level FeatureStyle
+     */
+    StyleMatcher(@NonNull FeatureStyle root) {
+        this.root = new Node(root);
+    }
+
+    /**
+     * Append a position to an array of positions
+     *
+     * @param positions the existing array or null
+     * @param position the position to add
+     * @return a new array
+     */
+    @NonNull
+    private static int[] append(@Nullable int[] positions, int position) {
+        if (positions == null) {
+            positions = NONE;
+        }
+        int[] result = Arrays.copyOf(positions, positions.length + 1);
+        result[positions.length] = position;
+        return result;
+    }
+
+    /**
+     * Find the style for a set of tags
+     *
+     * @param tags tags from the element we are trying to match
+     * @param isClosed true if the element is a way and closed
+     * @return the best matching style
+     */
+    @NonNull
+    FeatureStyle match(@NonNull SortedMap<String, String> tags, boolean isClosed) {
+        Map<SortedMap<String, String>, FeatureStyle> cache = isClosed ? closed : open;
+        synchronized (this) {
+            FeatureStyle style = cache.get(tags);
+            if (style != null) {
+                return style;
+            }
+        }
+        FeatureStyle style = matchCompiled(tags, isClosed);
+        synchronized (this) {
+            cache.put(new TreeMap<>(tags), style);
+        }
+        return style;
+    }
+
+    /**
+     * Find the style for a set of tags in the compiled tree
+     *
+     * @param tags tags from the element we are trying to match
+     * @param isClosed true if the element is a way and closed
+     * @return the best matching style
+     */
+    @NonNull
+    private FeatureStyle matchCompiled(@NonNull SortedMap<String, String> tags, boolean isClosed) {
+        Node node = root;
+        while (node.children.length > 0) {
+            int best = node.firstMatch(node.always, tags, isClosed, Integer.MAX_VALUE);
+            for (Entry<String, String> tag : tags.entrySet()) {
+                String key = tag.getKey();
+                best = node.firstMatch(node.byKey.get(key), tags, isClosed, best);
+                Map<String, int[]> values = node.byValue.get(key);
+                if (values != null) {
+                    best = node.firstMatch(values.get(tag.getValue()), tags, isClosed, best);
+                }
+            }
+            if (best == Integer.MAX_VALUE) {
+                break;
+            }
+            node = node.children[best];
+        }
+        return node.style;
+    }
+}
@@ -25,7 +25,7 @@ import de.blau.android.util.collections.MultiHashMap;
 public class TileLayerDatabase extends SQLiteOpenHelper {
     private static final String DEBUG_TAG        = "TileLayerDatabase";
     public static final String  DATABASE_NAME    = "tilelayers";
-    private static final int    DATABASE_VERSION = 6;
+    private static final int    DATABASE_VERSION = 7;
 
     public static final String SOURCE_ELI          = "eli";    // editor-layer-index
     public static final String SOURCE_JOSM_IMAGERY = "josm";   // josm.openstreetmap.de/wiki/maps
@@ -62,6 +62,7 @@ public class TileLayerDatabase extends SQLiteOpenHelper {
     private static final String LOGO_FIELD               = "logo";
     private static final String DESCRIPTION_FIELD        = "description";
     private static final String PRIVACY_POLICY_URL_FIELD = "privacy_policy_url";
+    private static final String TILE_STORE_FIELD         = "tile_store";
 
     public static final String  COVERAGES_TABLE = "coverages";
     private static final String LEFT_FIELD      = "left";
@@ -95,7 +96,7 @@ public class TileLayerDatabase extends SQLiteOpenHelper {
                             + " over_zoom_max INTEGER NOT NULL DEFAULT 4, tile_width INTEGER NOT NULL DEFAULT 256, tile_height INTEGER NOT NULL DEFAULT 256,"
                             + " proj TEXT DEFAULT NULL, preference INTEGER NOT NULL DEFAULT 0, start_date INTEGER DEFAULT NULL, end_date INTEGER DEFAULT NULL,"
                             + " no_tile_header TEXT DEFAULT NULL, no_tile_value TEXT DEFAULT NULL,  logo_url TEXT DEFAULT NULL, logo BLOB DEFAULT NULL,"
-                            + " description TEXT DEFAULT NULL, privacy_policy_url TEXT DEFAULT NULL, attribution_url TEXT DEFAULT NULL, FOREIGN KEY(source) REFERENCES sources(name) ON DELETE CASCADE)");
+                            + " description TEXT DEFAULT NULL, privacy_policy_url TEXT DEFAULT NULL, attribution_url TEXT DEFAULT NULL, tile_store TEXT DEFAULT NULL, FOREIGN KEY(source) REFERENCES sources(name) ON DELETE CASCADE)");
             db.execSQL("CREATE INDEX layers_overlay_idx ON layers(overlay)");
             db.execSQL("CREATE INDEX layers_source_idx ON layers(source)");
             db.execSQL("CREATE TABLE coverages (id TEXT NOT NULL, zoom_min INTEGER NOT NULL DEFAULT 0, zoom_max INTEGER NOT NULL DEFAULT 18,"
@@ -127,6 +128,9 @@ public class TileLayerDatabase extends SQLiteOpenHelper {
         if (oldVersion <= 5 && newVersion >= 6) {
             db.execSQL("ALTER TABLE layers ADD COLUMN attribution_url TEXT DEFAULT NULL");
         }
+        if (oldVersion <= 6 && newVersion >= 7) {
+            db.execSQL("ALTER TABLE layers ADD COLUMN tile_store TEXT DEFAULT NULL");
+        }
     }
 
     @Override
@@ -291,6 +295,7 @@ public class TileLayerDatabase extends SQLiteOpenHelper {
         }
         values.put(DESCRIPTION_FIELD, layer.getDescription());
         values.put(PRIVACY_POLICY_URL_FIELD, layer.getPrivacyPolicyUrl());
+        values.put(TILE_STORE_FIELD, layer.getTileStore());
         return values;
     }
 
@@ -557,6 +562,7 @@ public class TileLayerDatabase extends SQLiteOpenHelper {
     static int logoFieldIndex             = -1;
     static int descriptionFieldIndex      = -1;
     static int privacyPolicyUrlFieldIndex = -1;
+    static int tileStoreFieldIndex        = -1;
 
     /**
      * Create a TileLayerServer from a database entry
@@ -612,6 +618,7 @@ public class TileLayerDatabase extends SQLiteOpenHelper {
                 logoBytes, zoomLevelMin, zoomLevelMax, maxOverZoom, tileWidth, tileHeight, proj, preference, startDate, endDate, noTileHeader, noTileValues,
                 description, privacyPolicyUrl, true);
         layer.setSource(source);
+        layer.setTileStore(cursor.getString(tileStoreFieldIndex));
         return layer;
     }
 
@@ -647,6 +654,7 @@ public class TileLayerDatabase extends SQLiteOpenHelper {
         logoFieldIndex = cursor.getColumnIndex(LOGO_FIELD);
         descriptionFieldIndex = cursor.getColumnIndex(DESCRIPTION_FIELD);
         privacyPolicyUrlFieldIndex = cursor.getColumnIndex(PRIVACY_POLICY_URL_FIELD);
+        tileStoreFieldIndex = cursor.getColumnIndex(TILE_STORE_FIELD);
     }
 
     /**
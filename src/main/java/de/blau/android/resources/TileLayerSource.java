@@ -110,6 +110,9 @@ public class TileLayerSource implements Serializable {
     public static final String LAYER_NOOVERLAY   = "NOOVERLAY";
     public static final String LAYER_BING        = "BING";
 
+    public static final String TILE_STORE_SQLITE   = "sqlite";
+    public static final String TILE_STORE_SEGMENTS = "segments";
+
     /**
      * A tile layer provide has some attribution text, and one or more coverage areas.
      * 
@@ -480,9 +483,10 @@ public class TileLayerSource implements Serializable {
     private String                   wmsAxisOrder     = null;
     private transient List<Provider> providers        = new ArrayList<>();
 
-    private boolean  readOnly = false;
+    private boolean  readOnly  = false;
     private String   imageryOffsetId; // cached id for offset DB
     private Offset[] offsets;
+    private String   tileStore = TILE_STORE_SQLITE;
 
     private static Map<String, TileLayerSource> backgroundServerList = null;
     private static Map<String, TileLayerSource> overlayServerList    = null;
@@ -1678,6 +1682,34 @@ public class TileLayerSource implements Serializable {
         return readOnly;
     }
 
+    /**
+     * Get the storage backend used for caching tiles of this layer
+     * 
+     * @return TILE_STORE_SQLITE or TILE_STORE_SEGMENTS
+     */
+    @NonNull
+    public String getTileStore() {
+        return tileStore;
+    }
+
+    /**
+     * Set the storage backend used for caching tiles of this layer
+     * 
+     * @param tileStore TILE_STORE_SQLITE, TILE_STORE_SEGMENTS or null for the default
+     */
+    public void setTileStore(@Nullable String tileStore) {
+        this.tileStore = TILE_STORE_SEGMENTS.equals(tileStore) ? TILE_STORE_SEGMENTS : TILE_STORE_SQLITE;
+    }
+
+    /**
+     * Check if tiles of this layer are cached in segment files instead of the tile database
+     * 
+     * @return true if a MapTileSegmentStore is used
+     */
+    public boolean usesSegmentStore() {
+        return TILE_STORE_SEGMENTS.equals(tileStore);
+    }
+
     /**
      * Return a sorted list of tile servers
      * 
@@ -23,6 +23,9 @@ import de.blau.android.resources.TileLayerSource;
 import de.blau.android.services.util.MapTile;
 import de.blau.android.services.util.MapTileFilesystemProvider;
 import de.blau.android.services.util.MapTileProviderDataBase;
+import de.blau.android.services.util.MapTileSeeder;
+import de.blau.android.services.util.TileSeedJob;
+import de.blau.android.services.util.MapTileViewport;
 import de.blau.android.util.Snack;
 
 /**
@@ -39,6 +42,7 @@ public class MapTileProviderService extends Service {
 
     private static final String       DEBUG_TAG           = MapTileProviderService.class.getSimpleName();
     private MapTileFilesystemProvider mFileSystemProvider;
+    private MapTileSeeder             mSeeder;
     private boolean                   mountPointWriteable = false;
 
     @Override
@@ -107,6 +111,8 @@ public class MapTileProviderService extends Service {
                 mFileSystemProvider = new MapTileFilesystemProvider(this, mountPoint, tileCacheSize * 1024 * 1024); // FSCache
                 // try to get BING layer early so the meta-data is already loaded
                 TileLayerSource.get(this, TileLayerSource.LAYER_BING, false);
+                mSeeder = new MapTileSeeder(this, mFileSystemProvider);
+                mSeeder.resume();
                 return;
             } catch (SQLiteException slex) {
                 Log.d(DEBUG_TAG, "Opening DB hit " + slex);
@@ -120,6 +126,9 @@ public class MapTileProviderService extends Service {
 
     @Override
     public void onDestroy() {
+        if (mSeeder != null) {
+            mSeeder.destroy();
+        }
         if (mFileSystemProvider != null) {
             mFileSystemProvider.destroy();
         }
@@ -131,6 +140,14 @@ public class MapTileProviderService extends Service {
         return mBinder;
     }
 
+    @Override
+    public boolean onUnbind(Intent intent) {
+        if (mFileSystemProvider != null) {
+            mFileSystemProvider.detachTileBuffers(); // all clients have unbound
+        }
+        return super.onUnbind(intent);
+    }
+
     /**
      * The IRemoteInterface is defined through IDL
      */
@@ -175,6 +192,57 @@ public class MapTileProviderService extends Service {
             mFileSystemProvider.flushQueue(rendererId, zoomLevel);
         }
 
+        /**
+         * Set the range of tiles that is currently displayed, requests outside of the range are cancelled
+         * 
+         * @param rendererId the tile renderer
+         * @param zoomLevel the zoom level
+         * @param left left most tile x
+         * @param top top most tile y
+         * @param right right most tile x
+         * @param bottom bottom most tile y
+         */
+        public void setViewport(@NonNull String rendererId, int zoomLevel, int left, int top, int right, int bottom) {
+            if (mFileSystemProvider != null) {
+                mFileSystemProvider.setViewport(new MapTileViewport(rendererId, zoomLevel, left, top, right, bottom));
+            }
+        }
+
+        /**
+         * Download all tiles for an area so that they are available offline
+         * 
+         * @param rendererId the tile renderer
+         * @param left western most longitude
+         * @param bottom southern most latitude
+         * @param right eastern most longitude
+         * @param top northern most latitude
+         * @param polygon optional polygon as longitude latitude pairs to restrict the area further
+         * @param minZoom the lowest zoom level
+         * @param maxZoom the highest zoom level
+         */
+        public void seedArea(@NonNull String rendererId, double left, double bottom, double right, double top, @Nullable double[] polygon, int minZoom,
+                int maxZoom) {
+            if (mSeeder == null) {
+                return;
+            }
+            try {
+                mSeeder.seed(new TileSeedJob(rendererId, left, bottom, right, top, polygon, minZoom, maxZoom));
+            } catch (IllegalArgumentException iaex) {
+                Log.e(DEBUG_TAG, "seedArea " + iaex.getMessage());
+            }
+        }
+
+        /**
+         * Stop downloading tiles for an area
+         * 
+         * @param rendererId the tile renderer, if null all seeding will be stopped
+         */
+        public void stopSeeding(@Nullable String rendererId) {
+            if (mSeeder != null) {
+                mSeeder.stop(rendererId);
+            }
+        }
+
         /**
          * Update the configuration
          */
@@ -183,5 +251,27 @@ public class MapTileProviderService extends Service {
                 TileLayerSource.getListsLocked(MapTileProviderService.this, db, false);
             }
         }
+
+        /**
+         * Start passing tiles via a shared tile buffer
+         * 
+         * @param callback the callback the client uses when requesting tiles
+         * @return the path of the buffer file or null if not available
+         */
+        @Nullable
+        public String attachTileBuffer(IMapTileProviderCallback callback) {
+            return mFileSystemProvider != null ? mFileSystemProvider.attachTileBuffer(callback) : null;
+        }
+
+        /**
+         * Stop passing tiles via the shared tile buffer
+         * 
+         * @param callback the callback the client uses when requesting tiles
+         */
+        public void detachTileBuffer(IMapTileProviderCallback callback) {
+            if (mFileSystemProvider != null) {
+                mFileSystemProvider.detachTileBuffer(callback);
+            }
+        }
     };
 }
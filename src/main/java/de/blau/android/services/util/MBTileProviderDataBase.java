@@ -56,7 +56,7 @@ public class MBTileProviderDataBase {
 
     private final SQLiteDatabase mDatabase;
 
-    private static Pools.SynchronizedPool<SQLiteStatement> getStatements;
+    private final Pools.SynchronizedPool<SQLiteStatement> getStatements;
 
     private Map<String, String> metadata = null;
 
@@ -110,11 +110,7 @@ public class MBTileProviderDataBase {
             if (mDatabase.isOpen()) {
                 SQLiteStatement get = null;
                 try {
-                    get = getStatements.acquire();
-                    if (get == null) {
-                        Log.e(DEBUG_TAG, "statement null");
-                        return null;
-                    }
+                    get = acquireStatement();
                     bindTile(aTile, get);
                     ParcelFileDescriptor.AutoCloseInputStream acis = new ParcelFileDescriptor.AutoCloseInputStream(get.simpleQueryForBlobFileDescriptor());
                     ByteArrayOutputStream bos = new ByteArrayOutputStream();
@@ -130,9 +126,7 @@ public class MBTileProviderDataBase {
                     // nothing found
                     return null;
                 } finally {
-                    if (get != null) {
-                        getStatements.release(get);
-                    }
+                    releaseStatement(get);
                 }
             }
         } catch (SQLiteException sex) { // handle these exceptions the same
@@ -161,20 +155,14 @@ public class MBTileProviderDataBase {
             if (mDatabase.isOpen()) {
                 SQLiteStatement get = null;
                 try {
-                    get = getStatements.acquire();
-                    if (get == null) {
-                        Log.e(DEBUG_TAG, "statement null");
-                        return null;
-                    }
+                    get = acquireStatement();
                     bindTile(aTile, get);
                     return new ParcelFileDescriptor.AutoCloseInputStream(get.simpleQueryForBlobFileDescriptor());
                 } catch (SQLiteDoneException sde) {
                     // nothing found
                     return null;
                 } finally {
-                    if (get != null) {
-                        getStatements.release(get);
-                    }
+                    releaseStatement(get);
                 }
             }
         } catch (SQLiteException sex) { // handle these exceptions the same
@@ -186,6 +174,34 @@ public class MBTileProviderDataBase {
         return null;
     }
 
+    /**
+     * Get a prepared statement from the pool
+     * 
+     * If more threads than expected are reading, a temporary statement is compiled instead of failing
+     * 
+     * @return a SQLiteStatement
+     */
+    @NonNull
+    private SQLiteStatement acquireStatement() {
+        SQLiteStatement get = getStatements.acquire();
+        if (get == null) {
+            Log.w(DEBUG_TAG, "No prepared statement available, compiling a temporary one");
+            get = mDatabase.compileStatement(T_MBTILES_GET);
+        }
+        return get;
+    }
+
+    /**
+     * Return a prepared statement to the pool, closing it if the pool is already full
+     * 
+     * @param get the statement or null
+     */
+    private void releaseStatement(@Nullable SQLiteStatement get) {
+        if (get != null && !getStatements.release(get)) {
+            get.close();
+        }
+    }
+
     /**
      * Bind the tile values to the prepared statement
      * 
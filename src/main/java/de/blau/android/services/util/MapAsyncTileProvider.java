@@ -1,13 +1,20 @@
 package de.blau.android.services.util;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import android.os.RemoteException;
+import android.util.Log;
 import androidx.annotation.NonNull;
 import de.blau.android.services.IMapTileProviderCallback;
 
@@ -22,15 +29,31 @@ import de.blau.android.services.IMapTileProviderCallback;
  */
 public abstract class MapAsyncTileProvider {
 
+    private static final String DEBUG_TAG = MapAsyncTileProvider.class.getSimpleName();
+
     public static final int IOERR        = 1;
     public static final int DOESNOTEXIST = 2;
     public static final int NONETWORK    = 3;
     public static final int RETRY        = 4;
+    public static final int CANCELLED    = 5;
 
     public static final int ALLZOOMS = -1;
 
-    ThreadPoolExecutor                  mThreadPool;
-    private final Map<String, Runnable> mPending = Collections.synchronizedMap(new HashMap<String, Runnable>());
+    ThreadPoolExecutor                         mThreadPool;
+    private final Map<String, TileLoader>      mPending   = Collections.synchronizedMap(new HashMap<String, TileLoader>());
+    private final Map<String, MapTileViewport> viewports  = new HashMap<>();
+    private long                               generation = 0;
+
+    /**
+     * Create a thread pool that runs the queued TileLoaders in priority order
+     * 
+     * @param threads the number of threads
+     * @return a ThreadPoolExecutor
+     */
+    @NonNull
+    static ThreadPoolExecutor newPriorityThreadPool(int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+    }
 
     /**
      * Queue a tile for loading, if it is already in the queue this returns without doing anything
@@ -45,26 +68,173 @@ public abstract class MapAsyncTileProvider {
             return;
         }
 
-        Runnable r = getTileLoader(aTile, aCallback);
-        mPending.put(tileId, r);
-        mThreadPool.execute(r);
+        queue(getTileLoader(aTile, aCallback));
+    }
+
+    /**
+     * Queue a tile for loading in the background
+     * 
+     * Background requests are loaded after all other requests and are not cancelled when the viewport changes
+     * 
+     * @param aTile the tile descriptor
+     * @param aCallback the call back for when the tile has been loaded
+     * @return true if the request was queued, false if the tile is already pending
+     */
+    public synchronized boolean loadMapTileInBackground(@NonNull final MapTile aTile, @NonNull final IMapTileProviderCallback aCallback) {
+        if (mPending.containsKey(aTile.toId())) {
+            return false;
+        }
+        TileLoader loader = getTileLoader(aTile, aCallback);
+        loader.background = true;
+        queue(loader);
+        return true;
+    }
+
+    /**
+     * Add a TileLoader to the queue
+     * 
+     * @param loader the TileLoader
+     */
+    synchronized void queue(@NonNull TileLoader loader) {
+        updatePriority(loader);
+        mPending.put(loader.mTile.toId(), loader);
+        mThreadPool.execute(loader);
+    }
+
+    /**
+     * Check if a tile is queued or being loaded
+     * 
+     * @param aTile the tile descriptor
+     * @return true if the tile is pending
+     */
+    boolean isPending(@NonNull final MapTile aTile) {
+        return mPending.containsKey(aTile.toId());
+    }
+
+    /**
+     * Set the tiles currently displayed for a tile layer
+     * 
+     * Queued requests for the layer that are outside of the viewport are cancelled, the remaining ones are moved to
+     * the front of the queue and ordered by their distance from the center of the viewport
+     * 
+     * @param viewport the new viewport
+     */
+    public void setViewport(@NonNull MapTileViewport viewport) {
+        List<TileLoader> cancelled = new ArrayList<>();
+        updateViewport(viewport, cancelled);
+        // the callbacks are binder calls, don't make them while holding the lock
+        for (TileLoader loader : cancelled) {
+            notifyCancelled(loader);
+        }
+    }
+
+    /**
+     * Set the viewport for a tile layer and update the queued requests
+     * 
+     * @param viewport the new viewport
+     * @param cancelled a List the requests that are outside of the viewport are added to, they are no longer pending
+     *            but the requesters haven't been told yet
+     */
+    synchronized void updateViewport(@NonNull MapTileViewport viewport, @NonNull List<TileLoader> cancelled) {
+        synchronized (viewports) {
+            MapTileViewport current = viewports.get(viewport.rendererId);
+            if (current != null && current.sameAs(viewport)) {
+                return;
+            }
+            viewports.put(viewport.rendererId, viewport);
+            generation++;
+        }
+        BlockingQueue<Runnable> queue = mThreadPool.getQueue();
+        List<Runnable> queued = new ArrayList<>();
+        queue.drainTo(queued);
+        List<Runnable> keep = new ArrayList<>(queued.size());
+        for (Runnable r : queued) {
+            TileLoader loader = (TileLoader) r;
+            if (updatePriority(loader)) {
+                keep.add(loader);
+            } else {
+                loader.finished();
+                cancelled.add(loader);
+            }
+        }
+        queue.addAll(keep);
+    }
+
+    /**
+     * Set the priority of a TileLoader from the current viewport of its layer
+     * 
+     * @param loader the TileLoader
+     * @return false if the tile is outside of the viewport
+     */
+    boolean updatePriority(@NonNull TileLoader loader) {
+        if (loader.background) {
+            loader.generation = -1;
+            loader.distance = 0;
+            return true;
+        }
+        synchronized (viewports) {
+            MapTileViewport viewport = viewports.get(loader.mTile.rendererID);
+            loader.generation = generation;
+            if (viewport == null) {
+                loader.distance = 0;
+                return true;
+            }
+            loader.distance = viewport.distance(loader.mTile);
+            return viewport.contains(loader.mTile);
+        }
+    }
+
+    /**
+     * Drop a request that is no longer needed and tell the requester about it
+     * 
+     * @param loader the TileLoader for the request
+     */
+    void cancel(@NonNull TileLoader loader) {
+        loader.finished();
+        notifyCancelled(loader);
+    }
+
+    /**
+     * Tell the requester that a request has been cancelled
+     * 
+     * @param loader the TileLoader for the request
+     */
+    private void notifyCancelled(@NonNull TileLoader loader) {
+        try {
+            loader.mCallback.mapTileFailed(loader.mTile.rendererID, loader.mTile.zoomLevel, loader.mTile.x, loader.mTile.y, CANCELLED);
+        } catch (RemoteException | RuntimeException e) {
+            Log.e(DEBUG_TAG, "Error cancelling " + loader.mTile + " " + e.getMessage());
+        }
     }
 
     /**
-     * Remove a specific request from the Executors queue
+     * Remove a specific request from the Executors queue, the requester is told that it has been cancelled
+     * 
+     * Background requests are not removed
      * 
      * @param tileId id of the request
      * @return true if successful
      */
     private boolean removeRequest(@NonNull final String tileId) {
-        Runnable r = mPending.get(tileId);
-        if (mThreadPool.remove(r)) {
-            mPending.remove(tileId);
+        TileLoader r = mPending.get(tileId);
+        if (r != null && !r.background && (mThreadPool.remove(r) || removeWaiting(r))) {
+            cancel(r);
             return true;
         }
         return false;
     }
 
+    /**
+     * Remove a request that has been taken off the Executors queue but is waiting for something else before it can
+     * run
+     * 
+     * @param loader the TileLoader for the request
+     * @return true if the request was waiting and has been removed
+     */
+    boolean removeWaiting(@NonNull TileLoader loader) {
+        return false;
+    }
+
     /**
      * Remove requests from the Executor queue for a specific renderer and zoom level
      * 
@@ -72,19 +242,19 @@ public abstract class MapAsyncTileProvider {
      * @param zoom the zoom level we want to remove tiles for, if ALLZOOMS remove all requests for the renderer
      */
     public void flushQueue(@NonNull String rendererId, int zoom) {
-        Set<Entry<String, Runnable>> entries;
+        Set<Entry<String, TileLoader>> entries;
         synchronized (mPending) {
             entries = new HashSet<>(mPending.entrySet());
         }
         if (zoom != ALLZOOMS) {
             String id = Integer.toString(zoom) + rendererId; // see MapTile.toId()
-            for (Entry<String, Runnable> e : entries) {
+            for (Entry<String, TileLoader> e : entries) {
                 if (e.getKey().startsWith(id)) {
                     removeRequest(e.getKey());
                 }
             }
         } else {
-            for (Entry<String, Runnable> e : entries) {
+            for (Entry<String, TileLoader> e : entries) {
                 if (e.getKey().contains(rendererId)) {
                     removeRequest(e.getKey());
                 }
@@ -99,11 +269,17 @@ public abstract class MapAsyncTileProvider {
      * @param aCallback callback to the TileProvider
      * @return a TileLoader
      */
-    protected abstract Runnable getTileLoader(@NonNull final MapTile aTile, @NonNull final IMapTileProviderCallback aCallback);
+    protected abstract TileLoader getTileLoader(@NonNull final MapTile aTile, @NonNull final IMapTileProviderCallback aCallback);
 
-    abstract class TileLoader implements Runnable {
+    abstract class TileLoader implements Runnable, Comparable<TileLoader> {
         final MapTile                  mTile;
         final IMapTileProviderCallback mCallback;
+        /** viewport generation, newer requests are loaded first */
+        long                           generation;
+        /** squared distance from the center of the viewport */
+        double                         distance;
+        /** background requests are loaded last and never cancelled */
+        boolean                        background = false;
 
         /**
          * Construct a new TileLoader
@@ -122,5 +298,13 @@ public abstract class MapAsyncTileProvider {
         void finished() {
             mPending.remove(mTile.toId());
         }
+
+        @Override
+        public int compareTo(@NonNull TileLoader other) {
+            if (generation != other.generation) {
+                return generation > other.generation ? -1 : 1;
+            }
+            return Double.compare(distance, other.distance);
+        }
     }
 }
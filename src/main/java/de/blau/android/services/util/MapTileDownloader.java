@@ -1,18 +1,16 @@
 // Created by plusminus on 21:31:36 - 25.09.2008
 package de.blau.android.services.util;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -21,18 +19,14 @@ import android.graphics.BitmapFactory;
 import android.os.RemoteException;
 import android.util.Log;
 import androidx.annotation.NonNull;
-import de.blau.android.App;
 import de.blau.android.contract.MimeTypes;
 import de.blau.android.prefs.Preferences;
 import de.blau.android.resources.TileLayerSource;
 import de.blau.android.services.IMapTileProviderCallback;
+import de.blau.android.services.util.TileHttpClient.TileResponse;
 import de.blau.android.util.NetworkStatus;
-import okhttp3.Call;
+import okhttp3.HttpUrl;
 import okhttp3.MediaType;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
-import okhttp3.ResponseBody;
 
 /**
  * The OpenStreetMapTileDownloader loads tiles from a server and passes them to a OpenStreetMapTileFilesystemProvider.
@@ -53,7 +47,7 @@ public class MapTileDownloader extends MapAsyncTileProvider {
 
     private static final String DEBUGTAG = "MapTileDownloader";
 
-    public static final long TIMEOUT = 5000;
+    public static final long TIMEOUT = TileHttpClient.TIMEOUT;
 
     // ===========================================================
     // Fields
@@ -62,7 +56,15 @@ public class MapTileDownloader extends MapAsyncTileProvider {
     private final Context                   mCtx;
     private final MapTileFilesystemProvider mMapTileFSProvider;
     private final NetworkStatus             networkStatus;
-    private final OkHttpClient              client;
+    private final TileHttpClient            client;
+
+    /**
+     * Maximum number of concurrent downloads from one host, less than the number of threads so that a single host
+     * can't block downloads from other layers, layers that use subdomains are spread over several hosts
+     */
+    private final int                           maxConnectionsPerHost;
+    private final Map<String, Integer>          hostConnections = new HashMap<>();
+    private final Map<String, List<TileLoader>> hostWaiting     = new HashMap<>();
 
     // ===========================================================
     // Constructors
@@ -78,8 +80,10 @@ public class MapTileDownloader extends MapAsyncTileProvider {
         mCtx = ctx;
         mMapTileFSProvider = aMapTileFSProvider;
         networkStatus = new NetworkStatus(ctx);
-        mThreadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool((new Preferences(ctx)).getMaxTileDownloadThreads());
-        client = App.getHttpClient().newBuilder().connectTimeout(TIMEOUT, TimeUnit.MILLISECONDS).readTimeout(TIMEOUT, TimeUnit.MILLISECONDS).build();
+        int maxThreads = (new Preferences(ctx)).getMaxTileDownloadThreads();
+        mThreadPool = newPriorityThreadPool(maxThreads);
+        maxConnectionsPerHost = Math.max(1, maxThreads - 1);
+        client = TileHttpClient.getInstance(maxThreads);
     }
 
     // ===========================================================
@@ -91,10 +95,124 @@ public class MapTileDownloader extends MapAsyncTileProvider {
     // ===========================================================
 
     @Override
-    protected Runnable getTileLoader(MapTile aTile, IMapTileProviderCallback aCallback) {
+    protected TileLoader getTileLoader(MapTile aTile, IMapTileProviderCallback aCallback) {
         return new TileLoader(aTile, aCallback);
     }
 
+    @Override
+    synchronized void updateViewport(@NonNull MapTileViewport viewport, @NonNull List<MapAsyncTileProvider.TileLoader> cancelled) {
+        super.updateViewport(viewport, cancelled);
+        synchronized (hostConnections) {
+            for (List<TileLoader> waiting : hostWaiting.values()) {
+                for (Iterator<TileLoader> it = waiting.iterator(); it.hasNext();) {
+                    TileLoader loader = it.next();
+                    if (!updatePriority(loader)) {
+                        it.remove();
+                        loader.finished();
+                        cancelled.add(loader);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    boolean removeWaiting(@NonNull MapAsyncTileProvider.TileLoader loader) {
+        synchronized (hostConnections) {
+            for (Iterator<List<TileLoader>> it = hostWaiting.values().iterator(); it.hasNext();) {
+                List<TileLoader> waiting = it.next();
+                if (waiting.remove(loader)) {
+                    if (waiting.isEmpty()) {
+                        it.remove();
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // ===========================================================
+    // Methods
+    // ===========================================================
+
+    /**
+     * Queue a conditional download for a tile we already have
+     * 
+     * If the tile has changed the new version is stored, otherwise only its expiry time is updated
+     * 
+     * @param aTile the tile descriptor
+     * @param cacheInfo the validators of the stored tile
+     * @param aCallback the call back for when the tile has been loaded
+     */
+    public synchronized void revalidateMapTileAsync(@NonNull final MapTile aTile, @NonNull TileCacheInfo cacheInfo,
+            @NonNull final IMapTileProviderCallback aCallback) {
+        if (isPending(aTile)) {
+            return;
+        }
+        TileLoader loader = new TileLoader(aTile, aCallback);
+        loader.cacheInfo = cacheInfo;
+        queue(loader);
+    }
+
+    /**
+     * Try to start a download from a host
+     * 
+     * @param host the host name
+     * @param loader the TileLoader that wants to download
+     * @return true if the download can proceed, false if it has been put on hold until a download from the host
+     *         finishes
+     */
+    private boolean acquireHost(@NonNull String host, @NonNull TileLoader loader) {
+        synchronized (hostConnections) {
+            Integer count = hostConnections.get(host);
+            int current = count != null ? count : 0;
+            if (current >= maxConnectionsPerHost) {
+                List<TileLoader> waiting = hostWaiting.get(host);
+                if (waiting == null) {
+                    waiting = new ArrayList<>();
+                    hostWaiting.put(host, waiting);
+                }
+                waiting.add(loader);
+                return false;
+            }
+            hostConnections.put(host, current + 1);
+            return true;
+        }
+    }
+
+    /**
+     * Finish a download from a host and re-queue the waiting request with the highest priority
+     * 
+     * @param host the host name
+     */
+    private void releaseHost(@NonNull String host) {
+        TileLoader next = null;
+        synchronized (hostConnections) {
+            Integer count = hostConnections.get(host);
+            if (count == null || count <= 1) {
+                hostConnections.remove(host);
+            } else {
+                hostConnections.put(host, count - 1);
+            }
+            List<TileLoader> waiting = hostWaiting.get(host);
+            if (waiting != null) {
+                for (TileLoader loader : waiting) {
+                    if (next == null || loader.compareTo(next) < 0) {
+                        next = loader;
+                    }
+                }
+                waiting.remove(next);
+                if (waiting.isEmpty()) {
+                    hostWaiting.remove(host);
+                }
+            }
+        }
+        if (next != null) {
+            mThreadPool.execute(next);
+        }
+    }
+
     // ===========================================================
     // Inner and Anonymous Classes
     // ===========================================================
@@ -105,6 +223,12 @@ public class MapTileDownloader extends MapAsyncTileProvider {
 
         private static final int BINDER_SIZE_LIMIT = 300000; // determined experimentally
 
+        /** url, retained if the download has to wait for the host */
+        private String url = null;
+
+        /** if not null we are re-validating a tile we already have */
+        private TileCacheInfo cacheInfo = null;
+
         /**
          * Construct a new TileLoader
          * 
@@ -135,43 +259,47 @@ public class MapTileDownloader extends MapAsyncTileProvider {
                     mCallback.mapTileFailed(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, NONETWORK);
                 } catch (RemoteException re) {
                     Log.e(DEBUGTAG, "Error calling mapTileLoaded for MapTile. Exception: " + re);
+                } finally {
+                    finished();
                 }
                 return;
             }
 
-            InputStream in = null;
-            OutputStream out = null;
-            ResponseBody responseBody = null;
-            MediaType format = null;
-            InputStream inputStream = null;
-            Response tileCallResponse = null;
             TileLayerSource renderer = TileLayerSource.get(mCtx, mTile.rendererID, false);
             if (renderer != null) {
-                final String tileURLString = buildURL(renderer, mTile);
+                if (url == null) {
+                    url = buildURL(renderer, mTile);
+                }
+                final String tileURLString = url;
+                HttpUrl httpUrl = HttpUrl.parse(tileURLString);
+                final String host = httpUrl != null ? httpUrl.host() : null;
+                if (host != null && !acquireHost(host, this)) {
+                    return; // will be re-queued when a download from the same host has finished
+                }
                 try {
                     if (tileURLString.length() > 0) {
                         if (Log.isLoggable(DEBUGTAG, Log.DEBUG)) {
                             Log.d(DEBUGTAG, "Downloading Maptile from url: " + tileURLString);
                         }
 
-                        Request request = new Request.Builder().url(tileURLString).build();
-                        Call tileCall = client.newCall(request);
-                        tileCallResponse = tileCall.execute();
-                        if (tileCallResponse.isSuccessful()) {
-                            responseBody = tileCallResponse.body();
-                            inputStream = responseBody.byteStream();
-                            format = responseBody.contentType();
-                        } else {
-                            int code = tileCallResponse.code();
+                        TileResponse tileResponse = client.get(mTile, tileURLString, cacheInfo);
+                        if (tileResponse.isNotModified() && cacheInfo != null) {
+                            // the tile we have is still current
+                            MapTileDownloader.this.mMapTileFSProvider.updateCacheInfo(mTile, tileResponse.cacheInfo);
+                            return;
+                        }
+                        if (!tileResponse.isSuccessful()) {
+                            int code = tileResponse.code;
                             if (code == HttpURLConnection.HTTP_NOT_FOUND) {
                                 throw new FileNotFoundException(TILE_NOT_AVAILABLE);
                             } else {
-                                throw new IOException("Code: " + code + " message: " + tileCallResponse.body().string());
+                                throw new IOException("Code: " + code + " message: " + new String(tileResponse.data));
                             }
                         }
+                        MediaType format = tileResponse.contentType;
                         String noTileHeader = renderer.getNoTileHeader();
                         if (noTileHeader != null) {
-                            String headerValue = tileCallResponse.header(noTileHeader);
+                            String headerValue = tileResponse.headers.get(noTileHeader);
                             if (headerValue != null) {
                                 String[] noTileValues = renderer.getNoTileValues();
                                 if (noTileValues != null) {
@@ -185,13 +313,8 @@ public class MapTileDownloader extends MapAsyncTileProvider {
                                 }
                             }
                         }
-                        in = new BufferedInputStream(inputStream, StreamUtils.IO_BUFFER_SIZE);
-                        final ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-                        out = new BufferedOutputStream(dataStream, StreamUtils.IO_BUFFER_SIZE);
-                        StreamUtils.copy(in, out);
-                        out.flush();
 
-                        byte[] data = dataStream.toByteArray();
+                        byte[] data = tileResponse.data;
 
                         if (data.length == 0) {
                             throw new IOException("no tile data");
@@ -204,24 +327,24 @@ public class MapTileDownloader extends MapAsyncTileProvider {
                                 case MimeTypes.PNG_SUBTYPE:
                                     if (data.length > BINDER_SIZE_LIMIT && !renderer.isOverlay()) {
                                         // attempt to save the day by compressing too large PNGs
-                                        data = compressBitmap(CompressFormat.JPEG, dataStream, data);
+                                        data = compressBitmap(CompressFormat.JPEG, data);
                                     }
                                     break;
                                 case MimeTypes.BMP_SUBTYPE:// if tile is in BMP format, compress
-                                    data = compressBitmap(CompressFormat.PNG, dataStream, data);
+                                    data = compressBitmap(CompressFormat.PNG, data);
                                     break;
                                 default: // everything OK
                                 }
                                 break;
                             case MimeTypes.TEXT_TYPE:
                                 // this can't be a tile and is likely an error message
-                                Log.e(DEBUGTAG, responseBody.string());
+                                Log.e(DEBUGTAG, new String(data));
                                 throw new FileNotFoundException(TILE_NOT_AVAILABLE);
                             case MimeTypes.APPLICATION_TYPE: // WMS errors
                                 switch (format.subtype().toLowerCase()) {
                                 case MimeTypes.WMS_EXCEPTION_XML_SUBTYPE:
                                 case MimeTypes.JSON_SUBTYPE:
-                                    Log.e(DEBUGTAG, responseBody.string());
+                                    Log.e(DEBUGTAG, new String(data));
                                     break;
                                 default:
                                     Log.e(DEBUGTAG, "Application sub type " + format.subtype());
@@ -233,13 +356,16 @@ public class MapTileDownloader extends MapAsyncTileProvider {
                             }
                         }
                         mCallback.mapTileLoaded(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, data);
-                        MapTileDownloader.this.mMapTileFSProvider.saveFile(mTile, data);
+                        MapTileDownloader.this.mMapTileFSProvider.saveFile(mTile, data, tileResponse.cacheInfo, cacheInfo != null);
+                    } else {
+                        failBackground(RETRY); // layer meta-data not loaded yet
                     }
                 } catch (IOException ioe) {
                     try {
                         int reason = ioe instanceof FileNotFoundException ? DOESNOTEXIST : IOERR; // NOSONAR
                         if (reason == DOESNOTEXIST) {
                             MapTileDownloader.this.mMapTileFSProvider.markAsInvalid(mTile);
+                            failBackground(reason);
                         } else { // FileNotFound is an expected exception, any other IOException should be logged, and
                                  // reported a an error
                             Log.e(DEBUGTAG,
@@ -254,18 +380,37 @@ public class MapTileDownloader extends MapAsyncTileProvider {
                 } catch (RemoteException | NullPointerException | IllegalArgumentException e) {
                     Log.e(DEBUGTAG, "Error in TileLoader. Url " + tileURLString + " Exception: " + e);
                 } finally {
-                    StreamUtils.closeStream(in);
-                    StreamUtils.closeStream(out);
-                    if (tileCallResponse != null) {
-                        tileCallResponse.close();
-                    }
                     /*
                      * What to do when downloading tile caused an error? Also remove it from the mPending? Not doing so
                      * blocks it for the whole existence of this TileDownloader. -> we remove it and the application has
                      * to re-request it.
                      */
+                    if (host != null) {
+                        releaseHost(host);
+                    }
                     finished();
                 }
+            } else {
+                failBackground(DOESNOTEXIST);
+                finished();
+            }
+        }
+
+        /**
+         * Tell the requester of a background request that the tile couldn't be loaded
+         * 
+         * Clients displaying tiles are not told as they will request the tile again if it is still needed, and would
+         * count this as an error, the seeder needs a result for every request
+         * 
+         * @param reason the reason the tile couldn't be loaded
+         */
+        private void failBackground(int reason) {
+            if (background) {
+                try {
+                    mCallback.mapTileFailed(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, reason);
+                } catch (RemoteException re) {
+                    Log.e(DEBUGTAG, "Error calling mapTileFailed for MapTile. Exception: " + re);
+                }
             }
         }
 
@@ -273,13 +418,12 @@ public class MapTileDownloader extends MapAsyncTileProvider {
          * Compress bitmap
          * 
          * @param compressFormat destination format
-         * @param dataStream preallocated datastream for conversion
          * @param data input data
          * @return the compressed data
          */
-        private byte[] compressBitmap(@NonNull CompressFormat compressFormat, @NonNull final ByteArrayOutputStream dataStream, @NonNull byte[] data) {
+        private byte[] compressBitmap(@NonNull CompressFormat compressFormat, @NonNull byte[] data) {
             Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, null);
-            dataStream.reset();
+            ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
             bitmap.compress(compressFormat, 100, dataStream);
             bitmap.recycle();
             return dataStream.toByteArray();
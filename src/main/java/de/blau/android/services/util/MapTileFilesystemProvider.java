@@ -3,10 +3,11 @@ package de.blau.android.services.util;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.NotificationManager;
 import android.content.Context;
@@ -25,6 +26,7 @@ import de.blau.android.prefs.Preferences;
 import de.blau.android.resources.TileLayerSource;
 import de.blau.android.services.IMapTileProviderCallback;
 import de.blau.android.services.exceptions.EmptyCacheException;
+import de.blau.android.services.util.MapTileProviderDataBase.StoredTile;
 import de.blau.android.util.CustomDatabaseContext;
 import de.blau.android.util.Notifications;
 import de.blau.android.util.Snack;
@@ -47,22 +49,33 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
 
     static final String DEBUG_TAG = "MapTileFile...Provider";
 
+    private static final String SEGMENT_STORE_DIR = "tilesegments";
+
     // ===========================================================
     // Fields
     // ===========================================================
 
     private final Context                 mCtx;
+    private final File                    mMountPoint;
     private final MapTileProviderDataBase mDatabase;
     private final int                     mMaxFSCacheByteSize;
-    private int                           mCurrentCacheByteSize;
-    private boolean                       errorDisplayed = false;
+    private final AtomicInteger           mCurrentCacheByteSize = new AtomicInteger();
+    private boolean                       errorDisplayed        = false;
 
-    private final Map<String, MBTileProviderDataBase> mbTileDatabases = new HashMap<>();
-    private final Random                              random          = new Random();
+    private final Map<String, MBTileProviderDataBase> mbTileDatabases  = new HashMap<>();
+    private final Map<String, MapTileSegmentStore>    segmentStores    = new HashMap<>();
+    /** sizes of the segment stores on disk that haven't been opened yet, guarded by segmentStores */
+    private final Map<File, Long>                     closedStoreSizes = new HashMap<>();
+    private final Random                              random           = new Random();
 
     /** online provider */
     private MapTileDownloader mTileDownloader;
 
+    /** shared memory for passing tiles to the clients, one buffer per client */
+    private final Map<IBinder, TileSlotBuffer> tileBuffers     = new HashMap<>();
+    private final Map<IBinder, File>           tileBufferFiles = new HashMap<>();
+    private int                                tileBufferCount = 0;
+
     // ===========================================================
     // Constructors
     // ===========================================================
@@ -76,14 +89,17 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
      */
     public MapTileFilesystemProvider(@NonNull final Context ctx, @NonNull File mountPoint, final int aMaxFSCacheByteSize) {
         mCtx = ctx;
+        mMountPoint = mountPoint;
         mMaxFSCacheByteSize = aMaxFSCacheByteSize;
         mDatabase = new MapTileProviderDataBase(new CustomDatabaseContext(ctx, mountPoint.getAbsolutePath()));
-        mCurrentCacheByteSize = mDatabase.getCurrentFSCacheByteSize();
+        mCurrentCacheByteSize.set(mDatabase.getCurrentFSCacheByteSize());
+        initClosedStoreSizes();
         Preferences prefs = new Preferences(ctx);
         int maxThreads = prefs.getMaxTileDownloadThreads();
-        mThreadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(maxThreads);
+        mThreadPool = newPriorityThreadPool(maxThreads);
 
         mTileDownloader = new MapTileDownloader(ctx, this);
+        deleteTileBufferFiles();
         Log.d(DEBUG_TAG, "Currently used cache-size is: " + mCurrentCacheByteSize + " of " + mMaxFSCacheByteSize + " Bytes");
     }
 
@@ -97,7 +113,16 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
      * @return size in bytes
      */
     public int getCurrentCacheByteSize() {
-        return mCurrentCacheByteSize;
+        long size = mCurrentCacheByteSize.get();
+        synchronized (segmentStores) {
+            for (MapTileSegmentStore store : segmentStores.values()) {
+                size += store.getSize();
+            }
+            for (long closedSize : closedStoreSizes.values()) {
+                size += closedSize;
+            }
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
     }
 
     // ===========================================================
@@ -105,14 +130,117 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
     // ===========================================================
 
     @Override
-    protected Runnable getTileLoader(MapTile aTile, IMapTileProviderCallback aCallback) {
+    protected TileLoader getTileLoader(MapTile aTile, IMapTileProviderCallback aCallback) {
         return new TileLoader(aTile, aCallback);
     }
 
+    @Override
+    public void setViewport(@NonNull MapTileViewport viewport) {
+        super.setViewport(viewport);
+        mTileDownloader.setViewport(viewport);
+    }
+
     // ===========================================================
     // Methods
     // ===========================================================
 
+    /**
+     * Delete any tile buffer files left over from a previous run
+     */
+    private void deleteTileBufferFiles() {
+        File[] files = mCtx.getCacheDir().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().startsWith(TileSlotBuffer.FILE_NAME) && !f.delete()) {
+                    Log.e(DEBUG_TAG, "Unable to delete " + f.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Start passing tiles to a client via a shared tile buffer
+     * 
+     * Every client gets its own buffer so that clients can't free slots that another client is still reading from.
+     * 
+     * @param callback the callback the client uses when requesting tiles
+     * @return the path of the buffer file or null if it isn't available
+     */
+    @Nullable
+    public String attachTileBuffer(@NonNull IMapTileProviderCallback callback) {
+        IBinder client = callback.asBinder();
+        synchronized (tileBuffers) {
+            File file = tileBufferFiles.get(client);
+            if (file == null) {
+                file = new File(mCtx.getCacheDir(), TileSlotBuffer.FILE_NAME + "-" + tileBufferCount++);
+                try {
+                    tileBuffers.put(client, TileSlotBuffer.create(file));
+                    tileBufferFiles.put(client, file);
+                } catch (IOException e) {
+                    Log.e(DEBUG_TAG, "Unable to create tile buffer " + e.getMessage());
+                    return null;
+                }
+            }
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Stop using the shared tile buffer of a client
+     * 
+     * The client may still be reading from slots, the buffer file is deleted but stays mapped in the client till it
+     * has released its mapping.
+     * 
+     * @param callback the callback the client uses when requesting tiles
+     */
+    public void detachTileBuffer(@NonNull IMapTileProviderCallback callback) {
+        IBinder client = callback.asBinder();
+        synchronized (tileBuffers) {
+            tileBuffers.remove(client);
+            File file = tileBufferFiles.remove(client);
+            if (file != null && !file.delete()) {
+                Log.e(DEBUG_TAG, "Unable to delete " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Stop using the shared tile buffers of all clients
+     */
+    public void detachTileBuffers() {
+        synchronized (tileBuffers) {
+            tileBuffers.clear();
+            tileBufferFiles.clear();
+            deleteTileBufferFiles();
+        }
+    }
+
+    /**
+     * Pass a tile to the client, via the shared tile buffer of the client if possible
+     * 
+     * @param callback the callback to the client
+     * @param tile the tile
+     * @param data the tile image data
+     * @throws RemoteException if calling the client failed
+     */
+    void deliverTile(@NonNull IMapTileProviderCallback callback, @NonNull MapTile tile, @NonNull byte[] data) throws RemoteException {
+        TileSlotBuffer tileBuffer;
+        synchronized (tileBuffers) {
+            tileBuffer = tileBuffers.get(callback.asBinder());
+        }
+        int slot = tileBuffer != null ? tileBuffer.put(data) : -1;
+        if (slot < 0) { // not attached, too large or buffer full
+            callback.mapTileLoaded(tile.rendererID, tile.zoomLevel, tile.x, tile.y, data);
+            return;
+        }
+        try {
+            callback.mapTileLoadedFromBuffer(tile.rendererID, tile.zoomLevel, tile.x, tile.y, slot);
+        } catch (RemoteException | RuntimeException e) {
+            tileBuffer.release(slot);
+            throw e;
+        }
+    }
+
     /**
      * Save the image data for a tile to the database, making space if necessary
      * 
@@ -121,20 +249,38 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
      * @throws IOException
      */
     public void saveFile(final MapTile tile, final byte[] data) throws IOException {
+        saveFile(tile, data, null, false);
+    }
+
+    /**
+     * Save the image data and HTTP cache information for a tile to the database, making space if necessary
+     * 
+     * @param tile tile meta-data
+     * @param data the tile image data
+     * @param cacheInfo validators and expiry time or null
+     * @param replace if true replace an existing tile
+     * @throws IOException if saving failed
+     */
+    public void saveFile(@NonNull final MapTile tile, @NonNull final byte[] data, @Nullable TileCacheInfo cacheInfo, boolean replace) throws IOException {
         try {
-            final int bytesGrown = mDatabase.addTile(tile, data);
-            mCurrentCacheByteSize += bytesGrown;
+            MapTileSegmentStore store = getSegmentStore(tile.rendererID);
+            if (store != null) {
+                store.putTile(tile, data); // segment stores don't keep cache information
+            } else {
+                final int bytesGrown = replace ? mDatabase.replaceTile(tile, data, cacheInfo) : mDatabase.addTile(tile, data, cacheInfo);
+                mCurrentCacheByteSize.addAndGet(bytesGrown);
+            }
+            final int currentSize = getCurrentCacheByteSize();
 
             if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
-                Log.d(DEBUG_TAG, "FSCache Size is now: " + mCurrentCacheByteSize + " Bytes");
+                Log.d(DEBUG_TAG, "FSCache Size is now: " + currentSize + " Bytes");
             }
             /* If Cache is full... */
-            if (mCurrentCacheByteSize > mMaxFSCacheByteSize) {
+            if (currentSize > mMaxFSCacheByteSize) {
                 if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
                     Log.d(DEBUG_TAG, "Freeing FS cache...");
                 }
-                // Free 5% of cache
-                mCurrentCacheByteSize -= mDatabase.deleteOldest((int) (mMaxFSCacheByteSize * 0.05f));
+                freeSpace();
             }
             if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
                 Log.d(DEBUG_TAG, "Tile saved");
@@ -146,10 +292,193 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
         }
     }
 
+    /**
+     * Free space in the background, from the largest segment store if it holds more than the tile database, otherwise
+     * from the database
+     * 
+     * If the largest segment store hasn't been opened, its oldest segment file is simply deleted
+     */
+    private void freeSpace() {
+        MapTileSegmentStore largest = null;
+        synchronized (segmentStores) {
+            for (MapTileSegmentStore store : segmentStores.values()) {
+                if (largest == null || store.getSize() > largest.getSize()) {
+                    largest = store;
+                }
+            }
+            File largestClosed = null;
+            long largestClosedSize = 0;
+            for (Map.Entry<File, Long> entry : closedStoreSizes.entrySet()) {
+                if (entry.getValue() > largestClosedSize) {
+                    largestClosed = entry.getKey();
+                    largestClosedSize = entry.getValue();
+                }
+            }
+            if (largestClosed != null && largestClosedSize > mCurrentCacheByteSize.get() && (largest == null || largestClosedSize > largest.getSize())) {
+                // holding the lock prevents the store from being opened while we delete
+                long freed = MapTileSegmentStore.deleteOldestSegment(largestClosed);
+                if (freed > 0) {
+                    closedStoreSizes.put(largestClosed, largestClosedSize - freed);
+                    return;
+                }
+            }
+        }
+        if (largest != null && largest.getSegmentCount() > 1 && largest.getSize() > mCurrentCacheByteSize.get()) {
+            largest.evictOldestSegmentAsync();
+        } else {
+            // Free 5% of cache
+            mDatabase.deleteOldestAsync((int) (mMaxFSCacheByteSize * 0.05f), sizeGained -> mCurrentCacheByteSize.addAndGet((int) -sizeGained));
+        }
+    }
+
+    /**
+     * Get the segment store for a layer, opening it if necessary
+     * 
+     * @param rendererID the layer id
+     * @return the MapTileSegmentStore or null if the layer stores its tiles in the tile database
+     */
+    @Nullable
+    private MapTileSegmentStore getSegmentStore(@NonNull String rendererID) {
+        synchronized (segmentStores) {
+            MapTileSegmentStore store = segmentStores.get(rendererID);
+            if (store == null) {
+                TileLayerSource layer = TileLayerSource.get(mCtx, rendererID, false);
+                if (layer == null || !layer.usesSegmentStore()) {
+                    return null;
+                }
+                try {
+                    File dir = getSegmentStoreDir(rendererID);
+                    store = MapTileSegmentStore.open(dir, MapTileSegmentStore.DEFAULT_SEGMENT_SIZE);
+                    segmentStores.put(rendererID, store);
+                    closedStoreSizes.remove(dir); // now included in the size of the open store
+                } catch (IOException e) {
+                    Log.e(DEBUG_TAG, "Unable to open segment store for " + rendererID + " " + e.getMessage());
+                    return null;
+                }
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Get the directory for the segment files of a layer
+     * 
+     * @param rendererID the layer id
+     * @return a File
+     */
+    @NonNull
+    private File getSegmentStoreDir(@NonNull String rendererID) {
+        return new File(new File(mMountPoint, SEGMENT_STORE_DIR), rendererID.replaceAll("[^\\w.-]", "_"));
+    }
+
+    /**
+     * Record the on disk sizes of the segment stores, they are only opened when a tile from them is needed
+     */
+    private void initClosedStoreSizes() {
+        File[] dirs = new File(mMountPoint, SEGMENT_STORE_DIR).listFiles();
+        if (dirs != null) {
+            synchronized (segmentStores) {
+                for (File dir : dirs) {
+                    if (dir.isDirectory()) {
+                        closedStoreSizes.put(dir, MapTileSegmentStore.getSize(dir));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all tiles from segment stores
+     * 
+     * @param rendererID the layer or null for all layers
+     */
+    private void clearSegmentStores(@Nullable String rendererID) {
+        synchronized (segmentStores) {
+            Set<File> openDirs = new HashSet<>();
+            for (Map.Entry<String, MapTileSegmentStore> entry : segmentStores.entrySet()) {
+                openDirs.add(getSegmentStoreDir(entry.getKey()));
+                if (rendererID == null || rendererID.equals(entry.getKey())) {
+                    try {
+                        entry.getValue().clear();
+                    } catch (IOException e) {
+                        Log.e(DEBUG_TAG, "Clearing segment store for " + entry.getKey() + " failed " + e.getMessage());
+                    }
+                }
+            }
+            // stores that haven't been opened in this session
+            File[] dirs = rendererID == null ? new File(mMountPoint, SEGMENT_STORE_DIR).listFiles() : new File[] { getSegmentStoreDir(rendererID) };
+            if (dirs != null) {
+                for (File dir : dirs) {
+                    File[] files = dir.listFiles();
+                    if (files != null && !openDirs.contains(dir)) {
+                        for (File f : files) {
+                            if (f.getName().endsWith(MapTileSegmentStore.SEGMENT_EXTENSION) && !f.delete()) {
+                                Log.e(DEBUG_TAG, "Unable to delete " + f.getAbsolutePath());
+                            }
+                        }
+                        closedStoreSizes.put(dir, MapTileSegmentStore.getSize(dir));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue a conditional download if a stored tile has expired
+     * 
+     * The stored tile has already been displayed, an updated version will be used the next time the tile is loaded
+     * 
+     * @param tile tile meta-data
+     * @param cacheInfo the HTTP cache information stored with the tile
+     */
+    private void revalidateIfExpired(@NonNull final MapTile tile, @NonNull TileCacheInfo cacheInfo) {
+        if (cacheInfo.isExpired(System.currentTimeMillis())) {
+            mTileDownloader.revalidateMapTileAsync(new MapTile(tile), cacheInfo, revalidationCallback);
+        }
+    }
+
+    /**
+     * Callback for re-validation requests, the requester already has the tile so there is nothing to do
+     */
+    private final IMapTileProviderCallback revalidationCallback = new IMapTileProviderCallback() {
+
+        @Override
+        public IBinder asBinder() {
+            return null;
+        }
+
+        @Override
+        public void mapTileLoaded(String rendererID, int zoomLevel, int tileX, int tileY, byte[] aImage) {
+            // nothing to do
+        }
+
+        @Override
+        public void mapTileLoadedFromBuffer(String rendererID, int zoomLevel, int tileX, int tileY, int slot) {
+            // nothing to do
+        }
+
+        @Override
+        public void mapTileFailed(String rendererID, int zoomLevel, int tileX, int tileY, int reason) {
+            // nothing to do
+        }
+    };
+
+    /**
+     * Store new cache information for a tile that has been re-validated
+     * 
+     * @param tile tile meta-data
+     * @param cacheInfo the new validators and expiry time
+     * @throws IOException if saving failed
+     */
+    public void updateCacheInfo(@NonNull final MapTile tile, @NonNull TileCacheInfo cacheInfo) throws IOException {
+        mDatabase.updateCacheInfo(tile, cacheInfo);
+    }
+
     /**
      * Remove all tiles from cache
      */
     public void clearCurrentCache() {
+        clearSegmentStores(null);
         cutCurrentCacheBy(Integer.MAX_VALUE); // Delete all
     }
 
@@ -162,7 +491,7 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
         synchronized (this) {
             mDatabase.deleteOldest(bytesToCut);
         }
-        mCurrentCacheByteSize = mDatabase.getCurrentFSCacheByteSize();
+        mCurrentCacheByteSize.set(mDatabase.getCurrentFSCacheByteSize());
     }
 
     /**
@@ -171,9 +500,10 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
      * @param rendererID the provider or null for all
      */
     public void flushCache(@Nullable String rendererID) {
+        clearSegmentStores(rendererID);
         try {
             mDatabase.flushCache(rendererID);
-            mCurrentCacheByteSize = mDatabase.getCurrentFSCacheByteSize();
+            mCurrentCacheByteSize.set(mDatabase.getCurrentFSCacheByteSize());
         } catch (EmptyCacheException e) {
             if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
                 Log.d(DEBUG_TAG, "Flushing tile cache failed", e);
@@ -240,11 +570,19 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
                         }
                         mCallback.mapTileFailed(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, DOESNOTEXIST);
                     } else { // success!
-                        mCallback.mapTileLoaded(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, data);
+                        deliverTile(mCallback, mTile, data);
                     }
                 } else {
                     try {
-                        byte[] data = MapTileFilesystemProvider.this.mDatabase.getTile(mTile);
+                        MapTileSegmentStore store = renderer.usesSegmentStore() ? getSegmentStore(renderer.getId()) : null;
+                        StoredTile stored = null;
+                        byte[] data;
+                        if (store != null) {
+                            data = store.getTile(mTile);
+                        } else {
+                            stored = MapTileFilesystemProvider.this.mDatabase.getTile(mTile);
+                            data = stored != null ? stored.data : null;
+                        }
                         if (data == null) {
                             if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
                                 Log.d(DEBUG_TAG, "FS failed, request for download " + mTile + " " + mTile.toId());
@@ -252,7 +590,10 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
                             download = true;
                             mTileDownloader.loadMapTileAsync(mTile, passedOnCallback);
                         } else { // success!
-                            mCallback.mapTileLoaded(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, data);
+                            deliverTile(mCallback, mTile, data);
+                            if (stored != null) {
+                                revalidateIfExpired(mTile, stored.cacheInfo);
+                            }
                         }
                     } catch (InvalidTileException itex) {
                         mCallback.mapTileFailed(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, DOESNOTEXIST);
@@ -298,7 +639,13 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
 
             @Override
             public void mapTileLoaded(String rendererID, int zoomLevel, int tileX, int tileY, byte[] aImage) throws RemoteException {
-                mCallback.mapTileLoaded(rendererID, zoomLevel, tileX, tileY, aImage);
+                deliverTile(mCallback, mTile, aImage);
+                finished();
+            }
+
+            @Override
+            public void mapTileLoadedFromBuffer(String rendererID, int zoomLevel, int tileX, int tileY, int slot) throws RemoteException {
+                mCallback.mapTileLoadedFromBuffer(rendererID, zoomLevel, tileX, tileY, slot);
                 finished();
             }
 
@@ -322,6 +669,34 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
             }
             mbTileDatabases.clear();
         }
+        synchronized (segmentStores) {
+            for (MapTileSegmentStore store : segmentStores.values()) {
+                store.close();
+            }
+            segmentStores.clear();
+        }
+    }
+
+    /**
+     * Check if a tile, or a marker that it doesn't exist, is stored
+     * 
+     * @param tile tile meta-data
+     * @return true if the tile doesn't need to be downloaded
+     */
+    public boolean hasTile(@NonNull MapTile tile) {
+        MapTileSegmentStore store = getSegmentStore(tile.rendererID);
+        return store != null ? store.hasTile(tile) : mDatabase.hasTile(tile);
+    }
+
+    /**
+     * Queue a download in the background to fill the cache, the downloaded tile is stored as usual
+     * 
+     * @param tile tile meta-data
+     * @param callback called when the download has finished or failed
+     * @return true if the download was queued, false if the tile is already being loaded
+     */
+    public boolean seedTile(@NonNull MapTile tile, @NonNull IMapTileProviderCallback callback) {
+        return mTileDownloader.loadMapTileInBackground(tile, callback);
     }
 
     /**
@@ -331,6 +706,11 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
      * @throws IOException if writing to the database failes
      */
     public void markAsInvalid(@NonNull MapTile mTile) throws IOException {
+        MapTileSegmentStore store = getSegmentStore(mTile.rendererID);
+        if (store != null) {
+            store.putTile(mTile, null);
+            return;
+        }
         mDatabase.addTile(mTile, null);
     }
 }
\ No newline at end of file
@@ -1,10 +1,16 @@
 package de.blau.android.services.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -13,18 +19,14 @@ import android.database.SQLException;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDiskIOException;
-import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
-import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import androidx.core.util.Pools;
 import de.blau.android.exception.InvalidTileException;
-import de.blau.android.prefs.Preferences;
 import de.blau.android.services.exceptions.EmptyCacheException;
 import de.blau.android.util.ACRAHelper;
 import de.blau.android.views.util.MapViewConstants;
@@ -47,7 +49,7 @@ public class MapTileProviderDataBase {
     private static final String DEBUG_TAG = "MapTilePro...DataBase";
 
     private static final String DATABASE_NAME    = "osmaptilefscache_db";
-    private static final int    DATABASE_VERSION = 8;
+    private static final int    DATABASE_VERSION = 10;
 
     private static final String T_FSCACHE             = "tiles";
     private static final String T_FSCACHE_RENDERER_ID = "rendererID";
@@ -55,10 +57,13 @@ public class MapTileProviderDataBase {
     private static final String T_FSCACHE_TILE_X      = "tile_column";
     private static final String T_FSCACHE_TILE_Y      = "tile_row";
     // private static final String T_FSCACHE_LINK = "link"; // TODO store link (multiple use for similar tiles)
-    private static final String T_FSCACHE_TIMESTAMP  = "timestamp";
-    private static final String T_FSCACHE_USAGECOUNT = "countused";
-    private static final String T_FSCACHE_FILESIZE   = "filesize";
-    private static final String T_FSCACHE_DATA       = "tile_data";
+    private static final String T_FSCACHE_TIMESTAMP     = "timestamp";
+    private static final String T_FSCACHE_USAGECOUNT    = "countused";
+    private static final String T_FSCACHE_FILESIZE      = "filesize";
+    private static final String T_FSCACHE_DATA          = "tile_data";
+    private static final String T_FSCACHE_ETAG          = "etag";
+    private static final String T_FSCACHE_LAST_MODIFIED = "last_modified";
+    private static final String T_FSCACHE_EXPIRES       = "expires";
 
     private static final String T_RENDERER               = "t_renderer";
     private static final String T_RENDERER_ID            = "id";
@@ -71,7 +76,8 @@ public class MapTileProviderDataBase {
     private static final String T_FSCACHE_CREATE_COMMAND = "CREATE TABLE IF NOT EXISTS " + T_FSCACHE + " (" + T_FSCACHE_RENDERER_ID + " VARCHAR(255) NOT NULL,"
             + T_FSCACHE_ZOOM_LEVEL + " INTEGER NOT NULL," + T_FSCACHE_TILE_X + " INTEGER NOT NULL," + T_FSCACHE_TILE_Y + " INTEGER NOT NULL,"
             + T_FSCACHE_TIMESTAMP + " INTEGER NOT NULL," + T_FSCACHE_USAGECOUNT + " INTEGER NOT NULL DEFAULT 1," + T_FSCACHE_FILESIZE + " INTEGER NOT NULL,"
-            + T_FSCACHE_DATA + " BLOB," + " PRIMARY KEY(" + T_FSCACHE_RENDERER_ID + "," + T_FSCACHE_ZOOM_LEVEL + "," + T_FSCACHE_TILE_X + "," + T_FSCACHE_TILE_Y
+            + T_FSCACHE_DATA + " BLOB," + T_FSCACHE_ETAG + " TEXT," + T_FSCACHE_LAST_MODIFIED + " TEXT," + T_FSCACHE_EXPIRES + " INTEGER NOT NULL DEFAULT 0,"
+            + " PRIMARY KEY(" + T_FSCACHE_RENDERER_ID + "," + T_FSCACHE_ZOOM_LEVEL + "," + T_FSCACHE_TILE_X + "," + T_FSCACHE_TILE_Y
             + ")" + ");";
 
     private static final String T_RENDERER_CREATE_COMMAND = "CREATE TABLE IF NOT EXISTS " + T_RENDERER + " (" + T_RENDERER_ID + " VARCHAR(255) PRIMARY KEY,"
@@ -90,11 +96,38 @@ public class MapTileProviderDataBase {
     private static final String T_FSCACHE_WHERE_NOT_INVALID = T_FSCACHE_RENDERER_ID + SQL_ARG + AND + T_FSCACHE_ZOOM_LEVEL + SQL_ARG + AND + T_FSCACHE_TILE_X
             + SQL_ARG + AND + T_FSCACHE_TILE_Y + SQL_ARG + AND + T_FSCACHE_FILESIZE + ">0";
 
-    private static final String T_FSCACHE_SELECT_OLDEST = "SELECT " + T_FSCACHE_RENDERER_ID + "," + T_FSCACHE_ZOOM_LEVEL + "," + T_FSCACHE_TILE_X + ","
-            + T_FSCACHE_TILE_Y + "," + T_FSCACHE_FILESIZE + " FROM " + T_FSCACHE + " WHERE " + T_FSCACHE_FILESIZE + " > 0 ORDER BY " + T_FSCACHE_TIMESTAMP
-            + " ASC";
+    private static final String T_FSCACHE_TIMESTAMP_INDEX = "tiles_timestamp_idx";
 
-    private static final String T_FSCACHE_GET = "SELECT " + T_FSCACHE_DATA + " FROM " + T_FSCACHE + " WHERE " + T_FSCACHE_WHERE;
+    private static final String T_FSCACHE_CREATE_TIMESTAMP_INDEX = "CREATE INDEX IF NOT EXISTS " + T_FSCACHE_TIMESTAMP_INDEX + " ON " + T_FSCACHE + " ("
+            + T_FSCACHE_TIMESTAMP + ")";
+
+    /**
+     * Tiles are removed in batches of this size, each batch in its own transaction so that tiles can be read and
+     * written in between
+     */
+    private static final int EVICTION_BATCH_SIZE = 200;
+
+    /**
+     * The access time of a tile is only updated if the stored one is older than this, so that frequently used tiles
+     * don't cause a write every time they are read
+     */
+    private static final long ACCESS_BUCKET = 3600000L;
+
+    /**
+     * Write the recorded tile accesses to the database when this many have accumulated
+     */
+    private static final int TOUCH_BATCH_SIZE = 100;
+
+    private static final String T_FSCACHE_SELECT_OLDEST = "SELECT rowid," + T_FSCACHE_FILESIZE + " FROM " + T_FSCACHE + " WHERE " + T_FSCACHE_FILESIZE
+            + " > 0 ORDER BY " + T_FSCACHE_TIMESTAMP + " ASC LIMIT " + EVICTION_BATCH_SIZE;
+
+    private static final String T_FSCACHE_DELETE_ROW = "DELETE FROM " + T_FSCACHE + " WHERE rowid" + SQL_ARG;
+
+    private static final String T_FSCACHE_TOUCH = "UPDATE " + T_FSCACHE + " SET " + T_FSCACHE_TIMESTAMP + SQL_ARG + " WHERE " + T_FSCACHE_WHERE + AND
+            + T_FSCACHE_TIMESTAMP + "<?";
+
+    private static final String T_FSCACHE_GET = "SELECT " + T_FSCACHE_DATA + "," + T_FSCACHE_ETAG + "," + T_FSCACHE_LAST_MODIFIED + "," + T_FSCACHE_EXPIRES
+            + " FROM " + T_FSCACHE + " WHERE " + T_FSCACHE_WHERE;
     // ===========================================================
     // Fields
     // ===========================================================
@@ -102,7 +135,41 @@ public class MapTileProviderDataBase {
     private final DatabaseHelper databaseHelper;
     private final SQLiteDatabase mDatabase;
 
-    private static Pools.SynchronizedPool<SQLiteStatement> getStatements;
+    /** eviction and access time updates run here so that they don't hold up loading tiles */
+    private final ExecutorService      maintenance     = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean        evictionPending = new AtomicBoolean(false);
+    private final Map<String, MapTile> touched         = new HashMap<>();
+
+    /**
+     * A tile read from the database
+     */
+    public static final class StoredTile {
+        final byte[]        data;
+        final TileCacheInfo cacheInfo;
+
+        /**
+         * Construct a new instance
+         * 
+         * @param data the contents of the tile
+         * @param cacheInfo the HTTP cache information for the tile
+         */
+        StoredTile(@NonNull byte[] data, @NonNull TileCacheInfo cacheInfo) {
+            this.data = data;
+            this.cacheInfo = cacheInfo;
+        }
+    }
+
+    /**
+     * Callback for asynchronous eviction
+     */
+    public interface EvictionListener {
+        /**
+         * Called on the maintenance thread when eviction has finished
+         * 
+         * @param sizeGained the number of bytes freed
+         */
+        void evicted(long sizeGained);
+    }
 
     // ===========================================================
     // Constructors
@@ -116,13 +183,6 @@ public class MapTileProviderDataBase {
         Log.i(DEBUG_TAG, "creating database instance");
         databaseHelper = new DatabaseHelper(context);
         mDatabase = databaseHelper.getWritableDatabase();
-        Preferences prefs = new Preferences(context);
-        int maxThreads = prefs.getMaxTileDownloadThreads();
-        getStatements = new Pools.SynchronizedPool<>(maxThreads);
-        Log.i(DEBUG_TAG, "Allocating " + maxThreads + " prepared statements");
-        for (int i = 0; i < maxThreads; i++) {
-            getStatements.release(mDatabase.compileStatement(T_FSCACHE_GET));
-        }
     }
 
     /**
@@ -168,6 +228,19 @@ public class MapTileProviderDataBase {
      * @throws IOException
      */
     public int addTile(@NonNull final MapTile aTile, @Nullable final byte[] tile_data) throws IOException {
+        return addTile(aTile, tile_data, null);
+    }
+
+    /**
+     * Save tile data and HTTP cache information to the database, checks if it exists beforehand
+     * 
+     * @param aTile tile meta data
+     * @param tile_data the tile image data
+     * @param cacheInfo validators and expiry time or null
+     * @return the size of the tile if successfully added
+     * @throws IOException
+     */
+    public int addTile(@NonNull final MapTile aTile, @Nullable final byte[] tile_data, @Nullable TileCacheInfo cacheInfo) throws IOException {
         if (MapViewConstants.DEBUGMODE) {
             Log.d(MapTileFilesystemProvider.DEBUG_TAG, "adding " + aTile);
         }
@@ -181,6 +254,7 @@ public class MapTileProviderDataBase {
                 cv.put(T_FSCACHE_TIMESTAMP, System.currentTimeMillis());
                 cv.put(T_FSCACHE_FILESIZE, tile_data != null ? tile_data.length : 0); // 0 == invalid
                 cv.put(T_FSCACHE_DATA, tile_data);
+                putCacheInfo(cv, cacheInfo);
                 long result = mDatabase.insertOrThrow(T_FSCACHE, null, cv);
                 if (MapViewConstants.DEBUGMODE) {
                     Log.d(MapTileFilesystemProvider.DEBUG_TAG, "Inserting new tile result " + result);
@@ -196,6 +270,7 @@ public class MapTileProviderDataBase {
                 cv.put(T_FSCACHE_TIMESTAMP, System.currentTimeMillis());
                 cv.put(T_FSCACHE_FILESIZE, tile_data.length);
                 cv.put(T_FSCACHE_DATA, tile_data);
+                putCacheInfo(cv, cacheInfo);
                 long result = mDatabase.update(T_FSCACHE, cv, T_FSCACHE_WHERE, tileToWhereArgs(aTile));
                 if (MapViewConstants.DEBUGMODE) {
                     Log.d(MapTileFilesystemProvider.DEBUG_TAG, "Inserting tile for invalid one result " + result);
@@ -210,6 +285,71 @@ public class MapTileProviderDataBase {
         }
     }
 
+    /**
+     * Add the HTTP cache information columns
+     * 
+     * @param cv the ContentValues
+     * @param cacheInfo validators and expiry time or null
+     */
+    private static void putCacheInfo(@NonNull ContentValues cv, @Nullable TileCacheInfo cacheInfo) {
+        cv.put(T_FSCACHE_ETAG, cacheInfo != null ? cacheInfo.etag : null);
+        cv.put(T_FSCACHE_LAST_MODIFIED, cacheInfo != null ? cacheInfo.lastModified : null);
+        cv.put(T_FSCACHE_EXPIRES, cacheInfo != null ? cacheInfo.expires : 0);
+    }
+
+    /**
+     * Replace the data of a tile that has been downloaded again
+     * 
+     * @param aTile tile meta data
+     * @param tile_data the new tile image data
+     * @param cacheInfo validators and expiry time or null
+     * @return the change in size
+     * @throws IOException if updating failed
+     */
+    public int replaceTile(@NonNull final MapTile aTile, @NonNull final byte[] tile_data, @Nullable TileCacheInfo cacheInfo) throws IOException {
+        try {
+            if (!mDatabase.isOpen()) {
+                return 0;
+            }
+            int oldSize = 0;
+            try (Cursor c = mDatabase.query(T_FSCACHE, new String[] { T_FSCACHE_FILESIZE }, T_FSCACHE_WHERE, tileToWhereArgs(aTile), null, null, null)) {
+                if (!c.moveToFirst()) {
+                    return addTile(aTile, tile_data, cacheInfo);
+                }
+                oldSize = c.getInt(0);
+            }
+            final ContentValues cv = new ContentValues();
+            cv.put(T_FSCACHE_TIMESTAMP, System.currentTimeMillis());
+            cv.put(T_FSCACHE_FILESIZE, tile_data.length);
+            cv.put(T_FSCACHE_DATA, tile_data);
+            putCacheInfo(cv, cacheInfo);
+            mDatabase.update(T_FSCACHE, cv, T_FSCACHE_WHERE, tileToWhereArgs(aTile));
+            return tile_data.length - oldSize;
+        } catch (SQLiteException sex) {
+            throw new IOException(sex.getMessage());
+        }
+    }
+
+    /**
+     * Store new cache information after a tile has been successfully re-validated
+     * 
+     * @param aTile tile meta data
+     * @param cacheInfo the new validators and expiry time
+     * @throws IOException if updating failed
+     */
+    public void updateCacheInfo(@NonNull final MapTile aTile, @NonNull TileCacheInfo cacheInfo) throws IOException {
+        try {
+            if (mDatabase.isOpen()) {
+                final ContentValues cv = new ContentValues();
+                cv.put(T_FSCACHE_TIMESTAMP, System.currentTimeMillis());
+                putCacheInfo(cv, cacheInfo);
+                mDatabase.update(T_FSCACHE, cv, T_FSCACHE_WHERE_NOT_INVALID, tileToWhereArgs(aTile));
+            }
+        } catch (SQLiteException sex) {
+            throw new IOException(sex.getMessage());
+        }
+    }
+
     /**
      * Get a SQLite argument array for a WHERE clause
      * 
@@ -221,51 +361,27 @@ public class MapTileProviderDataBase {
     }
 
     /**
-     * Returns requested tile and increases use count and date
+     * Returns requested tile and its HTTP cache information and records the access for the eviction order
      * 
      * @param aTile the tile meta data
      * @return the contents of the tile or null on failure to retrieve
-     * @throws IOException
+     * @throws IOException if the database couldn't be read or the tile is marked invalid
      */
-    public byte[] getTile(@NonNull final MapTile aTile) throws IOException {
+    @Nullable
+    public StoredTile getTile(@NonNull final MapTile aTile) throws IOException {
         if (MapViewConstants.DEBUGMODE) {
             Log.d(MapTileFilesystemProvider.DEBUG_TAG, "Trying to retrieve " + aTile + " from file");
         }
         try {
             if (mDatabase.isOpen()) {
-                SQLiteStatement get = null;
-                ParcelFileDescriptor pfd = null;
-                try {
-                    get = getStatements.acquire();
-                    if (get == null) {
-                        Log.e(DEBUG_TAG, "statement null");
-                        return null;
-                    }
-                    get.bindString(1, aTile.rendererID);
-                    get.bindLong(2, aTile.zoomLevel);
-                    get.bindLong(3, aTile.x);
-                    get.bindLong(4, aTile.y);
-                    pfd = get.simpleQueryForBlobFileDescriptor();
-                    if (pfd == null) {
-                        throw new InvalidTileException(TILE_MARKED_INVALID_IN_DATABASE);
-                    }
-
-                    ParcelFileDescriptor.AutoCloseInputStream acis = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
-                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    while ((bytesRead = acis.read(buffer)) != -1) {
-                        bos.write(buffer, 0, bytesRead);
-                    }
-                    acis.close();
-                    return bos.toByteArray();
-                } catch (SQLiteDoneException sde) {
-                    // nothing found
-                    return null;
-                } finally {
-                    if (get != null) {
-                        getStatements.release(get);
+                // the compiled statement is cached by the database connection
+                try (Cursor c = mDatabase.rawQuery(T_FSCACHE_GET, tileToWhereArgs(aTile))) {
+                    if (c.moveToFirst()) {
+                        if (c.isNull(0)) {
+                            throw new InvalidTileException(TILE_MARKED_INVALID_IN_DATABASE);
+                        }
+                        touch(aTile);
+                        return new StoredTile(c.getBlob(0), new TileCacheInfo(c.getString(1), c.getString(2), c.getLong(3)));
                     }
                 }
             }
@@ -278,6 +394,105 @@ public class MapTileProviderDataBase {
         return null;
     }
 
+    /**
+     * Record that a tile has been used
+     * 
+     * The access times are written in batches on the maintenance thread
+     * 
+     * @param aTile the tile meta data
+     */
+    private void touch(@NonNull final MapTile aTile) {
+        boolean flush;
+        synchronized (touched) {
+            touched.put(aTile.toId(), aTile);
+            flush = touched.size() == TOUCH_BATCH_SIZE;
+        }
+        if (flush) {
+            runInBackground(this::flushTouched);
+        }
+    }
+
+    /**
+     * Write the recorded tile accesses to the database
+     */
+    private void flushTouched() {
+        List<MapTile> tiles;
+        synchronized (touched) {
+            if (touched.isEmpty()) {
+                return;
+            }
+            tiles = new ArrayList<>(touched.values());
+            touched.clear();
+        }
+        if (!mDatabase.isOpen()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        SQLiteStatement touch = null;
+        try {
+            touch = mDatabase.compileStatement(T_FSCACHE_TOUCH);
+            mDatabase.beginTransaction();
+            for (MapTile t : tiles) {
+                touch.bindLong(1, now);
+                touch.bindString(2, t.rendererID);
+                touch.bindLong(3, t.zoomLevel);
+                touch.bindLong(4, t.x);
+                touch.bindLong(5, t.y);
+                touch.bindLong(6, now - ACCESS_BUCKET);
+                touch.executeUpdateDelete();
+            }
+            mDatabase.setTransactionSuccessful();
+        } catch (SQLiteException | IllegalStateException e) {
+            Log.e(DEBUG_TAG, "flushTouched " + e.getMessage());
+        } finally {
+            if (mDatabase.isOpen() && mDatabase.inTransaction()) {
+                mDatabase.endTransaction();
+            }
+            if (touch != null) {
+                touch.close();
+            }
+        }
+    }
+
+    /**
+     * Run a task on the maintenance thread
+     * 
+     * @param task the task
+     * @return true if the task was queued
+     */
+    private boolean runInBackground(@NonNull Runnable task) {
+        try {
+            maintenance.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(DEBUG_TAG, "Database closed, not running " + task);
+            return false;
+        }
+    }
+
+    /**
+     * Remove old tiles in the background until enough space is present
+     * 
+     * If an eviction is already running this does nothing
+     * 
+     * @param pSizeNeeded the extra size we need
+     * @param listener called with the size we actually gained
+     */
+    void deleteOldestAsync(final int pSizeNeeded, @NonNull final EvictionListener listener) {
+        if (!evictionPending.compareAndSet(false, true)) {
+            return;
+        }
+        if (!runInBackground(() -> {
+            try {
+                listener.evicted(deleteOldest(pSizeNeeded));
+            } finally {
+                evictionPending.set(false);
+            }
+        })) {
+            evictionPending.set(false);
+        }
+    }
+
     /**
      * Remove old tiles until enough space is present
      * 
@@ -290,61 +505,73 @@ public class MapTileProviderDataBase {
             Log.e(MapTileFilesystemProvider.DEBUG_TAG, "deleteOldest called on closed DB");
             return 0;
         }
-        final Cursor c = mDatabase.rawQuery(T_FSCACHE_SELECT_OLDEST, null);
-
-        final List<MapTile> deleteFromDB = new ArrayList<>();
+        flushTouched();
         long sizeGained = 0;
-        if (c != null) {
-            try {
-                MapTile tileToBeDeleted;
-                try {
-                    if (c.moveToFirst()) {
-                        do {
-                            final int sizeItem = c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_FILESIZE));
-                            sizeGained += sizeItem;
-                            tileToBeDeleted = new MapTile(c.getString(c.getColumnIndexOrThrow(T_FSCACHE_RENDERER_ID)),
-                                    c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_ZOOM_LEVEL)), c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_TILE_X)),
-                                    c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_TILE_Y)));
-
-                            deleteFromDB.add(tileToBeDeleted);
-                        } while (c.moveToNext() && sizeGained < pSizeNeeded);
-                    } else {
+        try {
+            while (sizeGained < pSizeNeeded) {
+                long batchGained = deleteOldestBatch(pSizeNeeded - sizeGained);
+                if (batchGained == 0) {
+                    if (sizeGained == 0) {
                         throw new EmptyCacheException("Cache seems to be empty.");
                     }
-
-                    if (mDatabase.isOpen()) {
-                        try {
-                            mDatabase.beginTransaction();
-                            for (MapTile t : deleteFromDB) {
-                                mDatabase.delete(T_FSCACHE, T_FSCACHE_WHERE, tileToWhereArgs(t));
-                            }
-                            mDatabase.setTransactionSuccessful();
-                        } finally {
-                            if (mDatabase.inTransaction()) {
-                                mDatabase.endTransaction();
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    if (e instanceof NullPointerException) {
-                        // just log ... likely these are really spurious
-                        Log.e(MapTileFilesystemProvider.DEBUG_TAG, "NPE in deleteOldest " + e);
-                    } else if (e instanceof SQLiteFullException || e instanceof SQLiteDiskIOException || e instanceof java.lang.IllegalStateException) {
-                        Log.e(MapTileFilesystemProvider.DEBUG_TAG, "Exception in deleteOldest " + e);
-                    } else if (e instanceof EmptyCacheException) {
-                        Log.e(MapTileFilesystemProvider.DEBUG_TAG, "Exception in deleteOldest cache empty " + e);
-                    } else {
-                        ACRAHelper.nocrashReport(e, e.getMessage());
-                    }
+                    break;
                 }
-            } finally {
-                c.close();
+                sizeGained += batchGained;
+            }
+        } catch (Exception e) {
+            if (e instanceof NullPointerException) {
+                // just log ... likely these are really spurious
+                Log.e(MapTileFilesystemProvider.DEBUG_TAG, "NPE in deleteOldest " + e);
+            } else if (e instanceof SQLiteFullException || e instanceof SQLiteDiskIOException || e instanceof java.lang.IllegalStateException) {
+                Log.e(MapTileFilesystemProvider.DEBUG_TAG, "Exception in deleteOldest " + e);
+            } else if (e instanceof EmptyCacheException) {
+                Log.e(MapTileFilesystemProvider.DEBUG_TAG, "Exception in deleteOldest cache empty " + e);
+            } else {
+                ACRAHelper.nocrashReport(e, e.getMessage());
             }
         }
         Log.d(DEBUG_TAG, "deleteOldest size gained " + sizeGained);
         return sizeGained;
     }
 
+    /**
+     * Remove at most EVICTION_BATCH_SIZE of the least recently used tiles in one transaction
+     * 
+     * The tiles are found via the index on the timestamp so this doesn't depend on the total number of tiles
+     * 
+     * @param pSizeNeeded the extra size we need
+     * @return the size we actually gained, 0 if there was nothing to remove
+     */
+    private long deleteOldestBatch(final long pSizeNeeded) {
+        final long[] rowIds = new long[EVICTION_BATCH_SIZE];
+        int count = 0;
+        long sizeGained = 0;
+        try (Cursor c = mDatabase.rawQuery(T_FSCACHE_SELECT_OLDEST, null)) {
+            while (sizeGained < pSizeNeeded && c.moveToNext()) {
+                rowIds[count++] = c.getLong(0);
+                sizeGained += c.getInt(1);
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        SQLiteStatement delete = mDatabase.compileStatement(T_FSCACHE_DELETE_ROW);
+        try {
+            mDatabase.beginTransaction();
+            for (int i = 0; i < count; i++) {
+                delete.bindLong(1, rowIds[i]);
+                delete.executeUpdateDelete();
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            if (mDatabase.inTransaction()) {
+                mDatabase.endTransaction();
+            }
+            delete.close();
+        }
+        return sizeGained;
+    }
+
     /**
      * Delete all tiles from cache for a specific renderer
      * 
@@ -444,6 +671,7 @@ public class MapTileProviderDataBase {
             try {
                 db.execSQL(T_RENDERER_CREATE_COMMAND);
                 db.execSQL(T_FSCACHE_CREATE_COMMAND);
+                db.execSQL(T_FSCACHE_CREATE_TIMESTAMP_INDEX);
             } catch (SQLException e) {
                 Log.w(MapTileFilesystemProvider.DEBUG_TAG, "Problem creating database", e);
             }
@@ -455,6 +683,15 @@ public class MapTileProviderDataBase {
                 Log.w(MapTileFilesystemProvider.DEBUG_TAG,
                         "Upgrading database from version " + oldVersion + " to " + newVersion + ", which will destroy all old data");
             }
+            if (oldVersion >= 8) { // keep the tiles
+                if (oldVersion < 9) {
+                    db.execSQL("ALTER TABLE " + T_FSCACHE + " ADD COLUMN " + T_FSCACHE_ETAG + " TEXT");
+                    db.execSQL("ALTER TABLE " + T_FSCACHE + " ADD COLUMN " + T_FSCACHE_LAST_MODIFIED + " TEXT");
+                    db.execSQL("ALTER TABLE " + T_FSCACHE + " ADD COLUMN " + T_FSCACHE_EXPIRES + " INTEGER NOT NULL DEFAULT 0");
+                }
+                db.execSQL(T_FSCACHE_CREATE_TIMESTAMP_INDEX);
+                return;
+            }
             db.execSQL("DROP TABLE IF EXISTS " + T_FSCACHE);
 
             onCreate(db);
@@ -465,6 +702,14 @@ public class MapTileProviderDataBase {
      * Close the DB handle
      */
     public void close() {
+        maintenance.shutdown();
+        try {
+            if (!maintenance.awaitTermination(1, TimeUnit.SECONDS)) {
+                Log.w(DEBUG_TAG, "Maintenance tasks still running on close");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         mDatabase.close();
         databaseHelper.close();
     }
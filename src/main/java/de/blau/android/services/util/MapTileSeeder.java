@@ -0,0 +1,354 @@
+package de.blau.android.services.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.IBinder;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
+import de.blau.android.R;
+import de.blau.android.resources.TileLayerSource;
+import de.blau.android.services.IMapTileProviderCallback;
+import de.blau.android.util.Notifications;
+import de.blau.android.util.SavingHelper;
+
+/**
+ * Download all tiles for an area in the background so that they are available offline
+ *
+ * Jobs are run one after the other, tiles that are already cached are skipped and the remaining ones are queued with
+ * the MapTileDownloader as background requests that are only loaded when nothing else is pending. The number of
+ * concurrent requests and the request rate are limited so that we don't overload the tile servers. Progress is saved
+ * regularly so that a job can be continued after the service has been killed.
+ */
+public class MapTileSeeder {
+
+    private static final String DEBUG_TAG = MapTileSeeder.class.getSimpleName();
+
+    static final String FILENAME = "tileseeding.res";
+
+    /**
+     * Maximum number of concurrent requests for one job
+     */
+    private static final int MAX_IN_FLIGHT = 2;
+
+    /**
+     * Minimum time between two requests in ms
+     */
+    private static final long MIN_REQUEST_INTERVAL = 250;
+
+    /**
+     * Save progress after this many requests
+     */
+    private static final int CHECKPOINT_INTERVAL = 100;
+
+    /**
+     * Update the notification at most this often, in ms
+     */
+    private static final long REPORT_INTERVAL = 2000;
+
+    /**
+     * Maximum time we wait for outstanding requests, in s
+     */
+    private static final long DRAIN_TIMEOUT = 60;
+
+    private final Context                              ctx;
+    private final MapTileFilesystemProvider            fsProvider;
+    private final ExecutorService                      executor     = Executors.newSingleThreadExecutor();
+    private final ArrayList<TileSeedJob>               jobs         = new ArrayList<>();
+    private final SavingHelper<ArrayList<TileSeedJob>> savingHelper = new SavingHelper<>();
+    private volatile TileSeedJob                       running      = null;
+
+    /**
+     * Construct a new seeder
+     *
+     * @param ctx an Android Context
+     * @param fsProvider the MapTileFilesystemProvider
+     */
+    public MapTileSeeder(@NonNull Context ctx, @NonNull MapTileFilesystemProvider fsProvider) {
+        this.ctx = ctx;
+        this.fsProvider = fsProvider;
+    }
+
+    /**
+     * Continue any jobs that were saved when the service was last stopped
+     */
+    public void resume() {
+        execute(() -> {
+            ArrayList<TileSeedJob> saved = savingHelper.load(ctx, FILENAME, false);
+            if (saved != null && !saved.isEmpty()) {
+                synchronized (jobs) {
+                    jobs.addAll(saved);
+                }
+                Log.i(DEBUG_TAG, "Resuming " + saved.size() + " seeding jobs");
+                runJobs();
+            }
+        });
+    }
+
+    /**
+     * Add a job, an existing job for the same layer is replaced
+     *
+     * @param job the TileSeedJob
+     */
+    public void seed(@NonNull TileSeedJob job) {
+        stop(job.rendererId);
+        synchronized (jobs) {
+            jobs.add(job);
+        }
+        Log.i(DEBUG_TAG, "Seeding " + job + " up to " + job.getTileCount() + " tiles");
+        execute(() -> {
+            save();
+            runJobs();
+        });
+    }
+
+    /**
+     * Stop and remove jobs
+     *
+     * @param rendererId the layer to stop seeding for or null for all layers
+     */
+    public void stop(@Nullable String rendererId) {
+        synchronized (jobs) {
+            for (Iterator<TileSeedJob> it = jobs.iterator(); it.hasNext();) {
+                TileSeedJob job = it.next();
+                if (rendererId == null || rendererId.equals(job.rendererId)) {
+                    job.cancel();
+                    it.remove();
+                }
+            }
+        }
+        execute(this::save);
+    }
+
+    /**
+     * Stop the running job without waiting for it, progress is saved on the seeding thread so that it can be resumed
+     * 
+     * This is called on the main thread
+     */
+    public void destroy() {
+        TileSeedJob job = running;
+        if (job != null) {
+            job.cancel();
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Run a task on the seeding thread
+     *
+     * @param task the task
+     */
+    private void execute(@NonNull Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(DEBUG_TAG, "Seeder stopped, not running " + task);
+        }
+    }
+
+    /**
+     * Save the current jobs and their progress
+     */
+    private void save() {
+        ArrayList<TileSeedJob> toSave;
+        synchronized (jobs) {
+            toSave = new ArrayList<>(jobs);
+        }
+        if (!savingHelper.save(ctx, FILENAME, toSave, false)) {
+            Log.e(DEBUG_TAG, "Saving seeding progress failed");
+        }
+    }
+
+    /**
+     * Run jobs until there are none left or the running one was stopped
+     */
+    private void runJobs() {
+        while (true) {
+            TileSeedJob job;
+            synchronized (jobs) {
+                if (jobs.isEmpty()) {
+                    return;
+                }
+                job = jobs.get(0);
+            }
+            running = job;
+            boolean completed = run(job);
+            running = null;
+            if (completed) {
+                synchronized (jobs) {
+                    jobs.remove(job);
+                }
+            }
+            save();
+            if (!completed) {
+                return; // stopped or no network, will be resumed later
+            }
+        }
+    }
+
+    /**
+     * Seed the tiles of one job
+     *
+     * @param job the TileSeedJob
+     * @return true if all tiles have been processed or the job can't be run
+     */
+    private boolean run(@NonNull TileSeedJob job) {
+        TileLayerSource layer = TileLayerSource.get(ctx, job.rendererId, false);
+        if (layer == null || layer.isReadOnly()) {
+            Log.e(DEBUG_TAG, "Can't seed " + job);
+            return true;
+        }
+        final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        final SeedCallback callback = new SeedCallback(job, inFlight);
+        final long start = System.currentTimeMillis();
+        long lastRequest = 0;
+        long lastReport = 0;
+        int sinceCheckpoint = 0;
+        long checkpointStart = start;
+        boolean stalled = false;
+        try {
+            MapTile tile;
+            while (!job.isCancelled() && !callback.noNetwork) {
+                tile = job.next();
+                if (tile == null) {
+                    break;
+                }
+                if (fsProvider.hasTile(tile)) {
+                    job.skipped();
+                    continue;
+                }
+                if (!inFlight.tryAcquire(DRAIN_TIMEOUT, TimeUnit.SECONDS)) {
+                    // shouldn't happen as every request gets a callback, stop and resume later instead of hanging
+                    Log.w(DEBUG_TAG, "Timeout waiting for seeding requests");
+                    stalled = true;
+                    break;
+                }
+                long wait = lastRequest + MIN_REQUEST_INTERVAL - System.currentTimeMillis();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+                lastRequest = System.currentTimeMillis();
+                if (!fsProvider.seedTile(tile, callback)) { // already being loaded
+                    inFlight.release();
+                    job.skipped();
+                    continue;
+                }
+                if (++sinceCheckpoint >= CHECKPOINT_INTERVAL) {
+                    drain(inFlight);
+                    long now = System.currentTimeMillis();
+                    job.addElapsed(now - checkpointStart);
+                    checkpointStart = now;
+                    save();
+                    sinceCheckpoint = 0;
+                }
+                if (lastRequest - lastReport > REPORT_INTERVAL) {
+                    report(layer, job, lastRequest - checkpointStart, false);
+                    lastReport = lastRequest;
+                }
+            }
+            if (!stalled) {
+                drain(inFlight);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.cancel();
+        }
+        job.addElapsed(System.currentTimeMillis() - checkpointStart);
+        boolean completed = !job.isCancelled() && !callback.noNetwork && !stalled;
+        report(layer, job, 0, completed);
+        Log.i(DEBUG_TAG, (completed ? "Finished " : "Stopped ") + job + " downloaded " + job.getDownloaded() + " tiles " + job.getBytes() + " bytes "
+                + String.format("%.1f", job.getTilesPerSecond(0)) + " tiles/s, failed " + job.getFailed());
+        return completed;
+    }
+
+    /**
+     * Wait for all outstanding requests to finish
+     *
+     * @param inFlight the Semaphore tracking the requests
+     * @throws InterruptedException if we were interrupted
+     */
+    private void drain(@NonNull Semaphore inFlight) throws InterruptedException {
+        if (inFlight.tryAcquire(MAX_IN_FLIGHT, DRAIN_TIMEOUT, TimeUnit.SECONDS)) {
+            inFlight.release(MAX_IN_FLIGHT);
+        } else {
+            Log.w(DEBUG_TAG, "Timeout waiting for seeding requests");
+        }
+    }
+
+    /**
+     * Show the progress and download rate in a notification
+     *
+     * @param layer the layer being seeded
+     * @param job the TileSeedJob
+     * @param running ms since the last checkpoint
+     * @param finished true if the job has finished
+     */
+    private void report(@NonNull TileLayerSource layer, @NonNull TileSeedJob job, long running, boolean finished) {
+        long total = job.getTileCount();
+        long processed = job.getProcessed();
+        NotificationCompat.Builder builder = Notifications.builder(ctx).setSmallIcon(R.drawable.logo_simplified)
+                .setContentTitle(ctx.getString(finished ? R.string.tile_seeding_finished : R.string.tile_seeding, layer.getName()))
+                .setContentText(ctx.getString(R.string.tile_seeding_progress, processed, total, job.getTilesPerSecond(running))).setOngoing(!finished)
+                .setOnlyAlertOnce(true);
+        if (!finished) {
+            builder.setProgress(1000, (int) (processed * 1000 / Math.max(1, total)), false);
+        }
+        NotificationManager nManager = (NotificationManager) ctx.getSystemService(Context.NOTIFICATION_SERVICE);
+        nManager.notify(R.id.notification_tile_seeding, builder.build());
+    }
+
+    /**
+     * Counts the results of the requests of a job
+     */
+    private static class SeedCallback implements IMapTileProviderCallback {
+        private final TileSeedJob job;
+        private final Semaphore   inFlight;
+        volatile boolean          noNetwork = false;
+
+        /**
+         * Construct a new callback
+         *
+         * @param job the TileSeedJob
+         * @param inFlight the Semaphore tracking the requests
+         */
+        SeedCallback(@NonNull TileSeedJob job, @NonNull Semaphore inFlight) {
+            this.job = job;
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return null;
+        }
+
+        @Override
+        public void mapTileLoaded(String rendererID, int zoomLevel, int tileX, int tileY, byte[] aImage) {
+            job.downloaded(aImage != null ? aImage.length : 0);
+            inFlight.release();
+        }
+
+        @Override
+        public void mapTileLoadedFromBuffer(String rendererID, int zoomLevel, int tileX, int tileY, int slot) {
+            job.downloaded(0);
+            inFlight.release();
+        }
+
+        @Override
+        public void mapTileFailed(String rendererID, int zoomLevel, int tileX, int tileY, int reason) {
+            if (reason == MapAsyncTileProvider.NONETWORK) {
+                noNetwork = true;
+            }
+            job.failed();
+            inFlight.release();
+        }
+    }
+}
@@ -0,0 +1,597 @@
+package de.blau.android.services.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.exception.InvalidTileException;
+
+/**
+ * Tile storage in large append-only segment files, an alternative to storing tiles as blobs in SQLite
+ *
+ * Every record consists of a header with the zoom level, x, y and the length of the tile data followed by the data.
+ * An in memory index maps tiles to their latest record and is rebuilt by scanning the segments when the store is
+ * opened, so reading a tile is a single positional read. Replacing a tile leaves the old record behind, segments that
+ * are mostly garbage are compacted in the background by copying their live records to the current segment. Space is
+ * freed by dropping the oldest segment.
+ */
+public class MapTileSegmentStore {
+
+    private static final String DEBUG_TAG = MapTileSegmentStore.class.getSimpleName();
+
+    static final String SEGMENT_EXTENSION    = ".seg";
+    static final int    DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    static final int    HEADER_SIZE          = 16;
+
+    /**
+     * Compact a segment when less than this fraction of it is still in use
+     */
+    static final float COMPACTION_THRESHOLD = 0.5f;
+
+    private static final String INVALID_TILE = "Tile marked invalid in segment store";
+
+    /**
+     * Location of a tile record, a length of 0 marks a tile that doesn't exist
+     */
+    private static final class Location {
+        final int segment;
+        final int offset;
+        final int length;
+
+        /**
+         * Construct a new instance
+         *
+         * @param segment the segment id
+         * @param offset the offset of the record header in the segment
+         * @param length the length of the tile data
+         */
+        Location(int segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Get the size of the whole record
+         *
+         * @return the size in bytes
+         */
+        int recordSize() {
+            return HEADER_SIZE + length;
+        }
+    }
+
+    /**
+     * An open segment file
+     */
+    private static final class Segment {
+        final int         id;
+        final File        file;
+        final FileChannel channel;
+        int               size;
+        int               live;
+        boolean           compacting = false;
+
+        /**
+         * Open a segment file
+         *
+         * @param id the segment id
+         * @param file the File
+         * @throws IOException if the file can't be opened
+         */
+        Segment(int id, @NonNull File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            size = (int) channel.size();
+        }
+    }
+
+    private final File                      dir;
+    private final int                       segmentSize;
+    private final Map<Long, Location>       index           = new HashMap<>();
+    private final TreeMap<Integer, Segment> segments        = new TreeMap<>();
+    private final ExecutorService           maintenance;
+    private final AtomicBoolean             evictionPending = new AtomicBoolean(false);
+    private Segment                         current;
+    private long                            totalSize;
+
+    /**
+     * Open or create a store
+     *
+     * @param dir the directory holding the segment files
+     * @param segmentSize the maximum size of a segment file
+     * @return a MapTileSegmentStore
+     * @throws IOException if the store can't be opened
+     */
+    @NonNull
+    public static MapTileSegmentStore open(@NonNull File dir, int segmentSize) throws IOException {
+        MapTileSegmentStore store = new MapTileSegmentStore(dir, segmentSize);
+        store.load();
+        return store;
+    }
+
+    /**
+     * Private constructor
+     *
+     * @param dir the directory holding the segment files
+     * @param segmentSize the maximum size of a segment file
+     */
+    private MapTileSegmentStore(@NonNull File dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        maintenance = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Open all segments and build the index
+     *
+     * @throws IOException if reading a segment failed
+     */
+    private synchronized void load() throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir.getAbsolutePath());
+        }
+        for (Entry<Integer, File> entry : segmentFiles(dir).entrySet()) {
+            segments.put(entry.getKey(), new Segment(entry.getKey(), entry.getValue()));
+        }
+        for (Segment s : segments.values()) {
+            scan(s);
+            totalSize += s.size;
+        }
+        current = segments.isEmpty() ? newSegment() : segments.lastEntry().getValue();
+    }
+
+    /**
+     * Get the segment files in a directory
+     *
+     * @param dir the directory holding the segment files
+     * @return a map from segment id to file, ordered from oldest to newest
+     */
+    @NonNull
+    private static TreeMap<Integer, File> segmentFiles(@NonNull File dir) {
+        TreeMap<Integer, File> result = new TreeMap<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.endsWith(SEGMENT_EXTENSION)) {
+                    try {
+                        result.put(Integer.parseInt(name.substring(0, name.length() - SEGMENT_EXTENSION.length())), f);
+                    } catch (NumberFormatException e) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the size of the segment files of a store that isn't open
+     *
+     * @param dir the directory holding the segment files
+     * @return the size in bytes
+     */
+    static long getSize(@NonNull File dir) {
+        long size = 0;
+        for (File f : segmentFiles(dir).values()) {
+            size += f.length();
+        }
+        return size;
+    }
+
+    /**
+     * Delete the oldest segment file of a store that isn't open
+     *
+     * The index is rebuilt from the remaining segments when the store is opened. The newest segment is never deleted.
+     *
+     * @param dir the directory holding the segment files
+     * @return the number of bytes freed
+     */
+    static long deleteOldestSegment(@NonNull File dir) {
+        TreeMap<Integer, File> files = segmentFiles(dir);
+        if (files.size() <= 1) {
+            return 0;
+        }
+        File oldest = files.firstEntry().getValue();
+        long size = oldest.length();
+        if (!oldest.delete()) {
+            Log.e(DEBUG_TAG, "Unable to delete " + oldest.getAbsolutePath());
+            return 0;
+        }
+        return size;
+    }
+
+    /**
+     * Read the record headers of a segment and add them to the index
+     *
+     * A truncated record at the end, for example from a crash while writing, is removed
+     *
+     * @param segment the Segment
+     * @throws IOException if reading failed
+     */
+    private void scan(@NonNull Segment segment) throws IOException {
+        int offset = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)))) {
+            while (offset + HEADER_SIZE <= segment.size) {
+                int zoomLevel = in.readInt();
+                int x = in.readInt();
+                int y = in.readInt();
+                int length = in.readInt();
+                if (length < 0 || offset + HEADER_SIZE + length > segment.size) {
+                    break;
+                }
+                in.skipBytes(length);
+                index(key(zoomLevel, x, y), new Location(segment.id, offset, length));
+                offset += HEADER_SIZE + length;
+            }
+        } catch (EOFException e) {
+            // truncated below
+        }
+        if (offset < segment.size) {
+            segment.channel.truncate(offset);
+            segment.size = offset;
+        }
+    }
+
+    /**
+     * Point the index for a tile to a new record and update the live size of the segments involved
+     *
+     * @param key the key for the tile
+     * @param location the new Location
+     * @return the previous Location or null
+     */
+    @Nullable
+    private Location index(long key, @NonNull Location location) {
+        Location old = index.put(key, location);
+        if (old != null) {
+            Segment oldSegment = segments.get(old.segment);
+            if (oldSegment != null) {
+                oldSegment.live -= old.recordSize();
+            }
+        }
+        segments.get(location.segment).live += location.recordSize();
+        return old;
+    }
+
+    /**
+     * Create a new segment and make it the current one
+     *
+     * @return the new Segment
+     * @throws IOException if the file can't be created
+     */
+    @NonNull
+    private Segment newSegment() throws IOException {
+        int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        Segment segment = new Segment(id, new File(dir, String.format("%08d", id) + SEGMENT_EXTENSION));
+        segments.put(id, segment);
+        current = segment;
+        return segment;
+    }
+
+    /**
+     * Get a key for the index
+     *
+     * @param zoomLevel the zoom level
+     * @param x tile x
+     * @param y tile y
+     * @return a long uniquely identifying the tile
+     */
+    static long key(int zoomLevel, int x, int y) {
+        return ((long) zoomLevel << 58) | ((long) x << 29) | y;
+    }
+
+    /**
+     * Get the data for a tile
+     *
+     * @param tile the tile meta data
+     * @return the tile data or null if the tile isn't present
+     * @throws IOException if reading failed
+     * @throws InvalidTileException if the tile has been marked as invalid
+     */
+    @Nullable
+    public byte[] getTile(@NonNull MapTile tile) throws IOException {
+        Location location;
+        Segment segment;
+        synchronized (this) {
+            location = index.get(key(tile.zoomLevel, tile.x, tile.y));
+            if (location == null) {
+                return null;
+            }
+            segment = segments.get(location.segment);
+        }
+        if (location.length == 0) {
+            throw new InvalidTileException(INVALID_TILE);
+        }
+        if (segment == null) {
+            return null;
+        }
+        try {
+            return read(segment, location);
+        } catch (ClosedChannelException e) {
+            // segment was removed while we were reading
+            return null;
+        }
+    }
+
+    /**
+     * Check if a tile is present
+     *
+     * @param tile the tile meta data
+     * @return true if the tile, or a marker that it is invalid, is present
+     */
+    public synchronized boolean hasTile(@NonNull MapTile tile) {
+        return index.containsKey(key(tile.zoomLevel, tile.x, tile.y));
+    }
+
+    /**
+     * Read the data of a record
+     *
+     * @param segment the Segment holding the record
+     * @param location the Location of the record
+     * @return the tile data
+     * @throws IOException if reading failed
+     */
+    @NonNull
+    private static byte[] read(@NonNull Segment segment, @NonNull Location location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        long position = (long) location.offset + HEADER_SIZE;
+        while (buffer.hasRemaining()) {
+            if (segment.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Truncated tile record in " + segment.file.getName());
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Store a tile, replacing any previous version
+     *
+     * @param tile the tile meta data
+     * @param data the tile data or null to mark the tile as invalid
+     * @return the number of bytes the store has grown
+     * @throws IOException if writing failed
+     */
+    public int putTile(@NonNull MapTile tile, @Nullable byte[] data) throws IOException {
+        Segment compact;
+        synchronized (this) {
+            Location old = append(tile.zoomLevel, tile.x, tile.y, data != null ? data : new byte[0]);
+            compact = old != null ? compactionCandidate(old.segment) : null;
+        }
+        if (compact != null) {
+            final Segment segment = compact;
+            runInBackground(() -> {
+                try {
+                    compact(segment);
+                } catch (IOException e) {
+                    Log.e(DEBUG_TAG, "Compacting " + segment.file.getName() + " failed " + e.getMessage());
+                }
+            });
+        }
+        return HEADER_SIZE + (data != null ? data.length : 0);
+    }
+
+    /**
+     * Append a record to the current segment, starting a new one if it is full
+     *
+     * @param zoomLevel the zoom level
+     * @param x tile x
+     * @param y tile y
+     * @param data the tile data
+     * @return the previous Location of the tile or null
+     * @throws IOException if writing failed
+     */
+    @Nullable
+    private Location append(int zoomLevel, int x, int y, @NonNull byte[] data) throws IOException {
+        if (current.size > 0 && current.size + HEADER_SIZE + data.length > segmentSize) {
+            newSegment();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + data.length);
+        buffer.putInt(zoomLevel).putInt(x).putInt(y).putInt(data.length).put(data);
+        buffer.flip();
+        int offset = current.size;
+        while (buffer.hasRemaining()) {
+            current.channel.write(buffer, (long) offset + buffer.position());
+        }
+        current.size += buffer.limit();
+        totalSize += buffer.limit();
+        return index(key(zoomLevel, x, y), new Location(current.id, offset, data.length));
+    }
+
+    /**
+     * Check if a segment should be compacted
+     *
+     * @param id the segment id
+     * @return the Segment if it should be compacted, null otherwise
+     */
+    @Nullable
+    private Segment compactionCandidate(int id) {
+        Segment segment = segments.get(id);
+        if (segment == null || segment == current || segment.compacting || segment.live >= segment.size * COMPACTION_THRESHOLD) {
+            return null;
+        }
+        segment.compacting = true;
+        return segment;
+    }
+
+    /**
+     * Copy the live records of a segment to the current one and remove it
+     *
+     * The lock is only held while copying individual records, so reads and writes can proceed in between
+     *
+     * @param segment the Segment
+     * @throws IOException if reading or writing failed
+     */
+    private void compact(@NonNull Segment segment) throws IOException {
+        List<Entry<Long, Location>> live = new ArrayList<>();
+        synchronized (this) {
+            for (Entry<Long, Location> e : index.entrySet()) {
+                if (e.getValue().segment == segment.id) {
+                    live.add(e);
+                }
+            }
+        }
+        for (Entry<Long, Location> e : live) {
+            Location location = e.getValue();
+            byte[] data = location.length > 0 ? read(segment, location) : new byte[0];
+            long key = e.getKey();
+            synchronized (this) {
+                if (index.get(key) == location) { // not replaced in the mean time
+                    append((int) (key >>> 58), (int) ((key >>> 29) & 0x1FFFFFFF), (int) (key & 0x1FFFFFFF), data);
+                }
+            }
+        }
+        synchronized (this) {
+            removeSegment(segment);
+        }
+    }
+
+    /**
+     * Remove the oldest segment and all tiles in it
+     *
+     * @return the number of bytes freed
+     */
+    public synchronized long evictOldestSegment() {
+        if (segments.size() <= 1) {
+            return 0;
+        }
+        Segment oldest = segments.firstEntry().getValue();
+        Iterator<Location> it = index.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().segment == oldest.id) {
+                it.remove();
+            }
+        }
+        return removeSegment(oldest);
+    }
+
+    /**
+     * Close and delete a segment, the index must not contain any references to it
+     *
+     * @param segment the Segment
+     * @return the number of bytes freed
+     */
+    private long removeSegment(@NonNull Segment segment) {
+        if (segments.remove(segment.id) == null) {
+            return 0;
+        }
+        totalSize -= segment.size;
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        if (!segment.file.delete()) {
+            Log.e(DEBUG_TAG, "Unable to delete " + segment.file.getAbsolutePath());
+        }
+        return segment.size;
+    }
+
+    /**
+     * Run a task on the maintenance thread
+     *
+     * @param task the task
+     */
+    private void runInBackground(@NonNull Runnable task) {
+        try {
+            maintenance.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(DEBUG_TAG, "Store closed, not running " + task);
+        }
+    }
+
+    /**
+     * Remove the oldest segment in the background
+     *
+     * If an eviction is already pending this does nothing
+     */
+    public void evictOldestSegmentAsync() {
+        if (evictionPending.compareAndSet(false, true)) {
+            runInBackground(() -> {
+                try {
+                    evictOldestSegment();
+                } finally {
+                    evictionPending.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Get the size of all segment files
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getSize() {
+        return totalSize;
+    }
+
+    /**
+     * Get the number of segment files
+     *
+     * @return the number of segments
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Remove all tiles
+     *
+     * @throws IOException if a new segment can't be created
+     */
+    public synchronized void clear() throws IOException {
+        for (Segment s : new ArrayList<>(segments.values())) {
+            removeSegment(s);
+        }
+        index.clear();
+        totalSize = 0;
+        newSegment();
+    }
+
+    /**
+     * Close the store, waiting a short time for running maintenance tasks to finish
+     */
+    public void close() {
+        maintenance.shutdown();
+        try {
+            if (!maintenance.awaitTermination(1, TimeUnit.SECONDS)) {
+                Log.w(DEBUG_TAG, "Maintenance tasks still running on close");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment s : segments.values()) {
+                try {
+                    s.channel.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package de.blau.android.services.util;
+
+import androidx.annotation.NonNull;
+
+/**
+ * The range of tiles currently displayed for a tile layer, used to prioritize and cancel tile requests
+ *
+ * Tile numbers do not need to be normalized, the view may extend over the 180° meridian
+ */
+public class MapTileViewport {
+
+    /**
+     * Tiles this far outside of the view are still considered visible
+     */
+    static final int MARGIN = 1;
+
+    final String rendererId;
+    final int    zoomLevel;
+    final int    left;
+    final int    top;
+    final int    right;
+    final int    bottom;
+
+    private final double centerX;
+    private final double centerY;
+    private final int    tiles;
+
+    /**
+     * Construct a new viewport
+     *
+     * @param rendererId the id of the tile layer
+     * @param zoomLevel the zoom level
+     * @param left left most tile x
+     * @param top top most tile y
+     * @param right right most tile x
+     * @param bottom bottom most tile y
+     */
+    public MapTileViewport(@NonNull String rendererId, int zoomLevel, int left, int top, int right, int bottom) {
+        this.rendererId = rendererId;
+        this.zoomLevel = zoomLevel;
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+        centerX = (left + right + 1) / 2d;
+        centerY = (top + bottom + 1) / 2d;
+        tiles = 1 << Math.min(zoomLevel, 30);
+    }
+
+    /**
+     * Check if a tile is (nearly) visible in this viewport
+     *
+     * Tiles with a different zoom level are scaled to the zoom level of the viewport
+     *
+     * @param tile the tile
+     * @return true if the tile is at least partially inside the viewport or the margin around it
+     */
+    public boolean contains(@NonNull MapTile tile) {
+        double scale = scale(tile);
+        double tileTop = tile.y * scale;
+        if (tileTop > bottom + MARGIN || tileTop + scale < top - MARGIN) {
+            return false;
+        }
+        double tileLeft = tile.x * scale;
+        for (int wrap = -tiles; wrap <= tiles; wrap += tiles) {
+            double l = tileLeft + wrap;
+            if (l <= right + MARGIN && l + scale >= left - MARGIN) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the squared distance of the tile center from the center of the viewport in tiles of the viewports zoom level
+     *
+     * @param tile the tile
+     * @return the squared distance
+     */
+    public double distance(@NonNull MapTile tile) {
+        double scale = scale(tile);
+        double dy = (tile.y + 0.5d) * scale - centerY;
+        double x = (tile.x + 0.5d) * scale;
+        double dx = Double.MAX_VALUE;
+        for (int wrap = -tiles; wrap <= tiles; wrap += tiles) {
+            double d = Math.abs(x + wrap - centerX);
+            if (d < dx) {
+                dx = d;
+            }
+        }
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Get the factor to convert tile numbers to the zoom level of the viewport
+     *
+     * @param tile the tile
+     * @return the scale factor
+     */
+    private double scale(@NonNull MapTile tile) {
+        return Math.pow(2d, (double) zoomLevel - tile.zoomLevel);
+    }
+
+    /**
+     * Check if this has the same extent as another viewport
+     *
+     * @param other the other viewport
+     * @return true if renderer, zoom and tile ranges are the same
+     */
+    public boolean sameAs(@NonNull MapTileViewport other) {
+        return rendererId.equals(other.rendererId) && zoomLevel == other.zoomLevel && left == other.left && top == other.top && right == other.right
+                && bottom == other.bottom;
+    }
+}
@@ -0,0 +1,104 @@
+package de.blau.android.services.util;
+
+import java.util.Date;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import okhttp3.CacheControl;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * HTTP cache validators and expiry time for a stored tile
+ */
+public class TileCacheInfo {
+
+    static final String ETAG              = "ETag";
+    static final String LAST_MODIFIED     = "Last-Modified";
+    static final String EXPIRES           = "Expires";
+    static final String IF_NONE_MATCH     = "If-None-Match";
+    static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    /**
+     * Don't re-validate tiles more often than this even if the server asks us to
+     */
+    static final long MIN_LIFETIME = 3600000L;
+
+    final String etag;
+    final String lastModified;
+    final long   expires;
+
+    /**
+     * Construct a new instance
+     *
+     * @param etag the ETag header value or null
+     * @param lastModified the Last-Modified header value or null
+     * @param expires expiry time in milliseconds since the epoch, 0 if unknown
+     */
+    public TileCacheInfo(@Nullable String etag, @Nullable String lastModified, long expires) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expires = expires;
+    }
+
+    /**
+     * Get the cache information from a HTTP response
+     *
+     * max-age takes precedence over the Expires header, if neither is present the expiry time is unknown and the tile
+     * will not be re-validated
+     *
+     * @param response the Response
+     * @param now the current time in milliseconds since the epoch
+     * @return a TileCacheInfo
+     */
+    @NonNull
+    public static TileCacheInfo fromResponse(@NonNull Response response, long now) {
+        long expires = 0;
+        CacheControl cacheControl = response.cacheControl();
+        if (cacheControl.maxAgeSeconds() >= 0) {
+            expires = now + cacheControl.maxAgeSeconds() * 1000L;
+        } else {
+            Date date = response.headers().getDate(EXPIRES);
+            if (date != null) {
+                expires = date.getTime();
+            }
+        }
+        if (expires != 0) {
+            expires = Math.max(expires, now + MIN_LIFETIME);
+        }
+        return new TileCacheInfo(response.header(ETAG), response.header(LAST_MODIFIED), expires);
+    }
+
+    /**
+     * Check if the tile should be re-validated
+     *
+     * @param now the current time in milliseconds since the epoch
+     * @return true if the expiry time is known and has passed, and we have a validator
+     */
+    public boolean isExpired(long now) {
+        return expires != 0 && expires < now && hasValidator();
+    }
+
+    /**
+     * Check if we can make a conditional request
+     *
+     * @return true if we have an ETag or a last modified date
+     */
+    public boolean hasValidator() {
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * Add conditional request headers
+     *
+     * @param builder the Request.Builder
+     */
+    void addConditionalHeaders(@NonNull Request.Builder builder) {
+        if (etag != null) {
+            builder.header(IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null) {
+            builder.header(IF_MODIFIED_SINCE, lastModified);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package de.blau.android.services.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.App;
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * HTTP client shared by everything that downloads tiles
+ *
+ * Concurrent requests for the same tile are coalesced in to one download, and tiles we already have can be
+ * re-validated with a conditional request. The tile providers only avoid queuing the same tile twice in their own
+ * queues, this also covers requests that arrive by different routes, for example from seeding and the map display.
+ */
+public final class TileHttpClient {
+
+    private static final String DEBUG_TAG = TileHttpClient.class.getSimpleName();
+
+    public static final long TIMEOUT = 5000;
+
+    /**
+     * Idle connections are kept open for this long, tile requests tend to come in bursts
+     */
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    /**
+     * Idle connections to keep per download thread, enough for layers that rotate over a couple of subdomains
+     */
+    private static final int IDLE_CONNECTIONS_PER_THREAD = 2;
+
+    private static TileHttpClient instance;
+
+    private final OkHttpClient          client;
+    private final Map<String, InFlight> inFlight = new HashMap<>();
+
+    /**
+     * The result of a tile request
+     */
+    public static class TileResponse {
+        final int           code;
+        final byte[]        data;
+        final MediaType     contentType;
+        final Headers       headers;
+        final TileCacheInfo cacheInfo;
+
+        /**
+         * Construct a new instance
+         *
+         * @param code the HTTP status code
+         * @param data the response body
+         * @param contentType the content type of the body or null
+         * @param headers the response headers
+         * @param cacheInfo caching information for the tile
+         */
+        TileResponse(int code, @NonNull byte[] data, @Nullable MediaType contentType, @NonNull Headers headers, @NonNull TileCacheInfo cacheInfo) {
+            this.code = code;
+            this.data = data;
+            this.contentType = contentType;
+            this.headers = headers;
+            this.cacheInfo = cacheInfo;
+        }
+
+        /**
+         * Check if the request was successful
+         *
+         * @return true if we received a tile
+         */
+        public boolean isSuccessful() {
+            return code >= 200 && code < 300;
+        }
+
+        /**
+         * Check if the stored tile is still current
+         *
+         * @return true if the server replied with 304 Not Modified
+         */
+        public boolean isNotModified() {
+            return code == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+    }
+
+    /**
+     * A request that is currently running, other requests for the same tile wait for its result
+     */
+    private static class InFlight {
+        final CountDownLatch done = new CountDownLatch(1);
+        TileResponse         response;
+        IOException          exception;
+    }
+
+    /**
+     * Get the shared instance
+     *
+     * @param maxThreads the number of threads used for downloading
+     * @return the TileHttpClient
+     */
+    @NonNull
+    public static synchronized TileHttpClient getInstance(int maxThreads) {
+        if (instance == null) {
+            instance = new TileHttpClient(maxThreads);
+        }
+        return instance;
+    }
+
+    /**
+     * Private constructor
+     *
+     * @param maxThreads the number of threads used for downloading
+     */
+    private TileHttpClient(int maxThreads) {
+        client = App.getHttpClient().newBuilder().connectTimeout(TIMEOUT, TimeUnit.MILLISECONDS).readTimeout(TIMEOUT, TimeUnit.MILLISECONDS)
+                .connectionPool(new ConnectionPool(maxThreads * IDLE_CONNECTIONS_PER_THREAD, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES)).build();
+    }
+
+    /**
+     * Download a tile
+     *
+     * If the same tile is already being downloaded, wait for that download and return its result
+     *
+     * @param tile the tile
+     * @param url the url for the tile
+     * @param cacheInfo if not null the validators will be used to make a conditional request
+     * @return a TileResponse
+     * @throws IOException if the download failed
+     */
+    @NonNull
+    public TileResponse get(@NonNull MapTile tile, @NonNull String url, @Nullable TileCacheInfo cacheInfo) throws IOException {
+        // conditional requests have a different result and are not shared
+        final String key = cacheInfo != null ? null : tile.toId();
+        InFlight request = null;
+        InFlight running = null;
+        if (key != null) {
+            synchronized (inFlight) {
+                running = inFlight.get(key);
+                if (running == null) {
+                    request = new InFlight();
+                    inFlight.put(key, request);
+                }
+            }
+        }
+        if (running != null) {
+            return await(running);
+        }
+        try {
+            TileResponse response = execute(url, cacheInfo);
+            if (request != null) {
+                request.response = response;
+            }
+            return response;
+        } catch (IOException e) {
+            if (request != null) {
+                request.exception = e;
+            }
+            throw e;
+        } finally {
+            if (request != null) {
+                synchronized (inFlight) {
+                    inFlight.remove(key);
+                }
+                request.done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Wait for a running request to finish
+     *
+     * @param running the running request
+     * @return the TileResponse of the running request
+     * @throws IOException if the running request failed or we were interrupted
+     */
+    @NonNull
+    private TileResponse await(@NonNull InFlight running) throws IOException {
+        try {
+            running.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for tile");
+        }
+        if (running.exception != null) {
+            throw running.exception;
+        }
+        if (running.response == null) {
+            throw new IOException("Shared tile request failed");
+        }
+        Log.d(DEBUG_TAG, "Shared tile request");
+        return running.response;
+    }
+
+    /**
+     * Execute the request and read the response body
+     *
+     * @param url the url for the tile
+     * @param cacheInfo if not null the validators will be used to make a conditional request
+     * @return a TileResponse
+     * @throws IOException if the download failed
+     */
+    @NonNull
+    private TileResponse execute(@NonNull String url, @Nullable TileCacheInfo cacheInfo) throws IOException {
+        Request.Builder builder = new Request.Builder().url(url);
+        if (cacheInfo != null) {
+            cacheInfo.addConditionalHeaders(builder);
+        }
+        Call call = client.newCall(builder.build());
+        try (Response response = call.execute()) {
+            ResponseBody body = response.body();
+            byte[] data = body != null && response.code() != HttpURLConnection.HTTP_NOT_MODIFIED ? body.bytes() : new byte[0];
+            long now = System.currentTimeMillis();
+            TileCacheInfo responseInfo = TileCacheInfo.fromResponse(response, now);
+            if (response.code() == HttpURLConnection.HTTP_NOT_MODIFIED && cacheInfo != null) {
+                // 304 responses don't have to repeat the validators or the expiry time
+                responseInfo = new TileCacheInfo(responseInfo.etag != null ? responseInfo.etag : cacheInfo.etag,
+                        responseInfo.lastModified != null ? responseInfo.lastModified : cacheInfo.lastModified,
+                        responseInfo.expires != 0 ? responseInfo.expires : now + TileCacheInfo.MIN_LIFETIME);
+            }
+            return new TileResponse(response.code(), data, body != null ? body.contentType() : null, response.headers(), responseInfo);
+        }
+    }
+}
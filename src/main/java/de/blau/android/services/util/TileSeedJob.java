@@ -0,0 +1,372 @@
+package de.blau.android.services.util;
+
+import java.io.Serializable;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A request to download all tiles of a layer for an area and a range of zoom levels
+ *
+ * Tiles are enumerated in a fixed order, zoom level first, then x, then y, the position of the next tile is part of
+ * the serialized state so that the job can be resumed
+ */
+public class TileSeedJob implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Maximum latitude that web mercator tiles cover
+     */
+    static final double MAX_LAT = 85.05112877980659;
+
+    final String           rendererId;
+    final int              minZoom;
+    final int              maxZoom;
+    private final double   left;
+    private final double   bottom;
+    private final double   right;
+    private final double   top;
+    private final double[] polygon;
+
+    private int               zoom;
+    private int               x;
+    private int               y;
+    private transient boolean cancelled = false;
+
+    private long downloaded = 0;
+    private long skipped    = 0;
+    private long failed     = 0;
+    private long bytes      = 0;
+    private long elapsed    = 0;
+
+    /**
+     * Construct a new job
+     *
+     * @param rendererId the id of the layer
+     * @param left western most longitude
+     * @param bottom southern most latitude
+     * @param right eastern most longitude
+     * @param top northern most latitude
+     * @param polygon if not null only tiles intersecting this polygon, given as longitude latitude pairs, are seeded
+     * @param minZoom the lowest zoom level
+     * @param maxZoom the highest zoom level
+     */
+    public TileSeedJob(@NonNull String rendererId, double left, double bottom, double right, double top, @Nullable double[] polygon, int minZoom,
+            int maxZoom) {
+        if (left > right || bottom > top || minZoom > maxZoom || minZoom < 0) {
+            throw new IllegalArgumentException("Invalid seeding area or zoom range");
+        }
+        if (polygon != null && (polygon.length < 6 || polygon.length % 2 != 0)) {
+            throw new IllegalArgumentException("Polygon needs at least three longitude latitude pairs");
+        }
+        this.rendererId = rendererId;
+        this.left = left;
+        this.bottom = bottom;
+        this.right = right;
+        this.top = top;
+        this.polygon = polygon;
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+        zoom = minZoom;
+        x = xTile(left, zoom);
+        y = yTile(top, zoom);
+    }
+
+    /**
+     * Get the next tile to seed
+     *
+     * @return a MapTile or null if all tiles have been returned
+     */
+    @Nullable
+    public synchronized MapTile next() {
+        while (zoom <= maxZoom) {
+            if (x > xTile(right, zoom)) {
+                zoom++;
+                x = xTile(left, zoom);
+                y = yTile(top, zoom);
+                continue;
+            }
+            if (y > yTile(bottom, zoom)) {
+                x++;
+                y = yTile(top, zoom);
+                continue;
+            }
+            int tileY = y++;
+            if (polygon == null || intersects(zoom, x, tileY)) {
+                return new MapTile(rendererId, zoom, x, tileY);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of tiles in the bounding box over all zoom levels
+     *
+     * @return an upper bound for the number of tiles that will be seeded
+     */
+    public long getTileCount() {
+        long count = 0;
+        for (int z = minZoom; z <= maxZoom; z++) {
+            count += (long) (xTile(right, z) - xTile(left, z) + 1) * (yTile(bottom, z) - yTile(top, z) + 1);
+        }
+        return count;
+    }
+
+    /**
+     * Get the tile x number for a longitude
+     *
+     * @param lon the longitude
+     * @param zoom the zoom level
+     * @return the tile x number
+     */
+    static int xTile(double lon, int zoom) {
+        int n = 1 << zoom;
+        return clamp((int) Math.floor((lon + 180d) / 360d * n), n);
+    }
+
+    /**
+     * Get the tile y number for a latitude
+     *
+     * @param lat the latitude
+     * @param zoom the zoom level
+     * @return the tile y number
+     */
+    static int yTile(double lat, int zoom) {
+        int n = 1 << zoom;
+        double latRad = Math.toRadians(Math.max(-MAX_LAT, Math.min(MAX_LAT, lat)));
+        return clamp((int) Math.floor((1d - Math.log(Math.tan(latRad) + 1d / Math.cos(latRad)) / Math.PI) / 2d * n), n);
+    }
+
+    /**
+     * Limit a tile number to the valid range
+     *
+     * @param tile the tile number
+     * @param n the number of tiles at the zoom level
+     * @return the clamped tile number
+     */
+    private static int clamp(int tile, int n) {
+        return Math.max(0, Math.min(n - 1, tile));
+    }
+
+    /**
+     * Get the longitude of the western edge of a tile
+     *
+     * @param x the tile x number
+     * @param zoom the zoom level
+     * @return the longitude
+     */
+    static double tileLon(int x, int zoom) {
+        return x / (double) (1 << zoom) * 360d - 180d;
+    }
+
+    /**
+     * Get the latitude of the northern edge of a tile
+     *
+     * @param y the tile y number
+     * @param zoom the zoom level
+     * @return the latitude
+     */
+    static double tileLat(int y, int zoom) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1d - 2d * y / (1 << zoom)))));
+    }
+
+    /**
+     * Check if a tile intersects the polygon
+     *
+     * @param zoom the zoom level
+     * @param tileX the tile x number
+     * @param tileY the tile y number
+     * @return true if the tile and the polygon overlap
+     */
+    boolean intersects(int zoom, int tileX, int tileY) {
+        double w = tileLon(tileX, zoom);
+        double e = tileLon(tileX + 1, zoom);
+        double n = tileLat(tileY, zoom);
+        double s = tileLat(tileY + 1, zoom);
+        // polygon vertex inside the tile
+        for (int i = 0; i < polygon.length; i += 2) {
+            if (polygon[i] >= w && polygon[i] <= e && polygon[i + 1] >= s && polygon[i + 1] <= n) {
+                return true;
+            }
+        }
+        // tile inside the polygon
+        if (inPolygon(w, n)) {
+            return true;
+        }
+        // edges crossing
+        double[] corners = { w, n, e, n, e, s, w, s };
+        int length = polygon.length;
+        for (int i = 0; i < length; i += 2) {
+            double x1 = polygon[i];
+            double y1 = polygon[i + 1];
+            double x2 = polygon[(i + 2) % length];
+            double y2 = polygon[(i + 3) % length];
+            for (int j = 0; j < 8; j += 2) {
+                if (segmentsIntersect(x1, y1, x2, y2, corners[j], corners[j + 1], corners[(j + 2) % 8], corners[(j + 3) % 8])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if a point is inside the polygon using the even-odd rule
+     *
+     * @param lon the longitude of the point
+     * @param lat the latitude of the point
+     * @return true if the point is inside
+     */
+    private boolean inPolygon(double lon, double lat) {
+        boolean inside = false;
+        int length = polygon.length;
+        for (int i = 0, j = length - 2; i < length; j = i, i += 2) {
+            double xi = polygon[i];
+            double yi = polygon[i + 1];
+            double xj = polygon[j];
+            double yj = polygon[j + 1];
+            if ((yi > lat) != (yj > lat) && lon < (xj - xi) * (lat - yi) / (yj - yi) + xi) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * Check if two line segments intersect
+     *
+     * @param x1 start x of the first segment
+     * @param y1 start y of the first segment
+     * @param x2 end x of the first segment
+     * @param y2 end y of the first segment
+     * @param x3 start x of the second segment
+     * @param y3 start y of the second segment
+     * @param x4 end x of the second segment
+     * @param y4 end y of the second segment
+     * @return true if they intersect
+     */
+    private static boolean segmentsIntersect(double x1, double y1, double x2, double y2, double x3, double y3, double x4, double y4) {
+        double d1 = cross(x3, y3, x4, y4, x1, y1);
+        double d2 = cross(x3, y3, x4, y4, x2, y2);
+        double d3 = cross(x1, y1, x2, y2, x3, y3);
+        double d4 = cross(x1, y1, x2, y2, x4, y4);
+        return ((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0)) && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0));
+    }
+
+    /**
+     * Cross product of (b - a) and (c - a)
+     *
+     * @param ax x of a
+     * @param ay y of a
+     * @param bx x of b
+     * @param by y of b
+     * @param cx x of c
+     * @param cy y of c
+     * @return the cross product
+     */
+    private static double cross(double ax, double ay, double bx, double by, double cx, double cy) {
+        return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+    }
+
+    /**
+     * Count a downloaded tile
+     *
+     * @param size the size of the tile in bytes
+     */
+    synchronized void downloaded(int size) {
+        downloaded++;
+        bytes += size;
+    }
+
+    /**
+     * Count a tile that was already present
+     */
+    synchronized void skipped() {
+        skipped++;
+    }
+
+    /**
+     * Count a tile that couldn't be downloaded
+     */
+    synchronized void failed() {
+        failed++;
+    }
+
+    /**
+     * Add to the time spent seeding
+     *
+     * @param millis the time in milliseconds
+     */
+    synchronized void addElapsed(long millis) {
+        elapsed += millis;
+    }
+
+    /**
+     * Get the number of tiles that have been processed
+     *
+     * @return downloaded, skipped and failed tiles
+     */
+    public synchronized long getProcessed() {
+        return downloaded + skipped + failed;
+    }
+
+    /**
+     * Get the number of downloaded tiles
+     *
+     * @return the count
+     */
+    public synchronized long getDownloaded() {
+        return downloaded;
+    }
+
+    /**
+     * Get the number of tiles that couldn't be downloaded
+     *
+     * @return the count
+     */
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Get the number of downloaded bytes
+     *
+     * @return the count
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get the download rate
+     *
+     * @param running milliseconds of the current run not yet added to the elapsed time
+     * @return downloaded tiles per second
+     */
+    public synchronized double getTilesPerSecond(long running) {
+        long total = elapsed + running;
+        return total > 0 ? downloaded * 1000d / total : 0d;
+    }
+
+    /**
+     * Stop the job
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Check if the job has been stopped
+     *
+     * @return true if cancelled
+     */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public String toString() {
+        return rendererId + " zoom " + minZoom + "-" + maxZoom + " " + left + "," + bottom + "," + right + "," + top;
+    }
+}
@@ -0,0 +1,234 @@
+package de.blau.android.services.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A memory mapped file divided in to fixed size slots that is shared between the tile service and the map process
+ *
+ * The tile service writes the tile image data in to a free slot and only passes the slot index over the binder, the
+ * receiver decodes the tile directly from the mapped memory and releases the slot afterwards. Slot layout is a 4 byte
+ * state followed by a 4 byte length and the data.
+ *
+ * This uses a memory mapped file and not SharedMemory as the latter requires Android 8.1.
+ */
+public final class TileSlotBuffer {
+
+    public static final String FILE_NAME = "tileslots";
+
+    /**
+     * Number of slots
+     */
+    public static final int SLOT_COUNT = 64;
+
+    /**
+     * Size of a slot including the header, tiles that are larger need to be sent the old way
+     */
+    public static final int SLOT_SIZE = 128 * 1024;
+
+    private static final int HEADER_SIZE   = 8;
+    private static final int LENGTH_OFFSET = 4;
+
+    private static final int FREE = 0;
+    private static final int FULL = 1;
+
+    private final MappedByteBuffer buffer;
+    private int                    next = 0;
+
+    /**
+     * Private constructor
+     *
+     * @param buffer the mapped file
+     */
+    private TileSlotBuffer(@NonNull MappedByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Create the buffer file, or re-use an existing one, and mark all slots as free
+     *
+     * @param file the file to use
+     * @return a TileSlotBuffer
+     * @throws IOException if the file couldn't be created or mapped
+     */
+    @NonNull
+    public static TileSlotBuffer create(@NonNull File file) throws IOException {
+        TileSlotBuffer slots = new TileSlotBuffer(map(file));
+        slots.clear();
+        return slots;
+    }
+
+    /**
+     * Map an existing buffer file
+     *
+     * @param file the file created by the tile service
+     * @return a TileSlotBuffer
+     * @throws IOException if the file couldn't be mapped
+     */
+    @NonNull
+    public static TileSlotBuffer open(@NonNull File file) throws IOException {
+        if (file.length() != (long) SLOT_COUNT * SLOT_SIZE) {
+            throw new IOException(file.getAbsolutePath() + " has wrong size " + file.length());
+        }
+        return new TileSlotBuffer(map(file));
+    }
+
+    /**
+     * Map the whole file read/write
+     *
+     * The mapping stays valid after the file has been closed
+     *
+     * @param file the file
+     * @return a MappedByteBuffer
+     * @throws IOException if mapping failed
+     */
+    @NonNull
+    private static MappedByteBuffer map(@NonNull File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) SLOT_COUNT * SLOT_SIZE);
+        }
+    }
+
+    /**
+     * Mark all slots as free
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            buffer.putInt(i * SLOT_SIZE, FREE);
+        }
+    }
+
+    /**
+     * Copy tile data in to a free slot
+     *
+     * @param data the tile image data
+     * @return the slot index or -1 if the data is too large or no slot is free
+     */
+    public synchronized int put(@NonNull byte[] data) {
+        if (data.length > SLOT_SIZE - HEADER_SIZE) {
+            return -1;
+        }
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            int slot = (next + i) % SLOT_COUNT;
+            int offset = slot * SLOT_SIZE;
+            if (buffer.getInt(offset) == FREE) {
+                ByteBuffer dest = buffer.duplicate();
+                dest.position(offset + HEADER_SIZE);
+                dest.put(data);
+                buffer.putInt(offset + LENGTH_OFFSET, data.length);
+                buffer.putInt(offset, FULL);
+                next = (slot + 1) % SLOT_COUNT;
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get an InputStream for the contents of a slot
+     *
+     * The slot needs to be released when the stream is no longer used
+     *
+     * @param slot the slot index
+     * @return an InputStream reading directly from the mapped memory
+     * @throws IOException if the slot isn't valid or hasn't been filled
+     */
+    @NonNull
+    public InputStream get(int slot) throws IOException {
+        if (slot < 0 || slot >= SLOT_COUNT) {
+            throw new IOException("Invalid slot " + slot);
+        }
+        int offset = slot * SLOT_SIZE;
+        if (buffer.getInt(offset) != FULL) {
+            throw new IOException("Slot " + slot + " is empty");
+        }
+        int length = buffer.getInt(offset + LENGTH_OFFSET);
+        if (length < 0 || length > SLOT_SIZE - HEADER_SIZE) {
+            throw new IOException("Slot " + slot + " has invalid length " + length);
+        }
+        ByteBuffer src = buffer.duplicate();
+        src.position(offset + HEADER_SIZE);
+        src.limit(offset + HEADER_SIZE + length);
+        return new SlotInputStream(src.slice());
+    }
+
+    /**
+     * Mark a slot as free
+     *
+     * @param slot the slot index
+     */
+    public void release(int slot) {
+        if (slot >= 0 && slot < SLOT_COUNT) {
+            buffer.putInt(slot * SLOT_SIZE, FREE);
+        }
+    }
+
+    /**
+     * InputStream on the contents of one slot
+     */
+    private static class SlotInputStream extends InputStream {
+        private final ByteBuffer src;
+        private int              mark = 0;
+
+        /**
+         * Construct a new stream
+         *
+         * @param src a ByteBuffer containing exactly the slot data
+         */
+        SlotInputStream(@NonNull ByteBuffer src) {
+            this.src = src;
+        }
+
+        @Override
+        public int read() {
+            return src.hasRemaining() ? src.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!src.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, src.remaining());
+            src.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, src.remaining()));
+            src.position(src.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return src.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            mark = src.position();
+        }
+
+        @Override
+        public synchronized void reset() {
+            src.position(mark);
+        }
+    }
+}
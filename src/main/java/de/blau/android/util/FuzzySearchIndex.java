@@ -0,0 +1,240 @@
+package de.blau.android.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Index for substring and typo tolerant lookups in a fixed set of search terms
+ *
+ * The keys are indexed by their trigrams. Substring lookups only check the keys that contain the rarest trigram of the
+ * substring. Edit distance lookups only check keys of suitable length that share enough trigrams with the term to
+ * possibly be within the maximum distance, each edit can destroy at most four trigrams, and fall back to checking all
+ * keys of suitable length if the term is too short for that.
+ */
+public class FuzzySearchIndex {
+
+    private static final int  Q       = 3;
+    private static final char PADDING = '\u0000';
+
+    /**
+     * Number of trigrams a single OSA edit can change, a transposition touches one more than the other operations
+     */
+    private static final int GRAMS_PER_EDIT = Q + 1;
+
+    private final String[]           keys;
+    private final int[]              lengthStart;
+    private final Map<String, int[]> postings = new HashMap<>();
+
+    /**
+     * Construct a new index
+     *
+     * @param keys the terms to index
+     */
+    public FuzzySearchIndex(@NonNull Collection<String> keys) {
+        this.keys = keys.toArray(new String[0]);
+        Arrays.sort(this.keys, (k1, k2) -> Integer.compare(k1.length(), k2.length()));
+        int maxLength = this.keys.length > 0 ? this.keys[this.keys.length - 1].length() : 0;
+        lengthStart = new int[maxLength + 2];
+        int length = 0;
+        for (int i = 0; i < this.keys.length; i++) {
+            while (length <= this.keys[i].length()) {
+                lengthStart[length++] = i;
+            }
+        }
+        while (length < lengthStart.length) {
+            lengthStart[length++] = this.keys.length;
+        }
+
+        Map<String, Posting> temp = new HashMap<>();
+        for (int i = 0; i < this.keys.length; i++) {
+            String padded = pad(this.keys[i]);
+            for (int j = 0; j <= padded.length() - Q; j++) {
+                String gram = padded.substring(j, j + Q);
+                Posting posting = temp.get(gram);
+                if (posting == null) {
+                    posting = new Posting();
+                    temp.put(gram, posting);
+                }
+                posting.add(i);
+            }
+        }
+        for (Map.Entry<String, Posting> entry : temp.entrySet()) {
+            Posting posting = entry.getValue();
+            postings.put(entry.getKey(), Arrays.copyOf(posting.ids, posting.size));
+        }
+    }
+
+    /**
+     * Growable list of key ids for one trigram
+     */
+    private static class Posting {
+        int[] ids  = new int[4];
+        int   size = 0;
+
+        /**
+         * Add a key id, ignoring repeated ids of the same key
+         *
+         * @param id the key id
+         */
+        void add(int id) {
+            if (size > 0 && ids[size - 1] == id) {
+                return;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    /**
+     * Get all keys that contain a string
+     *
+     * @param substring the string to look for
+     * @return a Set of the keys
+     */
+    @NonNull
+    public Set<String> containing(@NonNull String substring) {
+        Set<String> result = new HashSet<>();
+        int length = substring.length();
+        if (length < Q) {
+            for (int i = firstWithLength(length); i < keys.length; i++) {
+                if (keys[i].contains(substring)) {
+                    result.add(keys[i]);
+                }
+            }
+            return result;
+        }
+        int[] rarest = null;
+        for (int j = 0; j <= length - Q; j++) {
+            int[] posting = postings.get(substring.substring(j, j + Q));
+            if (posting == null) {
+                return result;
+            }
+            if (rarest == null || posting.length < rarest.length) {
+                rarest = posting;
+            }
+        }
+        for (int id : rarest) {
+            if (keys[id].contains(substring)) {
+                result.add(keys[id]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get all keys that are within an OSA edit distance of a term
+     *
+     * @param term the term
+     * @param maxDistance the maximum edit distance
+     * @return a Map from the keys to their distance from term
+     */
+    @NonNull
+    public Map<String, Integer> withinDistance(@NonNull String term, int maxDistance) {
+        Map<String, Integer> result = new HashMap<>();
+        int length = term.length();
+        int from = firstWithLength(length - maxDistance);
+        int to = firstWithLength(length + maxDistance + 1);
+        if (from >= to) {
+            return result;
+        }
+        List<String> grams = grams(term);
+        int threshold = grams.size() - GRAMS_PER_EDIT * maxDistance;
+        if (threshold <= 0) {
+            for (int i = from; i < to; i++) {
+                check(i, term, maxDistance, result);
+            }
+            return result;
+        }
+        int[] counts = new int[to - from];
+        for (String gram : grams) {
+            int[] posting = postings.get(gram);
+            if (posting == null) {
+                continue;
+            }
+            int start = Arrays.binarySearch(posting, from);
+            for (int j = start < 0 ? -start - 1 : start; j < posting.length && posting[j] < to; j++) {
+                counts[posting[j] - from]++;
+            }
+        }
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] >= threshold) {
+                check(from + i, term, maxDistance, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the id of the first key that is at least as long as length
+     *
+     * @param length the length
+     * @return the key id, or the number of keys if there is no such key
+     */
+    private int firstWithLength(int length) {
+        if (length <= 0) {
+            return 0;
+        }
+        return length < lengthStart.length ? lengthStart[length] : keys.length;
+    }
+
+    /**
+     * Calculate the distance of a key to the term and add it to the result if it is small enough
+     *
+     * @param id the key id
+     * @param term the term
+     * @param maxDistance the maximum edit distance
+     * @param result the result Map
+     */
+    private void check(int id, @NonNull String term, int maxDistance, @NonNull Map<String, Integer> result) {
+        int distance = OptimalStringAlignment.editDistance(keys[id], term, maxDistance);
+        if (distance >= 0 && distance <= maxDistance) {
+            result.put(keys[id], distance);
+        }
+    }
+
+    /**
+     * Get the distinct trigrams of a padded string
+     *
+     * @param s the string
+     * @return a List of trigrams
+     */
+    @NonNull
+    private static List<String> grams(@NonNull String s) {
+        String padded = pad(s);
+        Set<String> grams = new HashSet<>();
+        for (int j = 0; j <= padded.length() - Q; j++) {
+            grams.add(padded.substring(j, j + Q));
+        }
+        return new ArrayList<>(grams);
+    }
+
+    /**
+     * Add padding so that the start and end of a string get their own trigrams
+     *
+     * @param s the string
+     * @return the padded string
+     */
+    @NonNull
+    private static String pad(@NonNull String s) {
+        return "" + PADDING + PADDING + s + PADDING + PADDING;
+    }
+
+    /**
+     * Get the number of indexed keys
+     *
+     * @return the count
+     */
+    public int size() {
+        return keys.length;
+    }
+}
@@ -19,15 +19,14 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import de.blau.android.App;
+import de.blau.android.names.NamePresetIndex;
+import de.blau.android.names.NamePresetIndex.Template;
 import de.blau.android.names.Names.NameAndTags;
-import de.blau.android.names.Names.TagMap;
 import de.blau.android.osm.OsmElement.ElementType;
 import de.blau.android.prefs.Preferences;
 import de.blau.android.presets.Preset;
 import de.blau.android.presets.Preset.PresetElement;
 import de.blau.android.presets.Preset.PresetItem;
-import de.blau.android.presets.PresetKeyType;
-import de.blau.android.presets.PresetField;
 import de.blau.android.presets.PresetFixedField;
 import de.blau.android.util.collections.MultiHashMap;
 
@@ -126,6 +125,9 @@ public final class SearchIndexUtils {
         List<MultiHashMap<String, PresetItem>> presetSeachIndices = new ArrayList<>();
         presetSeachIndices.add(App.getTranslatedPresetSearchIndex(ctx));
         presetSeachIndices.add(App.getPresetSearchIndex(ctx));
+        List<FuzzySearchIndex> presetFuzzyIndices = new ArrayList<>();
+        presetFuzzyIndices.add(App.getTranslatedPresetFuzzyIndex(ctx));
+        presetFuzzyIndices.add(App.getPresetFuzzyIndex(ctx));
 
         Set<String> terms = new HashSet<>();
         terms.add(term);
@@ -134,27 +136,16 @@ public final class SearchIndexUtils {
             terms.addAll(temp);
         }
 
-        for (MultiHashMap<String, PresetItem> index : presetSeachIndices) {
-            for (String s : index.getKeys()) {
-                for (String t : terms) {
-                    int distance = s.indexOf(t);
-                    if (distance == -1) {
-                        distance = OptimalStringAlignment.editDistance(s, term, maxDistance);
-                        if (distance == -1) { // way out
-                            continue;
-                        }
-                    } else {
-                        distance = 0; // literal substring match, we don't want to weight this worse than a fuzzy match
-                    }
-                    if (distance <= maxDistance) {
-                        Set<PresetItem> presetItems = index.get(s);
-                        int weight = distance * presetItems.size(); // if there are a lot of items for a term, penalize
-                        for (PresetItem pi : presetItems) {
-                            if ((type == null || pi.appliesTo(type)) && pi.appliesIn(country)) {
-                                IndexSearchResult isr = new IndexSearchResult(rescale(term, weight, pi), pi);
-                                addToResult(rawResult, isr.weight, isr);
-                            }
-                        }
+        for (int i = 0; i < presetSeachIndices.size(); i++) {
+            MultiHashMap<String, PresetItem> index = presetSeachIndices.get(i);
+            for (Entry<String, Integer> match : search(presetFuzzyIndices.get(i), terms, term, maxDistance).entrySet()) {
+                int distance = match.getValue();
+                Set<PresetItem> presetItems = index.get(match.getKey());
+                int weight = distance * presetItems.size(); // if there are a lot of items for a term, penalize
+                for (PresetItem pi : presetItems) {
+                    if ((type == null || pi.appliesTo(type)) && pi.appliesIn(country)) {
+                        IndexSearchResult isr = new IndexSearchResult(rescale(term, weight, pi), pi);
+                        addToResult(rawResult, isr.weight, isr);
                     }
                 }
             }
@@ -164,38 +155,21 @@ public final class SearchIndexUtils {
         Preferences prefs = new Preferences(ctx);
         if (prefs.nameSuggestionPresetsEnabled()) {
             MultiHashMap<String, NameAndTags> nsi = App.getNameSearchIndex(ctx);
-            Set<String> names = nsi.getKeys();
             Preset[] presets = App.getCurrentPresets(ctx);
+            NamePresetIndex namePresets = App.getNamePresetIndex(ctx);
             Preset preset = Preset.dummyInstance();
-            for (String name : names) {
-                int distance = name.indexOf(term);
-                if (distance == -1) {
-                    distance = OptimalStringAlignment.editDistance(name, term, maxDistance);
-                } else {
-                    distance = 0;
-                }
-                if ((distance >= 0 && distance <= maxDistance)) {
-                    Set<NameAndTags> nats = nsi.get(name);
-                    for (NameAndTags nat : nats) {
-                        if (nat.inUseIn(regions)) {
-                            TagMap tags = nat.getTags();
-                            PresetItem pi = Preset.findBestMatch(presets, tags, false);
-                            PresetItem namePi = preset.new PresetItem(null, nat.getName(), pi == null ? null : pi.getIconpath(), null);
-                            for (Entry<String, String> entry : tags.entrySet()) {
-                                namePi.addTag(entry.getKey(), PresetKeyType.TEXT, entry.getValue(), null);
-                            }
-                            if (pi != null) {
-                                Map<String, PresetField> fields = pi.getFields();
-                                for (Entry<String, PresetField> entry : fields.entrySet()) {
-                                    String key = entry.getKey();
-                                    if (!tags.containsKey(key)) {
-                                        namePi.addField(entry.getValue());
-                                    }
-                                }
-                            }
-                            IndexSearchResult isr = new IndexSearchResult(rescale(term, distance, namePi), namePi);
-                            addToResult(rawResult, isr.weight, isr);
+            for (Entry<String, Integer> match : search(App.getNameFuzzyIndex(ctx), Collections.singleton(term), term, maxDistance).entrySet()) {
+                int distance = match.getValue();
+                Set<NameAndTags> nats = nsi.get(match.getKey());
+                for (NameAndTags nat : nats) {
+                    if (nat.inUseIn(regions)) {
+                        Template template = namePresets != null ? namePresets.get(nat) : null;
+                        if (template == null) { // index not built yet
+                            template = NamePresetIndex.match(presets, nat);
                         }
+                        PresetItem namePi = template.createItem(preset, nat);
+                        IndexSearchResult isr = new IndexSearchResult(rescale(term, distance, namePi), namePi);
+                        addToResult(rawResult, isr.weight, isr);
                     }
                 }
             }
@@ -216,6 +190,27 @@ public final class SearchIndexUtils {
         return result;
     }
 
+    /**
+     * Find the keys that contain one of the terms or are within maxDistance edits of the complete term
+     * 
+     * @param index the FuzzySearchIndex for the keys
+     * @param terms the terms to search for as substrings
+     * @param term the complete term
+     * @param maxDistance maximum edit distance
+     * @return a Map from the keys to their distance, 0 for substring matches
+     */
+    @NonNull
+    private static Map<String, Integer> search(@NonNull FuzzySearchIndex index, @NonNull Collection<String> terms, @NonNull String term,
+            int maxDistance) {
+        Map<String, Integer> result = index.withinDistance(term, maxDistance);
+        for (String t : terms) {
+            for (String key : index.containing(t)) {
+                result.put(key, 0); // literal substring match, we don't want to weight this worse than a fuzzy match
+            }
+        }
+        return result;
+    }
+
     /**
      * Add a search result to the results map, not adding duplicates but always using the result with the lowest weight
      * 
@@ -291,21 +286,20 @@ public final class SearchIndexUtils {
         NameAndTags result = null;
         int lastDistance = Integer.MAX_VALUE;
         name = SearchIndexUtils.normalize(name);
-        for (String key : namesSearchIndex.getKeys()) {
-            int distance = OptimalStringAlignment.editDistance(key, name, maxDistance);
-            if (distance >= 0 && distance <= maxDistance) {
-                if (distance < lastDistance) {
-                    Set<NameAndTags> list = namesSearchIndex.get(key);
-                    for (NameAndTags nt : list) {
-                        if (result == null || nt.getCount() > result.getCount()) {
-                            result = nt;
-                        }
-                    }
-                    lastDistance = distance;
-                    if (distance == 0) { // no point in searching for better results
-                        return result;
+        for (Entry<String, Integer> match : App.getNameFuzzyIndex(ctx).withinDistance(name, maxDistance).entrySet()) {
+            String key = match.getKey();
+            int distance = match.getValue();
+            if (distance < lastDistance) {
+                Set<NameAndTags> list = namesSearchIndex.get(key);
+                for (NameAndTags nt : list) {
+                    if (result == null || nt.getCount() > result.getCount()) {
+                        result = nt;
                     }
                 }
+                lastDistance = distance;
+                if (distance == 0) { // no point in searching for better results
+                    return result;
+                }
             }
         }
         return result;
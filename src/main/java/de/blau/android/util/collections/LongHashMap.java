@@ -0,0 +1,296 @@
+package de.blau.android.util.collections;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * long key to Object HashMap
+ *
+ * Open addressing map with linear probing, based on public domain code see http://unlicense.org from Mikhail Vorontsov,
+ * see https://github.com/mikvor
+ *
+ * Empty slots are indicated by a null value, as a consequence null values are not supported.
+ *
+ * This code is not thread safe and requires external synchronization if inserts and removals need to be made in a
+ * consistent fashion.
+ *
+ * @version 0.1
+ * @param <V> type of the values
+ */
+public class LongHashMap<V> {
+
+    /**
+     * Default fill factor
+     */
+    private static final float DEFAULT_FILLFACTOR = 0.75f;
+    /**
+     * Default capacity
+     */
+    private static final int   DEFAULT_CAPACITY   = 16;
+
+    /** Keys */
+    private long[]      m_keys;
+    /** Values, null indicates a free slot */
+    private Object[]    m_values;
+    /** Fill factor, must be between (0 and 1) */
+    private final float m_fillFactor;
+    /** We will resize a map once it reaches this size */
+    private int         m_threshold;
+    /** Current map size */
+    private int         m_size;
+    /** Mask to calculate the original position */
+    private int         m_mask;
+
+    /**
+     * Create a new map with default values for capacity and fill factor
+     */
+    public LongHashMap() {
+        this(DEFAULT_CAPACITY, DEFAULT_FILLFACTOR);
+    }
+
+    /**
+     * Create a new map with the specified size and the default fill factor
+     *
+     * @param size initial capacity of the map
+     */
+    public LongHashMap(final int size) {
+        this(size, DEFAULT_FILLFACTOR);
+    }
+
+    /**
+     * Create a new map with the specified size and fill factor
+     *
+     * @param size initial capacity of the map
+     * @param fillFactor fillfactor to use instead of the default
+     */
+    private LongHashMap(final int size, final float fillFactor) {
+        if (fillFactor <= 0 || fillFactor >= 1) {
+            throw new IllegalArgumentException("FillFactor must be in (0, 1)");
+        }
+        if (size <= 0) {
+            throw new IllegalArgumentException("Size must be positive!");
+        }
+        m_fillFactor = fillFactor;
+        allocate(Tools.arraySize(size, fillFactor));
+    }
+
+    /**
+     * Allocate the backing arrays
+     *
+     * @param capacity the new capacity, must be a power of 2
+     */
+    private void allocate(int capacity) {
+        m_mask = capacity - 1;
+        m_keys = new long[capacity];
+        m_values = new Object[capacity];
+        m_threshold = (int) (capacity * m_fillFactor);
+        m_size = 0;
+    }
+
+    /**
+     * Get the starting slot for a key
+     *
+     * @param key the key
+     * @return the slot
+     */
+    private int slot(long key) {
+        return (int) (Tools.phiMix(key) & m_mask);
+    }
+
+    /**
+     * Get the value for a key
+     *
+     * @param key the key
+     * @return the value or null if not found
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public V get(long key) {
+        int ptr = slot(key);
+        Object v;
+        while ((v = m_values[ptr]) != null) {
+            if (m_keys[ptr] == key) {
+                return (V) v;
+            }
+            ptr = (ptr + 1) & m_mask;
+        }
+        return null;
+    }
+
+    /**
+     * Check if the map contains a key
+     *
+     * @param key the key
+     * @return true if the key is present
+     */
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Add a value to the map, replacing any existing value for the key
+     *
+     * @param key the key
+     * @param value the value, null is not allowed
+     * @return the previous value or null
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public V put(long key, @NonNull V value) {
+        int ptr = slot(key);
+        Object v;
+        while ((v = m_values[ptr]) != null) {
+            if (m_keys[ptr] == key) {
+                m_values[ptr] = value;
+                return (V) v;
+            }
+            ptr = (ptr + 1) & m_mask;
+        }
+        m_keys[ptr] = key;
+        m_values[ptr] = value;
+        if (m_size >= m_threshold) {
+            rehash(m_keys.length * 2); // size is set inside
+        } else {
+            ++m_size;
+        }
+        return null;
+    }
+
+    /**
+     * Remove the entry for a key, does not shrink the underlying arrays
+     *
+     * @param key the key
+     * @return the removed value or null if not found
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public V remove(long key) {
+        int ptr = slot(key);
+        Object v;
+        while ((v = m_values[ptr]) != null) {
+            if (m_keys[ptr] == key) {
+                --m_size;
+                shiftKeys(ptr);
+                return (V) v;
+            }
+            ptr = (ptr + 1) & m_mask;
+        }
+        return null;
+    }
+
+    /**
+     * Shift entries with the same hash.
+     *
+     * @param pos starting pos
+     */
+    private void shiftKeys(int pos) {
+        int last;
+        int slot;
+        final long[] keys = m_keys;
+        final Object[] values = m_values;
+        while (true) {
+            pos = ((last = pos) + 1) & m_mask;
+            while (true) {
+                if (values[pos] == null) {
+                    values[last] = null;
+                    return;
+                }
+                slot = slot(keys[pos]); // calculate the starting slot for the current key
+                if (last <= pos ? last >= slot || slot > pos : last >= slot && slot > pos) {
+                    break;
+                }
+                pos = (pos + 1) & m_mask; // go to the next entry
+            }
+            keys[last] = keys[pos];
+            values[last] = values[pos];
+        }
+    }
+
+    /**
+     * Rehash the map
+     *
+     * @param newCapacity the new capacity, must be a power of 2
+     */
+    private void rehash(final int newCapacity) {
+        final long[] oldKeys = m_keys;
+        final Object[] oldValues = m_values;
+        allocate(newCapacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            final Object v = oldValues[i];
+            if (v != null) {
+                int ptr = slot(oldKeys[i]);
+                while (m_values[ptr] != null) {
+                    ptr = (ptr + 1) & m_mask;
+                }
+                m_keys[ptr] = oldKeys[i];
+                m_values[ptr] = v;
+                m_size++;
+            }
+        }
+    }
+
+    /**
+     * Return all values in the map. Note: they are returned unordered
+     *
+     * @return a List of the values
+     */
+    @SuppressWarnings("unchecked")
+    @NonNull
+    public List<V> values() {
+        List<V> result = new ArrayList<>(m_size);
+        for (Object v : m_values) {
+            if (v != null) {
+                result.add((V) v);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return all keys in the map. Note: they are returned unordered
+     *
+     * @return an array containing the keys
+     */
+    @NonNull
+    public long[] keys() {
+        long[] result = new long[m_size];
+        int found = 0;
+        for (int i = 0; i < m_values.length && found < m_size; i++) {
+            if (m_values[i] != null) {
+                result[found++] = m_keys[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the number of entries in the map
+     *
+     * @return the entry count
+     */
+    public int size() {
+        return m_size;
+    }
+
+    /**
+     * Return if the map is empty
+     *
+     * @return true if the map is empty
+     */
+    public boolean isEmpty() {
+        return m_size == 0;
+    }
+
+    /**
+     * Remove all entries from the map, does not shrink the underlying arrays
+     */
+    public void clear() {
+        for (int i = 0; i < m_values.length; i++) {
+            m_values[i] = null;
+        }
+        m_size = 0;
+    }
+}
@@ -0,0 +1,187 @@
+package de.blau.android.util.collections;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+/**
+ * long key to multiple Object values map
+ *
+ * Built on {@link LongHashMap}, a single value is stored directly, multiple values in an array, which is efficient for
+ * the typical case of a small number of values per key. Values are compared by identity and are only stored once per
+ * key. Values must not be arrays.
+ *
+ * This code is not thread safe and requires external synchronization if inserts and removals need to be made in a
+ * consistent fashion.
+ *
+ * @param <V> type of the values
+ */
+public class LongMultiHashMap<V> {
+
+    private final LongHashMap<Object> map;
+
+    /**
+     * Create a new map with the default capacity
+     */
+    public LongMultiHashMap() {
+        map = new LongHashMap<>();
+    }
+
+    /**
+     * Create a new map with the specified capacity
+     *
+     * @param size initial capacity of the map
+     */
+    public LongMultiHashMap(final int size) {
+        map = new LongHashMap<>(size);
+    }
+
+    /**
+     * Add a value for a key, if the value is already present nothing happens
+     *
+     * @param key the key
+     * @param value the value
+     */
+    public void add(long key, @NonNull V value) {
+        Object current = map.get(key);
+        if (current == null) {
+            map.put(key, value);
+        } else if (current instanceof Object[]) {
+            Object[] values = (Object[]) current;
+            for (Object v : values) {
+                if (v == value) {
+                    return;
+                }
+            }
+            Object[] temp = new Object[values.length + 1];
+            System.arraycopy(values, 0, temp, 0, values.length);
+            temp[values.length] = value;
+            map.put(key, temp);
+        } else if (current != value) {
+            map.put(key, new Object[] { current, value });
+        }
+    }
+
+    /**
+     * Remove a value for a key
+     *
+     * @param key the key
+     * @param value the value
+     * @return true if the value was found
+     */
+    public boolean remove(long key, @NonNull V value) {
+        Object current = map.get(key);
+        if (current == null) {
+            return false;
+        }
+        if (current instanceof Object[]) {
+            Object[] values = (Object[]) current;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == value) {
+                    if (values.length == 2) {
+                        map.put(key, values[1 - i]);
+                    } else {
+                        Object[] temp = new Object[values.length - 1];
+                        System.arraycopy(values, 0, temp, 0, i);
+                        System.arraycopy(values, i + 1, temp, i, values.length - i - 1);
+                        map.put(key, temp);
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (current == value) {
+            map.remove(key);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remove all values for a key
+     *
+     * @param key the key
+     */
+    public void removeKey(long key) {
+        map.remove(key);
+    }
+
+    /**
+     * Add all values for a key to a List
+     *
+     * @param key the key
+     * @param result the List the values will be added to
+     * @return result
+     */
+    @SuppressWarnings("unchecked")
+    @NonNull
+    public List<V> get(long key, @NonNull List<V> result) {
+        Object current = map.get(key);
+        if (current instanceof Object[]) {
+            for (Object v : (Object[]) current) {
+                result.add((V) v);
+            }
+        } else if (current != null) {
+            result.add((V) current);
+        }
+        return result;
+    }
+
+    /**
+     * Get all values for a key
+     *
+     * @param key the key
+     * @return a List of the values
+     */
+    @NonNull
+    public List<V> get(long key) {
+        return get(key, new ArrayList<>());
+    }
+
+    /**
+     * Check if the map contains a key
+     *
+     * @param key the key
+     * @return true if the key is present
+     */
+    public boolean containsKey(long key) {
+        return map.containsKey(key);
+    }
+
+    /**
+     * Return all keys in the map. Note: they are returned unordered
+     *
+     * @return an array containing the keys
+     */
+    @NonNull
+    public long[] keys() {
+        return map.keys();
+    }
+
+    /**
+     * Return the number of keys in the map
+     *
+     * @return the key count
+     */
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * Return if the map is empty
+     *
+     * @return true if the map is empty
+     */
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    /**
+     * Remove all entries from the map
+     */
+    public void clear() {
+        map.clear();
+    }
+}
@@ -0,0 +1,351 @@
+package de.blau.android.util.collections;
+
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import de.blau.android.osm.BoundingBox;
+import de.blau.android.osm.Node;
+import de.blau.android.osm.OsmElement;
+import de.blau.android.osm.Way;
+
+/**
+ * Spatial index for OsmElements
+ *
+ * This is a loose hierarchical grid: every element is stored in exactly one cell, on the finest level on which its
+ * bounding box doesn't cross a cell border. Cells are only allocated when they contain elements. In difference to an
+ * R-Tree removal doesn't require the bounds the element was indexed with, which means that elements with changed
+ * geometry can simply be re-added.
+ *
+ * As geometry changes typically involve multiple steps, elements can be marked as invalid with
+ * {@link #invalidate(OsmElement)} before or after they are changed, they will be re-indexed on the next query.
+ *
+ * Queries return all elements that intersect the query box, for Ways the cached bounding box is used.
+ *
+ * This code is synchronized on the grid object.
+ *
+ * @param <V> the OsmElement type
+ */
+public class OsmElementGrid<V extends OsmElement> {
+
+    /**
+     * log2 of the size of the smallest cell in E7 units, roughly 180 m at the equator
+     */
+    private static final int MIN_SHIFT = 14;
+    private static final int MAX_SHIFT = 32;
+
+    private static final int  LEVEL_SHIFT = 48;
+    private static final int  X_SHIFT     = 24;
+    private static final long CELL_MASK   = (1L << X_SHIFT) - 1;
+
+    private static final int CELL_CAPACITY = 8;
+
+    /**
+     * A grid cell
+     */
+    private static final class Cell {
+        final long   key;
+        OsmElement[] elements = new OsmElement[CELL_CAPACITY];
+        int          size     = 0;
+
+        /**
+         * Construct a new Cell
+         *
+         * @param key the key for this cell
+         */
+        Cell(long key) {
+            this.key = key;
+        }
+
+        /**
+         * Add an element to the cell
+         *
+         * @param e the OsmElement
+         */
+        void add(@NonNull OsmElement e) {
+            if (size == elements.length) {
+                OsmElement[] temp = new OsmElement[size * 2];
+                System.arraycopy(elements, 0, temp, 0, size);
+                elements = temp;
+            }
+            elements[size++] = e;
+        }
+
+        /**
+         * Remove an element from the cell, order is not retained
+         *
+         * @param id the id of the OsmElement
+         */
+        void remove(long id) {
+            for (int i = 0; i < size; i++) {
+                if (elements[i].getOsmId() == id) {
+                    size--;
+                    elements[i] = elements[size];
+                    elements[size] = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    private final LongHashMap<Cell> cells        = new LongHashMap<>();
+    private final LongHashMap<Cell> elementCells = new LongHashMap<>();
+    private final int[]             levelCounts  = new int[MAX_SHIFT + 1];
+    private final boolean[]         scanLevel    = new boolean[MAX_SHIFT + 1];
+    private final LongHashMap<V>    pending      = new LongHashMap<>();
+    private final BoundingBox       tempBox      = new BoundingBox();
+
+    /**
+     * Add an element to the index, if the element is already present it will be re-indexed
+     *
+     * @param e the OsmElement
+     */
+    public synchronized void put(@NonNull V e) {
+        remove(e.getOsmId());
+        insert(e);
+    }
+
+    /**
+     * Add an element that is not present to the index
+     *
+     * @param e the OsmElement
+     */
+    private void insert(@NonNull V e) {
+        if (e instanceof Node) {
+            int lon = ((Node) e).getLon();
+            int lat = ((Node) e).getLat();
+            put(e, lon, lat, lon, lat);
+        } else {
+            BoundingBox box = bounds(e);
+            put(e, box.getLeft(), box.getBottom(), box.getRight(), box.getTop());
+        }
+    }
+
+    /**
+     * Add an element with specific bounds
+     *
+     * @param e the OsmElement
+     * @param left left bound in E7
+     * @param bottom bottom bound in E7
+     * @param right right bound in E7
+     * @param top top bound in E7
+     */
+    private void put(@NonNull V e, int left, int bottom, int right, int top) {
+        long minX = unsigned(left);
+        long maxX = unsigned(right);
+        long minY = unsigned(bottom);
+        long maxY = unsigned(top);
+        int shift = Math.max(MIN_SHIFT, Math.max(64 - Long.numberOfLeadingZeros(minX ^ maxX), 64 - Long.numberOfLeadingZeros(minY ^ maxY)));
+        long key = key(shift, minX >>> shift, minY >>> shift);
+        Cell cell = cells.get(key);
+        if (cell == null) {
+            cell = new Cell(key);
+            cells.put(key, cell);
+            levelCounts[shift]++;
+        }
+        cell.add(e);
+        elementCells.put(e.getOsmId(), cell);
+    }
+
+    /**
+     * Get the bounds of a non-Node element
+     *
+     * @param e the OsmElement
+     * @return a BoundingBox, this is a shared instance
+     */
+    @NonNull
+    private BoundingBox bounds(@NonNull OsmElement e) {
+        if (e instanceof Way) {
+            if (((Way) e).nodeCount() == 0) {
+                tempBox.set(0, 0, 0, 0);
+                return tempBox;
+            }
+            return ((Way) e).getBounds(tempBox);
+        }
+        BoundingBox box = e.getBounds();
+        if (box == null) {
+            tempBox.set(0, 0, 0, 0);
+            return tempBox;
+        }
+        return box;
+    }
+
+    /**
+     * Remove an element from the index
+     *
+     * @param id the id of the element
+     * @return true if the element was found
+     */
+    public synchronized boolean remove(long id) {
+        if (pending.remove(id) != null) {
+            return true;
+        }
+        Cell cell = elementCells.remove(id);
+        if (cell == null) {
+            return false;
+        }
+        cell.remove(id);
+        if (cell.size == 0) {
+            cells.remove(cell.key);
+            levelCounts[(int) (cell.key >>> LEVEL_SHIFT)]--;
+        }
+        return true;
+    }
+
+    /**
+     * Check if an element is in the index
+     *
+     * @param id the id of the element
+     * @return true if the element is present
+     */
+    public synchronized boolean contains(long id) {
+        return elementCells.containsKey(id) || pending.containsKey(id);
+    }
+
+    /**
+     * Mark an element as having changed geometry, if it is present it will be re-indexed on the next query
+     *
+     * @param e the OsmElement
+     */
+    public synchronized void invalidate(@NonNull V e) {
+        if (remove(e.getOsmId())) {
+            pending.put(e.getOsmId(), e);
+        }
+    }
+
+    /**
+     * Add all elements intersecting box to result
+     *
+     * @param box the BoundingBox to query
+     * @param result a List the matching elements will be added to
+     */
+    public synchronized void query(@NonNull BoundingBox box, @NonNull List<V> result) {
+        if (!pending.isEmpty()) {
+            for (V e : pending.values()) {
+                insert(e);
+            }
+            pending.clear();
+        }
+        if (cells.isEmpty()) {
+            return;
+        }
+        final int left = box.getLeft();
+        final int bottom = box.getBottom();
+        final int right = box.getRight();
+        final int top = box.getTop();
+        final long minX = unsigned(left);
+        final long maxX = unsigned(right);
+        final long minY = unsigned(bottom);
+        final long maxY = unsigned(top);
+        boolean scanAll = false;
+        for (int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+            scanLevel[shift] = false;
+            if (levelCounts[shift] == 0) {
+                continue;
+            }
+            long x0 = minX >>> shift;
+            long x1 = maxX >>> shift;
+            long y0 = minY >>> shift;
+            long y1 = maxY >>> shift;
+            if ((x1 - x0 + 1) * (y1 - y0 + 1) > levelCounts[shift]) {
+                // cheaper to look at all cells on this level
+                scanLevel[shift] = true;
+                scanAll = true;
+                continue;
+            }
+            for (long x = x0; x <= x1; x++) {
+                for (long y = y0; y <= y1; y++) {
+                    Cell cell = cells.get(key(shift, x, y));
+                    if (cell != null) {
+                        addMatching(cell, left, bottom, right, top, result);
+                    }
+                }
+            }
+        }
+        if (scanAll) {
+            for (Cell cell : cells.values()) {
+                long key = cell.key;
+                int shift = (int) (key >>> LEVEL_SHIFT);
+                if (scanLevel[shift]) {
+                    long x = (key >>> X_SHIFT) & CELL_MASK;
+                    long y = key & CELL_MASK;
+                    if (x >= minX >>> shift && x <= maxX >>> shift && y >= minY >>> shift && y <= maxY >>> shift) {
+                        addMatching(cell, left, bottom, right, top, result);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the elements of a cell that intersect the box to result
+     *
+     * @param cell the Cell
+     * @param left left bound in E7
+     * @param bottom bottom bound in E7
+     * @param right right bound in E7
+     * @param top top bound in E7
+     * @param result the result List
+     */
+    @SuppressWarnings("unchecked")
+    private void addMatching(@NonNull Cell cell, int left, int bottom, int right, int top, @NonNull List<V> result) {
+        final OsmElement[] elements = cell.elements;
+        for (int i = 0; i < cell.size; i++) {
+            OsmElement e = elements[i];
+            if (e instanceof Node) {
+                int lon = ((Node) e).getLon();
+                int lat = ((Node) e).getLat();
+                if (lon >= left && lon <= right && lat >= bottom && lat <= top) {
+                    result.add((V) e);
+                }
+            } else {
+                BoundingBox b = bounds(e);
+                if (b.getRight() >= left && b.getLeft() <= right && b.getTop() >= bottom && b.getBottom() <= top) {
+                    result.add((V) e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of elements in the index
+     *
+     * @return the element count
+     */
+    public synchronized int size() {
+        return elementCells.size() + pending.size();
+    }
+
+    /**
+     * Remove everything from the index
+     */
+    public synchronized void clear() {
+        cells.clear();
+        elementCells.clear();
+        pending.clear();
+        for (int i = 0; i < levelCounts.length; i++) {
+            levelCounts[i] = 0;
+        }
+    }
+
+    /**
+     * Map an E7 coordinate to an unsigned value
+     *
+     * @param coord the coordinate
+     * @return the coordinate shifted to the range 0 to 2^32-1
+     */
+    private static long unsigned(int coord) {
+        return (long) coord - Integer.MIN_VALUE;
+    }
+
+    /**
+     * Calculate the key for a cell
+     *
+     * @param shift the level
+     * @param x cell x coordinate
+     * @param y cell y coordinate
+     * @return the key
+     */
+    private static long key(int shift, long x, long y) {
+        return ((long) shift << LEVEL_SHIFT) | (x << X_SHIFT) | y;
+    }
+}
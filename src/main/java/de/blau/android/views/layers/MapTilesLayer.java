@@ -356,6 +356,7 @@ public class MapTilesLayer extends MapViewLayer implements ExtentInterface, Laye
         final int tileNeededRight = Math.max(xTileLeft, xTileRight);
         final int tileNeededTop = Math.min(yTileTop, yTileBottom);
         final int tileNeededBottom = Math.max(yTileTop, yTileBottom);
+        mTileProvider.setViewport(myRendererInfo.getId(), zoomLevel, tileNeededLeft, tileNeededTop, tileNeededRight, tileNeededBottom);
 
         final int mapTileMask = (1 << zoomLevel) - 1;
 
@@ -377,6 +378,7 @@ public class MapTilesLayer extends MapViewLayer implements ExtentInterface, Laye
                 tile.zoomLevel = zoomLevel;
                 tile.x = x & mapTileMask;
                 tile.y = y & mapTileMask;
+                originalTile.reinit();
                 originalTile.zoomLevel = tile.zoomLevel;
                 originalTile.x = tile.x;
                 originalTile.y = tile.y;
@@ -427,13 +429,25 @@ public class MapTilesLayer extends MapViewLayer implements ExtentInterface, Laye
                     tileBitmap = mTileProvider.getMapTile(tile, owner);
                 }
 
+                if (tileBitmap != null && tile.zoomLevel < zoomLevel) {
+                    // use a tile scaled once from the lower zoom one so that redrawing doesn't need to scale again
+                    Bitmap derived = mTileProvider.getOverZoomedTile(originalTile, tile, tileBitmap, owner);
+                    if (derived != null) {
+                        tileBitmap = derived;
+                        tx = 0;
+                        ty = 0;
+                        sw = derived.getWidth();
+                        sh = derived.getHeight();
+                    }
+                }
+
                 if (tileBitmap != null) {
                     c.drawBitmap(tileBitmap, new Rect(tx, ty, tx + sw, ty + sh),
                             new Rect(destRect.left + xPos, destRect.top + yPos, destRect.right + xPos, destRect.bottom + yPos), mPaint);
                 } else {
                     tile.reinit();
                     // Still no tile available - try smaller scale tiles
-                    drawTile(c, osmv, 0, zoomLevel + 2, zoomLevel, x & mapTileMask, y & mapTileMask, squareTiles, lonOffset, latOffset);
+                    drawTile(c, osmv, 0, zoomLevel + 2, zoomLevel, x & mapTileMask, y & mapTileMask, squareTiles, lonOffset, latOffset, owner);
                 }
                 xPos += destIncX;
             }
@@ -530,13 +544,19 @@ public class MapTilesLayer extends MapViewLayer implements ExtentInterface, Laye
      * @param squareTiles true if the tiles are square
      * @param lonOffset imagery longitude offset correction in WGS84
      * @param latOffset imagery latitude offset correction in WGS84
+     * @param owner id for the current owner
      * @return true if the space could be filled with tiles
      */
-    private boolean drawTile(Canvas c, IMapView osmv, int minz, int maxz, int z, int x, int y, boolean squareTiles, double lonOffset, double latOffset) {
+    private boolean drawTile(Canvas c, IMapView osmv, int minz, int maxz, int z, int x, int y, boolean squareTiles, double lonOffset, double latOffset,
+            long owner) {
         final MapTile tile = new MapTile(myRendererInfo.getId(), z, x, y);
         Bitmap bitmap = mTileProvider.getMapTileFromCache(tile);
+        if (bitmap == null && z < myRendererInfo.getMaxZoomLevel()) {
+            // a preview assembled from the next zoom level avoids drawing four tiles every time
+            bitmap = mTileProvider.getUnderZoomedTile(tile, owner);
+        }
         if (bitmap != null) {
-            c.drawBitmap(bitmap, new Rect(0, 0, myRendererInfo.getTileWidth(), myRendererInfo.getTileHeight()),
+            c.drawBitmap(bitmap, new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight()),
                     getScreenRectForTile(c, osmv, z, y, x, squareTiles, lonOffset, latOffset), mPaint);
             return true;
         } else {
@@ -545,10 +565,10 @@ public class MapTilesLayer extends MapViewLayer implements ExtentInterface, Laye
                 x <<= 1;
                 y <<= 1;
                 ++z;
-                boolean result = drawTile(c, osmv, z, maxz, z, x, y, squareTiles, lonOffset, latOffset);
-                result = drawTile(c, osmv, z, maxz, z, x + 1, y, squareTiles, lonOffset, latOffset) && result;
-                result = drawTile(c, osmv, z, maxz, z, x, y + 1, squareTiles, lonOffset, latOffset) && result;
-                result = drawTile(c, osmv, z, maxz, z, x + 1, y + 1, squareTiles, lonOffset, latOffset) && result;
+                boolean result = drawTile(c, osmv, z, maxz, z, x, y, squareTiles, lonOffset, latOffset, owner);
+                result = drawTile(c, osmv, z, maxz, z, x + 1, y, squareTiles, lonOffset, latOffset, owner) && result;
+                result = drawTile(c, osmv, z, maxz, z, x, y + 1, squareTiles, lonOffset, latOffset, owner) && result;
+                result = drawTile(c, osmv, z, maxz, z, x + 1, y + 1, squareTiles, lonOffset, latOffset, owner) && result;
                 return result;
             } else {
                 // final fail
@@ -596,7 +616,7 @@ public class MapTilesLayer extends MapViewLayer implements ExtentInterface, Laye
      */
     @Override
     public void onDrawFinished(Canvas c, IMapView osmv) {
-        // unused
+        mTileProvider.onDrawFinished();
     }
 
     /**
@@ -0,0 +1,151 @@
+package de.blau.android.views.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Pool of Bitmaps evicted from the tile cache that can be re-used for decoding new tiles with
+ * {@link BitmapFactory.Options#inBitmap}
+ *
+ * Bitmaps are matched on width, height and config, which is what decoding in to an existing Bitmap requires before
+ * Android 4.4.
+ *
+ * Bitmaps evicted from the cache may still be referenced by the last draw pass, with hardware acceleration the Canvas
+ * only records the drawing and the Bitmap is rendered after onDraw has returned. Evicted Bitmaps are therefore held back
+ * and only become available for re-use after the following draw pass has finished, see {@link #onDrawFinished()}.
+ */
+public class BitmapPool {
+
+    /**
+     * Default maximum number of pooled Bitmaps, one or two screens worth of tiles
+     */
+    public static final int DEFAULT_MAX_SIZE = 32;
+
+    private final List<Bitmap> pool    = new ArrayList<>();
+    private final List<Bitmap> evicted = new ArrayList<>();
+    private final List<Bitmap> retired = new ArrayList<>();
+    private final int          maxSize;
+
+    /**
+     * Construct a new pool
+     *
+     * @param maxSize the maximum number of Bitmaps to hold
+     */
+    public BitmapPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Add a Bitmap that has never been drawn to the pool
+     *
+     * @param bitmap the Bitmap
+     * @return true if the Bitmap was pooled, if false the caller is responsible for recycling it
+     */
+    public synchronized boolean put(@NonNull Bitmap bitmap) {
+        if (!canPool(bitmap)) {
+            return false;
+        }
+        pool.add(bitmap);
+        return true;
+    }
+
+    /**
+     * Add a Bitmap that may have been drawn to the pool, it will only be re-used after the next draw pass has finished
+     *
+     * @param bitmap the Bitmap
+     * @return true if the Bitmap was pooled, if false the caller is responsible for recycling it
+     */
+    public synchronized boolean putEvicted(@NonNull Bitmap bitmap) {
+        if (!canPool(bitmap)) {
+            return false;
+        }
+        evicted.add(bitmap);
+        return true;
+    }
+
+    /**
+     * Check if a Bitmap can be added to the pool
+     *
+     * @param bitmap the Bitmap
+     * @return true if there is space and the Bitmap can be re-used
+     */
+    private boolean canPool(@NonNull Bitmap bitmap) {
+        return pool.size() + evicted.size() + retired.size() < maxSize && !bitmap.isRecycled() && bitmap.isMutable();
+    }
+
+    /**
+     * Signal that a draw pass has finished
+     *
+     * Bitmaps evicted before the previous draw pass are made available for re-use, as the current draw pass didn't
+     * draw them and the previous one has been rendered when this is called again.
+     */
+    public synchronized void onDrawFinished() {
+        pool.addAll(retired);
+        retired.clear();
+        retired.addAll(evicted);
+        evicted.clear();
+    }
+
+    /**
+     * Remove a Bitmap with matching dimensions and config from the pool
+     *
+     * @param width the width in pixels
+     * @param height the height in pixels
+     * @param config the Bitmap.Config
+     * @return a Bitmap or null if none is available
+     */
+    @Nullable
+    public synchronized Bitmap get(int width, int height, @NonNull Bitmap.Config config) {
+        for (int i = pool.size() - 1; i >= 0; i--) {
+            Bitmap b = pool.get(i);
+            if (b.getWidth() == width && b.getHeight() == height && b.getConfig() == config) {
+                return pool.remove(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Set up decoding options so that a pooled Bitmap is re-used if possible
+     *
+     * This requires that the options already contain the dimensions of the image from a previous decode with
+     * inJustDecodeBounds set, on return inJustDecodeBounds will be false
+     *
+     * @param options the BitmapFactory.Options
+     */
+    public void setInBitmap(@NonNull BitmapFactory.Options options) {
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inSampleSize = 1;
+        options.inBitmap = options.outWidth > 0 && options.outHeight > 0 ? get(options.outWidth, options.outHeight, options.inPreferredConfig) : null;
+    }
+
+    /**
+     * Current number of Bitmaps available for re-use
+     *
+     * @return the count
+     */
+    public synchronized int size() {
+        return pool.size();
+    }
+
+    /**
+     * Recycle and remove all pooled Bitmaps
+     *
+     * Evicted Bitmaps that are not available for re-use yet may still be drawn and are not recycled, they are left to
+     * the garbage collector.
+     */
+    public synchronized void clear() {
+        for (Bitmap b : pool) {
+            b.recycle();
+        }
+        pool.clear();
+        evicted.clear();
+        retired.clear();
+    }
+}
@@ -45,6 +45,8 @@ public class LRUMapTileCache {
     /** LRU list. */
     private final List<CacheElement> list;
     private final List<CacheElement> reuseList;
+    /** Pool for evicted Bitmaps **/
+    private final BitmapPool         pool;
 
     private class CacheElement {
         boolean recycleable = true;
@@ -96,8 +98,19 @@ public class LRUMapTileCache {
      * @param maxCacheSize the maximum number of entries in this cache before entries are aged off.
      */
     public LRUMapTileCache(final long maxCacheSize) {
+        this(maxCacheSize, null);
+    }
+
+    /**
+     * Constructs a new LRU cache instance that returns evicted Bitmaps to a pool
+     * 
+     * @param maxCacheSize the maximum number of entries in this cache before entries are aged off.
+     * @param pool if not null recycleable Bitmaps will be added to this instead of being recycled
+     */
+    public LRUMapTileCache(final long maxCacheSize, @Nullable BitmapPool pool) {
         super();
         this.maxCacheSize = maxCacheSize;
+        this.pool = pool;
         cache = new HashMap<>();
         list = new ArrayList<>(); // using a LinkedList doesn't have any real advantages
         reuseList = new ArrayList<>();
@@ -118,11 +131,12 @@ public class LRUMapTileCache {
         for (CacheElement ce : cache.values()) {
             Bitmap b = ce.bitmap;
             if (b != null && ce.recycleable) {
-                b.recycle();
+                recycle(b);
             }
         }
         cache.clear();
         list.clear();
+        cacheSize = 0;
     }
 
     /**
@@ -153,13 +167,26 @@ public class LRUMapTileCache {
             if (b != null && !b.isRecycled()) {
                 cacheSize -= b.getRowBytes() * b.getHeight();
                 if (ce.recycleable) {
-                    b.recycle();
+                    recycle(b);
                 }
             }
         }
         return true; // success
     }
 
+    /**
+     * Return a Bitmap to the pool if possible, otherwise recycle it
+     * 
+     * As the Bitmap may have been drawn it is only re-used after the next draw pass
+     * 
+     * @param b the Bitmap
+     */
+    private void recycle(@NonNull Bitmap b) {
+        if (pool == null || !pool.putEvicted(b)) {
+            b.recycle();
+        }
+    }
+
     /**
      * Current number of entries
      * 
@@ -255,6 +282,29 @@ public class LRUMapTileCache {
         return value;
     }
 
+    /**
+     * Remove an element from the cache
+     * 
+     * @param key the key of the element
+     * @return true if the element was present
+     */
+    public synchronized boolean remove(@NonNull final String key) {
+        final CacheElement ce = cache.remove(key);
+        if (ce == null) {
+            return false;
+        }
+        list.remove(ce);
+        reuseList.add(ce);
+        Bitmap b = ce.bitmap;
+        if (b != null && !b.isRecycled()) {
+            cacheSize -= b.getRowBytes() * b.getHeight();
+            if (ce.recycleable) {
+                recycle(b);
+            }
+        }
+        return true;
+    }
+
     /**
      * Overrides <code>get()</code> so that it also updates the LRU list.
      * 
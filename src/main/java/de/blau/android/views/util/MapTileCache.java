@@ -2,6 +2,10 @@
 package de.blau.android.views.util;
 
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -22,12 +26,33 @@ public class MapTileCache {
     // Constants
     // ===========================================================
 
+    /**
+     * Key prefix for tiles scaled up from a lower zoom level
+     */
+    private static final String OVERZOOM_PREFIX = "o";
+
+    /**
+     * Key prefix for tiles assembled from the four tiles of the next zoom level
+     */
+    private static final String UNDERZOOM_PREFIX = "u";
+
+    /**
+     * Size of the cache for derived tiles as a fraction of the cache for real tiles, this is in addition to the
+     * latter so that derived tiles never evict real tiles
+     */
+    private static final int DERIVED_FRACTION = 4;
+
     // ===========================================================
     // Fields
     // ===========================================================
 
-    private static final String DEBUG_TAG = "MapTileCache";
+    private static final String DEBUG_TAG  = "MapTileCache";
     private LRUMapTileCache     mCachedTiles;
+    private LRUMapTileCache     mDerivedTiles;
+    private final BitmapPool    pool       = new BitmapPool(BitmapPool.DEFAULT_MAX_SIZE);
+    private final Paint         scalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect          srcRect    = new Rect();
+    private final Rect          destRect   = new Rect();
 
     // ===========================================================
     // Constructors
@@ -47,7 +72,8 @@ public class MapTileCache {
      */
     private MapTileCache(final long aMaximumCacheBytes) {
         Log.d(DEBUG_TAG, "Created new in memory tile cache with " + aMaximumCacheBytes + " bytes");
-        mCachedTiles = new LRUMapTileCache(aMaximumCacheBytes);
+        mCachedTiles = new LRUMapTileCache(aMaximumCacheBytes, pool);
+        mDerivedTiles = new LRUMapTileCache(aMaximumCacheBytes / DERIVED_FRACTION, pool);
     }
 
     // ===========================================================
@@ -75,7 +101,7 @@ public class MapTileCache {
      * @throws StorageException if we coudn't store the tile
      */
     public synchronized boolean putTile(@NonNull final MapTile aTile, @NonNull final Bitmap aImage, final long owner) throws StorageException {
-        return mCachedTiles.put(aTile.toId(), aImage, true, owner) != null;
+        return putTile(aTile, aImage, true, owner);
     }
 
     /**
@@ -90,9 +116,173 @@ public class MapTileCache {
      */
     public synchronized boolean putTile(@NonNull final MapTile aTile, @NonNull final Bitmap aImage, final boolean recycleable, final long owner)
             throws StorageException {
+        dropDerived(aTile);
         return mCachedTiles.put(aTile.toId(), aImage, recycleable, owner) != null;
     }
 
+    /**
+     * Remove the derived tiles that are replaced by or were created from a real tile
+     * 
+     * These are the tiles for the same position scaled up from lower zoom levels, and the tiles at lower zoom levels
+     * that were assembled from it, directly or via other assembled tiles.
+     * 
+     * @param aTile the tile spec of the real tile
+     */
+    private void dropDerived(@NonNull final MapTile aTile) {
+        final String id = aTile.toId();
+        for (int zoom = 0; zoom < aTile.zoomLevel; zoom++) {
+            mDerivedTiles.remove(OVERZOOM_PREFIX + zoom + "/" + id);
+        }
+        final MapTile parent = new MapTile(aTile);
+        while (parent.zoomLevel > 0) {
+            parent.reinit();
+            parent.zoomLevel--;
+            parent.x >>= 1;
+            parent.y >>= 1;
+            mDerivedTiles.remove(UNDERZOOM_PREFIX + parent.toId());
+        }
+    }
+
+    /**
+     * Get a tile scaled up from a tile at a lower zoom level, creating and caching it if necessary
+     * 
+     * Derived tiles are cached per source zoom level so that a better source that becomes available later is used.
+     * 
+     * @param aTile the tile spec
+     * @param source the spec of the lower zoom tile covering aTile
+     * @param sourceImage the Bitmap for source
+     * @param owner a ref to the owner
+     * @return the derived Bitmap or null if it couldn't be created
+     */
+    @Nullable
+    public Bitmap getOverZoomedTile(@NonNull final MapTile aTile, @NonNull final MapTile source, @NonNull final Bitmap sourceImage, final long owner) {
+        final String id = OVERZOOM_PREFIX + source.zoomLevel + "/" + aTile.toId();
+        Bitmap derived = mDerivedTiles.get(id);
+        if (derived != null) {
+            return derived;
+        }
+        final int shift = aTile.zoomLevel - source.zoomLevel;
+        final int width = sourceImage.getWidth();
+        final int height = sourceImage.getHeight();
+        final int sw = width >> shift;
+        final int sh = height >> shift;
+        if (shift <= 0 || sw == 0 || sh == 0) {
+            return null;
+        }
+        final int mask = (1 << shift) - 1;
+        final int sx = (aTile.x & mask) * sw;
+        final int sy = (aTile.y & mask) * sh;
+        derived = createTile(width, height, sourceImage.getConfig());
+        synchronized (this) {
+            srcRect.set(sx, sy, sx + sw, sy + sh);
+            destRect.set(0, 0, width, height);
+            new Canvas(derived).drawBitmap(sourceImage, srcRect, destRect, scalePaint);
+        }
+        return cacheDerived(id, derived, owner);
+    }
+
+    /**
+     * Get a tile assembled from the four tiles at the next zoom level, creating and caching it if necessary
+     * 
+     * Assembled tiles at the next zoom level are used too, so that zooming out over cached areas builds previews
+     * level by level.
+     * 
+     * @param aTile the tile spec
+     * @param owner a ref to the owner
+     * @return the derived Bitmap or null if not all four tiles are in the cache
+     */
+    @Nullable
+    public Bitmap getUnderZoomedTile(@NonNull final MapTile aTile, final long owner) {
+        final String id = UNDERZOOM_PREFIX + aTile.toId();
+        Bitmap derived = mDerivedTiles.get(id);
+        if (derived != null) {
+            return derived;
+        }
+        final Bitmap[] children = new Bitmap[4];
+        final MapTile child = new MapTile(aTile.rendererID, aTile.zoomLevel + 1, 0, 0);
+        for (int i = 0; i < 4; i++) {
+            child.reinit();
+            child.x = (aTile.x << 1) + (i & 1);
+            child.y = (aTile.y << 1) + (i >> 1);
+            Bitmap b = mCachedTiles.get(child.toId());
+            if (b == null) {
+                b = mDerivedTiles.get(UNDERZOOM_PREFIX + child.toId());
+                if (b == null) {
+                    return null;
+                }
+            }
+            children[i] = b;
+        }
+        final int width = children[0].getWidth();
+        final int height = children[0].getHeight();
+        derived = createTile(width, height, children[0].getConfig());
+        synchronized (this) {
+            Canvas canvas = new Canvas(derived);
+            for (int i = 0; i < 4; i++) {
+                int dx = (i & 1) * width / 2;
+                int dy = (i >> 1) * height / 2;
+                srcRect.set(0, 0, children[i].getWidth(), children[i].getHeight());
+                destRect.set(dx, dy, dx + width / 2, dy + height / 2);
+                canvas.drawBitmap(children[i], srcRect, destRect, scalePaint);
+            }
+        }
+        return cacheDerived(id, derived, owner);
+    }
+
+    /**
+     * Get a cleared Bitmap for a derived tile, re-using a pooled one if possible
+     * 
+     * @param width the width in pixels
+     * @param height the height in pixels
+     * @param config the Bitmap.Config or null for the default
+     * @return a mutable Bitmap
+     */
+    @NonNull
+    private Bitmap createTile(int width, int height, @Nullable Bitmap.Config config) {
+        if (config == null) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        Bitmap bitmap = pool.get(width, height, config);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * Add a derived tile to the cache for derived tiles
+     * 
+     * @param id the key for the tile
+     * @param derived the Bitmap
+     * @param owner a ref to the owner
+     * @return the Bitmap or null if it couldn't be cached
+     */
+    @Nullable
+    private Bitmap cacheDerived(@NonNull String id, @NonNull Bitmap derived, long owner) {
+        try {
+            if (mDerivedTiles.put(id, derived, true, owner) != null) {
+                return derived;
+            }
+        } catch (StorageException e) {
+            Log.w(DEBUG_TAG, "Unable to cache derived tile " + e.getMessage());
+        }
+        if (!pool.put(derived)) {
+            derived.recycle();
+        }
+        return null;
+    }
+
+    /**
+     * Get the pool of Bitmaps evicted from this cache
+     * 
+     * @return the BitmapPool
+     */
+    @NonNull
+    public BitmapPool getBitmapPool() {
+        return pool;
+    }
+
     // ===========================================================
     // Methods from SuperClass/Interfaces
     // ===========================================================
@@ -116,6 +306,16 @@ public class MapTileCache {
      */
     public void clear() {
         mCachedTiles.clear();
+        mDerivedTiles.clear();
+    }
+
+    /**
+     * Clear the tile cache and recycle all pooled Bitmaps
+     */
+    public void clearAll() {
+        mCachedTiles.clear();
+        mDerivedTiles.clear();
+        pool.clear();
     }
 
     /**
@@ -128,11 +328,20 @@ public class MapTileCache {
         return mCachedTiles.containsKey(aTile.toId());
     }
 
+    /**
+     * Signal that a draw pass using tiles from this cache has finished
+     */
+    public void onDrawFinished() {
+        pool.onDrawFinished();
+    }
+
     /**
      * Try to reduce memory use.
      */
     public void onLowMemory() {
         mCachedTiles.onLowMemory();
+        mDerivedTiles.onLowMemory();
+        pool.clear();
     }
 
     /**
@@ -142,7 +351,8 @@ public class MapTileCache {
      */
     @NonNull
     public String getCacheUsageInfo() {
-        return "Size " + mCachedTiles.cacheSizeBytes() + " of maximum " + mCachedTiles.getMaxCacheSize() + " #entries " + mCachedTiles.size();
+        return "Size " + mCachedTiles.cacheSizeBytes() + " of maximum " + mCachedTiles.getMaxCacheSize() + " #entries " + mCachedTiles.size()
+                + " derived size " + mDerivedTiles.cacheSizeBytes() + " of maximum " + mDerivedTiles.getMaxCacheSize() + " #entries " + mDerivedTiles.size();
     }
 
     // ===========================================================
@@ -1,5 +1,7 @@
 package de.blau.android.views.util;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -19,10 +21,13 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import de.blau.android.exception.StorageException;
+import de.blau.android.osm.BoundingBox;
 import de.blau.android.services.IMapTileProviderCallback;
 import de.blau.android.services.IMapTileProviderService;
 import de.blau.android.services.util.MapAsyncTileProvider;
 import de.blau.android.services.util.MapTile;
+import de.blau.android.services.util.MapTileViewport;
+import de.blau.android.services.util.TileSlotBuffer;
 import de.blau.android.util.Util;
 
 /**
@@ -50,15 +55,17 @@ public class MapTileProvider implements ServiceConnection {
     // Fields
     // ===========================================================
 
-    private Context                 mCtx;
+    private Context                            mCtx;
     /**
      * cache provider
      */
-    private MapTileCache            mTileCache;
-    private final Map<String, Long> pending = Collections.synchronizedMap(new HashMap<String, Long>());
+    private MapTileCache                       mTileCache;
+    private final Map<String, Long>            pending   = Collections.synchronizedMap(new HashMap<String, Long>());
+    private final Map<String, MapTileViewport> viewports = new HashMap<>();
 
     private IMapTileProviderService mTileService;
     private final Handler           mDownloadFinishedHandler;
+    private volatile TileSlotBuffer tileBuffer;
 
     /**
      * Set to true if we have less than 64 MB heap or have other caching issues
@@ -100,6 +107,7 @@ public class MapTileProvider implements ServiceConnection {
     @Override
     public void onServiceConnected(android.content.ComponentName name, android.os.IBinder service) {
         mTileService = IMapTileProviderService.Stub.asInterface(service);
+        attachTileBuffer();
         mDownloadFinishedHandler.sendEmptyMessage(MapTile.MAPTILE_SUCCESS_ID);
         Log.d(DEBUG_TAG, "connected");
     }
@@ -107,6 +115,7 @@ public class MapTileProvider implements ServiceConnection {
     @Override
     public void onServiceDisconnected(ComponentName name) {
         mTileService = null;
+        tileBuffer = null;
         Log.d(DEBUG_TAG, "disconnected");
     }
 
@@ -114,6 +123,30 @@ public class MapTileProvider implements ServiceConnection {
     // Methods
     // ===========================================================
 
+    /**
+     * Map the buffer the service uses to pass tiles without copying them through the binder
+     * 
+     * If this fails tiles will be transferred as byte arrays
+     */
+    private void attachTileBuffer() {
+        String path = null;
+        try {
+            path = mTileService.attachTileBuffer(mServiceCallback);
+            if (path != null) {
+                tileBuffer = TileSlotBuffer.open(new File(path));
+            }
+        } catch (RemoteException e) {
+            Log.e(DEBUG_TAG, "RemoteException in attachTileBuffer()", e);
+        } catch (IOException e) {
+            Log.e(DEBUG_TAG, "Unable to map tile buffer " + path + " " + e.getMessage());
+            try {
+                mTileService.detachTileBuffer(mServiceCallback);
+            } catch (RemoteException e1) {
+                Log.e(DEBUG_TAG, "RemoteException in detachTileBuffer()", e1);
+            }
+        }
+    }
+
     /**
      * Check if we are connected to the service
      * 
@@ -128,7 +161,15 @@ public class MapTileProvider implements ServiceConnection {
      */
     public void clear() {
         pending.clear();
-        mTileCache.clear();
+        mTileCache.clearAll();
+        if (mTileService != null && tileBuffer != null) {
+            try {
+                mTileService.detachTileBuffer(mServiceCallback);
+            } catch (RemoteException e) {
+                Log.e(DEBUG_TAG, "RemoteException in detachTileBuffer()", e);
+            }
+        }
+        // tileBuffer is retained so that tiles that are still in flight can be decoded and their slots released
         mCtx.unbindService(this);
     }
 
@@ -139,6 +180,13 @@ public class MapTileProvider implements ServiceConnection {
         mTileCache.onLowMemory();
     }
 
+    /**
+     * Signal that a draw pass has finished so that evicted tile Bitmaps can be re-used
+     */
+    public void onDrawFinished() {
+        mTileCache.onDrawFinished();
+    }
+
     /**
      * Attempt to return a tile from cache otherwise ask for it from remote
      * 
@@ -172,6 +220,32 @@ public class MapTileProvider implements ServiceConnection {
         return mTileCache.getMapTile(aTile);
     }
 
+    /**
+     * Get a tile scaled up from a lower zoom tile that is already in memory
+     * 
+     * @param aTile tile spec
+     * @param source spec of the lower zoom tile
+     * @param sourceImage the Bitmap for source
+     * @param owner id for the current owner
+     * @return the scaled tile or null if it couldn't be created
+     */
+    @Nullable
+    public Bitmap getOverZoomedTile(@NonNull final MapTile aTile, @NonNull final MapTile source, @NonNull final Bitmap sourceImage, long owner) {
+        return mTileCache.getOverZoomedTile(aTile, source, sourceImage, owner);
+    }
+
+    /**
+     * Get a tile assembled from the in memory tiles of the next zoom level
+     * 
+     * @param aTile tile spec
+     * @param owner id for the current owner
+     * @return the assembled tile or null if the tiles weren't all in memory
+     */
+    @Nullable
+    public Bitmap getUnderZoomedTile(@NonNull final MapTile aTile, long owner) {
+        return mTileCache.getUnderZoomedTile(aTile, owner);
+    }
+
     /**
      * Request a tile from the tile service
      * 
@@ -230,6 +304,36 @@ public class MapTileProvider implements ServiceConnection {
         }
     }
 
+    /**
+     * Tell the tile service which tiles are currently displayed for a layer
+     * 
+     * Pending requests are prioritized by their distance from the center of the range, requests for tiles outside of
+     * it are cancelled
+     * 
+     * @param rendererId the layer id
+     * @param zoomLevel the current zoom level
+     * @param left left most tile x
+     * @param top top most tile y
+     * @param right right most tile x
+     * @param bottom bottom most tile y
+     */
+    public void setViewport(@NonNull String rendererId, int zoomLevel, int left, int top, int right, int bottom) {
+        if (mTileService == null) {
+            return;
+        }
+        MapTileViewport viewport = new MapTileViewport(rendererId, zoomLevel, left, top, right, bottom);
+        MapTileViewport previous = viewports.get(rendererId);
+        if (previous != null && previous.sameAs(viewport)) {
+            return;
+        }
+        viewports.put(rendererId, viewport);
+        try {
+            mTileService.setViewport(rendererId, zoomLevel, left, top, right, bottom);
+        } catch (RemoteException e) {
+            Log.e(DEBUG_TAG, "RemoteException in setViewport()", e);
+        }
+    }
+
     /**
      * Flush the tile cache for a specific provider
      * 
@@ -250,6 +354,49 @@ public class MapTileProvider implements ServiceConnection {
         mTileCache.clear(); // zap everything in in memory cache
     }
 
+    /**
+     * Tell the tile provider service to download all tiles for an area in the background
+     * 
+     * @param rendererId the tile renderer
+     * @param box the area
+     * @param polygon optional polygon as longitude latitude pairs to restrict the area further
+     * @param minZoom the lowest zoom level
+     * @param maxZoom the highest zoom level
+     */
+    public void seedArea(@NonNull String rendererId, @NonNull BoundingBox box, @Nullable double[] polygon, int minZoom, int maxZoom) {
+        if (mTileService == null) {
+            Log.e(DEBUG_TAG, "tile service is disconnected");
+            return;
+        }
+        try {
+            mTileService.seedArea(rendererId, box.getLeft() / 1E7D, box.getBottom() / 1E7D, box.getRight() / 1E7D, box.getTop() / 1E7D, polygon, minZoom,
+                    maxZoom);
+        } catch (RemoteException e) {
+            Log.e(DEBUG_TAG, "RemoteException in seedArea()", e);
+        } catch (Exception e) {
+            Log.e(DEBUG_TAG, "Exception in seedArea()", e);
+        }
+    }
+
+    /**
+     * Tell the tile provider service to stop downloading tiles for an area
+     * 
+     * @param rendererId the tile renderer, if null all seeding will be stopped
+     */
+    public void stopSeeding(@Nullable String rendererId) {
+        if (mTileService == null) {
+            Log.e(DEBUG_TAG, "tile service is disconnected");
+            return;
+        }
+        try {
+            mTileService.stopSeeding(rendererId);
+        } catch (RemoteException e) {
+            Log.e(DEBUG_TAG, "RemoteException in stopSeeding()", e);
+        } catch (Exception e) {
+            Log.e(DEBUG_TAG, "Exception in stopSeeding()", e);
+        }
+    }
+
     /**
      * Tell the tile provider service to reread the database of TileLayerServers
      */
@@ -288,6 +435,38 @@ public class MapTileProvider implements ServiceConnection {
          */
         public void mapTileLoaded(@NonNull final String rendererID, final int zoomLevel, final int tileX, final int tileY, @NonNull final byte[] data)
                 throws RemoteException {
+            tileLoaded(rendererID, zoomLevel, tileX, tileY, data, -1);
+        }
+
+        /**
+         * Called after a tile has been loaded in to the shared tile buffer, decodes the tile directly from the buffer
+         * and frees the slot
+         * 
+         * @param rendererID the tile renderer id
+         * @param zoomLevel the zoom level
+         * @param tileX tile x
+         * @param tileY tile y
+         * @param slot the slot in the tile buffer
+         * @throws RemoteException if something goes wrong receiving the tile from the service
+         */
+        public void mapTileLoadedFromBuffer(@NonNull final String rendererID, final int zoomLevel, final int tileX, final int tileY, final int slot)
+                throws RemoteException {
+            tileLoaded(rendererID, zoomLevel, tileX, tileY, null, slot);
+        }
+
+        /**
+         * Decode a tile and copy it to the in memory cache
+         * 
+         * @param rendererID the tile renderer id
+         * @param zoomLevel the zoom level
+         * @param tileX tile x
+         * @param tileY tile y
+         * @param data tile image data or null if the tile is in the shared buffer
+         * @param slot the slot in the shared tile buffer if data is null
+         * @throws RemoteException if something goes wrong receiving the tile from the service
+         */
+        private void tileLoaded(@NonNull final String rendererID, final int zoomLevel, final int tileX, final int tileY, @Nullable final byte[] data,
+                final int slot) throws RemoteException {
             BitmapFactory.Options options = new BitmapFactory.Options();
             if (smallHeap) {
                 options.inPreferredConfig = Bitmap.Config.RGB_565;
@@ -297,25 +476,54 @@ public class MapTileProvider implements ServiceConnection {
 
             MapTile t = new MapTile(rendererID, zoomLevel, tileX, tileY);
             String id = t.toId();
+            final TileSlotBuffer buffer = tileBuffer;
             try {
-                Bitmap tileBitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                if (data == null && buffer == null) {
+                    Log.e(DEBUG_TAG, "tile buffer not mapped");
+                    throw new RemoteException();
+                }
+                BitmapPool pool = mTileCache.getBitmapPool();
+                // get the dimensions first so that we can find a Bitmap to re-use
+                options.inJustDecodeBounds = true;
+                decode(data, buffer, slot, options);
+                pool.setInBitmap(options);
+                Bitmap tileBitmap;
+                try {
+                    tileBitmap = decode(data, buffer, slot, options);
+                } catch (IllegalArgumentException iaex) {
+                    if (options.inBitmap == null) {
+                        throw iaex;
+                    }
+                    // couldn't decode in to the pooled Bitmap, try again without
+                    options.inBitmap.recycle();
+                    options.inBitmap = null;
+                    tileBitmap = decode(data, buffer, slot, options);
+                }
                 if (tileBitmap == null) {
                     Log.d(DEBUG_TAG, "decoded tile is null");
+                    if (options.inBitmap != null) {
+                        pool.put(options.inBitmap);
+                    }
                     throw new RemoteException();
                 }
                 Long l = pending.get(t.toId());
                 if (l != null) {
                     mTileCache.putTile(t, tileBitmap, l);
-                } // else wasn't in pending queue just ignore
+                } else if (!pool.put(tileBitmap)) { // wasn't in pending queue just keep the Bitmap for re-use
+                    tileBitmap.recycle();
+                }
                 mDownloadFinishedHandler.sendEmptyMessage(MapTile.MAPTILE_SUCCESS_ID);
             } catch (StorageException | OutOfMemoryError e) {
                 // unable to cache tile
                 Log.w(DEBUG_TAG, "mapTileLoaded got " + e.getMessage());
                 setSmallHeapMode();
-            } catch (NullPointerException npe) {
-                Log.d(DEBUG_TAG, "Exception in mapTileLoaded callback " + npe);
+            } catch (NullPointerException | IllegalArgumentException | IOException e) {
+                Log.d(DEBUG_TAG, "Exception in mapTileLoaded callback " + e);
                 throw new RemoteException();
             } finally {
+                if (data == null && buffer != null) {
+                    buffer.release(slot);
+                }
                 pending.remove(id);
             }
             if (MapViewConstants.DEBUGMODE) {
@@ -323,13 +531,32 @@ public class MapTileProvider implements ServiceConnection {
             }
         }
 
+        /**
+         * Decode a tile from a byte array or from the shared tile buffer
+         * 
+         * @param data tile image data or null if the tile is in the shared buffer
+         * @param buffer the shared tile buffer
+         * @param slot the slot in the shared tile buffer if data is null
+         * @param options options for BitmapFactory
+         * @return the decoded Bitmap or null
+         * @throws IOException if the slot couldn't be read
+         */
+        @Nullable
+        private Bitmap decode(@Nullable final byte[] data, @Nullable final TileSlotBuffer buffer, final int slot, @NonNull BitmapFactory.Options options)
+                throws IOException {
+            if (data != null) {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            }
+            return BitmapFactory.decodeStream(buffer.get(slot), null, options);
+        }
+
         /**
          * Switch to "small heap mode" which uses tiles with slightly less quality
          */
         public void setSmallHeapMode() {
             if (!smallHeap) { // reduce tile size to half
                 smallHeap = true;
-                mTileCache.clear();
+                mTileCache.clearAll(); // pooled Bitmaps can't be used with RGB_565
                 // should toast this
             } else {
                 Log.e(DEBUG_TAG, "already in small heap mode");
@@ -350,7 +577,9 @@ public class MapTileProvider implements ServiceConnection {
                 throws RemoteException {
             MapTile t = new MapTile(rendererID, zoomLevel, tileX, tileY);
             pending.remove(t.toId());
-            mDownloadFinishedHandler.sendMessage(Message.obtain(mDownloadFinishedHandler, MapTile.MAPTILE_FAIL_ID, reason, 0));
+            if (reason != MapAsyncTileProvider.CANCELLED) { // will be re-requested if still needed
+                mDownloadFinishedHandler.sendMessage(Message.obtain(mDownloadFinishedHandler, MapTile.MAPTILE_FAIL_ID, reason, 0));
+            }
         }
     };
 
@@ -18,8 +18,10 @@ import de.blau.android.osm.OsmElement;
 import de.blau.android.osm.OsmElementFactory;
 import de.blau.android.util.GeoMath;
 import de.blau.android.util.collections.LongHashSet;
+import de.blau.android.util.collections.LongMultiHashMap;
 import de.blau.android.util.collections.LongOsmElementMap;
 import de.blau.android.util.collections.MultiHashMap;
+import de.blau.android.util.collections.OsmElementGrid;
 import de.blau.android.util.rtree.RTree;
 
 public class CollectionTest {
@@ -131,6 +133,55 @@ public class CollectionTest {
         assertEquals(0, tree.count());
     }
 
+    /**
+     * Test the spatial grid index
+     */
+    @Test
+    public void grid() {
+        final double MAX = GeoMath.MAX_LAT_E7;
+        OsmElementGrid<Node> grid = new OsmElementGrid<>();
+        final int NODES = 10000;
+        Node[] temp = new Node[NODES];
+        for (long i = 0; i < NODES; i++) {
+            temp[(int) i] = OsmElementFactory.createNode(i, 1L, System.currentTimeMillis() / 1000, OsmElement.STATE_CREATED,
+                    (int) ((Math.random() * 2 - 1) * MAX), (int) ((Math.random() * 2 - 1) * MAX));
+            grid.put(temp[(int) i]);
+        }
+        assertEquals(NODES, grid.size());
+        for (int i = 0; i < NODES; i++) {
+            List<Node> result = new ArrayList<>();
+            BoundingBox b = new BoundingBox(temp[i].getLon() - 1, temp[i].getLat() - 1, temp[i].getLon() + 1, temp[i].getLat() + 1);
+            grid.query(b, result);
+            assertTrue(result.contains(temp[i]));
+        }
+        // compare with a sequential scan
+        BoundingBox box = new BoundingBox(-100000000, -100000000, 200000000, 50000000);
+        int count = 0;
+        for (Node n : temp) {
+            if (box.isIn(n.getLon(), n.getLat())) {
+                count++;
+            }
+        }
+        List<Node> result = new ArrayList<>();
+        grid.query(box, result);
+        assertEquals(count, result.size());
+        // move a Node that is outside of the box in to it
+        for (Node n : temp) {
+            if (!box.isIn(n.getLon(), n.getLat())) {
+                grid.invalidate(OsmElementFactory.createNode(n.getOsmId(), 1L, 0, OsmElement.STATE_CREATED, 0, 0));
+                break;
+            }
+        }
+        result.clear();
+        grid.query(box, result);
+        assertEquals(count + 1, result.size());
+        for (long i = 0; i < NODES; i++) {
+            assertTrue(grid.remove(i));
+        }
+        assertEquals(0, grid.size());
+        assertFalse(grid.contains(0));
+    }
+
     /**
      * Test our MultiHashMap
      */
@@ -147,5 +198,46 @@ public class CollectionTest {
         r = map.get("M");
         assertEquals(1, r.size());
         assertTrue(r.contains("3"));
+        int modCount = map.getModCount();
+        map.get("A");
+        assertEquals(modCount, map.getModCount());
+        map.removeItem("A", "1");
+        assertTrue(map.getModCount() > modCount);
+        modCount = map.getModCount();
+        map.removeKey("M");
+        assertTrue(map.getModCount() > modCount);
+    }
+
+    /**
+     * Test our long key MultiHashMap
+     */
+    @Test
+    public void longmultihashmap() {
+        LongMultiHashMap<String> map = new LongMultiHashMap<>();
+        final String one = "1";
+        final String two = "2";
+        final String three = "3";
+        map.add(1L, one);
+        map.add(1L, two);
+        map.add(1L, two);
+        map.add(-5L, three);
+        List<String> r = map.get(1L);
+        assertEquals(2, r.size());
+        assertTrue(r.contains(one));
+        assertTrue(r.contains(two));
+        assertEquals(1, map.get(-5L).size());
+        assertTrue(map.remove(1L, one));
+        assertFalse(map.remove(1L, one));
+        r = map.get(1L);
+        assertEquals(1, r.size());
+        assertTrue(r.contains(two));
+        assertTrue(map.remove(1L, two));
+        assertFalse(map.containsKey(1L));
+        assertEquals(1, map.size());
+        for (long i = 0; i < 10000; i++) {
+            map.add(i, one);
+        }
+        assertEquals(10001, map.size());
+        assertTrue(map.get(9999L).contains(one));
     }
 }
\ No newline at end of file
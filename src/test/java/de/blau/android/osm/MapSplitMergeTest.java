@@ -0,0 +1,149 @@
+package de.blau.android.osm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.openstreetmap.osmosis.osmbinary.Osmformat;
+import org.openstreetmap.osmosis.osmbinary.file.FileBlock;
+
+import com.google.protobuf.ByteString;
+
+import de.blau.android.exception.UnsupportedFormatException;
+
+public class MapSplitMergeTest {
+
+    private static final int TILE_BORDER = 100000000;
+
+    /**
+     * Create a node
+     *
+     * @param id the id
+     * @param lon the longitude in WGS84*1E7
+     * @return a new Node
+     */
+    private static Node node(long id, int lon) {
+        return OsmElementFactory.createNode(id, 1L, 0, OsmElement.STATE_UNCHANGED, 470000000, lon);
+    }
+
+    /**
+     * Create a placeholder for a node from another tile, as the parser does
+     *
+     * @param id the id
+     * @return a new Node
+     */
+    private static Node placeholder(long id) {
+        return OsmElementFactory.createNode(id, 0, -1L, OsmElement.STATE_UNCHANGED, 0, 0);
+    }
+
+    /**
+     * Create a way
+     *
+     * @param id the id
+     * @param nodes the way nodes
+     * @return a new Way
+     */
+    private static Way way(long id, Node... nodes) {
+        Way way = OsmElementFactory.createWay(id, 1L, 0, OsmElement.STATE_UNCHANGED);
+        for (Node n : nodes) {
+            way.addNode(n);
+        }
+        return way;
+    }
+
+    /**
+     * Ways crossing the border between two tiles refer to nodes in the other tile, after merging they should refer to
+     * the actual nodes
+     */
+    @Test
+    public void wayAcrossTiles() {
+        // west tile
+        Storage west = new Storage();
+        Node n1 = node(1L, TILE_BORDER - 2000);
+        Node n2 = node(2L, TILE_BORDER - 1000);
+        west.insertElementSafe(n1);
+        west.insertElementSafe(n2);
+        west.insertElementSafe(way(10L, n1, n2, placeholder(3L), placeholder(4L)));
+        // east tile, way 11 is only present here
+        Storage east = new Storage();
+        Node n3 = node(3L, TILE_BORDER + 1000);
+        Node n4 = node(4L, TILE_BORDER + 2000);
+        east.insertElementSafe(n3);
+        east.insertElementSafe(n4);
+        east.insertElementSafe(way(11L, placeholder(2L), n3));
+
+        Storage storage = new Storage();
+        MapSplitSource.merge(storage, west);
+        MapSplitSource.merge(storage, east);
+        MapSplitSource.fixupReferences(storage, null);
+
+        assertEquals(4, storage.getNodeCount());
+        assertEquals(2, storage.getWayCount());
+        Way way10 = storage.getWay(10L);
+        assertEquals(4, way10.getNodes().size());
+        assertSame(n1, way10.getNodes().get(0));
+        assertSame(n2, way10.getNodes().get(1));
+        assertSame(n3, way10.getNodes().get(2));
+        assertSame(n4, way10.getNodes().get(3));
+        assertEquals(TILE_BORDER - 2000, way10.getBounds().getLeft());
+        assertEquals(TILE_BORDER + 2000, way10.getBounds().getRight());
+        Way way11 = storage.getWay(11L);
+        assertSame(n2, way11.getFirstNode());
+        assertSame(n3, way11.getLastNode());
+    }
+
+    /**
+     * A way node that isn't in any tile should be reported
+     */
+    @Test
+    public void missingWayNode() {
+        Storage west = new Storage();
+        Node n1 = node(1L, TILE_BORDER - 1000);
+        west.insertElementSafe(n1);
+        west.insertElementSafe(way(10L, n1, placeholder(3L)));
+        Storage storage = new Storage();
+        MapSplitSource.merge(storage, west);
+        try {
+            MapSplitSource.fixupReferences(storage, null);
+            fail("missing way node not detected");
+        } catch (UnsupportedFormatException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The parser creates placeholders for missing way nodes and doesn't trim incomplete ways
+     */
+    @Test
+    public void parserPlaceholders() {
+        Storage fragment = new Storage();
+        Node n1 = node(1L, TILE_BORDER - 2000);
+        Node n2 = node(2L, TILE_BORDER - 1000);
+        fragment.insertElementSafe(n1);
+        fragment.insertElementSafe(n2);
+        // a box that doesn't contain any of the nodes
+        BoundingBox box = new BoundingBox(TILE_BORDER + 10000, 460000000, TILE_BORDER + 20000, 461000000);
+        OsmPbfParser parser = new OsmPbfParser(null, fragment, box);
+        parser.setPlaceholderWayNodes();
+        Osmformat.Info info = Osmformat.Info.newBuilder().setVersion(1).setTimestamp(0).build();
+        Osmformat.PrimitiveGroup.Builder group = Osmformat.PrimitiveGroup.newBuilder();
+        // refs are delta coded
+        group.addWays(Osmformat.Way.newBuilder().setId(10L).setInfo(info).addRefs(1L).addRefs(1L).addRefs(1L));
+        group.addWays(Osmformat.Way.newBuilder().setId(11L).setInfo(info).addRefs(1L).addRefs(1L));
+        Osmformat.PrimitiveBlock block = Osmformat.PrimitiveBlock.newBuilder()
+                .setStringtable(Osmformat.StringTable.newBuilder().addS(ByteString.copyFromUtf8(""))).addPrimitivegroup(group).build();
+        parser.handleBlock(FileBlock.newInstance("OSMData", block.toByteString(), null));
+
+        Way way10 = fragment.getWay(10L);
+        assertNotNull(way10);
+        assertSame(n1, way10.getFirstNode());
+        assertSame(n2, way10.getNodes().get(1));
+        assertEquals(3L, way10.getLastNode().getOsmId());
+        assertNull(fragment.getNode(3L));
+        // complete and outside of the box
+        assertNull(fragment.getWay(11L));
+    }
+}
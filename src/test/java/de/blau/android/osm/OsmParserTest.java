@@ -0,0 +1,134 @@
+package de.blau.android.osm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+public class OsmParserTest {
+
+    private static final String OSM = "<?xml version='1.0' encoding='UTF-8'?>\n" //
+            + "<osm version='0.6' generator='test'>\n" //
+            + "<node id='1' version='1' lat='51.0' lon='0.0'/>\n" //
+            + "<node id='2' version='1' lat='51.1' lon='0.0'/>\n" //
+            + "<node id='3' version='1' lat='51.1' lon='0.1'/>\n" //
+            + "<node id='4' version='1' lat='51.0' lon='0.1'/>\n" //
+            + "<node id='5' version='1' lat='51.0' lon='0.2'/>\n" //
+            + "<way id='10' version='1'><nd ref='3'/><nd ref='4'/><nd ref='5'/><tag k='highway' v='residential'/></way>\n" //
+            + "<way id='11' version='1'><nd ref='1'/><nd ref='2'/></way>\n" //
+            + "<relation id='22' version='1'><member type='node' ref='1' role='a'/></relation>\n" //
+            + "<relation id='20' version='1'><member type='way' ref='10' role='b'/><member type='node' ref='4' role='c'/>"
+            + "<member type='relation' ref='21' role='d'/></relation>\n" //
+            + "<relation id='21' version='1'><member type='way' ref='11' role='e'/></relation>\n" //
+            + "</osm>";
+
+    /**
+     * Parse with batches of three elements and check that elements are split correctly at the batch boundaries
+     */
+    @Test
+    public void batches() {
+        final List<Storage> batches = new ArrayList<>();
+        OsmParser parser = new OsmParser();
+        parser.setBatchHandler(3, batches::add);
+        parse(parser);
+
+        assertEquals(4, batches.size());
+        assertTrue(parser.getStorage().isEmpty());
+
+        // first batch: nodes 1 to 3
+        Storage first = batches.get(0);
+        assertEquals(3, first.getNodeCount());
+        assertEquals(0, first.getWayCount());
+
+        // second batch: nodes 4 and 5 and way 10 that refers to node 3 from the first batch
+        Storage second = batches.get(1);
+        assertEquals(2, second.getNodeCount());
+        assertEquals(1, second.getWayCount());
+        Way way10 = second.getWay(10L);
+        assertEquals(3, way10.getNodes().size());
+        Node placeholder = way10.getFirstNode();
+        assertEquals(3L, placeholder.getOsmId());
+        assertNotSame(first.getNode(3L), placeholder);
+        assertNull(second.getNode(3L));
+        assertSame(second.getNode(4L), way10.getNodes().get(1));
+        assertSame(second.getNode(5L), way10.getLastNode());
+        assertEquals("residential", way10.getTagWithKey(Tags.KEY_HIGHWAY));
+
+        // third batch: way 11 that only refers to nodes from the first batch, and relations 22 and 20, members from
+        // earlier batches and the relation 21 from the next batch are only references
+        Storage third = batches.get(2);
+        assertEquals(0, third.getNodeCount());
+        Way way11 = third.getWay(11L);
+        assertEquals(2, way11.getNodes().size());
+        for (Node n : way11.getNodes()) {
+            assertNotSame(first.getNode(n.getOsmId()), n);
+        }
+        assertEquals(2, third.getRelations().size());
+        assertNull(third.getRelation(22L).getMembers().get(0).getElement());
+        Relation relation20 = third.getRelation(20L);
+        assertEquals(3, relation20.getMembers().size());
+        for (RelationMember rm : relation20.getMembers()) {
+            assertNull(rm.getElement());
+        }
+        assertEquals(10L, relation20.getMembers().get(0).getRef());
+        assertEquals(Way.NAME, relation20.getMembers().get(0).getType());
+        assertEquals(21L, relation20.getMembers().get(2).getRef());
+        assertNull(way10.getParentRelations());
+
+        // last batch: relation 21 handed off at the end of the document
+        Storage last = batches.get(3);
+        assertEquals(1, last.getRelations().size());
+        Relation relation21 = last.getRelation(21L);
+        assertEquals(11L, relation21.getMembers().get(0).getRef());
+        assertNull(relation21.getMembers().get(0).getElement());
+    }
+
+    /**
+     * Parse with a batch size larger than the input, all elements should be in one batch and fully resolved
+     */
+    @Test
+    public void singleBatch() {
+        final List<Storage> batches = new ArrayList<>();
+        OsmParser parser = new OsmParser();
+        parser.setBatchHandler(100, batches::add);
+        parse(parser);
+
+        assertEquals(1, batches.size());
+        Storage batch = batches.get(0);
+        assertEquals(5, batch.getNodeCount());
+        assertEquals(2, batch.getWayCount());
+        assertEquals(3, batch.getRelations().size());
+        Way way10 = batch.getWay(10L);
+        assertSame(batch.getNode(3L), way10.getFirstNode());
+        Relation relation20 = batch.getRelation(20L);
+        assertSame(way10, relation20.getMembers().get(0).getElement());
+        assertSame(batch.getRelation(21L), relation20.getMembers().get(2).getElement());
+    }
+
+    /**
+     * Parse the test data
+     *
+     * @param parser the OsmParser
+     */
+    private void parse(OsmParser parser) {
+        try (InputStream in = new ByteArrayInputStream(OSM.getBytes(StandardCharsets.UTF_8))) {
+            parser.start(in);
+        } catch (SAXException | IOException | ParserConfigurationException e) {
+            fail(e.getMessage());
+        }
+    }
+}
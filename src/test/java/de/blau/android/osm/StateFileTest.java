@@ -0,0 +1,250 @@
+package de.blau.android.osm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import androidx.annotation.NonNull;
+import de.blau.android.util.Util;
+
+public class StateFileTest {
+
+    /**
+     * Write and read back the state of a StorageDelegator
+     */
+    @Test
+    public void roundTrip() {
+        StorageDelegator d = new StorageDelegator();
+        Way w = StorageDelegatorTest.addWayToStorage(d, true);
+        SortedMap<String, String> tags = new TreeMap<>();
+        tags.put("building", "yes");
+        tags.put("name", "Test äöü");
+        d.getUndo().createCheckpoint("set tags");
+        d.setTags(w, tags);
+        Node n = w.getNodes().get(1);
+        d.getUndo().createCheckpoint("move node");
+        d.moveNode(n, n.getLat() + 1000, n.getLon() - 1000);
+        d.copyToClipboard(Util.wrapInList(w), n.getLat(), n.getLon());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            d.writeState(out);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        byte[] data = out.toByteArray();
+        try {
+            assertTrue(StateFileReader.isStateFile(new ByteArrayInputStream(data)));
+            assertFalse(StateFileReader.isStateFile(new ByteArrayInputStream(new byte[] { 0, 1, 2 })));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+
+        StorageDelegator d2 = new StorageDelegator();
+        try {
+            d2.readState(new ByteArrayInputStream(data), null);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        Storage current = d2.getCurrentStorage();
+        assertEquals(d.getCurrentStorage().getNodeCount(), current.getNodeCount());
+        assertEquals(d.getCurrentStorage().getWayCount(), current.getWayCount());
+        assertEquals(d.getCurrentStorage().getRelationCount(), current.getRelationCount());
+        assertEquals(d.getApiElementCount(), d2.getApiElementCount());
+
+        Way w2 = (Way) d2.getOsmElement(Way.NAME, w.getOsmId());
+        assertNotNull(w2);
+        assertEquals(tags, w2.getTags());
+        assertEquals(w.nodeCount(), w2.nodeCount());
+        assertTrue(w2.isClosed());
+        assertEquals(OsmElement.STATE_CREATED, w2.getState());
+        Node n2 = (Node) d2.getOsmElement(Node.NAME, n.getOsmId());
+        assertSame(n2, w2.getNodes().get(1));
+        assertEquals(n.getLat(), n2.getLat());
+        assertEquals(n.getLon(), n2.getLon());
+        assertEquals(1, w2.getParentRelations().size());
+        Relation r2 = w2.getParentRelations().get(0);
+        assertSame(r2, d2.getOsmElement(Relation.NAME, r2.getOsmId()));
+        assertSame(w2, r2.getMember(w2).getElement());
+        assertFalse(d2.clipboardIsEmpty());
+
+        // new ids must not collide with existing ones
+        assertEquals(d.getFactory().createNodeWithNewId(0, 0).getOsmId(), d2.getFactory().createNodeWithNewId(0, 0).getOsmId());
+
+        // undo has to work on the restored elements
+        assertTrue(d2.getUndo().canUndo());
+        d2.getUndo().undo();
+        assertEquals(n.getLat() - 1000, n2.getLat());
+        d2.getUndo().undo();
+        assertNull(w2.getTagWithKey("building"));
+    }
+
+    /**
+     * Truncated data must be rejected
+     */
+    @Test
+    public void truncated() {
+        StorageDelegator d = new StorageDelegator();
+        StorageDelegatorTest.addWayToStorage(d, false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            d.writeState(out);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        byte[] data = out.toByteArray();
+        byte[] truncated = new byte[data.length - 4];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        StorageDelegator d2 = new StorageDelegator();
+        try {
+            d2.readState(new ByteArrayInputStream(truncated), null);
+            fail("truncated file read");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, d2.getCurrentStorage().getNodeCount());
+    }
+
+    /**
+     * Elements in the preview area need to be available before the rest of the file has been read
+     */
+    @Test
+    public void preview() {
+        StorageDelegator d = new StorageDelegator();
+        Way w = StorageDelegatorTest.addWayToStorage(d, true);
+        Node far = d.getFactory().createNodeWithNewId(StorageDelegatorTest.toE7(52.0), StorageDelegatorTest.toE7(1.0));
+        d.insertElementSafe(far);
+        d.setPreviewBox(new BoundingBox(0.001, 51.475, 0.002, 51.479));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            d.writeState(out);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+
+        final StorageDelegator d2 = new StorageDelegator();
+        final Storage[] preview = new Storage[1];
+        try {
+            d2.readState(new ByteArrayInputStream(out.toByteArray()), null, box -> {
+                assertTrue(d2.isPreview());
+                preview[0] = d2.getCurrentStorage();
+            });
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        assertNotNull(preview[0]);
+        // the way intersects the area so all its nodes are included even if they are outside
+        assertEquals(1, preview[0].getWayCount());
+        assertEquals(4, preview[0].getNodeCount());
+        assertEquals(0, preview[0].getRelationCount());
+        assertNull(preview[0].getNode(far.getOsmId()));
+        Way previewWay = preview[0].getWay(w.getOsmId());
+        assertNotNull(previewWay);
+        assertEquals(w.nodeCount(), previewWay.nodeCount());
+        assertTrue(previewWay.isClosed());
+
+        assertFalse(d2.isPreview());
+        Storage current = d2.getCurrentStorage();
+        assertEquals(d.getCurrentStorage().getNodeCount(), current.getNodeCount());
+        assertEquals(d.getCurrentStorage().getWayCount(), current.getWayCount());
+        assertEquals(d.getCurrentStorage().getRelationCount(), current.getRelationCount());
+        Way w2 = current.getWay(w.getOsmId());
+        assertNotSame(previewWay, w2);
+        assertEquals(1, w2.getParentRelations().size());
+        assertNotNull(current.getNode(far.getOsmId()));
+    }
+
+    /**
+     * Replay journal records on top of a state file
+     */
+    @Test
+    public void journal() {
+        StorageDelegator d = new StorageDelegator();
+        Way w = StorageDelegatorTest.addWayToStorage(d, true);
+        ByteArrayOutputStream state = new ByteArrayOutputStream();
+        ByteArrayOutputStream journal = new ByteArrayOutputStream();
+        try {
+            d.writeState(state);
+
+            d.getUndo().createCheckpoint("set tags");
+            SortedMap<String, String> tags = new TreeMap<>();
+            tags.put("highway", "residential");
+            d.setTags(w, tags);
+            appendRecord(d, journal);
+
+            Node n = w.getNodes().get(1);
+            d.getUndo().createCheckpoint("move node");
+            d.moveNode(n, n.getLat() + 1000, n.getLon());
+            d.getUndo().createCheckpoint("remove way");
+            d.removeWay(w);
+            assertEquals("remove way", d.getUndo().undo());
+            appendRecord(d, journal);
+
+            d.getUndo().createCheckpoint("new node");
+            Node newNode = d.getFactory().createNodeWithNewId(StorageDelegatorTest.toE7(51.477), StorageDelegatorTest.toE7(0.001));
+            d.insertElementSafe(newNode);
+            appendRecord(d, journal);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        // a partially written record at the end has to be ignored
+        byte[] complete = journal.toByteArray();
+        byte[] torn = new byte[complete.length + 10];
+        System.arraycopy(complete, 0, torn, 0, complete.length);
+        System.arraycopy(complete, 0, torn, complete.length, 10);
+
+        StorageDelegator d2 = new StorageDelegator();
+        try {
+            d2.readState(new ByteArrayInputStream(state.toByteArray()), new ByteArrayInputStream(torn));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        Storage current = d2.getCurrentStorage();
+        assertEquals(d.getCurrentStorage().getNodeCount(), current.getNodeCount());
+        assertEquals(d.getCurrentStorage().getWayCount(), current.getWayCount());
+        assertEquals(d.getCurrentStorage().getRelationCount(), current.getRelationCount());
+        assertEquals(d.getApiElementCount(), d2.getApiElementCount());
+        Way w2 = (Way) d2.getOsmElement(Way.NAME, w.getOsmId());
+        assertNotNull(w2);
+        assertEquals("residential", w2.getTagWithKey(Tags.KEY_HIGHWAY));
+        assertEquals(w.nodeCount(), w2.nodeCount());
+        Node n2 = w2.getNodes().get(1);
+        assertEquals(w.getNodes().get(1).getLat(), n2.getLat());
+        assertSame(n2, current.getNode(n2.getOsmId()));
+
+        // the undo and redo checkpoints need to match
+        assertTrue(d2.getUndo().canRedo());
+        assertEquals("new node", d2.getUndo().undo());
+        assertEquals(d.getCurrentStorage().getNodeCount() - 1, current.getNodeCount());
+        assertEquals("move node", d2.getUndo().undo());
+        assertEquals(w.getNodes().get(1).getLat() - 1000, n2.getLat());
+        assertEquals("set tags", d2.getUndo().undo());
+        assertNull(w2.getTagWithKey(Tags.KEY_HIGHWAY));
+    }
+
+    /**
+     * Write a journal record and append it
+     * 
+     * @param d the StorageDelegator
+     * @param journal the journal
+     * @throws IOException if writing fails
+     */
+    private void appendRecord(@NonNull StorageDelegator d, @NonNull ByteArrayOutputStream journal) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        d.writeJournal(record);
+        JournalWriter.appendRecord(journal, record.toByteArray());
+    }
+}
@@ -4,7 +4,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -22,6 +24,7 @@ import de.blau.android.exception.OsmIllegalOperationException;
 import de.blau.android.util.Coordinates;
 import de.blau.android.util.Geometry;
 import de.blau.android.util.Util;
+import de.blau.android.util.collections.LongOsmElementMap;
 
 public class StorageDelegatorTest {
 
@@ -257,6 +260,138 @@ public class StorageDelegatorTest {
         assertEquals(wayCount + 1L, d.getCurrentStorage().getWayCount());
     }
 
+    /**
+     * Merge newer versions of existing elements and check that references are updated
+     */
+    @Test
+    public void mergeNewerVersions() {
+        StorageDelegator d = new StorageDelegator();
+        Storage existing = new Storage();
+        Way w = createMergeData(existing, 1L, 1L);
+        d.setCurrentStorage(existing);
+        Storage current = d.getCurrentStorage();
+
+        // newer nodes and relation, the way is the same version
+        Storage incoming = new Storage();
+        createMergeData(incoming, 2L, 1L);
+        Node newNode = incoming.getNode(2L);
+        Relation newRelation = incoming.getRelation(1L);
+        newRelation.osmVersion = 2L;
+
+        assertTrue(d.mergeData(incoming, null));
+        assertSame(current, d.getCurrentStorage());
+        assertSame(w, current.getWay(1L));
+        assertSame(newNode, current.getNode(2L));
+        assertSame(newNode, w.getNodes().get(1));
+        assertSame(newRelation, current.getRelation(1L));
+        assertSame(w, newRelation.getMember(w).getElement());
+        assertEquals(1, w.getParentRelations().size());
+        assertSame(newRelation, w.getParentRelations().get(0));
+
+        // a newer version of a modified element can't be merged and nothing should change
+        w.setState(OsmElement.STATE_MODIFIED);
+        Storage conflict = new Storage();
+        createMergeData(conflict, 3L, 2L);
+        int nodeCount = current.getNodeCount();
+        assertFalse(d.mergeData(conflict, null));
+        assertSame(w, current.getWay(1L));
+        assertSame(newNode, current.getNode(2L));
+        assertSame(newRelation, current.getRelation(1L));
+        assertEquals(nodeCount, current.getNodeCount());
+    }
+
+    /**
+     * Merge an element that is a member of an existing relation but wasn't downloaded before
+     */
+    @Test
+    public void mergeMissingMember() {
+        StorageDelegator d = new StorageDelegator();
+        Storage existing = new Storage();
+        createMergeData(existing, 1L, 1L);
+        Relation r = OsmElementFactory.createRelation(2L, 1L, 0, OsmElement.STATE_UNCHANGED);
+        RelationMember member = new RelationMember(Way.NAME, 2L, "test");
+        r.addMember(member);
+        existing.insertRelationUnsafe(r);
+        d.setCurrentStorage(existing);
+        Storage current = d.getCurrentStorage();
+        assertEquals(1, current.getRelationsWithMember(Way.NAME, 2L).size());
+        assertTrue(current.getRelationsWithMember(Node.NAME, 2L).isEmpty());
+
+        Storage incoming = new Storage();
+        createMergeData(incoming, 1L, 1L);
+        Way w = OsmElementFactory.createWay(2L, 1L, 0, OsmElement.STATE_UNCHANGED);
+        w.addNode(incoming.getNode(1L));
+        w.addNode(incoming.getNode(3L));
+        incoming.insertWayUnsafe(w);
+
+        assertTrue(d.mergeData(incoming, null));
+        assertSame(w, current.getWay(2L));
+        assertSame(w, member.getElement());
+        assertSame(r, w.getParentRelations().get(0));
+        assertSame(current.getNode(1L), w.getFirstNode());
+    }
+
+    /**
+     * Merged elements are added in one step, element maps obtained before the merge don't change
+     */
+    @Test
+    public void mergeReplacesMaps() {
+        StorageDelegator d = new StorageDelegator();
+        Storage existing = new Storage();
+        Way w = createMergeData(existing, 1L, 1L);
+        d.setCurrentStorage(existing);
+        Storage current = d.getCurrentStorage();
+        LongOsmElementMap<Node> nodes = current.getNodeIndex();
+        LongOsmElementMap<Way> ways = current.getWayIndex();
+        Node oldNode = current.getNode(2L);
+        BoundingBox box = new BoundingBox(0D, 51D, 0.01D, 52D);
+        assertEquals(3, current.getNodes(box).size()); // builds the spatial index
+
+        // newer nodes and an additional node, the way and relation are the same version
+        Storage incoming = new Storage();
+        createMergeData(incoming, 2L, 1L);
+        Node newNode = incoming.getNode(2L);
+        Node addedNode = OsmElementFactory.createNode(4L, 1L, 0, OsmElement.STATE_UNCHANGED, toE7(51.480), toE7(0.001));
+        incoming.insertNodeUnsafe(addedNode);
+
+        assertTrue(d.mergeData(incoming, null));
+        assertSame(oldNode, nodes.get(2L));
+        assertNull(nodes.get(4L));
+        assertNotSame(nodes, current.getNodeIndex());
+        assertSame(ways, current.getWayIndex());
+        assertSame(newNode, current.getNode(2L));
+        assertSame(addedNode, current.getNode(4L));
+        assertSame(newNode, w.getNodes().get(1));
+        List<Node> inBox = current.getNodes(box);
+        assertEquals(4, inBox.size());
+        assertTrue(inBox.contains(newNode));
+        assertFalse(inBox.contains(oldNode));
+    }
+
+    /**
+     * Create a way with three nodes that is a member of a relation
+     * 
+     * @param storage the Storage to add the elements to
+     * @param nodeVersion the version of the nodes
+     * @param wayVersion the version of the way
+     * @return the Way
+     */
+    @NonNull
+    private Way createMergeData(@NonNull Storage storage, long nodeVersion, long wayVersion) {
+        Way w = OsmElementFactory.createWay(1L, wayVersion, 0, OsmElement.STATE_UNCHANGED);
+        for (long i = 1; i <= 3; i++) {
+            Node n = OsmElementFactory.createNode(i, nodeVersion, 0, OsmElement.STATE_UNCHANGED, toE7(51.476 + i / 1000D), toE7(0.001));
+            storage.insertNodeUnsafe(n);
+            w.addNode(n);
+        }
+        storage.insertWayUnsafe(w);
+        Relation r = OsmElementFactory.createRelation(1L, 1L, 0, OsmElement.STATE_UNCHANGED);
+        r.addMember(new RelationMember("test", w));
+        w.addParentRelation(r);
+        storage.insertRelationUnsafe(r);
+        return w;
+    }
+
     /**
      * Split way then merge in various ways
      */
@@ -1,6 +1,7 @@
 package de.blau.android.osm;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 
 import java.util.List;
@@ -63,4 +64,24 @@ public class StorageTest {
         Log.d(DEBUG_TAG, "getWays(Boundingbox) took " + execution + " ms");
         assertEquals(217, ways.size());
     }
+
+    /**
+     * Changes to storage need to change the modification count
+     */
+    @Test
+    public void modificationCount() {
+        int count = storage.getModificationCount();
+        Node node = OsmElementFactory.createNode(-1L, 1L, System.currentTimeMillis() / 1000, OsmElement.STATE_CREATED, 471390000, 95200000);
+        storage.insertElementSafe(node);
+        assertNotEquals(count, storage.getModificationCount());
+        count = storage.getModificationCount();
+        storage.invalidateSpatialIndex(node);
+        assertNotEquals(count, storage.getModificationCount());
+        count = storage.getModificationCount();
+        storage.removeElement(node);
+        assertNotEquals(count, storage.getModificationCount());
+        count = storage.getModificationCount();
+        storage.getNodes(new BoundingBox(9.51947D, 47.13638D, 9.52300D, 47.14066D));
+        assertEquals(count, storage.getModificationCount());
+    }
 }
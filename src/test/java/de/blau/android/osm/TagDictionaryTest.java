@@ -0,0 +1,53 @@
+package de.blau.android.osm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class TagDictionaryTest {
+
+    /**
+     * Equal strings should be returned as the same instance
+     */
+    @Test
+    public void intern() {
+        String v1 = new String("residential");
+        String v2 = new String("residential");
+        assertNotSame(v1, v2);
+        String shared = TagDictionary.intern(v1);
+        assertEquals(v1, shared);
+        assertSame(shared, TagDictionary.intern(v2));
+        assertNull(TagDictionary.intern(null));
+    }
+
+    /**
+     * Long strings should not be added
+     */
+    @Test
+    public void longStrings() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i <= TagDictionary.MAX_LENGTH; i++) {
+            builder.append('x');
+        }
+        String s1 = builder.toString();
+        String s2 = builder.toString();
+        assertSame(s1, TagDictionary.intern(s1));
+        assertSame(s2, TagDictionary.intern(s2));
+    }
+
+    /**
+     * After clearing strings are no longer shared with those interned before
+     */
+    @Test
+    public void clear() {
+        String v1 = new String("clear test value");
+        String v2 = new String("clear test value");
+        assertSame(v1, TagDictionary.intern(v1));
+        TagDictionary.clear();
+        assertSame(v2, TagDictionary.intern(v2));
+        assertSame(v2, TagDictionary.intern(new String("clear test value")));
+    }
+}
@@ -0,0 +1,172 @@
+package de.blau.android.services.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.blau.android.exception.InvalidTileException;
+
+public class MapTileSegmentStoreTest {
+
+    private static final int SEGMENT_SIZE = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Get some test data
+     *
+     * @param value the value to fill with
+     * @return a byte array
+     */
+    private static byte[] data(int value) {
+        byte[] data = new byte[100];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    /**
+     * Tiles can be read back, also after re-opening, and replaced tiles return the new data
+     */
+    @Test
+    public void putAndGet() throws IOException {
+        File dir = folder.newFolder();
+        MapTileSegmentStore store = MapTileSegmentStore.open(dir, SEGMENT_SIZE);
+        MapTile a = new MapTile("test", 10, 100, 200);
+        MapTile b = new MapTile("test", 10, 101, 200);
+        store.putTile(a, data(1));
+        store.putTile(b, data(2));
+        assertArrayEquals(data(1), store.getTile(a));
+        assertArrayEquals(data(2), store.getTile(b));
+        assertNull(store.getTile(new MapTile("test", 11, 100, 200)));
+        store.putTile(a, data(3));
+        assertArrayEquals(data(3), store.getTile(a));
+        store.close();
+
+        store = MapTileSegmentStore.open(dir, SEGMENT_SIZE);
+        assertArrayEquals(data(3), store.getTile(a));
+        assertArrayEquals(data(2), store.getTile(b));
+        store.close();
+    }
+
+    /**
+     * Tiles marked invalid throw an exception
+     */
+    @Test
+    public void invalid() throws IOException {
+        MapTileSegmentStore store = MapTileSegmentStore.open(folder.newFolder(), SEGMENT_SIZE);
+        MapTile a = new MapTile("test", 10, 100, 200);
+        store.putTile(a, null);
+        assertTrue(store.hasTile(a));
+        try {
+            store.getTile(a);
+            fail("Expected InvalidTileException");
+        } catch (InvalidTileException e) {
+            // expected
+        }
+        store.close();
+    }
+
+    /**
+     * Segments that don't contain live records any more are removed
+     */
+    @Test
+    public void compaction() throws IOException {
+        File dir = folder.newFolder();
+        MapTileSegmentStore store = MapTileSegmentStore.open(dir, SEGMENT_SIZE);
+        MapTile a = new MapTile("test", 10, 100, 200);
+        MapTile b = new MapTile("test", 10, 101, 200);
+        store.putTile(a, data(1)); // segment 0
+        store.putTile(b, data(2)); // segment 1
+        store.putTile(a, data(3)); // segment 2, segment 0 is now empty
+        store.close(); // waits for compaction
+
+        store = MapTileSegmentStore.open(dir, SEGMENT_SIZE);
+        assertEquals(2, store.getSegmentCount());
+        assertEquals(2L * (MapTileSegmentStore.HEADER_SIZE + 100), store.getSize());
+        assertArrayEquals(data(3), store.getTile(a));
+        assertArrayEquals(data(2), store.getTile(b));
+        store.close();
+    }
+
+    /**
+     * Evicting removes the tiles in the oldest segment
+     */
+    @Test
+    public void eviction() throws IOException {
+        MapTileSegmentStore store = MapTileSegmentStore.open(folder.newFolder(), SEGMENT_SIZE);
+        MapTile a = new MapTile("test", 10, 100, 200);
+        MapTile b = new MapTile("test", 10, 101, 200);
+        store.putTile(a, data(1));
+        store.putTile(b, data(2));
+        assertEquals(MapTileSegmentStore.HEADER_SIZE + 100, store.evictOldestSegment());
+        assertNull(store.getTile(a));
+        assertArrayEquals(data(2), store.getTile(b));
+        assertEquals(0, store.evictOldestSegment()); // never remove the current segment
+        store.close();
+    }
+
+    /**
+     * The size of a store that isn't open can be determined and its oldest segment deleted from the files on disk
+     */
+    @Test
+    public void closedStore() throws IOException {
+        File dir = folder.newFolder();
+        MapTileSegmentStore store = MapTileSegmentStore.open(dir, SEGMENT_SIZE);
+        MapTile a = new MapTile("test", 10, 100, 200);
+        MapTile b = new MapTile("test", 10, 101, 200);
+        store.putTile(a, data(1));
+        store.putTile(b, data(2));
+        long size = store.getSize();
+        store.close();
+
+        assertEquals(size, MapTileSegmentStore.getSize(dir));
+        assertEquals(MapTileSegmentStore.HEADER_SIZE + 100, MapTileSegmentStore.deleteOldestSegment(dir));
+        assertEquals(MapTileSegmentStore.HEADER_SIZE + 100, MapTileSegmentStore.getSize(dir));
+        assertEquals(0, MapTileSegmentStore.deleteOldestSegment(dir)); // never remove the current segment
+
+        store = MapTileSegmentStore.open(dir, SEGMENT_SIZE);
+        assertNull(store.getTile(a));
+        assertArrayEquals(data(2), store.getTile(b));
+        store.close();
+    }
+
+    /**
+     * A truncated record at the end of a segment is removed when opening
+     */
+    @Test
+    public void truncated() throws IOException {
+        File dir = folder.newFolder();
+        MapTileSegmentStore store = MapTileSegmentStore.open(dir, 1000);
+        MapTile a = new MapTile("test", 10, 100, 200);
+        store.putTile(a, data(1));
+        store.close();
+        File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+        try (FileOutputStream out = new FileOutputStream(files[0], true)) {
+            out.write(new byte[] { 0, 0, 0, 10, 0, 0 });
+        }
+
+        store = MapTileSegmentStore.open(dir, 1000);
+        assertEquals(MapTileSegmentStore.HEADER_SIZE + 100, store.getSize());
+        MapTile b = new MapTile("test", 10, 101, 200);
+        store.putTile(b, data(2));
+        store.close();
+
+        store = MapTileSegmentStore.open(dir, 1000);
+        assertArrayEquals(data(1), store.getTile(a));
+        assertArrayEquals(data(2), store.getTile(b));
+        store.close();
+    }
+}
@@ -0,0 +1,49 @@
+package de.blau.android.services.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MapTileViewportTest {
+
+    /**
+     * Tiles inside and near the view are contained, others not, tiles at other zooms are scaled
+     */
+    @Test
+    public void contains() {
+        MapTileViewport viewport = new MapTileViewport("test", 10, 100, 200, 103, 202);
+        assertTrue(viewport.contains(new MapTile("test", 10, 100, 200)));
+        assertTrue(viewport.contains(new MapTile("test", 10, 104, 203))); // margin
+        assertFalse(viewport.contains(new MapTile("test", 10, 106, 200)));
+        assertFalse(viewport.contains(new MapTile("test", 10, 100, 210)));
+        assertTrue(viewport.contains(new MapTile("test", 9, 50, 100))); // parent
+        assertTrue(viewport.contains(new MapTile("test", 11, 205, 401))); // child
+        assertFalse(viewport.contains(new MapTile("test", 11, 300, 401)));
+    }
+
+    /**
+     * Views extending over the 180° meridian
+     */
+    @Test
+    public void wrap() {
+        MapTileViewport viewport = new MapTileViewport("test", 2, 3, 1, 4, 2);
+        assertTrue(viewport.contains(new MapTile("test", 2, 0, 1)));
+        assertEquals(viewport.distance(new MapTile("test", 2, 3, 1)), viewport.distance(new MapTile("test", 2, 0, 1)), 0.0001);
+    }
+
+    /**
+     * Tiles nearer to the center have a smaller distance
+     */
+    @Test
+    public void distance() {
+        MapTileViewport viewport = new MapTileViewport("test", 10, 100, 200, 104, 204);
+        double center = viewport.distance(new MapTile("test", 10, 102, 202));
+        double edge = viewport.distance(new MapTile("test", 10, 100, 202));
+        double corner = viewport.distance(new MapTile("test", 10, 104, 204));
+        assertEquals(0, center, 0.0001);
+        assertTrue(center < edge);
+        assertTrue(edge < corner);
+    }
+}
@@ -0,0 +1,122 @@
+package de.blau.android.services.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+public class TileCacheInfoTest {
+
+    private static final long   NOW  = 1600000000000L;
+    private static final long   DAY  = 24 * 3600 * 1000L;
+    private static final String URL  = "https://tiles.example.com/1/2/3.png";
+    private static final String ETAG = "\"abc123\"";
+
+    /**
+     * Create a Response with headers
+     *
+     * @param headers name value pairs
+     * @return a Response
+     */
+    private static Response response(String... headers) {
+        Response.Builder builder = new Response.Builder().request(new Request.Builder().url(URL).build()).protocol(Protocol.HTTP_1_1).code(200)
+                .message("OK");
+        for (int i = 0; i < headers.length; i += 2) {
+            builder.addHeader(headers[i], headers[i + 1]);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Format a time as a HTTP date
+     *
+     * @param time milliseconds since the epoch
+     * @return the formatted date
+     */
+    private static String httpDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    /**
+     * max-age sets the expiry time and takes precedence over Expires
+     */
+    @Test
+    public void maxAge() {
+        TileCacheInfo info = TileCacheInfo.fromResponse(response("Cache-Control", "max-age=86400", TileCacheInfo.EXPIRES, httpDate(NOW + 10 * DAY)), NOW);
+        assertEquals(NOW + DAY, info.expires);
+    }
+
+    /**
+     * Short lifetimes are extended to the minimum lifetime
+     */
+    @Test
+    public void minLifetime() {
+        TileCacheInfo info = TileCacheInfo.fromResponse(response("Cache-Control", "max-age=60"), NOW);
+        assertEquals(NOW + TileCacheInfo.MIN_LIFETIME, info.expires);
+        info = TileCacheInfo.fromResponse(response(TileCacheInfo.EXPIRES, httpDate(NOW - DAY)), NOW);
+        assertEquals(NOW + TileCacheInfo.MIN_LIFETIME, info.expires);
+    }
+
+    /**
+     * Without max-age the Expires header is used
+     */
+    @Test
+    public void expires() {
+        TileCacheInfo info = TileCacheInfo.fromResponse(response(TileCacheInfo.EXPIRES, httpDate(NOW + 2 * DAY)), NOW);
+        assertEquals(NOW + 2 * DAY, info.expires);
+    }
+
+    /**
+     * Without max-age or Expires the expiry time is unknown and the tile is never re-validated
+     */
+    @Test
+    public void noExpiry() {
+        TileCacheInfo info = TileCacheInfo.fromResponse(response(TileCacheInfo.ETAG, ETAG), NOW);
+        assertEquals(0, info.expires);
+        assertTrue(info.hasValidator());
+        assertFalse(info.isExpired(NOW + 100 * DAY));
+    }
+
+    /**
+     * ETag and Last-Modified are retained and used for conditional requests
+     */
+    @Test
+    public void validators() {
+        String lastModified = httpDate(NOW - DAY);
+        TileCacheInfo info = TileCacheInfo.fromResponse(
+                response("Cache-Control", "max-age=86400", TileCacheInfo.ETAG, ETAG, TileCacheInfo.LAST_MODIFIED, lastModified), NOW);
+        assertEquals(ETAG, info.etag);
+        assertEquals(lastModified, info.lastModified);
+        assertFalse(info.isExpired(NOW));
+        assertTrue(info.isExpired(NOW + 2 * DAY));
+
+        Request.Builder builder = new Request.Builder().url(URL);
+        info.addConditionalHeaders(builder);
+        Request request = builder.build();
+        assertEquals(ETAG, request.header(TileCacheInfo.IF_NONE_MATCH));
+        assertEquals(lastModified, request.header(TileCacheInfo.IF_MODIFIED_SINCE));
+
+        // without validators there is nothing to re-validate with
+        info = TileCacheInfo.fromResponse(response("Cache-Control", "max-age=86400"), NOW);
+        assertNull(info.etag);
+        assertNull(info.lastModified);
+        assertFalse(info.hasValidator());
+        assertFalse(info.isExpired(NOW + 2 * DAY));
+        builder = new Request.Builder().url(URL);
+        info.addConditionalHeaders(builder);
+        assertNull(builder.build().header(TileCacheInfo.IF_NONE_MATCH));
+    }
+}
@@ -0,0 +1,92 @@
+package de.blau.android.services.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TileSeedJobTest {
+
+    /**
+     * Enumerate all tiles of a job
+     *
+     * @param job the job
+     * @return a list of tiles
+     */
+    private static List<MapTile> tiles(TileSeedJob job) {
+        List<MapTile> result = new ArrayList<>();
+        MapTile tile;
+        while ((tile = job.next()) != null) {
+            result.add(tile);
+        }
+        return result;
+    }
+
+    /**
+     * All tiles in the bounding box are returned once, lowest zoom first
+     */
+    @Test
+    public void boundingBox() {
+        TileSeedJob job = new TileSeedJob("test", 8.0, 47.0, 8.5, 47.5, null, 10, 12);
+        List<MapTile> tiles = tiles(job);
+        assertEquals(job.getTileCount(), tiles.size());
+        assertEquals(10, tiles.get(0).zoomLevel);
+        assertEquals(12, tiles.get(tiles.size() - 1).zoomLevel);
+        assertEquals(TileSeedJob.xTile(8.0, 10), tiles.get(0).x);
+        assertEquals(TileSeedJob.yTile(47.5, 10), tiles.get(0).y);
+        assertNull(job.next());
+    }
+
+    /**
+     * Tiles outside of the polygon are not returned
+     */
+    @Test
+    public void polygon() {
+        // triangle covering the lower left half of the bounding box
+        double[] triangle = { 8.0, 47.0, 8.5, 47.0, 8.0, 47.5 };
+        TileSeedJob job = new TileSeedJob("test", 8.0, 47.0, 8.5, 47.5, triangle, 14, 14);
+        List<MapTile> tiles = tiles(job);
+        assertTrue(tiles.size() < job.getTileCount());
+        assertTrue(tiles.size() > job.getTileCount() / 2);
+        for (MapTile tile : tiles) {
+            // the north east corner of the box is outside of the triangle
+            assertTrue(!(tile.x == TileSeedJob.xTile(8.5, 14) && tile.y == TileSeedJob.yTile(47.5, 14)));
+        }
+    }
+
+    /**
+     * A serialized job continues where it stopped
+     */
+    @Test
+    public void resume() throws IOException, ClassNotFoundException {
+        TileSeedJob job = new TileSeedJob("test", 8.0, 47.0, 8.5, 47.5, null, 10, 11);
+        List<MapTile> all = tiles(new TileSeedJob("test", 8.0, 47.0, 8.5, 47.5, null, 10, 11));
+        for (int i = 0; i < 5; i++) {
+            job.next();
+            job.downloaded(100);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+            oos.writeObject(job);
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            TileSeedJob restored = (TileSeedJob) ois.readObject();
+            assertEquals(5, restored.getDownloaded());
+            assertEquals(500, restored.getBytes());
+            List<MapTile> rest = tiles(restored);
+            assertEquals(all.size() - 5, rest.size());
+            for (int i = 0; i < rest.size(); i++) {
+                assertEquals(all.get(i + 5).toString(), rest.get(i).toString());
+            }
+        }
+    }
+}
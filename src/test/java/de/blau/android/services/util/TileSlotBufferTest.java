@@ -0,0 +1,135 @@
+package de.blau.android.services.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TileSlotBufferTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Get some test data
+     *
+     * @param value the value to fill with
+     * @param length the length of the data
+     * @return a byte array
+     */
+    private static byte[] data(int value, int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    /**
+     * Read the contents of a slot
+     *
+     * @param buffer the TileSlotBuffer
+     * @param slot the slot index
+     * @return the contents
+     * @throws IOException if reading failed
+     */
+    private static byte[] read(TileSlotBuffer buffer, int slot) throws IOException {
+        try (InputStream is = buffer.get(slot)) {
+            byte[] result = new byte[is.available()];
+            int offset = 0;
+            int count;
+            while (offset < result.length && (count = is.read(result, offset, result.length - offset)) > 0) {
+                offset += count;
+            }
+            assertEquals(-1, is.read());
+            return result;
+        }
+    }
+
+    /**
+     * Data put in to a slot can be read back, also via a second mapping of the same file, and released slots are empty
+     */
+    @Test
+    public void putAndRelease() throws IOException {
+        File file = folder.newFile();
+        TileSlotBuffer service = TileSlotBuffer.create(file);
+        TileSlotBuffer client = TileSlotBuffer.open(file);
+        int first = service.put(data(1, 100));
+        int second = service.put(data(2, 1000));
+        assertTrue(first >= 0);
+        assertTrue(second >= 0);
+        assertTrue(first != second);
+        assertArrayEquals(data(1, 100), read(client, first));
+        assertArrayEquals(data(2, 1000), read(client, second));
+        client.release(first);
+        try {
+            client.get(first);
+            fail("released slot should be empty");
+        } catch (IOException e) {
+            // expected
+        }
+        assertArrayEquals(data(2, 1000), read(service, second));
+        client.release(second);
+    }
+
+    /**
+     * Data that doesn't fit in a slot is rejected, data that exactly fits is accepted
+     */
+    @Test
+    public void tooLarge() throws IOException {
+        TileSlotBuffer buffer = TileSlotBuffer.create(folder.newFile());
+        assertEquals(-1, buffer.put(data(1, TileSlotBuffer.SLOT_SIZE)));
+        byte[] max = data(2, TileSlotBuffer.SLOT_SIZE - 8);
+        int slot = buffer.put(max);
+        assertTrue(slot >= 0);
+        assertArrayEquals(max, read(buffer, slot));
+    }
+
+    /**
+     * Slots are used round robin, when all slots are full put fails till a slot is released, which is then re-used
+     */
+    @Test
+    public void wrapAround() throws IOException {
+        TileSlotBuffer buffer = TileSlotBuffer.create(folder.newFile());
+        for (int i = 0; i < TileSlotBuffer.SLOT_COUNT; i++) {
+            assertEquals(i, buffer.put(data(i, 10)));
+        }
+        assertEquals(-1, buffer.put(data(0, 10)));
+        buffer.release(5);
+        assertEquals(5, buffer.put(data(100, 10)));
+        assertArrayEquals(data(100, 10), read(buffer, 5));
+        assertArrayEquals(data(6, 10), read(buffer, 6));
+        // continues after the last slot used and wraps around to the start
+        buffer.release(2);
+        buffer.release(TileSlotBuffer.SLOT_COUNT - 1);
+        assertEquals(TileSlotBuffer.SLOT_COUNT - 1, buffer.put(data(101, 10)));
+        assertEquals(2, buffer.put(data(102, 10)));
+        // clearing frees all slots
+        buffer.clear();
+        assertEquals(3, buffer.put(data(103, 10)));
+    }
+
+    /**
+     * Invalid slot indices are rejected
+     */
+    @Test
+    public void invalidSlot() throws IOException {
+        TileSlotBuffer buffer = TileSlotBuffer.create(folder.newFile());
+        for (int slot : new int[] { -1, TileSlotBuffer.SLOT_COUNT }) {
+            try {
+                buffer.get(slot);
+                fail("slot " + slot + " should be invalid");
+            } catch (IOException e) {
+                // expected
+            }
+            buffer.release(slot); // ignored
+        }
+    }
+}
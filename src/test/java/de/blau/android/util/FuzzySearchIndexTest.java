@@ -0,0 +1,92 @@
+package de.blau.android.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class FuzzySearchIndexTest {
+
+    private static final List<String> KEYS = Arrays.asList("restaurant", "fast food", "cafe", "bar", "pub", "bank", "atm", "bakery", "bicycle shop",
+            "bicycle parking", "car wash", "post office", "police", "pharmacy", "parking", "toilets", "drinking water", "a", "");
+
+    /**
+     * Substring lookups return the same keys as a linear scan
+     */
+    @Test
+    public void containing() {
+        FuzzySearchIndex index = new FuzzySearchIndex(KEYS);
+        for (String term : new String[] { "", "a", "ba", "bicycle", "park", "cycle sh", "zzz", "restaurants" }) {
+            Set<String> expected = new HashSet<>();
+            for (String key : KEYS) {
+                if (key.contains(term)) {
+                    expected.add(key);
+                }
+            }
+            assertEquals(term, expected, index.containing(term));
+        }
+    }
+
+    /**
+     * Typo tolerant lookups find the expected keys
+     */
+    @Test
+    public void withinDistance() {
+        FuzzySearchIndex index = new FuzzySearchIndex(KEYS);
+        Map<String, Integer> result = index.withinDistance("restuarant", 2);
+        assertEquals(Integer.valueOf(1), result.get("restaurant"));
+        result = index.withinDistance("bicycle shpo", 2);
+        assertEquals(Integer.valueOf(1), result.get("bicycle shop"));
+        assertTrue(index.withinDistance("xyzzy", 1).isEmpty());
+    }
+
+    /**
+     * Edit distance lookups return the same keys as a linear scan for random input
+     */
+    @Test
+    public void randomWithinDistance() {
+        Random random = new Random(4711);
+        Set<String> keys = new HashSet<>();
+        for (int i = 0; i < 2000; i++) {
+            keys.add(randomString(random, 1 + random.nextInt(15)));
+        }
+        FuzzySearchIndex index = new FuzzySearchIndex(keys);
+        assertEquals(keys.size(), index.size());
+        for (int i = 0; i < 200; i++) {
+            String term = randomString(random, 1 + random.nextInt(15));
+            for (int maxDistance = 0; maxDistance <= 2; maxDistance++) {
+                Map<String, Integer> expected = new HashMap<>();
+                for (String key : keys) {
+                    int distance = OptimalStringAlignment.editDistance(key, term, maxDistance);
+                    if (distance >= 0 && distance <= maxDistance) {
+                        expected.put(key, distance);
+                    }
+                }
+                assertEquals(term, expected, index.withinDistance(term, maxDistance));
+            }
+        }
+    }
+
+    /**
+     * Create a string from a small alphabet so that there are enough near matches
+     *
+     * @param random the source of randomness
+     * @param length the length of the string
+     * @return a random String
+     */
+    private static String randomString(Random random, int length) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            builder.append("abcde ".charAt(random.nextInt(6)));
+        }
+        return builder.toString();
+    }
+}